@@ -0,0 +1,132 @@
+package com.github.cowwoc.tokenbucket.benchmark;
+
+import com.github.cowwoc.tokenbucket.Bucket;
+import com.github.cowwoc.tokenbucket.ConsumptionResult;
+import com.github.cowwoc.tokenbucket.Container;
+import com.github.cowwoc.tokenbucket.ContainerList;
+import com.github.cowwoc.tokenbucket.Limit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of consuming tokens that are available, which is the hot path of a rate limiter.
+ * <p>
+ * The limits hold enough tokens that they never run out during a run, so the results measure bookkeeping
+ * and contention rather than waiting. Run with {@code -t N} to vary the number of threads, and with
+ * {@code -prof gc} to report {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsumeBenchmark
+{
+	/**
+	 * The container that tokens are consumed from.
+	 */
+	public enum Topology
+	{
+		/**
+		 * A bucket with a single limit.
+		 */
+		ONE_LIMIT,
+		/**
+		 * A bucket with two limits.
+		 */
+		TWO_LIMITS,
+		/**
+		 * A bucket with two limits that combines concurrent requests.
+		 */
+		TWO_LIMITS_COMBINING,
+		/**
+		 * A bucket with two limits that leases tokens to threads.
+		 */
+		TWO_LIMITS_LEASED,
+		/**
+		 * A list of two buckets that consumes from one bucket at a time.
+		 */
+		CONSUME_FROM_ONE,
+		/**
+		 * A list of two buckets that consumes from both buckets.
+		 */
+		CONSUME_FROM_ALL
+	}
+
+	@Param
+	public Topology topology;
+	private Container container;
+
+	/**
+	 * @param limit a limit builder
+	 * @return a limit that never runs out of tokens during a benchmark run
+	 */
+	private static Limit newLimit(Limit.Builder limit)
+	{
+		return limit.
+			tokensPerPeriod(1_000_000_000).
+			period(Duration.ofSeconds(1)).
+			initialTokens(Long.MAX_VALUE / 2).
+			maximumTokens(Long.MAX_VALUE / 2).
+			build();
+	}
+
+	@Setup
+	public void setup()
+	{
+		container = switch (topology)
+		{
+			case ONE_LIMIT -> Bucket.builder().
+				addLimit(ConsumeBenchmark::newLimit).
+				build();
+			case TWO_LIMITS -> Bucket.builder().
+				addLimit(ConsumeBenchmark::newLimit).
+				addLimit(ConsumeBenchmark::newLimit).
+				build();
+			case TWO_LIMITS_COMBINING -> Bucket.builder().
+				addLimit(ConsumeBenchmark::newLimit).
+				addLimit(ConsumeBenchmark::newLimit).
+				combining(true).
+				build();
+			case TWO_LIMITS_LEASED -> Bucket.builder().
+				addLimit(ConsumeBenchmark::newLimit).
+				addLimit(ConsumeBenchmark::newLimit).
+				leaseSize(1024).
+				build();
+			case CONSUME_FROM_ONE -> ContainerList.builder().
+				addBucket(bucket -> bucket.addLimit(ConsumeBenchmark::newLimit).build()).
+				addBucket(bucket -> bucket.addLimit(ConsumeBenchmark::newLimit).build()).
+				build();
+			case CONSUME_FROM_ALL -> ContainerList.builder().
+				consumeFromAll().
+				addBucket(bucket -> bucket.addLimit(ConsumeBenchmark::newLimit).build()).
+				addBucket(bucket -> bucket.addLimit(ConsumeBenchmark::newLimit).build()).
+				build();
+		};
+	}
+
+	@Benchmark
+	public ConsumptionResult tryConsume()
+	{
+		return container.tryConsume();
+	}
+
+	@Benchmark
+	public long tryAcquire()
+	{
+		return container.tryAcquire(1);
+	}
+}
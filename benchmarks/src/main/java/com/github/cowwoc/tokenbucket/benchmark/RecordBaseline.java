@@ -0,0 +1,57 @@
+package com.github.cowwoc.tokenbucket.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Runs every benchmark at 1, 2, 4, ... threads up to the number of available processors, and records the
+ * results in JSON format.
+ * <p>
+ * Usage: {@code java -jar target/benchmarks.jar [outputDirectory]}. The output directory defaults to
+ * {@code baselines}. Each thread count is written to {@code threads-N.json}.
+ */
+public final class RecordBaseline
+{
+	/**
+	 * Prevent construction.
+	 */
+	private RecordBaseline()
+	{
+	}
+
+	/**
+	 * @param args the command-line arguments
+	 * @throws IOException     if the output directory cannot be created
+	 * @throws RunnerException if a benchmark fails
+	 */
+	public static void main(String[] args) throws IOException, RunnerException
+	{
+		Path outputDirectory;
+		if (args.length > 0)
+			outputDirectory = Path.of(args[0]);
+		else
+			outputDirectory = Path.of("baselines");
+		Files.createDirectories(outputDirectory);
+
+		int maximumThreads = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= maximumThreads; threads *= 2)
+		{
+			Options options = new OptionsBuilder().
+				include(ConsumeBenchmark.class.getName()).
+				threads(threads).
+				addProfiler(GCProfiler.class).
+				resultFormat(ResultFormatType.JSON).
+				result(outputDirectory.resolve("threads-" + threads + ".json").toString()).
+				build();
+			new Runner(options).run();
+		}
+	}
+}
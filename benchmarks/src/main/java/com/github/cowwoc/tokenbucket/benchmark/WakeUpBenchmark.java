@@ -0,0 +1,345 @@
+package com.github.cowwoc.tokenbucket.benchmark;
+
+import com.github.cowwoc.tokenbucket.Bucket;
+import com.github.cowwoc.tokenbucket.Container;
+import com.github.cowwoc.tokenbucket.ContainerList;
+import com.github.cowwoc.tokenbucket.ContainerListener;
+import com.github.cowwoc.tokenbucket.Limit;
+import com.github.cowwoc.tokenbucket.TimeSource;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Saturates a container with blocked consumers and measures how accurately {@code consume()} wakes them up.
+ * <p>
+ * For each combination of {@link Topology}, {@link ThreadKind} and number of consumers, the benchmark
+ * records:
+ * <ul>
+ *   <li>wake-up lateness: the time between the {@code availableAt} that a consumer slept until and the time
+ *   at which {@code consume()} returned.</li>
+ *   <li>the admitted rate, and its error relative to the configured {@code tokensPerPeriod}.</li>
+ *   <li>spurious wake-ups: the number of times that a consumer went back to sleep without consuming
+ *   tokens, per admitted token.</li>
+ *   <li>the CPU time of the process per admitted token. Spurious wake-ups show up as an increase of this
+ *   value over the single-consumer run.</li>
+ * </ul>
+ * <p>
+ * Usage: {@code java -cp target/benchmarks.jar com.github.cowwoc.tokenbucket.benchmark.WakeUpBenchmark
+ * [outputDirectory]}. The output directory defaults to {@code wake-up}. The lateness distribution of each
+ * run is written to {@code <topology>-<threadKind>-<consumers>.hgrm}, in microseconds, and a summary of all
+ * runs is written to {@code summary.txt}. Virtual-thread runs are skipped on JVMs that do not support
+ * virtual threads.
+ */
+public final class WakeUpBenchmark
+{
+	/**
+	 * The number of tokens that each limit refills per second.
+	 */
+	private static final long TOKENS_PER_SECOND = 1000;
+	private static final int[] CONSUMERS = {1, 16, 256};
+	private static final Duration WARMUP = Duration.ofSeconds(2);
+	private static final Duration MEASUREMENT = Duration.ofSeconds(10);
+	private static final Method OF_VIRTUAL = getOfVirtual();
+
+	/**
+	 * The container that consumers block on.
+	 */
+	public enum Topology
+	{
+		/**
+		 * A bucket with a single limit.
+		 */
+		BUCKET,
+		/**
+		 * A list that consumes from a bucket and from a nested list, which consumes from one of two buckets.
+		 * Every bucket has the same rate, so the first bucket is the bottleneck.
+		 */
+		NESTED_LISTS
+	}
+
+	/**
+	 * The kind of threads that consume tokens.
+	 */
+	public enum ThreadKind
+	{
+		/**
+		 * Platform threads.
+		 */
+		PLATFORM,
+		/**
+		 * Virtual threads.
+		 */
+		VIRTUAL
+	}
+
+	/**
+	 * Prevent construction.
+	 */
+	private WakeUpBenchmark()
+	{
+	}
+
+	/**
+	 * @param args the command-line arguments
+	 * @throws IOException          if the results cannot be written
+	 * @throws InterruptedException if the thread is interrupted while waiting for consumers to finish
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		Path outputDirectory;
+		if (args.length > 0)
+			outputDirectory = Path.of(args[0]);
+		else
+			outputDirectory = Path.of("wake-up");
+		Files.createDirectories(outputDirectory);
+
+		List<String> summary = new ArrayList<>();
+		summary.add(String.format("%-12s %-8s %9s %12s %9s %10s %10s %10s %10s %14s %14s",
+			"topology", "threads", "consumers", "tokens/s", "error %", "p50 us", "p99 us", "p99.9 us", "max us",
+			"spurious/token", "cpu us/token"));
+		for (Topology topology : Topology.values())
+		{
+			for (ThreadKind threadKind : ThreadKind.values())
+			{
+				if (threadKind == ThreadKind.VIRTUAL && OF_VIRTUAL == null)
+				{
+					System.out.println("Skipping virtual threads, which are not supported by this JVM");
+					continue;
+				}
+				for (int consumers : CONSUMERS)
+				{
+					Run run = new Run(topology, threadKind, consumers);
+					run.execute();
+					String name = topology + "-" + threadKind + "-" + consumers;
+					try (PrintStream out = new PrintStream(Files.newOutputStream(outputDirectory.resolve(
+						name.toLowerCase() + ".hgrm"))))
+					{
+						run.lateness.outputPercentileDistribution(out, 1000.0);
+					}
+					String line = run.toSummary();
+					System.out.println(line);
+					summary.add(line);
+				}
+			}
+		}
+		Files.write(outputDirectory.resolve("summary.txt"), summary);
+	}
+
+	/**
+	 * @return {@code Thread.ofVirtual()}, or {@code null} if virtual threads are not supported
+	 */
+	private static Method getOfVirtual()
+	{
+		try
+		{
+			return Thread.class.getMethod("ofVirtual");
+		}
+		catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @param threadKind the kind of thread to create
+	 * @param task       the task that the thread runs
+	 * @return a new thread that has not been started
+	 */
+	private static Thread newThread(ThreadKind threadKind, Runnable task)
+	{
+		if (threadKind == ThreadKind.PLATFORM)
+			return new Thread(task);
+		try
+		{
+			// Compiled against Java 17, so Thread.ofVirtual().unstarted(task) is invoked reflectively
+			Object builder = OF_VIRTUAL.invoke(null);
+			Method unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+			return (Thread) unstarted.invoke(builder, task);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			Throwable cause = e;
+			if (e instanceof InvocationTargetException ite)
+				cause = ite.getCause();
+			throw new UnsupportedOperationException("Virtual threads are not supported", cause);
+		}
+	}
+
+	/**
+	 * @param limit a limit builder
+	 * @return a limit that refills one token every {@code 1 / TOKENS_PER_SECOND} seconds
+	 */
+	private static Limit newLimit(Limit.Builder limit)
+	{
+		return limit.
+			tokensPerPeriod(TOKENS_PER_SECOND).
+			period(Duration.ofSeconds(1)).
+			build();
+	}
+
+	/**
+	 * @return the CPU time used by the process, in nanoseconds ({@code -1} if it is not available)
+	 */
+	private static long getProcessCpuTime()
+	{
+		if (ManagementFactory.getOperatingSystemMXBean() instanceof
+			com.sun.management.OperatingSystemMXBean os)
+		{
+			return os.getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	/**
+	 * A single run of the benchmark.
+	 */
+	private static final class Run implements ContainerListener
+	{
+		private final Topology topology;
+		private final ThreadKind threadKind;
+		private final int consumers;
+		private final Container container;
+		private final TimeSource timeSource = TimeSource.system();
+		/**
+		 * The time that each consumer is sleeping until, in nanoseconds ({@code Long.MIN_VALUE} if it is not
+		 * sleeping).
+		 */
+		private final ThreadLocal<long[]> availableAt = ThreadLocal.withInitial(() -> new long[]{Long.MIN_VALUE});
+		private final Recorder recorder = new Recorder(3);
+		private final LongAdder tokensAdmitted = new LongAdder();
+		private final LongAdder sleeps = new LongAdder();
+		private final LongAdder wakeUps = new LongAdder();
+		private volatile boolean stopped;
+		private Histogram lateness;
+		private long admitted;
+		private long spurious;
+		private long cpuTime;
+
+		/**
+		 * @param topology   the container that consumers block on
+		 * @param threadKind the kind of threads that consume tokens
+		 * @param consumers  the number of consumers
+		 */
+		Run(Topology topology, ThreadKind threadKind, int consumers)
+		{
+			this.topology = topology;
+			this.threadKind = threadKind;
+			this.consumers = consumers;
+			this.container = switch (topology)
+			{
+				case BUCKET -> Bucket.builder().
+					addLimit(WakeUpBenchmark::newLimit).
+					addListener(this).
+					build();
+				case NESTED_LISTS -> ContainerList.builder().
+					consumeFromAll().
+					addBucket(bucket -> bucket.addLimit(WakeUpBenchmark::newLimit).build()).
+					addContainerList(list -> list.
+						addBucket(bucket -> bucket.addLimit(WakeUpBenchmark::newLimit).build()).
+						addBucket(bucket -> bucket.addLimit(WakeUpBenchmark::newLimit).build()).
+						build()).
+					addListener(this).
+					build();
+			};
+		}
+
+		@Override
+		public void beforeSleep(Container container, long tokens, Instant requestedAt, Instant availableAt,
+		                        List<Limit> bottlenecks)
+		{
+			this.availableAt.get()[0] = timeSource.toNanoTime(availableAt);
+			sleeps.increment();
+		}
+
+		/**
+		 * Consumes tokens until the run is stopped.
+		 */
+		private void consume()
+		{
+			long[] availableAt = this.availableAt.get();
+			try
+			{
+				while (!stopped)
+				{
+					container.consume();
+					long consumedAt = timeSource.nanoTime();
+					if (availableAt[0] != Long.MIN_VALUE)
+					{
+						recorder.recordValue(Math.max(0, consumedAt - availableAt[0]));
+						availableAt[0] = Long.MIN_VALUE;
+						wakeUps.increment();
+					}
+					tokensAdmitted.increment();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// Stopped
+			}
+		}
+
+		/**
+		 * Runs the benchmark.
+		 *
+		 * @throws InterruptedException if the thread is interrupted while waiting for consumers to finish
+		 */
+		void execute() throws InterruptedException
+		{
+			List<Thread> threads = new ArrayList<>(consumers);
+			for (int i = 0; i < consumers; ++i)
+			{
+				Thread thread = newThread(threadKind, this::consume);
+				threads.add(thread);
+				thread.start();
+			}
+			Thread.sleep(WARMUP.toMillis());
+
+			recorder.reset();
+			long tokensBefore = tokensAdmitted.sum();
+			long sleepsBefore = sleeps.sum();
+			long wakeUpsBefore = wakeUps.sum();
+			long cpuTimeBefore = getProcessCpuTime();
+			Thread.sleep(MEASUREMENT.toMillis());
+			lateness = recorder.getIntervalHistogram();
+			admitted = tokensAdmitted.sum() - tokensBefore;
+			// Consumers that were asleep at the start or end of the measurement may skew the difference slightly
+			spurious = Math.max(0, (sleeps.sum() - sleepsBefore) - (wakeUps.sum() - wakeUpsBefore));
+			cpuTime = getProcessCpuTime() - cpuTimeBefore;
+
+			stopped = true;
+			for (Thread thread : threads)
+				thread.interrupt();
+			for (Thread thread : threads)
+				thread.join();
+		}
+
+		/**
+		 * @return a line that summarizes the results of the run
+		 */
+		String toSummary()
+		{
+			double tokensPerSecond = admitted / (MEASUREMENT.toNanos() / 1_000_000_000.0);
+			double error = (tokensPerSecond - TOKENS_PER_SECOND) * 100.0 / TOKENS_PER_SECOND;
+			double spuriousPerToken = (double) spurious / Math.max(1, admitted);
+			double cpuPerToken = (double) cpuTime / Math.max(1, admitted) / 1000.0;
+			return String.format("%-12s %-8s %9d %12.1f %9.2f %10.1f %10.1f %10.1f %10.1f %14.3f %14.2f",
+				topology, threadKind, consumers, tokensPerSecond, error,
+				lateness.getValueAtPercentile(50) / 1000.0, lateness.getValueAtPercentile(99) / 1000.0,
+				lateness.getValueAtPercentile(99.9) / 1000.0, lateness.getMaxValue() / 1000.0,
+				spuriousPerToken, cpuPerToken);
+		}
+	}
+}
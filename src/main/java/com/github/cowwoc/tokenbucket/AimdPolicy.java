@@ -0,0 +1,287 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.annotation.CheckReturnValue;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.util.Objects;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * Adjusts a limit's {@code tokensPerPeriod} using additive-increase/multiplicative-decrease (AIMD), based on
+ * feedback from the service that the limit protects.
+ * <p>
+ * Every {@code tokensPerPeriod} successful calls increase {@code tokensPerPeriod} by {@code increment}, so
+ * the rate grows by roughly {@code increment} per {@code period} while the limit is saturated. An overload
+ * multiplies {@code tokensPerPeriod} by {@code decreaseFactor}. Overloads that are reported within one
+ * {@code period} of a decrease are ignored, because they are likely caused by calls that were made at the
+ * old rate.
+ * <p>
+ * Rate changes do not acquire the limit's lock, and neither discard the limit's available tokens nor its
+ * progress towards the next refill.
+ * <p>
+ * <b>Thread safety</b>: This class is immutable.
+ *
+ * @see Limit.Builder#adaptive(java.util.function.Function)
+ * @see Bucket#onSuccess()
+ * @see Bucket#onOverload()
+ */
+public final class AimdPolicy
+{
+	private final long minimumTokensPerPeriod;
+	private final long maximumTokensPerPeriod;
+	private final long increment;
+	private final double decreaseFactor;
+
+	/**
+	 * Creates a new policy.
+	 *
+	 * @param minimumTokensPerPeriod the lowest value that {@code tokensPerPeriod} may be decreased to
+	 * @param maximumTokensPerPeriod the highest value that {@code tokensPerPeriod} may be increased to
+	 * @param increment              the number of tokens that {@code tokensPerPeriod} is increased by
+	 * @param decreaseFactor         the factor that {@code tokensPerPeriod} is multiplied by on overload
+	 */
+	private AimdPolicy(long minimumTokensPerPeriod, long maximumTokensPerPeriod, long increment,
+	                   double decreaseFactor)
+	{
+		this.minimumTokensPerPeriod = minimumTokensPerPeriod;
+		this.maximumTokensPerPeriod = maximumTokensPerPeriod;
+		this.increment = increment;
+		this.decreaseFactor = decreaseFactor;
+	}
+
+	/**
+	 * Returns the lowest value that {@code tokensPerPeriod} may be decreased to.
+	 *
+	 * @return the lowest value that {@code tokensPerPeriod} may be decreased to
+	 */
+	public long getMinimumTokensPerPeriod()
+	{
+		return minimumTokensPerPeriod;
+	}
+
+	/**
+	 * Returns the highest value that {@code tokensPerPeriod} may be increased to.
+	 *
+	 * @return the highest value that {@code tokensPerPeriod} may be increased to
+	 */
+	public long getMaximumTokensPerPeriod()
+	{
+		return maximumTokensPerPeriod;
+	}
+
+	/**
+	 * Returns the number of tokens that {@code tokensPerPeriod} is increased by.
+	 *
+	 * @return the number of tokens that {@code tokensPerPeriod} is increased by
+	 */
+	public long getIncrement()
+	{
+		return increment;
+	}
+
+	/**
+	 * Returns the factor that {@code tokensPerPeriod} is multiplied by when the protected service is
+	 * overloaded.
+	 *
+	 * @return the factor that {@code tokensPerPeriod} is multiplied by on overload
+	 */
+	public double getDecreaseFactor()
+	{
+		return decreaseFactor;
+	}
+
+	/**
+	 * @param tokensPerPeriod the current value of {@code tokensPerPeriod}
+	 * @return the value of {@code tokensPerPeriod} after an increase
+	 */
+	long increase(long tokensPerPeriod)
+	{
+		return Math.min(maximumTokensPerPeriod, Limit.saturatedAdd(tokensPerPeriod, increment));
+	}
+
+	/**
+	 * @param tokensPerPeriod the current value of {@code tokensPerPeriod}
+	 * @return the value of {@code tokensPerPeriod} after a decrease
+	 */
+	long decrease(long tokensPerPeriod)
+	{
+		return Math.max(minimumTokensPerPeriod, (long) (tokensPerPeriod * decreaseFactor));
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Objects.hash(minimumTokensPerPeriod, maximumTokensPerPeriod, increment, decreaseFactor);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		return o instanceof AimdPolicy other && minimumTokensPerPeriod == other.minimumTokensPerPeriod &&
+			maximumTokensPerPeriod == other.maximumTokensPerPeriod && increment == other.increment &&
+			Double.compare(decreaseFactor, other.decreaseFactor) == 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(AimdPolicy.class).
+			add("minimumTokensPerPeriod", minimumTokensPerPeriod).
+			add("maximumTokensPerPeriod", maximumTokensPerPeriod).
+			add("increment", increment).
+			add("decreaseFactor", decreaseFactor).
+			toString();
+	}
+
+	/**
+	 * Builds an AimdPolicy.
+	 */
+	public static final class Builder
+	{
+		private long minimumTokensPerPeriod = 1;
+		private long maximumTokensPerPeriod = Long.MAX_VALUE;
+		private long increment = 1;
+		private double decreaseFactor = 0.5;
+
+		/**
+		 * Prevent construction.
+		 */
+		Builder()
+		{
+		}
+
+		/**
+		 * Returns the lowest value that {@code tokensPerPeriod} may be decreased to. The default is {@code 1}.
+		 *
+		 * @return the lowest value that {@code tokensPerPeriod} may be decreased to
+		 */
+		@CheckReturnValue
+		public long minimumTokensPerPeriod()
+		{
+			return minimumTokensPerPeriod;
+		}
+
+		/**
+		 * Sets the lowest value that {@code tokensPerPeriod} may be decreased to.
+		 *
+		 * @param minimumTokensPerPeriod the lowest value that {@code tokensPerPeriod} may be decreased to
+		 * @return this
+		 * @throws IllegalArgumentException if {@code minimumTokensPerPeriod} is negative or zero
+		 */
+		@CheckReturnValue
+		public Builder minimumTokensPerPeriod(long minimumTokensPerPeriod)
+		{
+			requireThat(minimumTokensPerPeriod, "minimumTokensPerPeriod").isPositive();
+			this.minimumTokensPerPeriod = minimumTokensPerPeriod;
+			return this;
+		}
+
+		/**
+		 * Returns the highest value that {@code tokensPerPeriod} may be increased to. {@code tokensPerPeriod}
+		 * never exceeds the limit's {@code maximumTokens}, regardless of this value. The default is
+		 * {@code Long.MAX_VALUE}.
+		 *
+		 * @return the highest value that {@code tokensPerPeriod} may be increased to
+		 */
+		@CheckReturnValue
+		public long maximumTokensPerPeriod()
+		{
+			return maximumTokensPerPeriod;
+		}
+
+		/**
+		 * Sets the highest value that {@code tokensPerPeriod} may be increased to.
+		 *
+		 * @param maximumTokensPerPeriod the highest value that {@code tokensPerPeriod} may be increased to
+		 * @return this
+		 * @throws IllegalArgumentException if {@code maximumTokensPerPeriod} is negative or zero
+		 */
+		@CheckReturnValue
+		public Builder maximumTokensPerPeriod(long maximumTokensPerPeriod)
+		{
+			requireThat(maximumTokensPerPeriod, "maximumTokensPerPeriod").isPositive();
+			this.maximumTokensPerPeriod = maximumTokensPerPeriod;
+			return this;
+		}
+
+		/**
+		 * Returns the number of tokens that {@code tokensPerPeriod} is increased by. The default is {@code 1}.
+		 *
+		 * @return the number of tokens that {@code tokensPerPeriod} is increased by
+		 */
+		@CheckReturnValue
+		public long increment()
+		{
+			return increment;
+		}
+
+		/**
+		 * Sets the number of tokens that {@code tokensPerPeriod} is increased by.
+		 *
+		 * @param increment the number of tokens that {@code tokensPerPeriod} is increased by
+		 * @return this
+		 * @throws IllegalArgumentException if {@code increment} is negative or zero
+		 */
+		@CheckReturnValue
+		public Builder increment(long increment)
+		{
+			requireThat(increment, "increment").isPositive();
+			this.increment = increment;
+			return this;
+		}
+
+		/**
+		 * Returns the factor that {@code tokensPerPeriod} is multiplied by when the protected service is
+		 * overloaded. The default is {@code 0.5}.
+		 *
+		 * @return the factor that {@code tokensPerPeriod} is multiplied by on overload
+		 */
+		@CheckReturnValue
+		public double decreaseFactor()
+		{
+			return decreaseFactor;
+		}
+
+		/**
+		 * Sets the factor that {@code tokensPerPeriod} is multiplied by when the protected service is
+		 * overloaded.
+		 *
+		 * @param decreaseFactor the factor that {@code tokensPerPeriod} is multiplied by on overload
+		 * @return this
+		 * @throws IllegalArgumentException if {@code decreaseFactor} is not greater than {@code 0} and less than
+		 *                                  {@code 1}
+		 */
+		@CheckReturnValue
+		public Builder decreaseFactor(double decreaseFactor)
+		{
+			requireThat(decreaseFactor, "decreaseFactor").isGreaterThan(0.0).isLessThan(1.0);
+			this.decreaseFactor = decreaseFactor;
+			return this;
+		}
+
+		/**
+		 * Builds a new AimdPolicy.
+		 *
+		 * @return a new AimdPolicy
+		 * @throws IllegalArgumentException if {@code maximumTokensPerPeriod < minimumTokensPerPeriod}
+		 */
+		public AimdPolicy build()
+		{
+			requireThat(maximumTokensPerPeriod, "maximumTokensPerPeriod").
+				isGreaterThanOrEqualTo(minimumTokensPerPeriod, "minimumTokensPerPeriod");
+			return new AimdPolicy(minimumTokensPerPeriod, maximumTokensPerPeriod, increment, decreaseFactor);
+		}
+
+		@Override
+		public String toString()
+		{
+			return new ToStringBuilder(Builder.class).
+				add("minimumTokensPerPeriod", minimumTokensPerPeriod).
+				add("maximumTokensPerPeriod", maximumTokensPerPeriod).
+				add("increment", increment).
+				add("decreaseFactor", decreaseFactor).
+				toString();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.github.cowwoc.tokenbucket;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Tracks the number of available tokens using a single counter.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+final class AtomicTokenCounter extends TokenCounter
+{
+	private static final VarHandle TOKENS;
+
+	static
+	{
+		try
+		{
+			TOKENS = MethodHandles.lookup().findVarHandle(AtomicTokenCounter.class, "tokens", long.class);
+		}
+		catch (NoSuchFieldException | IllegalAccessException e)
+		{
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * The number of available tokens. Modifications must go through {@link #TOKENS}.
+	 */
+	private volatile long tokens;
+
+	/**
+	 * Creates a new counter.
+	 *
+	 * @param initialTokens the initial number of tokens
+	 */
+	AtomicTokenCounter(long initialTokens)
+	{
+		this.tokens = initialTokens;
+	}
+
+	@Override
+	long get()
+	{
+		return tokens;
+	}
+
+	@Override
+	void set(long tokens)
+	{
+		this.tokens = tokens;
+	}
+
+	@Override
+	void add(long tokens, long maximumTokens)
+	{
+		while (true)
+		{
+			long tokensBefore = this.tokens;
+			long tokensAfter = Math.min(maximumTokens, Limit.saturatedAdd(tokensBefore, tokens));
+			if (TOKENS.compareAndSet(this, tokensBefore, tokensAfter))
+				return;
+		}
+	}
+
+	@Override
+	long consume(long tokens)
+	{
+		return (long) TOKENS.getAndAdd(this, -tokens) - tokens;
+	}
+
+	@Override
+	long tryConsume(long minimumTokens, long maximumTokens)
+	{
+		while (true)
+		{
+			long tokensBefore = this.tokens;
+			if (tokensBefore < minimumTokens)
+				return 0;
+			long tokensConsumed = Math.min(maximumTokens, tokensBefore);
+			if (TOKENS.compareAndSet(this, tokensBefore, tokensBefore - tokensConsumed))
+				return tokensConsumed;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.valueOf(tokens);
+	}
+}
@@ -8,11 +8,13 @@ import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
@@ -26,7 +28,24 @@ import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
  */
 public final class Bucket extends AbstractContainer
 {
-	private List<Limit> limits;
+	/**
+	 * The limits associated with this bucket. Consumers that bypass the lock (see
+	 * {@link #tryConsumeFromSingleLimit}) read this field without holding the lock.
+	 */
+	private volatile List<Limit> limits;
+	/**
+	 * Combines concurrent requests against multiple limits. {@code null} if requests are not combined.
+	 */
+	private final ConsumptionCombiner combiner;
+	/**
+	 * Hands out tokens that were consumed ahead of time. {@code null} if tokens are not leased.
+	 */
+	private final TokenLeases leases;
+	/**
+	 * The last time that {@link KeyedBucketRegistry} handed out this bucket, in nanoseconds. Races are benign
+	 * because the value only guides eviction.
+	 */
+	long lastUsedAt;
 	private final Logger log = LoggerFactory.getLogger(Bucket.class);
 
 	/**
@@ -42,17 +61,32 @@ public final class Bucket extends AbstractContainer
 	/**
 	 * Creates a new bucket.
 	 *
-	 * @param limits    the limits associated with this bucket
-	 * @param listeners the event listeners associated with this bucket
-	 * @param userData  the data associated with this bucket
-	 * @throws NullPointerException     if {@code limits}, {@code listeners} or {@code lock} are null
+	 * @param limits       the limits associated with this bucket
+	 * @param listeners    the event listeners associated with this bucket
+	 * @param userData     the data associated with this bucket
+	 * @param timeSource   the source of time used by this bucket
+	 * @param combining    true if concurrent requests against multiple limits should be combined
+	 * @param leaseSize    the maximum number of tokens that a single lease may hold ({@code 0} if tokens are
+	 *                     not leased)
+	 * @param leaseTimeout the amount of time after which unused leased tokens are returned to the bucket
+	 * @throws NullPointerException     if {@code limits}, {@code listeners}, {@code timeSource} or
+	 *                                  {@code leaseTimeout} are null
 	 * @throws IllegalArgumentException if {@code limits} is empty
 	 */
-	private Bucket(List<Limit> limits, List<ContainerListener> listeners, Object userData)
+	private Bucket(List<Limit> limits, List<ContainerListener> listeners, Object userData,
+	               TimeSource timeSource, boolean combining, long leaseSize, Duration leaseTimeout)
 	{
-		super(List.of(), listeners, userData, Bucket::tryConsume);
+		super(List.of(), listeners, userData, timeSource, Bucket::tryConsume);
 		assertThat(r -> r.requireThat(limits, "limits").isNotEmpty());
 		this.limits = List.copyOf(limits);
+		if (combining)
+			this.combiner = new ConsumptionCombiner(this);
+		else
+			this.combiner = null;
+		if (leaseSize > 0)
+			this.leases = new TokenLeases(this, timeSource, leaseSize, leaseTimeout);
+		else
+			this.leases = null;
 	}
 
 	@Override
@@ -60,7 +94,7 @@ public final class Bucket extends AbstractContainer
 	{
 		long availableTokens = Long.MAX_VALUE;
 		for (Limit limit : limits)
-			availableTokens = Math.min(availableTokens, limit.availableTokens);
+			availableTokens = Math.min(availableTokens, limit.getAvailableTokens());
 		return availableTokens;
 	}
 
@@ -69,7 +103,7 @@ public final class Bucket extends AbstractContainer
 	{
 		List<Limit> result = new ArrayList<>();
 		for (Limit limit : limits)
-			if (limit.availableTokens < tokens)
+			if (limit.getAvailableTokens() < tokens)
 				result.add(limit);
 		return result;
 	}
@@ -83,6 +117,27 @@ public final class Bucket extends AbstractContainer
 		return maximumTokens;
 	}
 
+	/**
+	 * Indicates if the bucket is idle. An idle bucket has no waiting consumers and all of its limits are full,
+	 * so replacing it with a new bucket does not loosen any of its limits.
+	 *
+	 * @param now the current time, in nanoseconds
+	 * @return true if the bucket is idle
+	 * @implNote This method does not acquire any locks
+	 */
+	boolean isIdle(long now)
+	{
+		if (hasSleepingConsumers())
+			return false;
+		for (Limit limit : limits)
+		{
+			limit.refill(now);
+			if (limit.getAvailableTokens(now) < limit.getMaximumTokens())
+				return false;
+		}
+		return true;
+	}
+
 	@Override
 	protected Logger getLogger()
 	{
@@ -125,6 +180,85 @@ public final class Bucket extends AbstractContainer
 		});
 	}
 
+	/**
+	 * Reports that an operation that consumed tokens from this bucket succeeded. Limits that have an
+	 * {@link AimdPolicy} may increase their {@code tokensPerPeriod} in response.
+	 *
+	 * @see Limit#onSuccess()
+	 */
+	public void onSuccess()
+	{
+		boolean rateIncreased = false;
+		for (Limit limit : limits)
+			rateIncreased |= limit.onSuccess();
+		if (rateIncreased)
+		{
+			// Blocked consumers must recalculate when tokens will become available
+			wakeConsumers();
+		}
+	}
+
+	/**
+	 * Reports that the service that this bucket protects is overloaded. Limits that have an
+	 * {@link AimdPolicy} may decrease their {@code tokensPerPeriod} in response.
+	 *
+	 * @see Limit#onOverload()
+	 */
+	public void onOverload()
+	{
+		for (Limit limit : limits)
+			limit.onOverload();
+	}
+
+	/**
+	 * Returns the number of tokens that have been consumed from the bucket's limits, but have not been handed
+	 * out by {@link #tryAcquire(long, long) tryAcquire()} yet.
+	 *
+	 * @return {@code 0} if the bucket does not lease tokens
+	 * @see Builder#leaseSize(long)
+	 */
+	public long getLeasedTokens()
+	{
+		if (leases == null)
+			return 0;
+		return leases.getLeasedTokens();
+	}
+
+	/**
+	 * Returns the maximum number of tokens that may be leased at any given time. This bounds the error that
+	 * leasing introduces: up to this many tokens may be unavailable to threads other than the ones that
+	 * leased them, and may be handed out up to {@code leaseTimeout} after the limits accounted for them.
+	 *
+	 * @return {@code 0} if the bucket does not lease tokens
+	 * @see Builder#leaseSize(long)
+	 */
+	public long getMaximumLeasedTokens()
+	{
+		if (leases == null)
+			return 0;
+		return leases.getMaximumLeasedTokens();
+	}
+
+	/**
+	 * Returns tokens to all of the bucket's limits, discarding any tokens that overflow them.
+	 *
+	 * @param tokens the number of tokens
+	 */
+	void refund(long tokens)
+	{
+		List<CloseableLock> locks = lockLimits();
+		try
+		{
+			for (Limit limit : limits)
+				limit.refund(tokens);
+		}
+		finally
+		{
+			unlock(locks);
+		}
+		wakeConsumers();
+	}
+
 	/**
 	 * Consumes {@code [minimumTokens, maximumTokens]} tokens, only if they are available at the time of
 	 * invocation. Consumption order is not guaranteed to be fair.
@@ -132,8 +266,8 @@ public final class Bucket extends AbstractContainer
 	 * @param minimumTokens       the minimum number of tokens to consume (inclusive)
 	 * @param maximumTokens       the maximum  number of tokens to consume (inclusive)
 	 * @param nameOfMinimumTokens the name of the {@code minimumTokens} parameter
-	 * @param requestedAt         the time at which the tokens were requested
-	 * @param consumedAt          the time at which an attempt was made to consume tokens
+	 * @param requestedAt         the time at which the tokens were requested, in nanoseconds
+	 * @param consumedAt          the time at which an attempt was made to consume tokens, in nanoseconds
 	 * @param abstractContainer   the container
 	 * @return the result of the operation
 	 * @throws NullPointerException     if any of the arguments are null
@@ -143,81 +277,392 @@ public final class Bucket extends AbstractContainer
 	 *                                  {@code requestedAt > consumedAt}.
 	 */
 	private static ConsumptionResult tryConsume(long minimumTokens, long maximumTokens,
-	                                            String nameOfMinimumTokens, Instant requestedAt,
-	                                            Instant consumedAt, AbstractContainer abstractContainer)
+	                                            String nameOfMinimumTokens, long requestedAt,
+	                                            long consumedAt, AbstractContainer abstractContainer)
 	{
 		assertThat(r ->
 		{
 			r.requireThat(nameOfMinimumTokens, "nameOfMinimumTokens").isNotEmpty();
-			r.requireThat(requestedAt, "requestedAt").isNotNull();
 			r.requireThat(consumedAt, "consumedAt").isGreaterThanOrEqualTo(requestedAt, "requestedAt");
 		});
 
 		Bucket bucket = (Bucket) abstractContainer;
-		List<CloseableLock> locks = new ArrayList<>();
+		if (bucket.leases != null && bucket.parent == null)
+		{
+			// Consumers that bypass the leases would otherwise wait for tokens that are sitting in expired leases
+			bucket.leases.returnExpired(consumedAt);
+		}
+		List<Limit> limits = bucket.limits;
+		// Buckets that belong to a ContainerList must acquire the locks in order to take part in a
+		// consumeFromAll() transaction.
+		if (limits.size() == 1 && bucket.parent == null)
+		{
+			return tryConsumeFromSingleLimit(limits.get(0), minimumTokens, maximumTokens, nameOfMinimumTokens,
+				requestedAt, consumedAt, bucket);
+		}
+
+		ConsumptionCombiner combiner = bucket.combiner;
+		// A thread that holds one of the locks would deadlock with the combiner that is waiting for it
+		if (combiner != null && bucket.parent == null && !bucket.isWriteLockedByCurrentThread())
+		{
+			ConsumptionResult consumptionResult = combiner.tryConsume(minimumTokens, maximumTokens,
+				nameOfMinimumTokens, requestedAt, consumedAt);
+			if (consumptionResult != null)
+				return consumptionResult;
+		}
+		List<CloseableLock> locks = bucket.lockLimits();
 		try
 		{
-			// Prevent the list of limits from changing
-			locks.add(bucket.lock.readLock());
+			return bucket.tryConsumeFromLockedLimits(minimumTokens, maximumTokens, nameOfMinimumTokens,
+				requestedAt, consumedAt);
+		}
+		finally
+		{
+			unlock(locks);
+		}
+	}
 
-			// Prevent the number of tokens from changing
-			List<Limit> limits = bucket.limits;
-			for (Limit limit : limits)
-				locks.add(limit.lock.writeLock());
+	/**
+	 * Prevents the list of limits, and the number of tokens in each limit, from changing.
+	 *
+	 * @return the locks that were acquired, in the order in which they were acquired
+	 */
+	List<CloseableLock> lockLimits()
+	{
+		List<CloseableLock> locks = new ArrayList<>();
+		// Prevent the list of limits from changing
+		locks.add(lock.readLock());
 
-			for (Limit limit : limits)
+		// Prevent the number of tokens from changing
+		for (Limit limit : limits)
+			locks.add(limit.lock.writeLock());
+		return locks;
+	}
+
+	/**
+	 * Releases locks in the opposite order of their acquisition.
+	 *
+	 * @param locks the locks, in the order in which they were acquired
+	 */
+	static void unlock(List<CloseableLock> locks)
+	{
+		for (int i = locks.size() - 1; i >= 0; --i)
+			locks.get(i).close();
+	}
+
+	/**
+	 * Indicates if the current thread holds the write lock of the bucket or of any of its limits.
+	 *
+	 * @return true if the current thread holds a write lock
+	 */
+	boolean isWriteLockedByCurrentThread()
+	{
+		if (lock.isWriteLockedByCurrentThread())
+			return true;
+		for (Limit limit : limits)
+		{
+			if (limit.lock.isWriteLockedByCurrentThread())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens from all of the bucket's limits, only if they are
+	 * available at the time of invocation. The caller must hold the locks returned by {@link #lockLimits()}.
+	 *
+	 * @param minimumTokens       the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens       the maximum  number of tokens to consume (inclusive)
+	 * @param nameOfMinimumTokens the name of the {@code minimumTokens} parameter
+	 * @param requestedAt         the time at which the tokens were requested, in nanoseconds
+	 * @param consumedAt          the time at which an attempt was made to consume tokens, in nanoseconds
+	 * @return the result of the operation
+	 * @throws IllegalArgumentException if one of the limits has a {@code maximumTokens} that is less than
+	 *                                  {@code minimumTokens}
+	 */
+	ConsumptionResult tryConsumeFromLockedLimits(long minimumTokens, long maximumTokens,
+	                                             String nameOfMinimumTokens, long requestedAt, long consumedAt)
+	{
+		List<Limit> limits = this.limits;
+		for (Limit limit : limits)
+		{
+			requireThat(minimumTokens, nameOfMinimumTokens).
+				isLessThanOrEqualTo(limit.getMaximumTokens(), "limit.getMaximumTokens()");
+			limit.refill(consumedAt);
+		}
+		long tokensConsumed = Long.MAX_VALUE;
+		long latestAvailableAt = consumedAt;
+		Limit bottleneck = null;
+		for (Limit limit : limits)
+		{
+			SimulatedConsumption simulatedConsumption = limit.simulateConsumption(minimumTokens, maximumTokens,
+				consumedAt);
+			tokensConsumed = Math.min(tokensConsumed, simulatedConsumption.getTokensConsumed());
+			if (simulatedConsumption.getAvailableAt() > latestAvailableAt)
 			{
-				requireThat(minimumTokens, nameOfMinimumTokens).
-					isLessThanOrEqualTo(limit.getMaximumTokens(), "limit.getMaximumTokens()");
-				limit.refill(consumedAt);
+				latestAvailableAt = simulatedConsumption.getAvailableAt();
+				bottleneck = limit;
 			}
-			long tokensConsumed = Long.MAX_VALUE;
-			Instant latestAvailableAt = consumedAt;
-			Limit bottleneck = null;
+		}
+		if (tokensConsumed > 0)
+		{
+			// If there are any remaining tokens after consumption then wake up other consumers
+			long minimumTokensLeft = Long.MAX_VALUE;
+			List<Limit> concurrencyLimits = List.of();
 			for (Limit limit : limits)
 			{
-				SimulatedConsumption simulatedConsumption = limit.simulateConsumption(minimumTokens, maximumTokens,
-					consumedAt);
-				tokensConsumed = Math.min(tokensConsumed, simulatedConsumption.getTokensConsumed());
-				if (simulatedConsumption.getAvailableAt().compareTo(latestAvailableAt) > 0)
+				long tokensLeft = limit.consume(tokensConsumed, consumedAt);
+				if (tokensLeft < minimumTokensLeft)
+					minimumTokensLeft = tokensLeft;
+				if (limit.getAlgorithm() == LimitAlgorithm.CONCURRENCY)
 				{
-					latestAvailableAt = simulatedConsumption.getAvailableAt();
-					bottleneck = limit;
+					if (concurrencyLimits.isEmpty())
+						concurrencyLimits = new ArrayList<>();
+					concurrencyLimits.add(limit);
 				}
 			}
-			if (tokensConsumed > 0)
+			if (minimumTokensLeft > 0)
+				wakeConsumers();
+			Instant consumedAtInstant = timeSource.toInstant(consumedAt);
+			return new ConsumptionResult(this, minimumTokens, maximumTokens, tokensConsumed,
+				timeSource.toInstant(requestedAt), consumedAtInstant, consumedAtInstant, minimumTokensLeft,
+				List.of(), concurrencyLimits);
+		}
+		assert (bottleneck != null);
+		return new ConsumptionResult(this, minimumTokens, maximumTokens, tokensConsumed,
+			timeSource.toInstant(requestedAt), timeSource.toInstant(consumedAt),
+			timeSource.toInstant(latestAvailableAt), 0, List.of(bottleneck));
+	}
+
+	/**
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens from a bucket with a single limit, without
+	 * acquiring any locks. The limit's state is updated using compare-and-set.
+	 *
+	 * @param limit               the bucket's only limit
+	 * @param minimumTokens       the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens       the maximum  number of tokens to consume (inclusive)
+	 * @param nameOfMinimumTokens the name of the {@code minimumTokens} parameter
+	 * @param requestedAt         the time at which the tokens were requested, in nanoseconds
+	 * @param consumedAt          the time at which an attempt was made to consume tokens, in nanoseconds
+	 * @param bucket              the bucket
+	 * @return the result of the operation
+	 * @throws IllegalArgumentException if the limit has a {@code maximumTokens} that is less than
+	 *                                  {@code minimumTokens}
+	 */
+	private static ConsumptionResult tryConsumeFromSingleLimit(Limit limit, long minimumTokens,
+	                                                           long maximumTokens, String nameOfMinimumTokens,
+	                                                           long requestedAt, long consumedAt,
+	                                                           Bucket bucket)
+	{
+		requireThat(minimumTokens, nameOfMinimumTokens).
+			isLessThanOrEqualTo(limit.getMaximumTokens(), "limit.getMaximumTokens()");
+		limit.refill(consumedAt);
+		long tokensConsumed = limit.tryConsume(minimumTokens, maximumTokens, consumedAt);
+		TimeSource timeSource = bucket.timeSource;
+		if (tokensConsumed == 0)
+		{
+			long availableAt = limit.getAvailableAt(minimumTokens - limit.getAvailableTokens(consumedAt),
+				consumedAt);
+			return new ConsumptionResult(bucket, minimumTokens, maximumTokens, 0,
+				timeSource.toInstant(requestedAt), timeSource.toInstant(consumedAt),
+				timeSource.toInstant(availableAt), 0, List.of(limit));
+		}
+		// Reading the exact number of tokens of a striped limit touches every stripe, so it is only done if
+		// a consumer is waiting for them
+		if (bucket.hasSleepingConsumers() && limit.getAvailableTokens(consumedAt) > 0)
+			bucket.wakeConsumers();
+		long tokensLeft = Math.max(0, limit.estimateAvailableTokens(consumedAt));
+		Instant consumedAtInstant = timeSource.toInstant(consumedAt);
+		List<Limit> concurrencyLimits;
+		if (limit.getAlgorithm() == LimitAlgorithm.CONCURRENCY)
+			concurrencyLimits = List.of(limit);
+		else
+			concurrencyLimits = List.of();
+		return new ConsumptionResult(bucket, minimumTokens, maximumTokens, tokensConsumed,
+			timeSource.toInstant(requestedAt), consumedAtInstant, consumedAtInstant, tokensLeft, List.of(),
+			concurrencyLimits);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * If the bucket leases tokens, the request is served from the lease of the current thread's slot where
+	 * possible.
+	 *
+	 * @see Builder#leaseSize(long)
+	 */
+	@Override
+	@CheckReturnValue
+	public long tryAcquire(long minimumTokens, long maximumTokens)
+	{
+		TokenLeases leases = this.leases;
+		if (leases != null && minimumTokens > 0 && maximumTokens >= minimumTokens)
+			return leases.tryAcquire(minimumTokens, maximumTokens);
+		return tryAcquireWithoutLease(minimumTokens, maximumTokens);
+	}
+
+	/**
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens directly from the bucket's limits, only if they
+	 * are available at the time of invocation.
+	 *
+	 * @param minimumTokens the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens the maximum number of tokens to consume (inclusive)
+	 * @return the number of tokens that were consumed; otherwise, the negated number of nanoseconds until
+	 * {@code minimumTokens} are expected to become available
+	 * @throws IllegalArgumentException if {@code minimumTokens} or {@code maximumTokens} are negative or
+	 *                                  zero. If {@code minimumTokens > maximumTokens}. If the request can
+	 *                                  never succeed because the bucket cannot hold {@code minimumTokens}.
+	 */
+	long tryAcquireWithoutLease(long minimumTokens, long maximumTokens)
+	{
+		List<Limit> limits = this.limits;
+		if (limits.size() != 1 || parent != null)
+			return super.tryAcquire(minimumTokens, maximumTokens);
+		Limit limit = limits.get(0);
+		if (minimumTokens <= 0 || maximumTokens < minimumTokens || minimumTokens > limit.getMaximumTokens())
+		{
+			// Let the slow path report the error
+			return super.tryAcquire(minimumTokens, maximumTokens);
+		}
+		return tryAcquireFromSingleLimit(limit, minimumTokens, maximumTokens, timeSource.nanoTime());
+	}
+
+	/**
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens from the bucket's only limit, without acquiring
+	 * any locks.
+	 *
+	 * @param limit         the bucket's only limit
+	 * @param minimumTokens the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens the maximum number of tokens to consume (inclusive)
+	 * @param consumedAt    the time at which an attempt was made to consume tokens, in nanoseconds
+	 * @return the number of tokens that were consumed; otherwise, the negated number of nanoseconds until
+	 * {@code minimumTokens} are expected to become available
+	 */
+	private long tryAcquireFromSingleLimit(Limit limit, long minimumTokens, long maximumTokens,
+	                                       long consumedAt)
+	{
+		limit.refill(consumedAt);
+		long tokensConsumed = limit.tryConsume(minimumTokens, maximumTokens, consumedAt);
+		if (tokensConsumed == 0)
+		{
+			long availableAt = limit.getAvailableAt(minimumTokens - limit.getAvailableTokens(consumedAt),
+				consumedAt);
+			return -Math.max(1, availableAt - consumedAt);
+		}
+		if (hasSleepingConsumers() && limit.getAvailableTokens(consumedAt) > 0)
+			wakeConsumers();
+		return tokensConsumed;
+	}
+
+	/**
+	 * Consumes tokens from multiple buckets, only if they are available at the time of invocation. This is
+	 * equivalent to invoking {@code results[i] = buckets[i].tryAcquire(tokens[i])} for every {@code i},
+	 * except that the current time is only read once for the entire batch, and a bucket that appears
+	 * multiple times is only locked once.
+	 * <p>
+	 * Buckets are visited in a canonical order, and at most one bucket is locked at a time, so concurrent
+	 * batches with overlapping buckets cannot deadlock. Requests against the same bucket are applied in the
+	 * order in which they appear in the batch. The arguments are validated before any tokens are consumed.
+	 *
+	 * @param buckets the buckets to consume tokens from
+	 * @param tokens  the number of tokens to consume from each bucket
+	 * @param results the array to write the results to. For every {@code i}, {@code results[i]} is set to
+	 *                {@code tokens[i]} if the tokens were consumed; otherwise, the negated number of
+	 *                nanoseconds until the tokens are expected to become available (a value less than or
+	 *                equal to {@code -1}).
+	 * @throws NullPointerException     if any of the arguments or buckets are null
+	 * @throws IllegalArgumentException if the arrays have different lengths. If any of the {@code tokens}
+	 *                                  are negative or zero. If the buckets do not use the same
+	 *                                  {@link TimeSource}. If a request can never succeed because its bucket
+	 *                                  cannot hold the requested number of tokens.
+	 * @see Container#tryAcquire(long)
+	 */
+	public static void tryAcquire(Bucket[] buckets, long[] tokens, long[] results)
+	{
+		requireThat(buckets, "buckets").isNotNull();
+		requireThat(tokens, "tokens").isNotNull();
+		requireThat(results, "results").isNotNull();
+		int size = buckets.length;
+		requireThat(tokens.length, "tokens.length").isEqualTo(size, "buckets.length");
+		requireThat(results.length, "results.length").isEqualTo(size, "buckets.length");
+		if (size == 0)
+			return;
+		TimeSource timeSource = null;
+		// Sort by identity hash code, breaking ties by index. Buckets whose hash codes collide may end up
+		// interleaved, in which case they are locked more than once.
+		long[] order = new long[size];
+		for (int i = 0; i < size; ++i)
+		{
+			Bucket bucket = buckets[i];
+			requireThat(bucket, "buckets[" + i + "]").isNotNull();
+			if (timeSource == null)
+				timeSource = bucket.timeSource;
+			else if (bucket.timeSource != timeSource)
+			{
+				throw new IllegalArgumentException("All buckets must use the same time source.\n" +
+					"buckets[0].getTimeSource(): " + timeSource + "\n" +
+					"buckets[" + i + "].getTimeSource(): " + bucket.timeSource);
+			}
+			requireThat(tokens[i], "tokens[" + i + "]").isPositive().
+				isLessThanOrEqualTo(bucket.getMaximumTokens(), "buckets[" + i + "].getMaximumTokens()");
+			order[i] = (Integer.toUnsignedLong(System.identityHashCode(bucket)) << 32) | i;
+		}
+		Arrays.sort(order);
+
+		long consumedAt = timeSource.nanoTime();
+		int first = 0;
+		while (first < size)
+		{
+			Bucket bucket = buckets[(int) order[first]];
+			int end = first + 1;
+			while (end < size && buckets[(int) order[end]] == bucket)
+				++end;
+			bucket.tryAcquire(order, first, end, tokens, results, consumedAt);
+			first = end;
+		}
+	}
+
+	/**
+	 * Consumes tokens on behalf of a batch, only if they are available at the time of invocation.
+	 *
+	 * @param order      the lower 32 bits of each element contain the index of a request
+	 * @param first      the first element of {@code order} that refers to this bucket (inclusive)
+	 * @param end        the last element of {@code order} that refers to this bucket (exclusive)
+	 * @param tokens     the number of tokens that each request consumes
+	 * @param results    the array to write the results to
+	 * @param consumedAt the time at which an attempt was made to consume tokens, in nanoseconds
+	 * @see #tryAcquire(Bucket[], long[], long[])
+	 */
+	private void tryAcquire(long[] order, int first, int end, long[] tokens, long[] results, long consumedAt)
+	{
+		List<Limit> limits = this.limits;
+		if (limits.size() == 1 && parent == null)
+		{
+			Limit limit = limits.get(0);
+			for (int i = first; i < end; ++i)
+			{
+				int index = (int) order[i];
+				results[index] = tryAcquireFromSingleLimit(limit, tokens[index], tokens[index], consumedAt);
+			}
+			return;
+		}
+		List<CloseableLock> locks = lockLimits();
+		try
+		{
+			for (int i = first; i < end; ++i)
 			{
-				// If there are any remaining tokens after consumption then wake up other consumers
-				long minimumTokensLeft = Long.MAX_VALUE;
-				for (Limit limit : limits)
-				{
-					long tokensLeft;
-					try (CloseableLock ignored = limit.lock.writeLock())
-					{
-						tokensLeft = limit.consume(tokensConsumed);
-					}
-					if (tokensLeft < minimumTokensLeft)
-						minimumTokensLeft = tokensLeft;
-				}
-				if (minimumTokensLeft > 0)
-				{
-					try (CloseableLock ignored = bucket.conditionLock.writeLock())
-					{
-						bucket.tokensUpdated.signalAll();
-					}
-				}
-				return new ConsumptionResult(bucket, minimumTokens, maximumTokens, tokensConsumed, requestedAt,
-					consumedAt, consumedAt, minimumTokensLeft, List.of());
+				int index = (int) order[i];
+				ConsumptionResult consumptionResult = tryConsumeFromLockedLimits(tokens[index], tokens[index],
+					"tokens[" + index + "]", consumedAt, consumedAt);
+				if (consumptionResult.isSuccessful())
+					results[index] = consumptionResult.getTokensConsumed();
+				else
+					results[index] = -Math.max(1, consumptionResult.getAvailableIn().toNanos());
 			}
-			assert (bottleneck != null);
-			return new ConsumptionResult(bucket, minimumTokens, maximumTokens, tokensConsumed, requestedAt,
-				consumedAt, latestAvailableAt, 0, List.of(bottleneck));
 		}
 		finally
 		{
-			Collections.reverse(locks);
-			for (CloseableLock lock : locks)
-				lock.close();
+			unlock(locks);
 		}
 	}
 
@@ -314,6 +759,28 @@ public final class Bucket extends AbstractContainer
 		return super.consume(minimumTokens, maximumTokens);
 	}
 
+	@Override
+	@CheckReturnValue
+	public Reservation reserve(long tokens)
+	{
+		return Reservation.reserve(this, tokens);
+	}
+
+	@Override
+	@CheckReturnValue
+	public CompletableFuture<ConsumptionResult> consumeAsync(long minimumTokens, long maximumTokens)
+	{
+		return super.consumeAsync(minimumTokens, maximumTokens);
+	}
+
+	@Override
+	@CheckReturnValue
+	public CompletableFuture<ConsumptionResult> consumeAsync(long minimumTokens, long maximumTokens,
+	                                                         long timeout, TimeUnit unit)
+	{
+		return super.consumeAsync(minimumTokens, maximumTokens, timeout, unit);
+	}
+
 	@Override
 	public String toString()
 	{
@@ -332,6 +799,10 @@ public final class Bucket extends AbstractContainer
 		private final List<Limit> limits = new ArrayList<>();
 		private final List<ContainerListener> listeners = new ArrayList<>();
 		private Object userData;
+		private TimeSource timeSource = TimeSource.system();
+		private boolean combining;
+		private long leaseSize;
+		private Duration leaseTimeout = Duration.ofMillis(100);
 
 		/**
 		 * Returns the limits that the bucket must respect.
@@ -407,16 +878,150 @@ public final class Bucket extends AbstractContainer
 			return this;
 		}
 
+		/**
+		 * Returns the source of time used by the bucket. The default is {@link TimeSource#system()}.
+		 *
+		 * @return the source of time used by the bucket
+		 */
+		@CheckReturnValue
+		public TimeSource timeSource()
+		{
+			return timeSource;
+		}
+
+		/**
+		 * Sets the source of time used by the bucket.
+		 *
+		 * @param timeSource the source of time used by the bucket
+		 * @return this
+		 * @throws NullPointerException if {@code timeSource} is null
+		 */
+		@CheckReturnValue
+		public Builder timeSource(TimeSource timeSource)
+		{
+			requireThat(timeSource, "timeSource").isNotNull();
+			this.timeSource = timeSource;
+			return this;
+		}
+
+		/**
+		 * Indicates if concurrent requests against multiple limits are combined. The default is {@code false}.
+		 *
+		 * @return true if concurrent requests against multiple limits are combined
+		 */
+		@CheckReturnValue
+		public boolean combining()
+		{
+			return combining;
+		}
+
+		/**
+		 * Indicates if concurrent requests against multiple limits should be combined.
+		 * <p>
+		 * Consuming tokens from a bucket with multiple limits acquires a lock per limit. When many threads
+		 * consume from the same bucket, the locks' cache lines bounce between CPU cores on every call. When
+		 * requests are combined, each thread publishes its request to the bucket, and whichever thread acquires
+		 * the locks applies all pending requests before releasing them, while the other threads spin. Each
+		 * request is still applied individually, so the results do not change.
+		 * <p>
+		 * Combining only pays off for buckets that are consumed from by many threads at the same time. It has
+		 * no effect on buckets with a single limit, which do not acquire locks, or on buckets that belong to a
+		 * {@link ContainerList}.
+		 *
+		 * @param combining true if concurrent requests against multiple limits should be combined
+		 * @return this
+		 */
+		@CheckReturnValue
+		public Builder combining(boolean combining)
+		{
+			this.combining = combining;
+			return this;
+		}
+
+		/**
+		 * Returns the maximum number of tokens that a single lease may hold. The default is {@code 0}.
+		 *
+		 * @return {@code 0} if tokens are not leased
+		 */
+		@CheckReturnValue
+		public long leaseSize()
+		{
+			return leaseSize;
+		}
+
+		/**
+		 * Sets the maximum number of tokens that a single lease may hold.
+		 * <p>
+		 * By default, every invocation of {@link Bucket#tryAcquire(long, long) tryAcquire()} updates the
+		 * bucket's limits. When tokens are leased, threads are mapped to a fixed number of slots, and each slot
+		 * consumes a chunk of tokens from the limits ahead of time. Requests are then served from the slot
+		 * using a single compare-and-set, until the chunk runs out. The size of each slot's chunk adapts to the
+		 * rate at which its threads consume tokens, up to {@code leaseSize}. Tokens that are still leased after
+		 * {@link #leaseTimeout(Duration) leaseTimeout} are returned to the bucket.
+		 * <p>
+		 * Leasing never admits more tokens than the limits allow in total, but tokens are no longer admitted at
+		 * exactly the time that the limits account for them. {@link Bucket#getMaximumLeasedTokens()} reports
+		 * the maximum number of tokens that may be leased at any given time. Leasing is meant for limits that
+		 * admit millions of tokens per second, where this error is negligible.
+		 * <p>
+		 * Leases are only used by {@code tryAcquire()}. They are not used by buckets that contain a
+		 * {@link LimitAlgorithm#CONCURRENCY concurrency} limit.
+		 *
+		 * @param leaseSize the maximum number of tokens that a single lease may hold ({@code 0} if tokens should
+		 *                  not be leased)
+		 * @return this
+		 * @throws IllegalArgumentException if {@code leaseSize} is negative
+		 */
+		@CheckReturnValue
+		public Builder leaseSize(long leaseSize)
+		{
+			requireThat(leaseSize, "leaseSize").isNotNegative();
+			this.leaseSize = leaseSize;
+			return this;
+		}
+
+		/**
+		 * Returns the amount of time after which unused leased tokens are returned to the bucket. The default
+		 * is 100 milliseconds.
+		 *
+		 * @return the amount of time after which unused leased tokens are returned to the bucket
+		 */
+		@CheckReturnValue
+		public Duration leaseTimeout()
+		{
+			return leaseTimeout;
+		}
+
+		/**
+		 * Sets the amount of time after which unused leased tokens are returned to the bucket.
+		 *
+		 * @param leaseTimeout the amount of time after which unused leased tokens are returned to the bucket
+		 * @return this
+		 * @throws NullPointerException     if {@code leaseTimeout} is null
+		 * @throws IllegalArgumentException if {@code leaseTimeout} is negative or zero
+		 * @see #leaseSize(long)
+		 */
+		@CheckReturnValue
+		public Builder leaseTimeout(Duration leaseTimeout)
+		{
+			requireThat(leaseTimeout, "leaseTimeout").isGreaterThan(Duration.ZERO);
+			this.leaseTimeout = leaseTimeout;
+			return this;
+		}
+
 		/**
 		 * Builds a new Bucket.
+		 * <p>
+		 * The limits' first period starts when the bucket is built.
 		 *
 		 * @return a new Bucket
 		 */
 		public Bucket build()
 		{
-			Bucket bucket = new Bucket(limits, listeners, userData);
+			Bucket bucket = new Bucket(limits, listeners, userData, timeSource, combining, leaseSize,
+				leaseTimeout);
 			for (Limit limit : limits)
-				limit.bucket = bucket;
+				limit.start(bucket);
 			return bucket;
 		}
 
@@ -426,6 +1031,10 @@ public final class Bucket extends AbstractContainer
 			return new ToStringBuilder(Builder.class).
 				add("limits", limits).
 				add("userData", userData).
+				add("timeSource", timeSource).
+				add("combining", combining).
+				add("leaseSize", leaseSize).
+				add("leaseTimeout", leaseTimeout).
 				toString();
 		}
 	}
@@ -483,6 +1092,7 @@ public final class Bucket extends AbstractContainer
 			// Adding a limit causes consumers to have to wait the same amount of time, or longer. No need to
 			// wake sleeping consumers.
 			Limit limit = limitBuilder.apply(new Limit.Builder());
+			limit.start(Bucket.this);
 			limits.add(limit);
 			changed = true;
 			return this;
@@ -625,12 +1235,7 @@ public final class Bucket extends AbstractContainer
 				writeLock.close();
 			}
 			if (wakeConsumers)
-			{
-				try (CloseableLock ignored = conditionLock.writeLock())
-				{
-					tokensUpdated.signalAll();
-				}
-			}
+				wakeConsumers();
 		}
 
 		@Override
@@ -0,0 +1,105 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * A time source that caches {@link System#nanoTime()}, refreshing it periodically from a background thread.
+ * <p>
+ * Reading the time is reduced to a single volatile read, at the cost of precision: the time lags behind the
+ * system clock by up to {@code resolution}. This is useful for containers that are accessed at very high
+ * rates.
+ * <p>
+ * The background thread is a daemon thread. Once the time source is closed, {@link #nanoTime()} reads the
+ * system clock directly.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+public final class CoarseTimeSource implements TimeSource, AutoCloseable
+{
+	private final Duration resolution;
+	private final Thread ticker;
+	private volatile long nanoTime = System.nanoTime();
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new time source.
+	 *
+	 * @param resolution how often the time should be refreshed
+	 * @throws NullPointerException     if {@code resolution} is null
+	 * @throws IllegalArgumentException if {@code resolution} is negative or zero
+	 */
+	public CoarseTimeSource(Duration resolution)
+	{
+		requireThat(resolution, "resolution").isGreaterThan(Duration.ZERO);
+		this.resolution = resolution;
+		long resolutionInNanos = resolution.toNanos();
+		this.ticker = new Thread(() ->
+		{
+			while (!closed)
+			{
+				LockSupport.parkNanos(this, resolutionInNanos);
+				nanoTime = System.nanoTime();
+			}
+		}, "CoarseTimeSource");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * Returns how often the time is refreshed.
+	 *
+	 * @return how often the time is refreshed
+	 */
+	public Duration getResolution()
+	{
+		return resolution;
+	}
+
+	@Override
+	public long nanoTime()
+	{
+		if (closed)
+			return System.nanoTime();
+		return nanoTime;
+	}
+
+	@Override
+	public Instant toInstant(long nanoTime)
+	{
+		return SystemTimeSource.INSTANCE.toInstant(nanoTime);
+	}
+
+	@Override
+	public long toNanoTime(Instant instant)
+	{
+		return SystemTimeSource.INSTANCE.toNanoTime(instant);
+	}
+
+	/**
+	 * Stops the background thread. Subsequent invocations of {@link #nanoTime()} read the system clock
+	 * directly.
+	 */
+	@Override
+	public void close()
+	{
+		if (closed)
+			return;
+		closed = true;
+		LockSupport.unpark(ticker);
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(CoarseTimeSource.class).
+			add("resolution", resolution).
+			add("closed", closed).
+			toString();
+	}
+}
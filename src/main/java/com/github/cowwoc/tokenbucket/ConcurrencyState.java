@@ -0,0 +1,180 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import static com.github.cowwoc.tokenbucket.Limit.saturatedAdd;
+
+/**
+ * The state of a limit that uses {@link LimitAlgorithm#CONCURRENCY}.
+ * <p>
+ * The limit starts with {@code maximumTokens} tokens. Consumed tokens are never refilled; they are returned
+ * by {@link ConsumptionResult#release()}.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+final class ConcurrencyState extends LimitState
+{
+	private static final VarHandle SPEC;
+
+	static
+	{
+		try
+		{
+			SPEC = MethodHandles.lookup().findVarHandle(ConcurrencyState.class, "spec", LimitSpec.class);
+		}
+		catch (NoSuchFieldException | IllegalAccessException e)
+		{
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final Limit.SharedSpec sharedSpec;
+	/**
+	 * The specification that {@code tokenCounter} was last adjusted for.
+	 */
+	private volatile LimitSpec spec;
+	private volatile TimeSource timeSource;
+	private volatile long startedAt;
+	/**
+	 * The number of tokens that are not in use.
+	 */
+	private final TokenCounter tokenCounter;
+
+	/**
+	 * Creates a new state.
+	 *
+	 * @param sharedSpec the specification of the limit
+	 */
+	ConcurrencyState(Limit.SharedSpec sharedSpec)
+	{
+		LimitSpec spec = sharedSpec.value;
+		this.sharedSpec = sharedSpec;
+		this.spec = spec;
+		this.tokenCounter = TokenCounter.of(spec.stripes, spec.maximumTokens);
+		start(TimeSource.system());
+	}
+
+	@Override
+	void start(TimeSource timeSource)
+	{
+		this.timeSource = timeSource;
+		this.startedAt = timeSource.nanoTime();
+	}
+
+	@Override
+	TimeSource getTimeSource()
+	{
+		return timeSource;
+	}
+
+	@Override
+	void restart()
+	{
+		getSpec();
+	}
+
+	/**
+	 * Returns the specification of the limit, adjusting the number of available tokens if
+	 * {@code maximumTokens} was updated (possibly through another limit that shares the specification).
+	 * Tokens that are in use remain in use, so the number of available tokens changes by the same amount as
+	 * {@code maximumTokens}.
+	 *
+	 * @return the specification of the limit
+	 * @implNote This method does not acquire any locks
+	 */
+	private LimitSpec getSpec()
+	{
+		LimitSpec spec = this.spec;
+		LimitSpec newSpec = sharedSpec.value;
+		if (spec == newSpec)
+			return spec;
+		if (SPEC.compareAndSet(this, spec, newSpec))
+		{
+			long delta = newSpec.maximumTokens - spec.maximumTokens;
+			if (delta > 0)
+				tokenCounter.add(delta, newSpec.maximumTokens);
+			else if (delta < 0)
+				tokenCounter.consume(-delta);
+		}
+		return this.spec;
+	}
+
+	@Override
+	void refill(long now)
+	{
+		getSpec();
+	}
+
+	@Override
+	long getAvailableTokens()
+	{
+		return tokenCounter.get();
+	}
+
+	@Override
+	long getAvailableTokens(long now)
+	{
+		return tokenCounter.get();
+	}
+
+	@Override
+	long estimateAvailableTokens(long now)
+	{
+		return tokenCounter.estimate();
+	}
+
+	@Override
+	void setAvailableTokens(long tokens)
+	{
+		tokenCounter.set(tokens);
+	}
+
+	@Override
+	long tryConsume(long minimumTokens, long maximumTokens, long now)
+	{
+		return tokenCounter.tryConsume(minimumTokens, maximumTokens);
+	}
+
+	@Override
+	long consume(long tokens, long now)
+	{
+		return tokenCounter.consume(tokens);
+	}
+
+	@Override
+	void refund(long tokens)
+	{
+		tokenCounter.add(tokens, getSpec().maximumTokens);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Tokens become available when they are released, which cannot be predicted. Blocked consumers re-check
+	 * the limit once per {@code period}, and are woken up as soon as tokens are released.
+	 */
+	@Override
+	long getAvailableAt(long tokensNeeded, long requestedAt)
+	{
+		if (tokensNeeded <= 0)
+			return requestedAt;
+		return saturatedAdd(requestedAt, getSpec().nanosPerPeriod);
+	}
+
+	@Override
+	long getStartOfCurrentPeriod()
+	{
+		return startedAt;
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(ConcurrencyState.class).
+			add("availableTokens", tokenCounter).
+			toString();
+	}
+}
@@ -0,0 +1,214 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.internal.CloseableLock;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Applies concurrent consumption requests against a bucket with multiple limits using flat combining.
+ * <p>
+ * Each thread publishes its request into a slot, then either becomes the combiner or waits for another
+ * combiner to apply its request. The combiner acquires the bucket's locks once, applies every pending
+ * request in slot order, and then releases the locks. Each request is applied exactly as if its thread had
+ * acquired the locks itself, so the results are indistinguishable from those of an uncombined bucket.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ *
+ * @see Bucket.Builder#combining(boolean)
+ */
+final class ConsumptionCombiner
+{
+	/**
+	 * The number of references between consecutive slots. 16 references span at least 64 bytes, which
+	 * prevents false sharing between threads that publish requests at the same time.
+	 */
+	private static final int STRIDE = 16;
+	/**
+	 * The maximum number of slots.
+	 */
+	private static final int MAXIMUM_SLOTS = 64;
+	/**
+	 * The number of times that a waiting thread spins before yielding to other threads.
+	 */
+	private static final int SPINS_BEFORE_YIELD = 64;
+	private final Bucket bucket;
+	private final int slots;
+	/**
+	 * The pending requests. Slot {@code i} is stored at index {@code i * STRIDE}.
+	 */
+	private final AtomicReferenceArray<Request> requests;
+	/**
+	 * Ensures that only one thread combines requests at a time.
+	 */
+	private final AtomicBoolean combining = new AtomicBoolean();
+
+	/**
+	 * Creates a new combiner.
+	 *
+	 * @param bucket the bucket that requests are applied to
+	 */
+	ConsumptionCombiner(Bucket bucket)
+	{
+		this.bucket = bucket;
+		this.slots = Math.min(MAXIMUM_SLOTS, 2 * Runtime.getRuntime().availableProcessors());
+		this.requests = new AtomicReferenceArray<>(slots * STRIDE);
+	}
+
+	/**
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens, only if they are available at the time that the
+	 * request is applied.
+	 *
+	 * @param minimumTokens       the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens       the maximum  number of tokens to consume (inclusive)
+	 * @param nameOfMinimumTokens the name of the {@code minimumTokens} parameter
+	 * @param requestedAt         the time at which the tokens were requested, in nanoseconds
+	 * @param consumedAt          the time at which an attempt was made to consume tokens, in nanoseconds
+	 * @return the result of the operation, or {@code null} if all the slots are taken, in which case the
+	 * caller must acquire the locks itself
+	 * @throws IllegalArgumentException if one of the limits has a {@code maximumTokens} that is less than
+	 *                                  {@code minimumTokens}
+	 */
+	ConsumptionResult tryConsume(long minimumTokens, long maximumTokens, String nameOfMinimumTokens,
+	                             long requestedAt, long consumedAt)
+	{
+		Request request = new Request(minimumTokens, maximumTokens, nameOfMinimumTokens, requestedAt,
+			consumedAt);
+		if (!publish(request))
+			return null;
+		int spins = 0;
+		while (!request.done)
+		{
+			if (!combining.get() && combining.compareAndSet(false, true))
+			{
+				try
+				{
+					combine();
+				}
+				finally
+				{
+					combining.set(false);
+				}
+				// The request was published before this thread became the combiner, so it has been applied
+				break;
+			}
+			if (++spins < SPINS_BEFORE_YIELD)
+				Thread.onSpinWait();
+			else
+			{
+				spins = 0;
+				Thread.yield();
+			}
+		}
+		if (request.failure instanceof RuntimeException e)
+			throw e;
+		if (request.failure instanceof Error e)
+			throw e;
+		return request.result;
+	}
+
+	/**
+	 * Publishes a request into an empty slot, starting with the slot that is associated with the current
+	 * thread.
+	 *
+	 * @param request the request
+	 * @return false if all the slots are taken
+	 */
+	private boolean publish(Request request)
+	{
+		int home = StripedTokenCounter.getHomeIndex(slots);
+		for (int i = 0; i < slots; ++i)
+		{
+			int index = ((home + i) % slots) * STRIDE;
+			if (requests.get(index) == null && requests.compareAndSet(index, null, request))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Applies all pending requests. The caller must have set {@code combining}.
+	 */
+	private void combine()
+	{
+		List<CloseableLock> locks = bucket.lockLimits();
+		try
+		{
+			for (int index = 0; index < requests.length(); index += STRIDE)
+			{
+				Request request = requests.get(index);
+				if (request == null)
+					continue;
+				try
+				{
+					request.result = bucket.tryConsumeFromLockedLimits(request.minimumTokens, request.maximumTokens,
+						request.nameOfMinimumTokens, request.requestedAt, request.consumedAt);
+				}
+				catch (RuntimeException | Error e)
+				{
+					request.failure = e;
+				}
+				requests.set(index, null);
+				request.done = true;
+			}
+		}
+		finally
+		{
+			Bucket.unlock(locks);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(ConsumptionCombiner.class).
+			add("slots", slots).
+			add("combining", combining.get()).
+			toString();
+	}
+
+	/**
+	 * A request to consume tokens.
+	 */
+	private static final class Request
+	{
+		final long minimumTokens;
+		final long maximumTokens;
+		final String nameOfMinimumTokens;
+		final long requestedAt;
+		final long consumedAt;
+		/**
+		 * The result of the request. Visible once {@code done} is set.
+		 */
+		ConsumptionResult result;
+		/**
+		 * The exception that was thrown by the request. Visible once {@code done} is set.
+		 */
+		Throwable failure;
+		/**
+		 * Indicates if the request has been applied.
+		 */
+		volatile boolean done;
+
+		/**
+		 * Creates a new request.
+		 *
+		 * @param minimumTokens       the minimum number of tokens to consume (inclusive)
+		 * @param maximumTokens       the maximum  number of tokens to consume (inclusive)
+		 * @param nameOfMinimumTokens the name of the {@code minimumTokens} parameter
+		 * @param requestedAt         the time at which the tokens were requested, in nanoseconds
+		 * @param consumedAt          the time at which an attempt was made to consume tokens, in nanoseconds
+		 */
+		Request(long minimumTokens, long maximumTokens, String nameOfMinimumTokens, long requestedAt,
+		        long consumedAt)
+		{
+			this.minimumTokens = minimumTokens;
+			this.maximumTokens = maximumTokens;
+			this.nameOfMinimumTokens = nameOfMinimumTokens;
+			this.requestedAt = requestedAt;
+			this.consumedAt = consumedAt;
+		}
+	}
+}
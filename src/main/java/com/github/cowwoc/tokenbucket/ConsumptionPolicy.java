@@ -30,6 +30,18 @@ public enum ConsumptionPolicy
 				}
 				return maximumTokens;
 			}
+
+			@Override
+			long getAvailableTokens(ContainerList containerList)
+			{
+				long availableTokens = 0;
+				for (Container child : containerList.getChildren())
+				{
+					availableTokens = Math.max(availableTokens,
+						CONTAINER_SECRETS.getAvailableTokens((AbstractContainer) child));
+				}
+				return availableTokens;
+			}
 		},
 	/**
 	 * Consumes tokens from all children at the same time.
@@ -50,6 +62,18 @@ public enum ConsumptionPolicy
 				}
 				return maximumTokens;
 			}
+
+			@Override
+			long getAvailableTokens(ContainerList containerList)
+			{
+				long availableTokens = Long.MAX_VALUE;
+				for (Container child : containerList.getChildren())
+				{
+					availableTokens = Math.min(availableTokens,
+						CONTAINER_SECRETS.getAvailableTokens((AbstractContainer) child));
+				}
+				return availableTokens;
+			}
 		};
 
 	private static final ContainerSecrets CONTAINER_SECRETS = SharedSecrets.INSTANCE.containerSecrets;
@@ -61,4 +85,12 @@ public enum ConsumptionPolicy
 	 * @return the maximum number of tokens that the container can ever hold
 	 */
 	abstract long getMaximumTokens(ContainerList containerList);
+
+	/**
+	 * Returns the number of tokens that can be consumed from the container at once.
+	 *
+	 * @param containerList a ContainerList
+	 * @return the number of tokens that can be consumed from the container at once
+	 */
+	abstract long getAvailableTokens(ContainerList containerList);
 }
\ No newline at end of file
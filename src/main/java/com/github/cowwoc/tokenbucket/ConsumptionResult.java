@@ -1,19 +1,41 @@
 package com.github.cowwoc.tokenbucket;
 
+import com.github.cowwoc.tokenbucket.internal.AbstractContainer;
+import com.github.cowwoc.tokenbucket.internal.CloseableLock;
+import com.github.cowwoc.tokenbucket.internal.ContainerSecrets;
+import com.github.cowwoc.tokenbucket.internal.SharedSecrets;
 import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.Objects;
 
 import static com.github.cowwoc.requirements.DefaultRequirements.assertThat;
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
 
 /**
  * The result of an attempt to consume tokens.
  */
 public final class ConsumptionResult
 {
+	private static final ContainerSecrets CONTAINER_SECRETS = SharedSecrets.INSTANCE.containerSecrets;
+	private static final VarHandle RELEASED;
+
+	static
+	{
+		try
+		{
+			RELEASED = MethodHandles.lookup().findVarHandle(ConsumptionResult.class, "released", boolean.class);
+		}
+		catch (NoSuchFieldException | IllegalAccessException e)
+		{
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
 	private final Container container;
 	private final long minimumTokensRequested;
 	private final long maximumTokensRequested;
@@ -23,6 +45,11 @@ public final class ConsumptionResult
 	private final Instant availableAt;
 	private final long tokensLeft;
 	private final List<Limit> bottlenecks;
+	/**
+	 * The {@link LimitAlgorithm#CONCURRENCY concurrency} limits that tokens were consumed from.
+	 */
+	private final List<Limit> concurrencyLimits;
+	private volatile boolean released;
 
 	/**
 	 * Creates a result of a request to consume tokens.
@@ -52,6 +79,32 @@ public final class ConsumptionResult
 	public ConsumptionResult(Container container, long minimumTokensRequested, long maximumTokensRequested,
 	                         long tokensConsumed, Instant requestedAt, Instant consumedAt, Instant availableAt,
 	                         long tokensLeft, List<Limit> bottlenecks)
+	{
+		this(container, minimumTokensRequested, maximumTokensRequested, tokensConsumed, requestedAt, consumedAt,
+			availableAt, tokensLeft, bottlenecks, List.of());
+	}
+
+	/**
+	 * Creates a result of a request to consume tokens.
+	 *
+	 * @param container              the container that gave up tokens
+	 * @param minimumTokensRequested the minimum number of tokens that were requested (inclusive)
+	 * @param maximumTokensRequested the maximum number of tokens that were requested (inclusive)
+	 * @param tokensConsumed         the number of tokens that were consumed
+	 * @param requestedAt            the time at which the tokens were requested
+	 * @param consumedAt             the time at which an attempt was made to consume tokens
+	 * @param availableAt            the time at which the requested tokens are expected to become available
+	 * @param tokensLeft             the number of tokens left
+	 * @param bottlenecks            the list of Limits that are preventing tokens from being consumed (empty if
+	 *                               none)
+	 * @param concurrencyLimits      the {@link LimitAlgorithm#CONCURRENCY concurrency} limits that tokens were
+	 *                               consumed from (empty if none)
+	 * @throws NullPointerException     if any of the arguments are null
+	 * @throws IllegalArgumentException if the arguments are inconsistent (see the public constructor)
+	 */
+	ConsumptionResult(Container container, long minimumTokensRequested, long maximumTokensRequested,
+	                  long tokensConsumed, Instant requestedAt, Instant consumedAt, Instant availableAt,
+	                  long tokensLeft, List<Limit> bottlenecks, List<Limit> concurrencyLimits)
 	{
 		assertThat(r ->
 		{
@@ -70,6 +123,9 @@ public final class ConsumptionResult
 			r.requireThat(availableAt, "availableAt").isGreaterThanOrEqualTo(consumedAt, "consumedAt");
 			r.requireThat(tokensLeft, "tokensLeft").isNotNegative();
 			r.requireThat(bottlenecks, "bottlenecks").isNotNull();
+			r.requireThat(concurrencyLimits, "concurrencyLimits").isNotNull();
+			if (tokensConsumed == 0)
+				r.requireThat(concurrencyLimits, "concurrencyLimits").isEmpty();
 		});
 		this.container = container;
 		this.minimumTokensRequested = minimumTokensRequested;
@@ -80,6 +136,7 @@ public final class ConsumptionResult
 		this.availableAt = availableAt;
 		this.tokensLeft = tokensLeft;
 		this.bottlenecks = bottlenecks;
+		this.concurrencyLimits = concurrencyLimits;
 	}
 
 	/**
@@ -168,7 +225,8 @@ public final class ConsumptionResult
 	}
 
 	/**
-	 * Returns the number of tokens left.
+	 * Returns the number of tokens left. For a {@link Limit.Builder#stripes(int) striped} limit this is an
+	 * estimate, so that consumers do not read every stripe.
 	 *
 	 * @return the number of tokens left
 	 */
@@ -187,6 +245,96 @@ public final class ConsumptionResult
 		return bottlenecks;
 	}
 
+	/**
+	 * Returns the {@link LimitAlgorithm#CONCURRENCY concurrency} limits that tokens were consumed from.
+	 *
+	 * @return the concurrency limits that tokens were consumed from (empty if none)
+	 */
+	List<Limit> getConcurrencyLimits()
+	{
+		return concurrencyLimits;
+	}
+
+	/**
+	 * Returns the consumed tokens to any {@link LimitAlgorithm#CONCURRENCY concurrency} limits that they were
+	 * consumed from, and wakes up any consumers that are waiting for them. Other limits are unaffected.
+	 * <p>
+	 * This method should be invoked once the operation that the tokens were consumed for completes. Subsequent
+	 * invocations have no effect.
+	 *
+	 * @return false if the tokens were already released, or if they were not consumed from any concurrency
+	 * limits
+	 * @implNote This method acquires its own locks
+	 */
+	public boolean release()
+	{
+		if (concurrencyLimits.isEmpty() || !RELEASED.compareAndSet(this, false, true))
+			return false;
+		releaseTokens();
+		return true;
+	}
+
+	/**
+	 * Releases the consumed tokens like {@link #release()}, and reports the latency of the operation that they
+	 * were consumed for to any concurrency limits that have a {@link GradientPolicy}.
+	 *
+	 * @param latency the amount of time that the operation took
+	 * @return false if the tokens were already released, or if they were not consumed from any concurrency
+	 * limits
+	 * @throws NullPointerException     if {@code latency} is null
+	 * @throws IllegalArgumentException if {@code latency} is negative
+	 * @implNote This method acquires its own locks
+	 * @see Limit.Builder#gradient(java.util.function.Function)
+	 */
+	public boolean release(Duration latency)
+	{
+		requireThat(latency, "latency").isGreaterThanOrEqualTo(Duration.ZERO);
+		if (concurrencyLimits.isEmpty() || !RELEASED.compareAndSet(this, false, true))
+			return false;
+		long latencyInNanos;
+		try
+		{
+			latencyInNanos = latency.toNanos();
+		}
+		catch (ArithmeticException e)
+		{
+			latencyInNanos = Long.MAX_VALUE;
+		}
+		// Adjust maximumTokens before waking consumers so that they observe the new value
+		for (Limit limit : concurrencyLimits)
+			limit.onLatency(latencyInNanos);
+		releaseTokens();
+		return true;
+	}
+
+	/**
+	 * Returns the consumed tokens to the concurrency limits that they were consumed from.
+	 */
+	private void releaseTokens()
+	{
+		for (Limit limit : concurrencyLimits)
+		{
+			try (CloseableLock ignored = limit.lock.writeLock())
+			{
+				limit.refund(tokensConsumed);
+			}
+			Bucket bucket = limit.getBucket();
+			if (bucket != null)
+				CONTAINER_SECRETS.wakeConsumers(bucket);
+		}
+		CONTAINER_SECRETS.wakeConsumers((AbstractContainer) container);
+	}
+
+	/**
+	 * Indicates if the consumed tokens were {@link #release() released}.
+	 *
+	 * @return true if the consumed tokens were released
+	 */
+	public boolean isReleased()
+	{
+		return released;
+	}
+
 	@Override
 	public boolean equals(Object o)
 	{
@@ -219,6 +367,7 @@ public final class ConsumptionResult
 			add("availableAt", availableAt).
 			add("tokensLeft", tokensLeft).
 			add("bottlenecks", bottlenecks).
+			add("released", released).
 			add("container", container).
 			toString();
 	}
@@ -3,6 +3,7 @@ package com.github.cowwoc.tokenbucket;
 import com.github.cowwoc.tokenbucket.annotation.CheckReturnValue;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -31,6 +32,13 @@ public interface Container
 	 */
 	List<ContainerListener> getListeners();
 
+	/**
+	 * Returns the source of time used by this container.
+	 *
+	 * @return the source of time used by this container
+	 */
+	TimeSource getTimeSource();
+
 	/**
 	 * Consumes a single token, only if one is available at the time of invocation. Consumption order is not
 	 * guaranteed to be fair.
@@ -55,7 +63,8 @@ public interface Container
 
 	/**
 	 * Consumes the requested number of {@code tokens}, only if they become available within the given waiting
-	 * time. Consumption order is not guaranteed to be fair.
+	 * time. Waiting consumers are served in the order in which they started waiting, but consumers that do
+	 * not wait may barge ahead of them.
 	 *
 	 * @param tokens  the number of tokens to consume
 	 * @param timeout the maximum number of time to wait
@@ -86,9 +95,48 @@ public interface Container
 	@CheckReturnValue
 	ConsumptionResult tryConsume(long minimumTokens, long maximumTokens);
 
+	/**
+	 * Consumes {@code tokens} tokens, only if they are available at the time of invocation. Consumption
+	 * order is not guaranteed to be fair.
+	 * <p>
+	 * Unlike {@link #tryConsume(long)}, this method does not allocate any objects when invoked on a
+	 * {@link Bucket} with a single {@link Limit} that does not belong to a {@link ContainerList}. Use
+	 * {@code tryConsume()} if more information about the outcome is needed.
+	 *
+	 * @param tokens the number of tokens to consume
+	 * @return {@code tokens} if the tokens were consumed; otherwise, the negated number of nanoseconds until
+	 * the tokens are expected to become available (a value less than or equal to {@code -1})
+	 * @throws IllegalArgumentException if {@code tokens} is negative or zero. If the request can never
+	 *                                  succeed because the container cannot hold the requested number of
+	 *                                  tokens.
+	 */
+	@CheckReturnValue
+	long tryAcquire(long tokens);
+
+	/**
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens, only if they are available at the time of
+	 * invocation. Consumption order is not guaranteed to be fair.
+	 * <p>
+	 * Unlike {@link #tryConsume(long, long)}, this method does not allocate any objects when invoked on a
+	 * {@link Bucket} with a single {@link Limit} that does not belong to a {@link ContainerList}. Use
+	 * {@code tryConsume()} if more information about the outcome is needed.
+	 *
+	 * @param minimumTokens the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens the maximum number of tokens to consume (inclusive)
+	 * @return the number of tokens that were consumed; otherwise, the negated number of nanoseconds until
+	 * {@code minimumTokens} are expected to become available (a value less than or equal to {@code -1})
+	 * @throws IllegalArgumentException if the arguments are negative or zero. If
+	 *                                  {@code minimumTokens > maximumTokens}. If the request can never
+	 *                                  succeed because the container cannot hold the requested number of
+	 *                                  tokens.
+	 */
+	@CheckReturnValue
+	long tryAcquire(long minimumTokens, long maximumTokens);
+
 	/**
 	 * Consumes {@code [minimumTokens, maximumTokens]} tokens, only if they become available within the
-	 * given waiting time. Consumption order is not guaranteed to be fair.
+	 * given waiting time. Waiting consumers are served in the order in which they started waiting, but
+	 * consumers that do not wait may barge ahead of them.
 	 *
 	 * @param minimumTokens the minimum number of tokens to consume (inclusive)
 	 * @param maximumTokens the maximum number of tokens to consume (inclusive)
@@ -108,8 +156,8 @@ public interface Container
 		throws InterruptedException;
 
 	/**
-	 * Consumes a single token, blocking until it becomes available. Consumption order is not guaranteed to be
-	 * fair.
+	 * Consumes a single token, blocking until it becomes available. Waiting consumers are served in the order
+	 * in which they started waiting, but consumers that do not wait may barge ahead of them.
 	 *
 	 * @return the result of the operation
 	 * @throws InterruptedException if the thread is interrupted while waiting for tokens to become available
@@ -117,8 +165,9 @@ public interface Container
 	ConsumptionResult consume() throws InterruptedException;
 
 	/**
-	 * Consumes the specified number of tokens, blocking until they become available. Consumption order is not
-	 * guaranteed to be fair.
+	 * Consumes the specified number of tokens, blocking until they become available. Waiting consumers are
+	 * served in the order in which they started waiting, but consumers that do not wait may barge ahead of
+	 * them.
 	 *
 	 * @param tokens the number of tokens to consume
 	 * @return the result of the operation
@@ -131,8 +180,9 @@ public interface Container
 	ConsumptionResult consume(long tokens) throws InterruptedException;
 
 	/**
-	 * Consumes {@code [minimumTokens, maximumTokens]} tokens, blocking until they become available.
-	 * Consumption order is not guaranteed to be fair.
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens, blocking until they become available. Waiting
+	 * consumers are served in the order in which they started waiting, but consumers that do not wait may
+	 * barge ahead of them.
 	 *
 	 * @param minimumTokens the minimum number of tokens to consume (inclusive)
 	 * @param maximumTokens the maximum number of tokens to consume (inclusive)
@@ -147,4 +197,73 @@ public interface Container
 	 */
 	@CheckReturnValue
 	ConsumptionResult consume(long minimumTokens, long maximumTokens) throws InterruptedException;
-}
\ No newline at end of file
+
+	/**
+	 * Reserves tokens, even if they are not available yet.
+	 * <p>
+	 * The tokens are deducted immediately, and the number of available tokens may become negative as a result.
+	 * Instead of waiting for the tokens to become available, the caller is told when it may proceed. A
+	 * reservation may be cancelled in order to return its tokens.
+	 * <p>
+	 * When reserving from a {@code ContainerList} that consumes from one child at a time, the tokens are
+	 * reserved from the child that can satisfy the request the soonest.
+	 *
+	 * @param tokens the number of tokens to reserve
+	 * @return the reservation
+	 * @throws IllegalArgumentException if {@code tokens} is negative or zero. If the request can never
+	 *                                  succeed because the container cannot hold the requested number of
+	 *                                  tokens.
+	 */
+	@CheckReturnValue
+	Reservation reserve(long tokens);
+
+	/**
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens, without blocking the calling thread.
+	 * <p>
+	 * If the tokens are not available, a shared timer thread schedules a retry when they are expected to
+	 * become available. No thread is dedicated to each request, so a single thread may issue a large number
+	 * of throttled requests. Retries, including their {@link ContainerListener listeners}, run on the
+	 * future's {@link CompletableFuture#defaultExecutor() default executor}, which also completes the future.
+	 * <p>
+	 * Consumption order is not guaranteed to be fair. Cancelling the future withdraws the request.
+	 *
+	 * @param minimumTokens the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens the maximum number of tokens to consume (inclusive)
+	 * @return a future that is completed with the result of the operation. If the request can never succeed
+	 * due to a configuration update, the future is completed exceptionally with an
+	 * {@code IllegalArgumentException}. If a retry throws any other exception or error, the future is
+	 * completed exceptionally with it.
+	 * @throws IllegalArgumentException if the arguments are negative or zero. If
+	 *                                  {@code minimumTokens > maximumTokens}. If the request can never
+	 *                                  succeed because the container cannot hold the requested number of
+	 *                                  tokens.
+	 */
+	@CheckReturnValue
+	CompletableFuture<ConsumptionResult> consumeAsync(long minimumTokens, long maximumTokens);
+
+	/**
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens, only if they become available within the
+	 * given waiting time, without blocking the calling thread.
+	 * <p>
+	 * If the tokens are not available, a shared timer thread schedules a retry when they are expected to
+	 * become available. Retries, including their {@link ContainerListener listeners}, run on the future's
+	 * {@link CompletableFuture#defaultExecutor() default executor}, which also completes the future.
+	 * <p>
+	 * Consumption order is not guaranteed to be fair. Cancelling the future withdraws the request.
+	 *
+	 * @param minimumTokens the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens the maximum number of tokens to consume (inclusive)
+	 * @param timeout       the maximum amount of time to wait
+	 * @param unit          the unit of {@code timeout}
+	 * @return a future that is completed with the result of the operation. If the tokens do not become
+	 * available in time, the future is completed with an unsuccessful result.
+	 * @throws NullPointerException     if {@code unit} is null
+	 * @throws IllegalArgumentException if {@code tokens} is negative or zero. If {@code timeout} is negative.
+	 *                                  If {@code minimumTokens > maximumTokens}. If the request can never
+	 *                                  succeed because the container cannot hold the requested number of
+	 *                                  tokens.
+	 */
+	@CheckReturnValue
+	CompletableFuture<ConsumptionResult> consumeAsync(long minimumTokens, long maximumTokens, long timeout,
+	                                                  TimeUnit unit);
+}
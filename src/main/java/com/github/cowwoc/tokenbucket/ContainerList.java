@@ -11,6 +11,7 @@ import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -83,6 +84,7 @@ public final class ContainerList extends AbstractContainer
 		(minimumTokens, maximumTokens, nameOfMinimumTokens, requestedAt, consumedAt, abstractBucket) ->
 		{
 			ContainerList containerList = (ContainerList) abstractBucket;
+			TimeSource timeSource = containerList.timeSource;
 
 			List<CloseableLock> locks = new ArrayList<>();
 			try
@@ -99,7 +101,10 @@ public final class ContainerList extends AbstractContainer
 					if (descendant instanceof Bucket bucket)
 					{
 						for (Limit limit : bucket.getLimits())
+						{
 							locks.add(limit.lock.writeLock());
+							limit.refill(consumedAt);
+						}
 					}
 				}
 				requireThat(minimumTokens, nameOfMinimumTokens).
@@ -120,15 +125,20 @@ public final class ContainerList extends AbstractContainer
 					List<Limit> bottlenecks = new ArrayList<>();
 					for (AbstractContainer child : children)
 						bottlenecks.addAll(CONTAINER_SECRETS.getLimitsWithInsufficientTokens(child, minimumTokens));
+					long availableAt = getAvailableAt(containerList, minimumTokens, consumedAt);
+					// Reservations may leave children with a negative number of tokens
 					return new ConsumptionResult(containerList, minimumTokens, maximumTokens, 0,
-						requestedAt, consumedAt, consumedAt, tokensLeft, bottlenecks);
+						timeSource.toInstant(requestedAt), timeSource.toInstant(consumedAt),
+						timeSource.toInstant(availableAt), Math.max(0, tokensLeft), bottlenecks);
 				}
 
+				List<Limit> concurrencyLimits = new ArrayList<>();
 				for (AbstractContainer container : children)
 				{
 					// Consume an equal number of tokens across all containers, even if some have more available.
 					ConsumptionResult consumptionResult = CONTAINER_SECRETS.tryConsume(container, tokensToConsume,
 						tokensToConsume, nameOfMinimumTokens, requestedAt, consumedAt);
+					concurrencyLimits.addAll(consumptionResult.getConcurrencyLimits());
 					long finalTokensToConsume = tokensToConsume;
 					assertThat(r ->
 					{
@@ -138,8 +148,10 @@ public final class ContainerList extends AbstractContainer
 					});
 				}
 				tokensLeft -= tokensToConsume;
+				Instant consumedAtInstant = timeSource.toInstant(consumedAt);
 				return new ConsumptionResult(containerList, minimumTokens, maximumTokens, tokensToConsume,
-					requestedAt, consumedAt, consumedAt, tokensLeft, List.of());
+					timeSource.toInstant(requestedAt), consumedAtInstant, consumedAtInstant, tokensLeft, List.of(),
+					concurrencyLimits);
 			}
 			finally
 			{
@@ -149,6 +161,44 @@ public final class ContainerList extends AbstractContainer
 			}
 		};
 
+	/**
+	 * Returns the time at which a container is expected to have {@code tokens} tokens available. The caller
+	 * must hold the write locks of all of the container's limits, and must have refilled them.
+	 *
+	 * @param container a container
+	 * @param tokens    the number of tokens that are needed
+	 * @param now       the current time, in nanoseconds
+	 * @return the time at which the tokens are expected to become available, in nanoseconds
+	 */
+	private static long getAvailableAt(AbstractContainer container, long tokens, long now)
+	{
+		if (container instanceof Bucket bucket)
+		{
+			long availableAt = now;
+			for (Limit limit : bucket.getLimits())
+			{
+				availableAt = Math.max(availableAt,
+					limit.simulateConsumption(tokens, tokens, now).getAvailableAt());
+			}
+			return availableAt;
+		}
+		ContainerList containerList = (ContainerList) container;
+		if (containerList.consumptionPolicy == ConsumptionPolicy.CONSUME_FROM_ALL)
+		{
+			long availableAt = now;
+			for (AbstractContainer child : containerList.children)
+				availableAt = Math.max(availableAt, getAvailableAt(child, tokens, now));
+			return availableAt;
+		}
+		long availableAt = Long.MAX_VALUE;
+		for (AbstractContainer child : containerList.children)
+		{
+			if (CONTAINER_SECRETS.getMaximumTokens(child) >= tokens)
+				availableAt = Math.min(availableAt, getAvailableAt(child, tokens, now));
+		}
+		return availableAt;
+	}
+
 	/**
 	 * Builds a bucket that contains children buckets.
 	 * <p>
@@ -171,6 +221,7 @@ public final class ContainerList extends AbstractContainer
 	 * @param listeners           the event listeners associated with this list
 	 * @param children            the children in this list
 	 * @param userData            the data associated with this list
+	 * @param timeSource          the source of time used by this list
 	 * @param consumptionPolicy   indicates how tokens are consumed
 	 * @param consumptionFunction indicates how tokens are consumed
 	 * @param selectionPolicy     the {@link SelectionPolicy} used by the {@code consumptionPolicy}
@@ -180,10 +231,10 @@ public final class ContainerList extends AbstractContainer
 	 * @throws IllegalArgumentException if {@code children} are empty
 	 */
 	private ContainerList(List<AbstractContainer> children, List<ContainerListener> listeners, Object userData,
-	                      ConsumptionPolicy consumptionPolicy, ConsumptionFunction consumptionFunction,
-	                      SelectionPolicy selectionPolicy)
+	                      TimeSource timeSource, ConsumptionPolicy consumptionPolicy,
+	                      ConsumptionFunction consumptionFunction, SelectionPolicy selectionPolicy)
 	{
-		super(children, listeners, userData, consumptionFunction);
+		super(children, listeners, userData, timeSource, consumptionFunction);
 		assertThat(r ->
 		{
 			r.requireThat(children, "children").isNotEmpty();
@@ -202,10 +253,7 @@ public final class ContainerList extends AbstractContainer
 	@Override
 	protected long getAvailableTokens()
 	{
-		long availableTokens = Long.MAX_VALUE;
-		for (AbstractContainer child : children)
-			availableTokens = Math.min(availableTokens, CONTAINER_SECRETS.getAvailableTokens(child));
-		return availableTokens;
+		return consumptionPolicy.getAvailableTokens(this);
 	}
 
 	@Override
@@ -223,6 +271,23 @@ public final class ContainerList extends AbstractContainer
 		return consumptionPolicy.getMaximumTokens(this);
 	}
 
+	@Override
+	@CheckReturnValue
+	public Reservation reserve(long tokens)
+	{
+		return Reservation.reserve(this, tokens);
+	}
+
+	/**
+	 * Returns the consumption policy indicating how to consume tokens from children containers.
+	 *
+	 * @return the consumption policy
+	 */
+	ConsumptionPolicy getConsumptionPolicy()
+	{
+		return lock.optimisticReadLock(() -> consumptionPolicy);
+	}
+
 	/**
 	 * Returns the number of children in this list. If this list contains more than {@code Integer.MAX_VALUE}
 	 * children, returns {@code Integer.MAX_VALUE}.
@@ -266,6 +331,7 @@ public final class ContainerList extends AbstractContainer
 		private final List<ContainerListener> listeners = new ArrayList<>();
 		private final List<AbstractContainer> children = new ArrayList<>();
 		private Object userData;
+		private TimeSource timeSource = TimeSource.system();
 		private ConsumptionPolicy consumptionPolicy;
 		private ConsumptionFunction consumptionFunction;
 		private SelectionPolicy selectionPolicy;
@@ -356,7 +422,34 @@ public final class ContainerList extends AbstractContainer
 		}
 
 		/**
-		 * Adds a Bucket to this list.
+		 * Returns the source of time used by the list. The default is {@link TimeSource#system()}.
+		 *
+		 * @return the source of time used by the list
+		 */
+		@CheckReturnValue
+		public TimeSource timeSource()
+		{
+			return timeSource;
+		}
+
+		/**
+		 * Sets the source of time used by the list. Children that are added after this method is invoked
+		 * inherit this value.
+		 *
+		 * @param timeSource the source of time used by the list
+		 * @return this
+		 * @throws NullPointerException if {@code timeSource} is null
+		 */
+		@CheckReturnValue
+		public Builder timeSource(TimeSource timeSource)
+		{
+			requireThat(timeSource, "timeSource").isNotNull();
+			this.timeSource = timeSource;
+			return this;
+		}
+
+		/**
+		 * Adds a Bucket to this list. The bucket's builder inherits the list's {@link #timeSource()}.
 		 *
 		 * @param bucketBuilder builds the Bucket
 		 * @return this
@@ -365,13 +458,13 @@ public final class ContainerList extends AbstractContainer
 		public Builder addBucket(Function<Bucket.Builder, Bucket> bucketBuilder)
 		{
 			requireThat(bucketBuilder, "bucketBuilder").isNotNull();
-			Bucket child = bucketBuilder.apply(Bucket.builder());
+			Bucket child = bucketBuilder.apply(Bucket.builder().timeSource(timeSource));
 			children.add(child);
 			return this;
 		}
 
 		/**
-		 * Adds a ContainerList to this list.
+		 * Adds a ContainerList to this list. The child's builder inherits the list's {@link #timeSource()}.
 		 *
 		 * @param listBuilder builds the ContainerList
 		 * @return this
@@ -380,7 +473,7 @@ public final class ContainerList extends AbstractContainer
 		public Builder addContainerList(Function<ContainerList.Builder, ContainerList> listBuilder)
 		{
 			requireThat(listBuilder, "listBuilder").isNotNull();
-			ContainerList child = listBuilder.apply(ContainerList.builder());
+			ContainerList child = listBuilder.apply(ContainerList.builder().timeSource(timeSource));
 			children.add(child);
 			return this;
 		}
@@ -415,12 +508,15 @@ public final class ContainerList extends AbstractContainer
 		 * Builds a new ContainerList.
 		 *
 		 * @return a new ContainerList
-		 * @throws IllegalArgumentException if {@code buckets} is empty
+		 * @throws IllegalArgumentException if {@code buckets} is empty. If any of the children use a different
+		 *                                  {@code TimeSource} than the list.
 		 */
 		public ContainerList build()
 		{
-			ContainerList containerList = new ContainerList(children, listeners, userData, consumptionPolicy,
-				consumptionFunction, selectionPolicy);
+			for (AbstractContainer child : children)
+				requireThat(child.getTimeSource(), "child.getTimeSource()").isEqualTo(timeSource, "timeSource");
+			ContainerList containerList = new ContainerList(children, listeners, userData, timeSource,
+				consumptionPolicy, consumptionFunction, selectionPolicy);
 			for (AbstractContainer child : children)
 				CONTAINER_SECRETS.setParent(child, containerList);
 			return containerList;
@@ -434,6 +530,7 @@ public final class ContainerList extends AbstractContainer
 				add("selectionPolicy", selectionPolicy).
 				add("children", children).
 				add("userData", userData).
+				add("timeSource", timeSource).
 				toString();
 		}
 	}
@@ -537,18 +634,21 @@ public final class ContainerList extends AbstractContainer
 		}
 
 		/**
-		 * Adds a Bucket to this list.
+		 * Adds a Bucket to this list. The bucket's builder inherits the list's {@link #getTimeSource() time
+		 * source}.
 		 *
 		 * @param bucketBuilder builds the Bucket
 		 * @return this
-		 * @throws NullPointerException  if {@code bucketBuilder} is null
-		 * @throws IllegalStateException if the updater is closed
+		 * @throws NullPointerException     if {@code bucketBuilder} is null
+		 * @throws IllegalArgumentException if the bucket uses a different {@code TimeSource} than the list
+		 * @throws IllegalStateException    if the updater is closed
 		 */
 		public ConfigurationUpdater addBucket(Function<Bucket.Builder, Bucket> bucketBuilder)
 		{
 			requireThat(bucketBuilder, "bucketBuilder").isNotNull();
 			ensureOpen();
-			Bucket child = bucketBuilder.apply(Bucket.builder());
+			Bucket child = bucketBuilder.apply(Bucket.builder().timeSource(timeSource));
+			requireThat(child.getTimeSource(), "child.getTimeSource()").isEqualTo(timeSource, "timeSource");
 			children.add(child);
 			changed = true;
 			if (consumptionPolicy == ConsumptionPolicy.CONSUME_FROM_ONE)
@@ -560,18 +660,21 @@ public final class ContainerList extends AbstractContainer
 		}
 
 		/**
-		 * Adds a ContainerList to this list.
+		 * Adds a ContainerList to this list. The child's builder inherits the list's
+		 * {@link #getTimeSource() time source}.
 		 *
 		 * @param listBuilder builds the ContainerList
 		 * @return this
-		 * @throws NullPointerException  if {@code listBuilder} is null
-		 * @throws IllegalStateException if the updater is closed
+		 * @throws NullPointerException     if {@code listBuilder} is null
+		 * @throws IllegalArgumentException if the child uses a different {@code TimeSource} than the list
+		 * @throws IllegalStateException    if the updater is closed
 		 */
 		public ConfigurationUpdater addContainerList(Function<ContainerList.Builder, ContainerList> listBuilder)
 		{
 			requireThat(listBuilder, "listBuilder").isNotNull();
 			ensureOpen();
-			ContainerList child = listBuilder.apply(ContainerList.builder());
+			ContainerList child = listBuilder.apply(ContainerList.builder().timeSource(timeSource));
+			requireThat(child.getTimeSource(), "child.getTimeSource()").isEqualTo(timeSource, "timeSource");
 			children.add(child);
 			changed = true;
 			if (consumptionPolicy == ConsumptionPolicy.CONSUME_FROM_ONE)
@@ -687,12 +790,7 @@ public final class ContainerList extends AbstractContainer
 				writeLock.close();
 			}
 			if (wakeConsumers)
-			{
-				try (CloseableLock ignored = conditionLock.writeLock())
-				{
-					tokensUpdated.signalAll();
-				}
-			}
+				wakeConsumers();
 		}
 
 		@Override
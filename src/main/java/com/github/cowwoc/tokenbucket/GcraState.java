@@ -0,0 +1,286 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+
+import static com.github.cowwoc.tokenbucket.Limit.saturatedAdd;
+import static com.github.cowwoc.tokenbucket.Limit.saturatedMultiply;
+
+/**
+ * The state of a limit that uses {@link LimitAlgorithm#GCRA}.
+ * <p>
+ * Token {@code k} is emitted {@code ceil(k * period / tokensPerPeriod)} nanoseconds after the limit
+ * started, so tokens are emitted at exactly {@code tokensPerPeriod} per {@code period} even if the time
+ * between tokens is not a whole number of nanoseconds. The limit is described by a single timestamp, the
+ * theoretical arrival time ({@code tat}), at which the limit will have emitted every token that was consumed.
+ * Consuming {@code n} tokens moves {@code tat} to the time of the token {@code n} emissions later, and the
+ * number of available tokens at time {@code now} is {@code maximumTokens} minus the number of tokens that are
+ * emitted after {@code now}, up to and including {@code tat}. The limit admits exactly as many tokens as a
+ * {@link LimitAlgorithm#TOKEN_BUCKET token bucket} whose {@code refillSize} is {@code 1}.
+ * <p>
+ * Tokens are never added explicitly, so refills are free and the specification may change without
+ * restarting the limit: the debt is measured in time, and is re-interpreted using the new rate.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+final class GcraState extends LimitState
+{
+	private static final VarHandle TAT;
+
+	static
+	{
+		try
+		{
+			TAT = MethodHandles.lookup().findVarHandle(GcraState.class, "tat", long.class);
+		}
+		catch (NoSuchFieldException | IllegalAccessException e)
+		{
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final Limit.SharedSpec sharedSpec;
+	private volatile TimeSource timeSource;
+	/**
+	 * The time at which the limit started tracking time, in nanoseconds.
+	 */
+	private volatile long startedAt;
+	/**
+	 * The theoretical arrival time, in nanoseconds since {@code startedAt}. Updated using compare-and-set.
+	 */
+	private volatile long tat;
+
+	/**
+	 * Creates a new state.
+	 *
+	 * @param sharedSpec the specification of the limit
+	 */
+	GcraState(Limit.SharedSpec sharedSpec)
+	{
+		this.sharedSpec = sharedSpec;
+		// The clock starts over once the limit is added to a bucket
+		start(TimeSource.system());
+	}
+
+	@Override
+	void start(TimeSource timeSource)
+	{
+		LimitSpec spec = sharedSpec.value;
+		long now = timeSource.nanoTime();
+		this.timeSource = timeSource;
+		this.startedAt = now;
+		this.tat = getTat(spec, Math.min(spec.initialTokens, spec.maximumTokens), 0);
+	}
+
+	@Override
+	TimeSource getTimeSource()
+	{
+		return timeSource;
+	}
+
+	@Override
+	void restart()
+	{
+		// The debt is measured in time, so it carries over to the new specification and never exceeds
+		// maximumTokens
+	}
+
+	@Override
+	void refill(long now)
+	{
+		// Tokens are refilled continuously
+	}
+
+	/**
+	 * @param spec  the specification of the limit
+	 * @param token the index of a token. Tokens with a negative index are emitted before the limit started.
+	 * @return the time at which the token is emitted, in nanoseconds since the limit started
+	 */
+	static long getTimeOfToken(LimitSpec spec, long token)
+	{
+		long period = spec.emissionPeriod;
+		long emissions = spec.emissionsPerPeriod;
+		long periods = Math.floorDiv(token, emissions);
+		// remainder * period < emissions * period, which fits in a long
+		long remainder = token - periods * emissions;
+		long offset = -Math.floorDiv(-remainder * period, emissions);
+		if (periods >= 0)
+			return saturatedAdd(saturatedMultiply(periods, period), offset);
+		return saturatedAdd(-saturatedMultiply(-Math.max(periods, -Long.MAX_VALUE), period), offset);
+	}
+
+	/**
+	 * @param spec the specification of the limit
+	 * @param time a time, in nanoseconds since the limit started
+	 * @return the index of the last token that is emitted at or before {@code time}
+	 */
+	private static long getLastTokenAt(LimitSpec spec, long time)
+	{
+		long period = spec.emissionPeriod;
+		long emissions = spec.emissionsPerPeriod;
+		long periods = Math.floorDiv(time, period);
+		// emissions <= period, so the product cannot overflow
+		long tokens = periods * emissions;
+		if (emissions == 1)
+			return tokens;
+		long remainder = time - periods * period;
+		return tokens + remainder * emissions / period;
+	}
+
+	/**
+	 * @param spec the specification of the limit
+	 * @param time a time, in nanoseconds since the limit started
+	 * @return the index of the first token that is emitted at or after {@code time}
+	 */
+	private static long getFirstTokenAt(LimitSpec spec, long time)
+	{
+		long period = spec.emissionPeriod;
+		long emissions = spec.emissionsPerPeriod;
+		long periods = Math.floorDiv(time, period);
+		// emissions <= period, so the product cannot overflow
+		long tokens = periods * emissions;
+		long remainder = time - periods * period;
+		if (remainder == 0)
+			return tokens;
+		return tokens + (remainder - 1) * emissions / period + 1;
+	}
+
+	/**
+	 * @param spec    the specification of the limit
+	 * @param tokens  the number of available tokens
+	 * @param elapsed the number of nanoseconds since the limit started
+	 * @return the theoretical arrival time at which the limit holds {@code tokens} tokens, in nanoseconds
+	 * since the limit started
+	 */
+	private static long getTat(LimitSpec spec, long tokens, long elapsed)
+	{
+		assert (tokens <= spec.maximumTokens) : "tokens: " + tokens + ", maximumTokens: " + spec.maximumTokens;
+		long deficit = spec.maximumTokens - tokens;
+		if (deficit < 0)
+		{
+			// tokens is so negative that the difference overflowed
+			deficit = Long.MAX_VALUE;
+		}
+		return getTimeOfToken(spec, saturatedAdd(getLastTokenAt(spec, elapsed), deficit));
+	}
+
+	/**
+	 * @param spec    the specification of the limit
+	 * @param tat     the theoretical arrival time, in nanoseconds since the limit started
+	 * @param elapsed the number of nanoseconds since the limit started
+	 * @return the number of available tokens
+	 */
+	private static long getAvailableTokens(LimitSpec spec, long tat, long elapsed)
+	{
+		long debt = saturatedAdd(getFirstTokenAt(spec, tat), -getLastTokenAt(spec, elapsed));
+		return spec.maximumTokens - Math.max(0, debt);
+	}
+
+	@Override
+	long getAvailableTokens()
+	{
+		return getAvailableTokens(timeSource.nanoTime());
+	}
+
+	@Override
+	long getAvailableTokens(long now)
+	{
+		return getAvailableTokens(sharedSpec.value, tat, now - startedAt);
+	}
+
+	@Override
+	void setAvailableTokens(long tokens)
+	{
+		LimitSpec spec = sharedSpec.value;
+		this.tat = getTat(spec, Math.min(tokens, spec.maximumTokens), timeSource.nanoTime() - startedAt);
+	}
+
+	@Override
+	long tryConsume(long minimumTokens, long maximumTokens, long now)
+	{
+		LimitSpec spec = sharedSpec.value;
+		long lastToken = getLastTokenAt(spec, now - startedAt);
+		while (true)
+		{
+			long tat = this.tat;
+			long tatToken = getFirstTokenAt(spec, tat);
+			long availableTokens = spec.maximumTokens - Math.max(0, saturatedAdd(tatToken, -lastToken));
+			if (availableTokens < minimumTokens)
+				return 0;
+			long tokensConsumed = Math.min(maximumTokens, availableTokens);
+			long newTat = getTimeOfToken(spec, saturatedAdd(Math.max(tatToken, lastToken), tokensConsumed));
+			if (TAT.compareAndSet(this, tat, newTat))
+				return tokensConsumed;
+		}
+	}
+
+	@Override
+	long consume(long tokens, long now)
+	{
+		LimitSpec spec = sharedSpec.value;
+		long elapsed = now - startedAt;
+		long lastToken = getLastTokenAt(spec, elapsed);
+		while (true)
+		{
+			long tat = this.tat;
+			long tatToken = getFirstTokenAt(spec, tat);
+			long newTat = getTimeOfToken(spec, saturatedAdd(Math.max(tatToken, lastToken), tokens));
+			if (TAT.compareAndSet(this, tat, newTat))
+				return getAvailableTokens(spec, newTat, elapsed);
+		}
+	}
+
+	@Override
+	void refund(long tokens)
+	{
+		LimitSpec spec = sharedSpec.value;
+		while (true)
+		{
+			long tat = this.tat;
+			// Tokens beyond maximumTokens are discarded by treating any tat in the past as the current time
+			long newTat = getTimeOfToken(spec, saturatedAdd(getFirstTokenAt(spec, tat), -tokens));
+			if (TAT.compareAndSet(this, tat, newTat))
+				return;
+		}
+	}
+
+	@Override
+	long getAvailableAt(long tokensNeeded, long requestedAt)
+	{
+		if (tokensNeeded <= 0)
+			return requestedAt;
+		LimitSpec spec = sharedSpec.value;
+		long startedAt = this.startedAt;
+		long tat = this.tat;
+		long availableTokens = getAvailableTokens(spec, tat, requestedAt - startedAt);
+		long targetTokens = saturatedAdd(availableTokens, tokensNeeded);
+		// The limit holds targetTokens once at most maximumTokens - targetTokens tokens remain to be emitted
+		long debt = Math.max(0, spec.maximumTokens - targetTokens);
+		long availableAt = getTimeOfToken(spec, saturatedAdd(getFirstTokenAt(spec, tat), -debt));
+		return Math.max(requestedAt, saturatedAdd(startedAt, availableAt));
+	}
+
+	@Override
+	long getStartOfCurrentPeriod()
+	{
+		return startedAt;
+	}
+
+	@Override
+	public String toString()
+	{
+		TimeSource timeSource = this.timeSource;
+		LimitSpec spec = sharedSpec.value;
+		long startedAt = this.startedAt;
+		long tat = this.tat;
+		return new ToStringBuilder(GcraState.class).
+			add("tat", timeSource.toInstant(saturatedAdd(startedAt, tat))).
+			add("availableTokens", getAvailableTokens(spec, tat, timeSource.nanoTime() - startedAt)).
+			add("emissionPeriod", Duration.ofNanos(spec.emissionPeriod)).
+			add("emissionsPerPeriod", spec.emissionsPerPeriod).
+			toString();
+	}
+}
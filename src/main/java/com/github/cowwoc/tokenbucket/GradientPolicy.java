@@ -0,0 +1,394 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.annotation.CheckReturnValue;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.time.Duration;
+import java.util.Objects;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * Adjusts the {@code maximumTokens} of a {@link LimitAlgorithm#CONCURRENCY concurrency} limit based on the
+ * latency of the operations that it admits.
+ * <p>
+ * Latencies are reported using {@link ConsumptionResult#release(Duration)}. The lowest latency of each
+ * {@code shortWindow} is compared to the lowest latency of the last {@code longWindow}, which estimates the
+ * latency of an idle service. Once a {@code shortWindow} ends, {@code maximumTokens} is set to:
+ * <pre>
+ * gradient = max(0.5, min(1.0, longWindowLatency / shortWindowLatency))
+ * target = maximumTokens * gradient + queueSize
+ * maximumTokens = maximumTokens * (1 - smoothing) + target * smoothing
+ * </pre>
+ * While latency is stable, {@code maximumTokens} grows by up to {@code queueSize} per {@code shortWindow}.
+ * Once requests start queueing on the service, latency rises and {@code maximumTokens} shrinks in
+ * proportion.
+ * <p>
+ * Changes to {@code maximumTokens} do not acquire the limit's lock. Tokens that are in use remain in use.
+ * <p>
+ * <b>Thread safety</b>: This class is immutable.
+ *
+ * @see Limit.Builder#gradient(java.util.function.Function)
+ */
+public final class GradientPolicy
+{
+	/**
+	 * The maximum number of short windows that a long window may span.
+	 */
+	static final int MAXIMUM_SHORT_WINDOWS = 1024;
+	private final long minimumTokens;
+	private final long maximumTokens;
+	private final Duration shortWindow;
+	private final Duration longWindow;
+	private final long queueSize;
+	private final double smoothing;
+
+	/**
+	 * Creates a new policy.
+	 *
+	 * @param minimumTokens the lowest value that {@code maximumTokens} may be decreased to
+	 * @param maximumTokens the highest value that {@code maximumTokens} may be increased to
+	 * @param shortWindow   the amount of time over which the current latency is measured
+	 * @param longWindow    the amount of time over which the latency of an idle service is measured
+	 * @param queueSize     the number of tokens that {@code maximumTokens} grows by while latency is stable
+	 * @param smoothing     the weight of each adjustment, between {@code 0} (exclusive) and {@code 1}
+	 *                      (inclusive)
+	 */
+	private GradientPolicy(long minimumTokens, long maximumTokens, Duration shortWindow, Duration longWindow,
+	                       long queueSize, double smoothing)
+	{
+		this.minimumTokens = minimumTokens;
+		this.maximumTokens = maximumTokens;
+		this.shortWindow = shortWindow;
+		this.longWindow = longWindow;
+		this.queueSize = queueSize;
+		this.smoothing = smoothing;
+	}
+
+	/**
+	 * Returns the lowest value that {@code maximumTokens} may be decreased to.
+	 *
+	 * @return the lowest value that {@code maximumTokens} may be decreased to
+	 */
+	public long getMinimumTokens()
+	{
+		return minimumTokens;
+	}
+
+	/**
+	 * Returns the highest value that {@code maximumTokens} may be increased to.
+	 *
+	 * @return the highest value that {@code maximumTokens} may be increased to
+	 */
+	public long getMaximumTokens()
+	{
+		return maximumTokens;
+	}
+
+	/**
+	 * Returns the amount of time over which the current latency is measured.
+	 *
+	 * @return the amount of time over which the current latency is measured
+	 */
+	public Duration getShortWindow()
+	{
+		return shortWindow;
+	}
+
+	/**
+	 * Returns the amount of time over which the latency of an idle service is measured.
+	 *
+	 * @return the amount of time over which the latency of an idle service is measured
+	 */
+	public Duration getLongWindow()
+	{
+		return longWindow;
+	}
+
+	/**
+	 * Returns the number of tokens that {@code maximumTokens} grows by while latency is stable.
+	 *
+	 * @return the number of tokens that {@code maximumTokens} grows by while latency is stable
+	 */
+	public long getQueueSize()
+	{
+		return queueSize;
+	}
+
+	/**
+	 * Returns the weight of each adjustment.
+	 *
+	 * @return the weight of each adjustment, between {@code 0} (exclusive) and {@code 1} (inclusive)
+	 */
+	public double getSmoothing()
+	{
+		return smoothing;
+	}
+
+	/**
+	 * @return the number of short windows that a long window spans
+	 */
+	int getShortWindowsPerLongWindow()
+	{
+		long windows = longWindow.toNanos() / shortWindow.toNanos();
+		return (int) Math.max(1, Math.min(windows, MAXIMUM_SHORT_WINDOWS));
+	}
+
+	/**
+	 * @param maximumTokens      the current value of {@code maximumTokens}
+	 * @param longWindowLatency  the lowest latency of the long window, in nanoseconds
+	 * @param shortWindowLatency the lowest latency of the short window, in nanoseconds
+	 * @return the new value of {@code maximumTokens}
+	 */
+	long adjust(long maximumTokens, long longWindowLatency, long shortWindowLatency)
+	{
+		double gradient = Math.max(0.5, Math.min(1.0, (double) longWindowLatency / shortWindowLatency));
+		double target = maximumTokens * gradient + queueSize;
+		double result = maximumTokens * (1 - smoothing) + target * smoothing;
+		// Math.round() saturates at Long.MAX_VALUE
+		return Math.max(minimumTokens, Math.min(this.maximumTokens, Math.round(result)));
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Objects.hash(minimumTokens, maximumTokens, shortWindow, longWindow, queueSize, smoothing);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		return o instanceof GradientPolicy other && minimumTokens == other.minimumTokens &&
+			maximumTokens == other.maximumTokens && shortWindow.equals(other.shortWindow) &&
+			longWindow.equals(other.longWindow) && queueSize == other.queueSize &&
+			Double.compare(smoothing, other.smoothing) == 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(GradientPolicy.class).
+			add("minimumTokens", minimumTokens).
+			add("maximumTokens", maximumTokens).
+			add("shortWindow", shortWindow).
+			add("longWindow", longWindow).
+			add("queueSize", queueSize).
+			add("smoothing", smoothing).
+			toString();
+	}
+
+	/**
+	 * Builds a GradientPolicy.
+	 */
+	public static final class Builder
+	{
+		private long minimumTokens = 1;
+		private long maximumTokens = 1000;
+		private Duration shortWindow = Duration.ofSeconds(1);
+		private Duration longWindow = Duration.ofMinutes(1);
+		private long queueSize = 4;
+		private double smoothing = 0.2;
+
+		/**
+		 * Prevent construction.
+		 */
+		Builder()
+		{
+		}
+
+		/**
+		 * Returns the lowest value that {@code maximumTokens} may be decreased to. The default is {@code 1}.
+		 *
+		 * @return the lowest value that {@code maximumTokens} may be decreased to
+		 */
+		@CheckReturnValue
+		public long minimumTokens()
+		{
+			return minimumTokens;
+		}
+
+		/**
+		 * Sets the lowest value that {@code maximumTokens} may be decreased to.
+		 *
+		 * @param minimumTokens the lowest value that {@code maximumTokens} may be decreased to
+		 * @return this
+		 * @throws IllegalArgumentException if {@code minimumTokens} is negative or zero
+		 */
+		@CheckReturnValue
+		public Builder minimumTokens(long minimumTokens)
+		{
+			requireThat(minimumTokens, "minimumTokens").isPositive();
+			this.minimumTokens = minimumTokens;
+			return this;
+		}
+
+		/**
+		 * Returns the highest value that {@code maximumTokens} may be increased to. The default is
+		 * {@code 1000}.
+		 *
+		 * @return the highest value that {@code maximumTokens} may be increased to
+		 */
+		@CheckReturnValue
+		public long maximumTokens()
+		{
+			return maximumTokens;
+		}
+
+		/**
+		 * Sets the highest value that {@code maximumTokens} may be increased to.
+		 *
+		 * @param maximumTokens the highest value that {@code maximumTokens} may be increased to
+		 * @return this
+		 * @throws IllegalArgumentException if {@code maximumTokens} is negative or zero
+		 */
+		@CheckReturnValue
+		public Builder maximumTokens(long maximumTokens)
+		{
+			requireThat(maximumTokens, "maximumTokens").isPositive();
+			this.maximumTokens = maximumTokens;
+			return this;
+		}
+
+		/**
+		 * Returns the amount of time over which the current latency is measured. The default is 1 second.
+		 *
+		 * @return the amount of time over which the current latency is measured
+		 */
+		@CheckReturnValue
+		public Duration shortWindow()
+		{
+			return shortWindow;
+		}
+
+		/**
+		 * Sets the amount of time over which the current latency is measured.
+		 *
+		 * @param shortWindow the amount of time over which the current latency is measured
+		 * @return this
+		 * @throws NullPointerException     if {@code shortWindow} is null
+		 * @throws IllegalArgumentException if {@code shortWindow} is negative or zero, or longer than
+		 *                                  {@code Long.MAX_VALUE} nanoseconds
+		 */
+		@CheckReturnValue
+		public Builder shortWindow(Duration shortWindow)
+		{
+			requireThat(shortWindow, "shortWindow").isGreaterThan(Duration.ZERO).
+				isLessThanOrEqualTo(Duration.ofNanos(Long.MAX_VALUE));
+			this.shortWindow = shortWindow;
+			return this;
+		}
+
+		/**
+		 * Returns the amount of time over which the latency of an idle service is measured. The default is 1
+		 * minute.
+		 *
+		 * @return the amount of time over which the latency of an idle service is measured
+		 */
+		@CheckReturnValue
+		public Duration longWindow()
+		{
+			return longWindow;
+		}
+
+		/**
+		 * Sets the amount of time over which the latency of an idle service is measured. The long window is
+		 * tracked using at most 1024 short windows; longer windows are truncated.
+		 *
+		 * @param longWindow the amount of time over which the latency of an idle service is measured
+		 * @return this
+		 * @throws NullPointerException     if {@code longWindow} is null
+		 * @throws IllegalArgumentException if {@code longWindow} is negative or zero, or longer than
+		 *                                  {@code Long.MAX_VALUE} nanoseconds
+		 */
+		@CheckReturnValue
+		public Builder longWindow(Duration longWindow)
+		{
+			requireThat(longWindow, "longWindow").isGreaterThan(Duration.ZERO).
+				isLessThanOrEqualTo(Duration.ofNanos(Long.MAX_VALUE));
+			this.longWindow = longWindow;
+			return this;
+		}
+
+		/**
+		 * Returns the number of tokens that {@code maximumTokens} grows by while latency is stable. The default
+		 * is {@code 4}.
+		 *
+		 * @return the number of tokens that {@code maximumTokens} grows by while latency is stable
+		 */
+		@CheckReturnValue
+		public long queueSize()
+		{
+			return queueSize;
+		}
+
+		/**
+		 * Sets the number of tokens that {@code maximumTokens} grows by while latency is stable.
+		 *
+		 * @param queueSize the number of tokens that {@code maximumTokens} grows by while latency is stable
+		 * @return this
+		 * @throws IllegalArgumentException if {@code queueSize} is negative
+		 */
+		@CheckReturnValue
+		public Builder queueSize(long queueSize)
+		{
+			requireThat(queueSize, "queueSize").isNotNegative();
+			this.queueSize = queueSize;
+			return this;
+		}
+
+		/**
+		 * Returns the weight of each adjustment. The default is {@code 0.2}.
+		 *
+		 * @return the weight of each adjustment
+		 */
+		@CheckReturnValue
+		public double smoothing()
+		{
+			return smoothing;
+		}
+
+		/**
+		 * Sets the weight of each adjustment. Lower values react to changes in latency more slowly, but are
+		 * less sensitive to noise.
+		 *
+		 * @param smoothing the weight of each adjustment
+		 * @return this
+		 * @throws IllegalArgumentException if {@code smoothing} is not greater than {@code 0} and less than or
+		 *                                  equal to {@code 1}
+		 */
+		@CheckReturnValue
+		public Builder smoothing(double smoothing)
+		{
+			requireThat(smoothing, "smoothing").isGreaterThan(0.0).isLessThanOrEqualTo(1.0);
+			this.smoothing = smoothing;
+			return this;
+		}
+
+		/**
+		 * Builds a new GradientPolicy.
+		 *
+		 * @return a new GradientPolicy
+		 * @throws IllegalArgumentException if {@code maximumTokens < minimumTokens} or
+		 *                                  {@code longWindow < shortWindow}
+		 */
+		public GradientPolicy build()
+		{
+			requireThat(maximumTokens, "maximumTokens").isGreaterThanOrEqualTo(minimumTokens, "minimumTokens");
+			requireThat(longWindow, "longWindow").isGreaterThanOrEqualTo(shortWindow, "shortWindow");
+			return new GradientPolicy(minimumTokens, maximumTokens, shortWindow, longWindow, queueSize, smoothing);
+		}
+
+		@Override
+		public String toString()
+		{
+			return new ToStringBuilder(Builder.class).
+				add("minimumTokens", minimumTokens).
+				add("maximumTokens", maximumTokens).
+				add("shortWindow", shortWindow).
+				add("longWindow", longWindow).
+				add("queueSize", queueSize).
+				add("smoothing", smoothing).
+				toString();
+		}
+	}
+}
@@ -0,0 +1,436 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.annotation.CheckReturnValue;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * A bucket per key (for example, per API key or per IP address), created on demand from a shared list of
+ * limits.
+ * <p>
+ * The buckets share the {@link LimitSpec specification} of their limits, so each bucket only holds its own
+ * token counts and refill progress. Updating the configuration of one of the {@link #getLimits() template
+ * limits}, or of any bucket's limit, re-parameterizes the corresponding limit of every bucket.
+ * <p>
+ * The registry holds up to {@code maximumSize} buckets. Each insertion beyond that limit examines a small,
+ * bounded sample of buckets, resuming where the previous sample left off, and evicts:
+ * <ol>
+ *   <li>An idle bucket, whose limits have refilled to their {@code maximumTokens}. Evicting it loses no
+ *   state because a bucket that is recreated for the same key starts with {@code initialTokens}, which
+ *   never exceeds {@code maximumTokens}. Limits that use the default {@code maximumTokens} of
+ *   {@code Long.MAX_VALUE} never fill up, so their buckets are never idle.</li>
+ *   <li>Otherwise, the least recently used bucket in the sample. Keys whose bucket is evicted this way start
+ *   over with {@code initialTokens}, so {@code maximumSize} should be large enough to hold all active
+ *   keys.</li>
+ * </ol>
+ * Eviction never scans the entire registry, so lookups take constant time. Buckets are considered used when
+ * they are returned by {@link #get(Object)}, to a resolution of one millisecond.
+ * <p>
+ * Buckets that are evicted while another thread is consuming from them may admit that consumer without
+ * charging the recreated bucket. Changes to a bucket's listeners, user data, list of limits or number of
+ * available tokens are lost when the bucket is evicted.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ *
+ * @param <K> the type of keys
+ */
+public final class KeyedBucketRegistry<K>
+{
+	/**
+	 * Returns a new registry builder.
+	 *
+	 * @param <K> the type of keys
+	 * @return a new registry builder
+	 */
+	public static <K> Builder<K> builder()
+	{
+		return new Builder<>();
+	}
+
+	/**
+	 * The maximum number of buckets that an insertion examines when looking for a bucket to evict.
+	 */
+	private static final int MAXIMUM_CANDIDATES = 16;
+	/**
+	 * The maximum number of buckets that an insertion evicts. Evicting more than one bucket allows the
+	 * registry to shrink back to {@code maximumSize} after concurrent insertions overshoot it.
+	 */
+	private static final int MAXIMUM_EVICTIONS = 2;
+	/**
+	 * The number of nanoseconds that must elapse before a bucket's last-use time is updated. Skipping updates
+	 * in between avoids writing to buckets that are shared by many threads on every lookup.
+	 */
+	private static final long LAST_USED_RESOLUTION = 1_000_000;
+	/**
+	 * The limits that each bucket's limits are copied from.
+	 */
+	private final List<Limit> templates;
+	private final TimeSource timeSource;
+	private final int maximumSize;
+	private final ConcurrentHashMap<K, Bucket> buckets = new ConcurrentHashMap<>();
+	/**
+	 * Creates a new bucket for a key. The function is cached to avoid allocating a capturing lambda on every
+	 * lookup.
+	 */
+	private final Function<K, Bucket> bucketFactory = this::createBucket;
+	/**
+	 * Ensures that only one thread evicts buckets at a time.
+	 */
+	private final AtomicBoolean evicting = new AtomicBoolean();
+	/**
+	 * The position that the next eviction resumes sampling from. Only accessed by the thread that is
+	 * evicting buckets.
+	 */
+	private Iterator<Entry<K, Bucket>> evictionCursor;
+
+	/**
+	 * Creates a new registry.
+	 *
+	 * @param templates   the limits that each bucket's limits are copied from
+	 * @param timeSource  the source of time used by the buckets
+	 * @param maximumSize the maximum number of buckets that the registry may hold
+	 */
+	private KeyedBucketRegistry(List<Limit> templates, TimeSource timeSource, int maximumSize)
+	{
+		this.templates = List.copyOf(templates);
+		this.timeSource = timeSource;
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * @param key a key
+	 * @return a new bucket for the key
+	 */
+	private Bucket createBucket(K key)
+	{
+		Bucket.Builder builder = Bucket.builder().
+			timeSource(timeSource).
+			userData(key);
+		for (Limit template : templates)
+			builder.addLimit(ignored -> template.newSibling());
+		Bucket bucket = builder.build();
+		bucket.lastUsedAt = timeSource.nanoTime();
+		return bucket;
+	}
+
+	/**
+	 * Returns the bucket associated with a key, creating it if necessary.
+	 *
+	 * @param key a key
+	 * @return the bucket associated with the key
+	 * @throws NullPointerException if {@code key} is null
+	 */
+	public Bucket get(K key)
+	{
+		long now = timeSource.nanoTime();
+		Bucket bucket = buckets.get(key);
+		if (bucket == null)
+		{
+			bucket = buckets.computeIfAbsent(key, bucketFactory);
+			if (buckets.size() > maximumSize)
+				evict(now);
+			return bucket;
+		}
+		if (now - bucket.lastUsedAt >= LAST_USED_RESOLUTION)
+			bucket.lastUsedAt = now;
+		return bucket;
+	}
+
+	/**
+	 * Consumes tokens from the bucket associated with a key, only if they are available at the time of
+	 * invocation. This is equivalent to invoking {@code get(key).tryAcquire(tokens)}.
+	 *
+	 * @param key    a key
+	 * @param tokens the number of tokens to consume
+	 * @return {@code tokens} if the tokens were consumed; otherwise, the negated number of nanoseconds until
+	 * the tokens are expected to become available (a value less than or equal to {@code -1})
+	 * @throws NullPointerException     if {@code key} is null
+	 * @throws IllegalArgumentException if {@code tokens} is negative or zero. If the request can never
+	 *                                  succeed because the bucket cannot hold the requested number of tokens.
+	 * @see Container#tryAcquire(long)
+	 */
+	@CheckReturnValue
+	public long tryAcquire(K key, long tokens)
+	{
+		return get(key).tryAcquire(tokens);
+	}
+
+	/**
+	 * Consumes tokens from the buckets associated with multiple keys, only if they are available at the time
+	 * of invocation. This is equivalent to invoking {@code results[i] = tryAcquire(keys[i], tokens[i])} for
+	 * every {@code i}, except that the current time is only read once for the entire batch, and a key that
+	 * appears multiple times only locks its bucket once.
+	 *
+	 * @param keys    the keys
+	 * @param tokens  the number of tokens to consume for each key
+	 * @param results the array to write the results to. For every {@code i}, {@code results[i]} is set to
+	 *                {@code tokens[i]} if the tokens were consumed; otherwise, the negated number of
+	 *                nanoseconds until the tokens are expected to become available (a value less than or
+	 *                equal to {@code -1}).
+	 * @throws NullPointerException     if any of the arguments or keys are null
+	 * @throws IllegalArgumentException if the arrays have different lengths. If any of the {@code tokens}
+	 *                                  are negative or zero. If a request can never succeed because the
+	 *                                  bucket cannot hold the requested number of tokens.
+	 * @see Bucket#tryAcquire(Bucket[], long[], long[])
+	 */
+	public void tryAcquire(K[] keys, long[] tokens, long[] results)
+	{
+		requireThat(keys, "keys").isNotNull();
+		Bucket[] buckets = new Bucket[keys.length];
+		for (int i = 0; i < keys.length; ++i)
+		{
+			K key = keys[i];
+			requireThat(key, "keys[" + i + "]").isNotNull();
+			buckets[i] = get(key);
+		}
+		Bucket.tryAcquire(buckets, tokens, results);
+	}
+
+	/**
+	 * Removes the bucket associated with a key.
+	 *
+	 * @param key a key
+	 * @return the bucket that was removed ({@code null} if the key was not associated with a bucket)
+	 * @throws NullPointerException if {@code key} is null
+	 */
+	public Bucket remove(K key)
+	{
+		return buckets.remove(key);
+	}
+
+	/**
+	 * Returns the limits that each bucket's limits are copied from. Updating the configuration of a template
+	 * updates the corresponding limit of every bucket, including buckets that are created later on.
+	 *
+	 * @return an unmodifiable list
+	 */
+	public List<Limit> getLimits()
+	{
+		return templates;
+	}
+
+	/**
+	 * Returns the number of buckets in the registry.
+	 *
+	 * @return the number of buckets in the registry
+	 */
+	public int size()
+	{
+		return buckets.size();
+	}
+
+	/**
+	 * Returns the maximum number of buckets that the registry may hold.
+	 *
+	 * @return the maximum number of buckets that the registry may hold
+	 */
+	public int getMaximumSize()
+	{
+		return maximumSize;
+	}
+
+	/**
+	 * Evicts all idle buckets, whose limits have refilled to their {@code maximumTokens}. Evicting these
+	 * buckets loses no state.
+	 * <p>
+	 * Idle buckets are evicted automatically once the registry is full. This method may be invoked
+	 * periodically to release memory sooner.
+	 *
+	 * @return the number of buckets that were evicted
+	 */
+	public int evictIdleBuckets()
+	{
+		long now = timeSource.nanoTime();
+		int evicted = 0;
+		for (Iterator<Entry<K, Bucket>> i = buckets.entrySet().iterator(); i.hasNext(); )
+		{
+			Entry<K, Bucket> entry = i.next();
+			if (entry.getValue().isIdle(now) && buckets.remove(entry.getKey(), entry.getValue()))
+				++evicted;
+		}
+		return evicted;
+	}
+
+	/**
+	 * Evicts up to {@code MAXIMUM_EVICTIONS} buckets while the registry exceeds its maximum size.
+	 *
+	 * @param now the current time, in nanoseconds
+	 */
+	private void evict(long now)
+	{
+		// Threads that lose the race may insert buckets beyond maximumSize. Subsequent insertions evict them.
+		if (!evicting.compareAndSet(false, true))
+			return;
+		try
+		{
+			for (int i = 0; i < MAXIMUM_EVICTIONS && buckets.size() > maximumSize; ++i)
+				evictOne(now);
+		}
+		finally
+		{
+			evicting.set(false);
+		}
+	}
+
+	/**
+	 * Evicts the first idle bucket in the next {@code MAXIMUM_CANDIDATES} buckets, or the least recently used
+	 * one if none of them are idle.
+	 *
+	 * @param now the current time, in nanoseconds
+	 */
+	private void evictOne(long now)
+	{
+		Entry<K, Bucket> victim = null;
+		int candidates = Math.min(MAXIMUM_CANDIDATES, buckets.size());
+		for (int i = 0; i < candidates; ++i)
+		{
+			if (evictionCursor == null || !evictionCursor.hasNext())
+			{
+				evictionCursor = buckets.entrySet().iterator();
+				if (!evictionCursor.hasNext())
+					break;
+			}
+			Entry<K, Bucket> candidate = evictionCursor.next();
+			Bucket bucket = candidate.getValue();
+			if (bucket.isIdle(now))
+			{
+				victim = candidate;
+				break;
+			}
+			if (victim == null || bucket.lastUsedAt - victim.getValue().lastUsedAt < 0)
+				victim = candidate;
+		}
+		if (victim != null)
+			buckets.remove(victim.getKey(), victim.getValue());
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(KeyedBucketRegistry.class).
+			add("size", buckets.size()).
+			add("maximumSize", maximumSize).
+			add("timeSource", timeSource).
+			toString();
+	}
+
+	/**
+	 * Builds a KeyedBucketRegistry.
+	 *
+	 * @param <K> the type of keys
+	 */
+	public static final class Builder<K>
+	{
+		private final List<Function<Limit.Builder, Limit>> limitBuilders = new ArrayList<>();
+		private TimeSource timeSource = TimeSource.system();
+		private int maximumSize = 1_000_000;
+
+		/**
+		 * Prevent construction.
+		 */
+		private Builder()
+		{
+		}
+
+		/**
+		 * Adds a limit that each bucket must respect. The function is invoked once, and the buckets share the
+		 * resulting limit's specification.
+		 *
+		 * @param limitBuilder builds the Limit
+		 * @return this
+		 * @throws NullPointerException if any of the arguments are null
+		 */
+		public Builder<K> addLimit(Function<Limit.Builder, Limit> limitBuilder)
+		{
+			requireThat(limitBuilder, "limitBuilder").isNotNull();
+			limitBuilders.add(limitBuilder);
+			return this;
+		}
+
+		/**
+		 * Returns the source of time used by the buckets. The default is {@link TimeSource#system()}.
+		 *
+		 * @return the source of time used by the buckets
+		 */
+		@CheckReturnValue
+		public TimeSource timeSource()
+		{
+			return timeSource;
+		}
+
+		/**
+		 * Sets the source of time used by the buckets.
+		 *
+		 * @param timeSource the source of time used by the buckets
+		 * @return this
+		 * @throws NullPointerException if {@code timeSource} is null
+		 */
+		@CheckReturnValue
+		public Builder<K> timeSource(TimeSource timeSource)
+		{
+			requireThat(timeSource, "timeSource").isNotNull();
+			this.timeSource = timeSource;
+			return this;
+		}
+
+		/**
+		 * Returns the maximum number of buckets that the registry may hold. The default is {@code 1,000,000}.
+		 *
+		 * @return the maximum number of buckets that the registry may hold
+		 */
+		@CheckReturnValue
+		public int maximumSize()
+		{
+			return maximumSize;
+		}
+
+		/**
+		 * Sets the maximum number of buckets that the registry may hold.
+		 *
+		 * @param maximumSize the maximum number of buckets that the registry may hold
+		 * @return this
+		 * @throws IllegalArgumentException if {@code maximumSize} is negative or zero
+		 */
+		@CheckReturnValue
+		public Builder<K> maximumSize(int maximumSize)
+		{
+			requireThat(maximumSize, "maximumSize").isPositive();
+			this.maximumSize = maximumSize;
+			return this;
+		}
+
+		/**
+		 * Builds a new KeyedBucketRegistry.
+		 *
+		 * @return a new KeyedBucketRegistry
+		 * @throws IllegalArgumentException if no limits were added
+		 */
+		public KeyedBucketRegistry<K> build()
+		{
+			requireThat(limitBuilders, "limitBuilders").isNotEmpty();
+			List<Limit> templates = new ArrayList<>(limitBuilders.size());
+			for (Function<Limit.Builder, Limit> limitBuilder : limitBuilders)
+				templates.add(limitBuilder.apply(new Limit.Builder()));
+			return new KeyedBucketRegistry<>(templates, timeSource, maximumSize);
+		}
+
+		@Override
+		public String toString()
+		{
+			return new ToStringBuilder(Builder.class).
+				add("limitBuilders", limitBuilders).
+				add("timeSource", timeSource).
+				add("maximumSize", maximumSize).
+				toString();
+		}
+	}
+}
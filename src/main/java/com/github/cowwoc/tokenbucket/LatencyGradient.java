@@ -0,0 +1,131 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.internal.CloseableLock;
+import com.github.cowwoc.tokenbucket.internal.ReentrantStampedLock;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+import static com.github.cowwoc.tokenbucket.Limit.saturatedAdd;
+
+/**
+ * Tracks the latencies that are reported to a limit that has a {@link GradientPolicy}.
+ * <p>
+ * The long window is a ring of the lowest latency of each of its short windows. Short windows that receive
+ * no latencies are skipped, so an idle service does not forget its baseline.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+final class LatencyGradient
+{
+	private final GradientPolicy policy;
+	private final long nanosPerShortWindow;
+	private final ReentrantStampedLock lock = new ReentrantStampedLock();
+	/**
+	 * The lowest latency of each short window, indexed by {@code shortWindow % latencyPerShortWindow.length}.
+	 * {@code Long.MAX_VALUE} denotes a short window that has not ended yet.
+	 */
+	private final long[] latencyPerShortWindow;
+	/**
+	 * The number of short windows that ended.
+	 */
+	private long shortWindowsEnded;
+	/**
+	 * The time at which the current short window ends, in nanoseconds.
+	 */
+	private long endOfShortWindow = Long.MIN_VALUE;
+	/**
+	 * The lowest latency of the current short window, in nanoseconds.
+	 */
+	private long shortWindowLatency = Long.MAX_VALUE;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param policy the policy that adjusts {@code maximumTokens}
+	 */
+	LatencyGradient(GradientPolicy policy)
+	{
+		this.policy = policy;
+		this.nanosPerShortWindow = policy.getShortWindow().toNanos();
+		this.latencyPerShortWindow = new long[policy.getShortWindowsPerLongWindow()];
+		Arrays.fill(latencyPerShortWindow, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Records the latency of an operation, adjusting {@code maximumTokens} if the current short window ended.
+	 *
+	 * @param sharedSpec the specification of the limit
+	 * @param latency    the latency of the operation, in nanoseconds
+	 * @param now        the current time, in nanoseconds
+	 */
+	void onLatency(Limit.SharedSpec sharedSpec, long latency, long now)
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			if (now >= endOfShortWindow)
+			{
+				if (shortWindowLatency != Long.MAX_VALUE)
+					endShortWindow(sharedSpec);
+				endOfShortWindow = saturatedAdd(now, nanosPerShortWindow);
+			}
+			shortWindowLatency = Math.min(shortWindowLatency, latency);
+		}
+	}
+
+	/**
+	 * Ends the current short window and adjusts {@code maximumTokens}. The caller must hold {@code lock}.
+	 *
+	 * @param sharedSpec the specification of the limit
+	 */
+	private void endShortWindow(Limit.SharedSpec sharedSpec)
+	{
+		latencyPerShortWindow[(int) (shortWindowsEnded % latencyPerShortWindow.length)] = shortWindowLatency;
+		++shortWindowsEnded;
+		long longWindowLatency = Long.MAX_VALUE;
+		for (long latency : latencyPerShortWindow)
+			longWindowLatency = Math.min(longWindowLatency, latency);
+		// Avoid dividing by zero
+		long shortWindowLatency = Math.max(1, this.shortWindowLatency);
+		this.shortWindowLatency = Long.MAX_VALUE;
+
+		while (true)
+		{
+			LimitSpec spec = sharedSpec.value;
+			long maximumTokens = policy.adjust(spec.maximumTokens, longWindowLatency, shortWindowLatency);
+			if (maximumTokens == spec.maximumTokens ||
+				sharedSpec.compareAndSet(spec, spec.withMaximumTokens(maximumTokens)))
+			{
+				return;
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			long longWindowLatency = Long.MAX_VALUE;
+			for (long latency : latencyPerShortWindow)
+				longWindowLatency = Math.min(longWindowLatency, latency);
+			return new ToStringBuilder(LatencyGradient.class).
+				add("shortWindowLatency", toDuration(shortWindowLatency)).
+				add("longWindowLatency", toDuration(longWindowLatency)).
+				add("policy", policy).
+				toString();
+		}
+	}
+
+	/**
+	 * @param latency a latency, in nanoseconds
+	 * @return {@code null} if no latency was recorded
+	 */
+	private static Duration toDuration(long latency)
+	{
+		if (latency == Long.MAX_VALUE)
+			return null;
+		return Duration.ofNanos(latency);
+	}
+}
@@ -1,6 +1,5 @@
 package com.github.cowwoc.tokenbucket;
 
-import com.github.cowwoc.requirements.Requirements;
 import com.github.cowwoc.tokenbucket.annotation.CheckReturnValue;
 import com.github.cowwoc.tokenbucket.internal.CloseableLock;
 import com.github.cowwoc.tokenbucket.internal.ReentrantStampedLock;
@@ -8,9 +7,12 @@ import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Objects;
+import java.util.function.Function;
 
 import static com.github.cowwoc.requirements.DefaultRequirements.assertThat;
 import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
@@ -22,64 +24,80 @@ import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
  */
 public final class Limit
 {
-	Bucket bucket;
+	/**
+	 * The longest period that may be represented in nanoseconds (roughly 292 years).
+	 */
+	private static final Duration MAXIMUM_PERIOD = Duration.ofNanos(Long.MAX_VALUE);
+	/**
+	 * The most negative duration that may be represented in nanoseconds.
+	 */
+	private static final Duration MINIMUM_DURATION = Duration.ofNanos(Long.MIN_VALUE);
+	/**
+	 * The maximum number of stripes that a limit may be split across. Cells beyond a small multiple of the
+	 * number of processors no longer reduce contention, but slow down every operation that reads all of them.
+	 */
+	private static final int MAXIMUM_STRIPES = 4 * Runtime.getRuntime().availableProcessors();
+	/**
+	 * Limits are created in large numbers (e.g. by {@link KeyedBucketRegistry}), so they share a single
+	 * logger.
+	 */
+	private static final Logger log = LoggerFactory.getLogger(Limit.class);
 
-	long tokensPerPeriod;
-	Duration period;
-	private final long initialTokens;
-	long maximumTokens;
-	long refillSize;
+	Bucket bucket;
 	private Object userData;
-	Instant startOfCurrentPeriod;
-	Instant nextRefillAt;
-	long tokensAddedInCurrentPeriod;
-	long availableTokens;
-	long refillsElapsed;
-	Duration timePerToken;
-	Duration timePerRefill;
-	long refillsPerPeriod;
+	/**
+	 * The specification of this limit, which may be shared with other limits.
+	 */
+	private final SharedSpec sharedSpec;
+	/**
+	 * The available tokens and refill progress of the limit, which depend on its {@link LimitAlgorithm}.
+	 */
+	private final LimitState state;
 	/**
 	 * A lock over this object's state. See the {@link com.github.cowwoc.tokenbucket.internal locking policy}
 	 * for more details.
+	 * <p>
+	 * The limit's {@code state} is updated using compare-and-set, so consumers that only touch a single limit
+	 * do not need to acquire this lock.
 	 */
 	final ReentrantStampedLock lock = new ReentrantStampedLock();
-	private final Logger log = LoggerFactory.getLogger(Limit.class);
 
 	/**
 	 * Creates a new limit.
 	 *
-	 * @param tokensPerPeriod the number of tokens to add to the bucket every {@code period}
-	 * @param period          indicates how often {@code tokensPerPeriod} should be added to the bucket
-	 * @param initialTokens   the initial number of tokens in the bucket
-	 * @param maximumTokens   the maximum number of tokens that the bucket may hold before overflowing
-	 *                        (subsequent tokens are discarded)
-	 * @param refillSize      the number of tokens that are refilled at a time
-	 * @param userData        the data associated with this limit
-	 * @throws NullPointerException     if {@code period} is null
-	 * @throws IllegalArgumentException if {@code initialTokens > maximumTokens} or
-	 *                                  {@code tokensPerPeriod > maximumTokens}
-	 */
-	private Limit(long tokensPerPeriod, Duration period, long initialTokens, long maximumTokens,
-	              long refillSize, Object userData)
-	{
-		// Assume that all other preconditions are enforced by Builder
-		requireThat(maximumTokens, "maximumTokens").
-			isGreaterThanOrEqualTo(tokensPerPeriod, "tokensPerPeriod").
-			isGreaterThanOrEqualTo(initialTokens, "initialTokens");
-		this.tokensPerPeriod = tokensPerPeriod;
-		this.period = period;
-		this.initialTokens = initialTokens;
-		this.maximumTokens = maximumTokens;
-		this.refillSize = refillSize;
+	 * @param sharedSpec the specification of the limit
+	 * @param userData   the data associated with this limit
+	 */
+	private Limit(SharedSpec sharedSpec, Object userData)
+	{
+		this.sharedSpec = sharedSpec;
 		this.userData = userData;
-		this.availableTokens = initialTokens;
-		this.timePerToken = period.dividedBy(tokensPerPeriod);
-		this.timePerRefill = timePerToken.multipliedBy(refillSize);
-		this.startOfCurrentPeriod = Instant.now();
-		this.tokensAddedInCurrentPeriod = 0;
-		this.refillsElapsed = 0;
-		this.refillsPerPeriod = (long) Math.ceil((double) tokensPerPeriod / refillSize);
-		this.nextRefillAt = getRefillEndTime(1);
+		this.state = LimitState.of(sharedSpec);
+	}
+
+	/**
+	 * Returns a new limit that shares this limit's specification and user data. The new limit starts with
+	 * {@code initialTokens} tokens.
+	 *
+	 * @return a new limit
+	 */
+	Limit newSibling()
+	{
+		return new Limit(sharedSpec, getUserData());
+	}
+
+	/**
+	 * Adds this limit to a bucket, starting its first period.
+	 *
+	 * @param bucket the bucket containing this limit
+	 */
+	void start(Bucket bucket)
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			this.bucket = bucket;
+			state.start(bucket.getTimeSource());
+		}
 	}
 
 	/**
@@ -99,7 +117,7 @@ public final class Limit
 	 */
 	public long getTokensPerPeriod()
 	{
-		return lock.optimisticReadLock(() -> tokensPerPeriod);
+		return sharedSpec.value.tokensPerPeriod;
 	}
 
 	/**
@@ -109,7 +127,7 @@ public final class Limit
 	 */
 	public Duration getPeriod()
 	{
-		return lock.optimisticReadLock(() -> period);
+		return sharedSpec.value.period;
 	}
 
 	/**
@@ -119,7 +137,7 @@ public final class Limit
 	 */
 	public long getInitialTokens()
 	{
-		return lock.optimisticReadLock(() -> initialTokens);
+		return sharedSpec.value.initialTokens;
 	}
 
 	/**
@@ -131,7 +149,7 @@ public final class Limit
 	 */
 	public long getMaximumTokens()
 	{
-		return lock.optimisticReadLock(() -> maximumTokens);
+		return sharedSpec.value.maximumTokens;
 	}
 
 	/**
@@ -147,7 +165,40 @@ public final class Limit
 	 */
 	public long getRefillSize()
 	{
-		return lock.optimisticReadLock(() -> refillSize);
+		return sharedSpec.value.refillSize;
+	}
+
+	/**
+	 * Returns the number of cells that the limit's tokens are split across.
+	 *
+	 * @return the number of cells that the limit's tokens are split across
+	 * @see Builder#stripes(int)
+	 */
+	public int getStripes()
+	{
+		return sharedSpec.value.stripes;
+	}
+
+	/**
+	 * Returns the algorithm used to track available tokens.
+	 *
+	 * @return the algorithm used to track available tokens
+	 * @see Builder#algorithm(LimitAlgorithm)
+	 */
+	public LimitAlgorithm getAlgorithm()
+	{
+		return sharedSpec.value.algorithm;
+	}
+
+	/**
+	 * Returns the specification of this limit. Limits that are created by a {@link KeyedBucketRegistry}
+	 * share their specification with the corresponding limit of every other bucket in the registry.
+	 *
+	 * @return the specification of this limit
+	 */
+	public LimitSpec getSpec()
+	{
+		return sharedSpec.value;
 	}
 
 	/**
@@ -161,138 +212,125 @@ public final class Limit
 	}
 
 	/**
-	 * @param consumedAt the time that the tokens are being consumed
-	 * @return if {@code consumedAt} is after the next refill time
+	 * Returns the number of available tokens.
+	 *
+	 * @return the number of available tokens
 	 */
-	boolean readyForRefill(Instant consumedAt)
+	long getAvailableTokens()
 	{
-		return consumedAt.compareTo(nextRefillAt) >= 0;
+		return state.getAvailableTokens();
 	}
 
 	/**
-	 * Refills the limit.
+	 * Returns the number of available tokens at a time that is no earlier than the last refill.
 	 *
-	 * @param consumedAt the time that the tokens are being consumed
-	 * @throws NullPointerException if {@code consumedAt} is null
-	 * @implNote This method acquires its own locks
+	 * @param now the current time, in nanoseconds
+	 * @return the number of available tokens
 	 */
-	void refill(Instant consumedAt)
+	long getAvailableTokens(long now)
 	{
-		if (!lock.optimisticReadLock(() -> readyForRefill(consumedAt)))
-			return;
-		try (CloseableLock ignored = lock.writeLock())
-		{
-			Requirements requirements = new Requirements();
-			requirements.assertThat(r ->
-			{
-				r.withContext("nextRefillAt", nextRefillAt).
-					withContext("startOfCurrentPeriod", startOfCurrentPeriod).
-					withContext("consumedAt", consumedAt);
-			});
-			Duration timeElapsedSinceStartOfPeriod = Duration.between(startOfCurrentPeriod, consumedAt);
-			requirements.assertThat(r ->
-			{
-				r.requireThat(timeElapsedSinceStartOfPeriod, "timeElapsedSinceStartOfPeriod").
-					isGreaterThanOrEqualTo(Duration.ZERO);
-				r.requireThat(tokensAddedInCurrentPeriod, "tokensAddedInCurrentPeriod").
-					isLessThanOrEqualTo(tokensPerPeriod, "tokensPerPeriod");
-			});
-			long tokensToAdd = 0;
-			long numberOfPeriodsElapsed = timeElapsedSinceStartOfPeriod.dividedBy(period);
-			if (numberOfPeriodsElapsed > 0)
-			{
-				requirements.assertThat(r ->
-				{
-					r.withContext("numberOfPeriodsElapsed", numberOfPeriodsElapsed).
-						withContext("tokensPerPeriod", tokensPerPeriod).
-						withContext("tokensAddedInCurrentPeriod", tokensAddedInCurrentPeriod);
-				});
-				tokensToAdd += numberOfPeriodsElapsed * tokensPerPeriod - tokensAddedInCurrentPeriod;
-				long finalTokensToAdd = tokensToAdd;
-				requirements.assertThat(r ->
-				{
-					r.requireThat(finalTokensToAdd, "tokensToAdd").isNotNegative();
-					r.withContext("tokensToAdd", finalTokensToAdd);
-				});
-				tokensAddedInCurrentPeriod = 0;
-				startOfCurrentPeriod = startOfCurrentPeriod.plus(period.multipliedBy(numberOfPeriodsElapsed));
-			}
-			Duration timeElapsedInPeriod = timeElapsedSinceStartOfPeriod.
-				minus(period.multipliedBy(numberOfPeriodsElapsed));
-			refillsElapsed = timeElapsedInPeriod.dividedBy(timePerRefill);
-			requirements.assertThat(r -> r.requireThat(timeElapsedInPeriod, "timeElapsedInPeriod").
-				isBetweenClosed(timePerRefill.multipliedBy(refillsElapsed),
-					timePerRefill.multipliedBy(refillsElapsed + 1)));
-			if (!timeElapsedInPeriod.isZero())
-			{
-				// If the refillSize was updated mid-period, it is possible for tokensAddedInCurrentPeriod to be
-				// greater than the new refillSize * refillsElapsed. We guard against this using Math.max(0) and
-				// treat all future refills as if the new refillSize applied from the beginning of the period.
-				long tokensToAddInPeriod = Math.max(0, refillSize * refillsElapsed - tokensAddedInCurrentPeriod);
-				requirements.assertThat(r ->
-				{
-					r.withContext("timePerToken", timePerToken).
-						withContext("period", period).
-						withContext("tokensPerPeriod", tokensPerPeriod).
-						withContext("timePerRefill", timePerRefill).
-						withContext("refillSize", refillSize).
-						withContext("refillsElapsed", refillsElapsed).
-						withContext("timeElapsedInPeriod", timeElapsedInPeriod).
-						withContext("tokensAddedInCurrentPeriod", tokensAddedInCurrentPeriod);
-					r.requireThat(tokensToAddInPeriod, "tokensToAddInPeriod").isNotNegative();
-					r.withContext("tokensToAddInPeriod", tokensToAddInPeriod);
-				});
-				tokensToAdd += tokensToAddInPeriod;
-				tokensAddedInCurrentPeriod += tokensToAddInPeriod;
-			}
-			long finalTokensToAdd = tokensToAdd;
-			requirements.assertThat(r -> r.requireThat(finalTokensToAdd, "tokensToAdd").isNotNegative());
+		return state.getAvailableTokens(now);
+	}
 
-			nextRefillAt = getRefillEndTime(refillsElapsed + 1);
-			availableTokens = saturatedAdd(availableTokens, tokensToAdd);
-			overflowBucket();
-		}
+	/**
+	 * Returns an estimate of the number of available tokens at a time that is no earlier than the last
+	 * refill. Striped limits extrapolate from the current thread's cell instead of reading every cell.
+	 *
+	 * @param now the current time, in nanoseconds
+	 * @return an estimate of the number of available tokens
+	 * @implNote This method does not acquire any locks
+	 */
+	long estimateAvailableTokens(long now)
+	{
+		return state.estimateAvailableTokens(now);
 	}
 
 	/**
-	 * @param refills a number of refills relative to the beginning of the current period
-	 * @return the time at which the last refill will complete
+	 * Returns the time at which the current period started.
+	 *
+	 * @return the time at which the current period started
 	 */
-	Instant getRefillEndTime(long refills)
+	Instant getStartOfCurrentPeriod()
 	{
-		Instant result = this.startOfCurrentPeriod;
-		long numberOfPeriodsElapsed = refills / refillsPerPeriod;
-		if (numberOfPeriodsElapsed > 0)
-		{
-			refills -= numberOfPeriodsElapsed * refillsPerPeriod;
-			result = result.plus(period.multipliedBy(numberOfPeriodsElapsed));
-		}
+		return state.getTimeSource().toInstant(state.getStartOfCurrentPeriod());
+	}
 
-		Duration timeElapsedInPeriod = timePerRefill.multipliedBy(refills);
-		return result.plus(timeElapsedInPeriod);
+	/**
+	 * This method is only meant to be used by tests. It is equivalent to invoking {@link #refill(long)} with
+	 * the nanosecond equivalent of {@code consumedAt}.
+	 *
+	 * @param consumedAt the time that the tokens are being consumed
+	 * @throws NullPointerException if {@code consumedAt} is null
+	 */
+	void refill(Instant consumedAt)
+	{
+		refill(state.getTimeSource().toNanoTime(consumedAt));
 	}
 
 	/**
-	 * Overflows the bucket, if necessary.
+	 * Refills the limit.
+	 *
+	 * @param consumedAt the time that the tokens are being consumed, in nanoseconds
+	 * @implNote This method does not acquire any locks
 	 */
-	private void overflowBucket()
+	void refill(long consumedAt)
 	{
-		availableTokens = Math.min(maximumTokens, availableTokens);
+		state.refill(consumedAt);
 	}
 
 	/**
 	 * Consumes tokens.
 	 *
-	 * @param tokens the number of tokens
+	 * @param tokens     the number of tokens
+	 * @param consumedAt the time that the tokens are being consumed, in nanoseconds
 	 * @return the number of tokens left after consumption
 	 * @throws IllegalArgumentException if {@code tokens > availableTokens}
 	 */
-	long consume(long tokens)
+	long consume(long tokens, long consumedAt)
 	{
 		assertThat(r -> r.requireThat(tokens, "tokens").
-			isLessThanOrEqualTo(availableTokens, "availableTokens"));
-		availableTokens -= tokens;
-		return availableTokens;
+			isLessThanOrEqualTo(state.getAvailableTokens(consumedAt), "availableTokens"));
+		return state.consume(tokens, consumedAt);
+	}
+
+	/**
+	 * Consumes tokens on behalf of a {@link Reservation}, even if it causes the number of available tokens to
+	 * become negative.
+	 *
+	 * @param tokens      the number of tokens
+	 * @param requestedAt the time at which the tokens were requested, in nanoseconds
+	 * @return the number of tokens left after consumption, which is negative if the limit went into debt
+	 */
+	long reserve(long tokens, long requestedAt)
+	{
+		return state.consume(tokens, requestedAt);
+	}
+
+	/**
+	 * Returns tokens that were consumed by a {@link Reservation}, discarding any tokens that overflow the
+	 * bucket.
+	 *
+	 * @param tokens the number of tokens
+	 */
+	void refund(long tokens)
+	{
+		state.refund(tokens);
+	}
+
+	/**
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens, only if they are available at the time of
+	 * invocation.
+	 *
+	 * @param minimumTokens the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens the maximum number of tokens to consume (inclusive)
+	 * @param consumedAt    the time that the tokens are being consumed, in nanoseconds
+	 * @return the number of tokens that were consumed, or {@code 0} if less than {@code minimumTokens} were
+	 * available
+	 * @implNote This method does not acquire any locks
+	 */
+	long tryConsume(long minimumTokens, long maximumTokens, long consumedAt)
+	{
+		return state.tryConsume(minimumTokens, maximumTokens, consumedAt);
 	}
 
 	/**
@@ -303,7 +341,7 @@ public final class Limit
 	 * @param second the second number
 	 * @return the sum
 	 */
-	private static long saturatedAdd(long first, long second)
+	static long saturatedAdd(long first, long second)
 	{
 		long result = first + second;
 		if (second >= 0)
@@ -317,17 +355,220 @@ public final class Limit
 		return Long.MIN_VALUE;
 	}
 
+	/**
+	 * Converts a duration to nanoseconds, returning {@code Long.MAX_VALUE} or {@code Long.MIN_VALUE} if the
+	 * duration is too long to be represented.
+	 *
+	 * @param duration a duration
+	 * @return the number of nanoseconds in the duration
+	 */
+	static long saturatedToNanos(Duration duration)
+	{
+		if (duration.compareTo(MAXIMUM_PERIOD) >= 0)
+			return Long.MAX_VALUE;
+		if (duration.compareTo(MINIMUM_DURATION) <= 0)
+			return Long.MIN_VALUE;
+		return duration.toNanos();
+	}
+
+	/**
+	 * Multiplies two non-negative numbers, returning {@code Long.MAX_VALUE} if the product would overflow.
+	 *
+	 * @param first  the first number
+	 * @param second the second number
+	 * @return the product
+	 */
+	static long saturatedMultiply(long first, long second)
+	{
+		// Plain assertions avoid allocating a capturing lambda on the consumption hot path
+		assert (first >= 0 && second >= 0) : "first: " + first + ", second: " + second;
+		if (Math.multiplyHigh(first, second) != 0)
+			return Long.MAX_VALUE;
+		long result = first * second;
+		if (result < 0)
+			return Long.MAX_VALUE;
+		return result;
+	}
+
+	/**
+	 * Ensures that a limit's algorithm supports its specification.
+	 *
+	 * @param spec the specification of the limit
+	 * @throws IllegalArgumentException if {@code spec} does not meet the requirements of its
+	 *                                  {@link LimitAlgorithm algorithm}
+	 */
+	private static void requireAlgorithmSupports(LimitSpec spec)
+	{
+		switch (spec.algorithm)
+		{
+			case TOKEN_BUCKET, CONCURRENCY ->
+			{
+			}
+			case GCRA ->
+			{
+				requireThat(spec.stripes, "stripes").isEqualTo(1);
+				requireThat(spec.nanosPerToken, "period / tokensPerPeriod").isPositive();
+				requireThat(GcraState.getTimeOfToken(spec, spec.maximumTokens),
+					"maximumTokens * period / tokensPerPeriod").isLessThan(Long.MAX_VALUE);
+			}
+			case SLIDING_WINDOW ->
+			{
+				requireThat(spec.stripes, "stripes").isEqualTo(1);
+				requireThat(spec.maximumTokens, "maximumTokens").isEqualTo(spec.tokensPerPeriod, "tokensPerPeriod");
+			}
+		}
+	}
+
+	/**
+	 * Ensures that a limit's {@link AimdPolicy} supports its specification.
+	 *
+	 * @param spec the specification of the limit
+	 * @throws IllegalArgumentException if {@code spec} has an {@code AimdPolicy} and its algorithm does not
+	 *                                  support changing {@code tokensPerPeriod}, {@code tokensPerPeriod} lies
+	 *                                  outside the policy's bounds, or the algorithm does not support one of
+	 *                                  the bounds
+	 */
+	private static void requireAdaptiveSupports(LimitSpec spec)
+	{
+		AimdPolicy aimdPolicy = spec.aimdPolicy;
+		if (aimdPolicy == null)
+			return;
+		if (spec.algorithm != LimitAlgorithm.TOKEN_BUCKET && spec.algorithm != LimitAlgorithm.GCRA)
+		{
+			throw new IllegalArgumentException("Adaptive limits must use the TOKEN_BUCKET or GCRA algorithm.\n" +
+				"algorithm: " + spec.algorithm);
+		}
+		long minimumTokensPerPeriod = aimdPolicy.getMinimumTokensPerPeriod();
+		long maximumTokensPerPeriod = Math.min(aimdPolicy.getMaximumTokensPerPeriod(), spec.maximumTokens);
+		requireThat(spec.tokensPerPeriod, "tokensPerPeriod").
+			isGreaterThanOrEqualTo(minimumTokensPerPeriod, "aimdPolicy.getMinimumTokensPerPeriod()").
+			isLessThanOrEqualTo(aimdPolicy.getMaximumTokensPerPeriod(), "aimdPolicy.getMaximumTokensPerPeriod()");
+		requireAlgorithmSupports(spec.withTokensPerPeriod(minimumTokensPerPeriod));
+		requireAlgorithmSupports(spec.withTokensPerPeriod(maximumTokensPerPeriod));
+	}
+
+	/**
+	 * Ensures that a limit's {@link GradientPolicy} supports its specification.
+	 *
+	 * @param spec the specification of the limit
+	 * @throws IllegalArgumentException if {@code spec} has a {@code GradientPolicy} and its algorithm is not
+	 *                                  {@link LimitAlgorithm#CONCURRENCY CONCURRENCY}, or
+	 *                                  {@code maximumTokens} lies outside the policy's bounds
+	 */
+	private static void requireGradientSupports(LimitSpec spec)
+	{
+		GradientPolicy gradientPolicy = spec.gradientPolicy;
+		if (gradientPolicy == null)
+			return;
+		if (spec.algorithm != LimitAlgorithm.CONCURRENCY)
+		{
+			throw new IllegalArgumentException("Gradient limits must use the CONCURRENCY algorithm.\n" +
+				"algorithm: " + spec.algorithm);
+		}
+		requireThat(spec.maximumTokens, "maximumTokens").
+			isGreaterThanOrEqualTo(gradientPolicy.getMinimumTokens(), "gradientPolicy.getMinimumTokens()").
+			isLessThanOrEqualTo(gradientPolicy.getMaximumTokens(), "gradientPolicy.getMaximumTokens()");
+	}
+
+	/**
+	 * Records the latency of an operation that consumed tokens from this limit.
+	 *
+	 * @param latency the latency of the operation, in nanoseconds
+	 * @implNote This method does not acquire the limit's lock
+	 * @see GradientPolicy
+	 */
+	void onLatency(long latency)
+	{
+		LatencyGradient latencyGradient = sharedSpec.latencyGradient;
+		if (latencyGradient != null)
+			latencyGradient.onLatency(sharedSpec, latency, state.getTimeSource().nanoTime());
+	}
+
+	/**
+	 * Reports that an operation that consumed tokens from this limit succeeded.
+	 * <p>
+	 * If the limit has an {@link AimdPolicy}, {@code tokensPerPeriod} is increased by the policy's
+	 * {@code increment} once every {@code tokensPerPeriod} successes. Otherwise, this method has no effect.
+	 * <p>
+	 * If this limit shares its {@link #getSpec() specification} with other limits, the change applies to all
+	 * of them.
+	 *
+	 * @return true if {@code tokensPerPeriod} was increased
+	 * @implNote This method does not acquire any locks
+	 * @see Builder#adaptive(Function)
+	 */
+	public boolean onSuccess()
+	{
+		LimitSpec spec = sharedSpec.value;
+		AimdPolicy aimdPolicy = spec.aimdPolicy;
+		if (aimdPolicy == null || !sharedSpec.countSuccess(spec.tokensPerPeriod))
+			return false;
+		long tokensPerPeriod = Math.min(aimdPolicy.increase(spec.tokensPerPeriod), spec.maximumTokens);
+		return tokensPerPeriod != spec.tokensPerPeriod &&
+			sharedSpec.compareAndSet(spec, spec.withTokensPerPeriod(tokensPerPeriod));
+	}
+
+	/**
+	 * Reports that the service that this limit protects is overloaded, for example because it responded with
+	 * HTTP 429 (Too Many Requests).
+	 * <p>
+	 * If the limit has an {@link AimdPolicy}, {@code tokensPerPeriod} is multiplied by the policy's
+	 * {@code decreaseFactor}. Overloads that are reported within one {@code period} of the last decrease are
+	 * ignored. If the limit does not have an {@code AimdPolicy}, this method has no effect.
+	 * <p>
+	 * If this limit shares its {@link #getSpec() specification} with other limits, the change applies to all
+	 * of them.
+	 *
+	 * @return true if {@code tokensPerPeriod} was decreased
+	 * @implNote This method does not acquire any locks
+	 * @see Builder#adaptive(Function)
+	 */
+	public boolean onOverload()
+	{
+		LimitSpec spec = sharedSpec.value;
+		if (spec.aimdPolicy == null)
+			return false;
+		long now = state.getTimeSource().nanoTime();
+		if (!sharedSpec.tryStartDecrease(now, spec.nanosPerPeriod))
+			return false;
+		while (true)
+		{
+			AimdPolicy aimdPolicy = spec.aimdPolicy;
+			if (aimdPolicy == null)
+				return false;
+			long tokensPerPeriod = aimdPolicy.decrease(spec.tokensPerPeriod);
+			if (tokensPerPeriod == spec.tokensPerPeriod)
+				return false;
+			if (sharedSpec.compareAndSet(spec, spec.withTokensPerPeriod(tokensPerPeriod)))
+				return true;
+			spec = sharedSpec.value;
+		}
+	}
+
+	/**
+	 * Returns the time at which additional tokens will become available, assuming that no tokens are
+	 * consumed in the meantime.
+	 *
+	 * @param tokensNeeded the number of tokens that must be added to the limit
+	 * @param requestedAt  the time at which the tokens were requested, in nanoseconds
+	 * @return the time at which the tokens will become available, in nanoseconds
+	 */
+	long getAvailableAt(long tokensNeeded, long requestedAt)
+	{
+		return state.getAvailableAt(tokensNeeded, requestedAt);
+	}
+
 	/**
 	 * Simulates consumption with respect to a single limit.
 	 *
 	 * @param minimumTokens the minimum number of tokens that were requested
 	 * @param maximumTokens the maximum number of tokens that were requested
-	 * @param requestedAt   the time at which the tokens were requested
+	 * @param requestedAt   the time at which the tokens were requested, in nanoseconds
 	 * @return the simulated consumption
 	 * @throws IllegalArgumentException if the limit has a {@code maximumTokens} that is less than
 	 *                                  {@code minimumTokens}
 	 */
-	SimulatedConsumption simulateConsumption(long minimumTokens, long maximumTokens, Instant requestedAt)
+	SimulatedConsumption simulateConsumption(long minimumTokens, long maximumTokens, long requestedAt)
 	{
 		assertThat(r ->
 		{
@@ -335,16 +576,12 @@ public final class Limit
 			r.requireThat(maximumTokens, "maximumTokens").isPositive().
 				isGreaterThanOrEqualTo(minimumTokens, "minimumTokens");
 		});
-		Instant availableAt;
+		long availableAt;
 		long tokensConsumed;
+		long availableTokens = state.getAvailableTokens(requestedAt);
 		if (availableTokens < minimumTokens)
 		{
-			long tokensNeeded = minimumTokens - availableTokens;
-			long refillsNeeded = (long) Math.ceil((double) tokensNeeded / refillSize);
-			if (refillsNeeded == 1)
-				availableAt = nextRefillAt;
-			else
-				availableAt = getRefillEndTime(refillsElapsed + refillsNeeded);
+			availableAt = getAvailableAt(minimumTokens - availableTokens, requestedAt);
 			tokensConsumed = 0;
 		}
 		else
@@ -361,6 +598,14 @@ public final class Limit
 	 * <p>
 	 * The {@code Limit} will be locked until {@link ConfigurationUpdater#close()} is invoked, at which point a
 	 * new period will be started.
+	 * <p>
+	 * If this limit shares its {@link #getSpec() specification} with other limits, changes to
+	 * {@code tokensPerPeriod}, {@code period}, {@code refillSize} or {@code maximumTokens} apply to all of them.
+	 * Each of the other limits starts a new period the next time that it is used. Changes to
+	 * {@code availableTokens} and {@code userData} only apply to this limit.
+	 * <p>
+	 * Adaptive limits should be tuned using {@link #onSuccess()} and {@link #onOverload()} instead, which do
+	 * not lock the limit or start a new period.
 	 *
 	 * @return the configuration updater
 	 */
@@ -373,21 +618,13 @@ public final class Limit
 	@Override
 	public int hashCode()
 	{
-		return lock.optimisticReadLock(() ->
-			Objects.hash(tokensPerPeriod, period, initialTokens, maximumTokens, refillSize));
+		return sharedSpec.value.hashCode();
 	}
 
 	@Override
 	public boolean equals(Object o)
 	{
-		return lock.optimisticReadLock(() ->
-		{
-			if (!(o instanceof Limit other))
-				return false;
-			return tokensPerPeriod == other.tokensPerPeriod && initialTokens == other.initialTokens &&
-				maximumTokens == other.maximumTokens && period.equals(other.period) &&
-				refillSize == other.refillSize;
-		});
+		return o instanceof Limit other && sharedSpec.value.equals(other.sharedSpec.value);
 	}
 
 	@Override
@@ -395,52 +632,163 @@ public final class Limit
 	{
 		return lock.optimisticReadLock(() ->
 		{
+			LimitSpec spec = sharedSpec.value;
 			ToStringBuilder builder = new ToStringBuilder(Limit.class).
-				add("tokensPerPeriod", tokensPerPeriod).
-				add("period", period).
-				add("maximumTokens", maximumTokens).
-				add("refillSize", refillSize).
+				add("tokensPerPeriod", spec.tokensPerPeriod).
+				add("period", spec.period).
+				add("maximumTokens", spec.maximumTokens).
+				add("refillSize", spec.refillSize).
+				add("stripes", spec.stripes).
+				add("algorithm", spec.algorithm).
 				add("userData", userData);
 			if (log.isDebugEnabled())
+			{
 				builder.
-					add("initialTokens", initialTokens).
-					add("startOfCurrentPeriod", startOfCurrentPeriod).
-					add("nextRefillAt", nextRefillAt).
-					add("tokensAddedInCurrentPeriod", tokensAddedInCurrentPeriod).
-					add("availableTokens", availableTokens).
-					add("refillsElapsed", refillsElapsed).
-					add("timePerToken", timePerToken).
-					add("timePerRefill", timePerRefill).
-					add("refillsPerPeriod", refillsPerPeriod);
+					add("initialTokens", spec.initialTokens).
+					add("state", state);
+			}
 			return builder.toString();
 		});
 	}
 
+	/**
+	 * A specification that is shared by one or more limits. Replacing the specification re-parameterizes all
+	 * of them.
+	 * <p>
+	 * <b>Thread safety</b>: This class is thread-safe.
+	 */
+	static final class SharedSpec
+	{
+		private static final VarHandle VALUE;
+		private static final VarHandle SUCCESSES;
+		private static final VarHandle NEXT_DECREASE_AT;
+
+		static
+		{
+			try
+			{
+				MethodHandles.Lookup lookup = MethodHandles.lookup();
+				VALUE = lookup.findVarHandle(SharedSpec.class, "value", LimitSpec.class);
+				SUCCESSES = lookup.findVarHandle(SharedSpec.class, "successes", long.class);
+				NEXT_DECREASE_AT = lookup.findVarHandle(SharedSpec.class, "nextDecreaseAt", long.class);
+			}
+			catch (NoSuchFieldException | IllegalAccessException e)
+			{
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+
+		volatile LimitSpec value;
+		/**
+		 * The number of successes that were reported since {@code tokensPerPeriod} last changed.
+		 */
+		private volatile long successes;
+		/**
+		 * The earliest time at which an overload may decrease {@code tokensPerPeriod}, in nanoseconds.
+		 */
+		private volatile long nextDecreaseAt = Long.MIN_VALUE;
+		/**
+		 * The latencies that were reported to a limit with a {@link GradientPolicy} ({@code null} if the limit
+		 * does not have one).
+		 */
+		final LatencyGradient latencyGradient;
+
+		/**
+		 * @param value the initial specification
+		 */
+		SharedSpec(LimitSpec value)
+		{
+			this.value = value;
+			if (value.gradientPolicy == null)
+				this.latencyGradient = null;
+			else
+				this.latencyGradient = new LatencyGradient(value.gradientPolicy);
+		}
+
+		/**
+		 * Replaces the specification, if it has not changed.
+		 *
+		 * @param expected the expected value of the specification
+		 * @param value    the new value of the specification
+		 * @return true on success; false if the specification was not equal to {@code expected}
+		 */
+		boolean compareAndSet(LimitSpec expected, LimitSpec value)
+		{
+			return VALUE.compareAndSet(this, expected, value);
+		}
+
+		/**
+		 * Counts a success.
+		 *
+		 * @param threshold the number of successes that trigger an increase
+		 * @return true if the caller should increase {@code tokensPerPeriod}
+		 */
+		boolean countSuccess(long threshold)
+		{
+			while (true)
+			{
+				long successes = this.successes;
+				if (successes + 1 >= threshold)
+				{
+					if (SUCCESSES.compareAndSet(this, successes, 0L))
+						return true;
+				}
+				else if (SUCCESSES.compareAndSet(this, successes, successes + 1))
+					return false;
+			}
+		}
+
+		/**
+		 * Claims the right to decrease {@code tokensPerPeriod}, unless it was decreased recently.
+		 *
+		 * @param now      the current time, in nanoseconds
+		 * @param cooldown the minimum amount of time between two decreases, in nanoseconds
+		 * @return true if the caller should decrease {@code tokensPerPeriod}
+		 */
+		boolean tryStartDecrease(long now, long cooldown)
+		{
+			long nextDecreaseAt = this.nextDecreaseAt;
+			if (now < nextDecreaseAt || !NEXT_DECREASE_AT.compareAndSet(this, nextDecreaseAt,
+				saturatedAdd(now, cooldown)))
+			{
+				return false;
+			}
+			this.successes = 0;
+			return true;
+		}
+
+		@Override
+		public String toString()
+		{
+			return new ToStringBuilder(SharedSpec.class).
+				add("value", value).
+				toString();
+		}
+	}
+
 	/**
 	 * The result of a simulated token consumption.
 	 */
 	static final class SimulatedConsumption
 	{
 		private final long tokensConsumed;
-		private final Instant requestedAt;
-		private final Instant availableAt;
+		private final long requestedAt;
+		private final long availableAt;
 
 		/**
 		 * Creates the result of a simulated token consumption.
 		 *
 		 * @param tokensConsumed the number of tokens that would be consumed
-		 * @param requestedAt    the time at which the tokens were requested
-		 * @param availableAt    the time at which the tokens will become available
-		 * @throws NullPointerException     if any of the arguments are null
+		 * @param requestedAt    the time at which the tokens were requested, in nanoseconds
+		 * @param availableAt    the time at which the tokens will become available, in nanoseconds
 		 * @throws IllegalArgumentException if {@code tokensConsumed} is negative.
 		 *                                  If {@code requestedAt > availableAt}.
 		 */
-		SimulatedConsumption(long tokensConsumed, Instant requestedAt, Instant availableAt)
+		SimulatedConsumption(long tokensConsumed, long requestedAt, long availableAt)
 		{
 			assertThat(r ->
 			{
 				r.requireThat(tokensConsumed, "tokensConsumed").isNotNegative();
-				r.requireThat(requestedAt, "requestedAt").isNotNull();
 				r.requireThat(availableAt, "availableAt").isGreaterThanOrEqualTo(requestedAt, "requestedAt");
 			});
 			this.tokensConsumed = tokensConsumed;
@@ -471,9 +819,9 @@ public final class Limit
 		/**
 		 * Indicates when the requested number of tokens will become available.
 		 *
-		 * @return the time at which the tokens were requested
+		 * @return the time at which the tokens were requested, in nanoseconds
 		 */
-		public Instant getRequestedAt()
+		public long getRequestedAt()
 		{
 			return requestedAt;
 		}
@@ -481,9 +829,9 @@ public final class Limit
 		/**
 		 * Indicates when the requested number of tokens will become available.
 		 *
-		 * @return the time when the requested number of tokens will become available
+		 * @return the time when the requested number of tokens will become available, in nanoseconds
 		 */
-		public Instant getAvailableAt()
+		public long getAvailableAt()
 		{
 			return availableAt;
 		}
@@ -510,6 +858,10 @@ public final class Limit
 		private long initialTokens;
 		private long maximumTokens = Long.MAX_VALUE;
 		private long refillSize = 1;
+		private int stripes = 1;
+		private LimitAlgorithm algorithm = LimitAlgorithm.TOKEN_BUCKET;
+		private AimdPolicy aimdPolicy;
+		private GradientPolicy gradientPolicy;
 		private Object userData;
 
 		/**
@@ -562,13 +914,15 @@ public final class Limit
 		 *
 		 * @param period indicates how often {@code tokensPerPeriod} should be added to the bucket
 		 * @return this
-		 * @throws IllegalArgumentException if {@code period} is negative or zero
+		 * @throws IllegalArgumentException if {@code period} is negative, zero or longer than
+		 *                                  {@code Long.MAX_VALUE} nanoseconds
 		 * @throws NullPointerException     if {@code period} is null
 		 */
 		@CheckReturnValue
 		public Builder period(Duration period)
 		{
-			requireThat(period, "period").isGreaterThan(Duration.ZERO);
+			requireThat(period, "period").isGreaterThan(Duration.ZERO).
+				isLessThanOrEqualTo(MAXIMUM_PERIOD, "MAXIMUM_PERIOD");
 			this.period = period;
 			return this;
 		}
@@ -669,6 +1023,137 @@ public final class Limit
 			return this;
 		}
 
+		/**
+		 * Returns the number of cells that the limit's tokens are split across. The default is {@code 1}.
+		 *
+		 * @return the number of cells that the limit's tokens are split across
+		 */
+		@CheckReturnValue
+		public int stripes()
+		{
+			return stripes;
+		}
+
+		/**
+		 * Sets the number of cells that the limit's tokens are split across.
+		 * <p>
+		 * By default, all threads compete to update a single counter. When a limit is split across multiple
+		 * stripes, each thread consumes tokens from its own cell and only borrows tokens from the other cells
+		 * when its own cell runs dry. This reduces contention when many threads consume from the same limit, at
+		 * the cost of precision:
+		 * <ul>
+		 *   <li>Each cell holds up to {@code ceil(maximumTokens / stripes)} tokens, so the bucket may hold (and
+		 *   admit) up to {@code stripes - 1} tokens more than {@code maximumTokens}.</li>
+		 *   <li>Consumers that run concurrently with a refill might not see all the tokens that it added, and
+		 *   may therefore fail spuriously or wait slightly longer than necessary.</li>
+		 * </ul>
+		 * A value close to the number of threads that consume tokens concurrently is a good starting point.
+		 * Values above four times the {@link Runtime#availableProcessors() number of processors} are reduced to
+		 * that number.
+		 *
+		 * @param stripes the number of cells that the limit's tokens are split across
+		 * @return this
+		 * @throws IllegalArgumentException if {@code stripes} is negative or zero
+		 */
+		@CheckReturnValue
+		public Builder stripes(int stripes)
+		{
+			requireThat(stripes, "stripes").isPositive();
+			this.stripes = Math.min(stripes, MAXIMUM_STRIPES);
+			return this;
+		}
+
+		/**
+		 * Returns the algorithm used to track available tokens. The default is
+		 * {@link LimitAlgorithm#TOKEN_BUCKET}.
+		 *
+		 * @return the algorithm used to track available tokens
+		 */
+		@CheckReturnValue
+		public LimitAlgorithm algorithm()
+		{
+			return algorithm;
+		}
+
+		/**
+		 * Sets the algorithm used to track available tokens.
+		 *
+		 * @param algorithm the algorithm used to track available tokens
+		 * @return this
+		 * @throws NullPointerException if {@code algorithm} is null
+		 * @see LimitAlgorithm
+		 */
+		@CheckReturnValue
+		public Builder algorithm(LimitAlgorithm algorithm)
+		{
+			requireThat(algorithm, "algorithm").isNotNull();
+			this.algorithm = algorithm;
+			return this;
+		}
+
+		/**
+		 * Returns the policy that adjusts {@code tokensPerPeriod} based on feedback. The default is
+		 * {@code null}.
+		 *
+		 * @return {@code null} if {@code tokensPerPeriod} only changes when it is updated explicitly
+		 */
+		@CheckReturnValue
+		public AimdPolicy adaptive()
+		{
+			return aimdPolicy;
+		}
+
+		/**
+		 * Adjusts {@code tokensPerPeriod} based on feedback that is reported using {@link Limit#onSuccess()}
+		 * and {@link Limit#onOverload()}. The limit must use the {@link LimitAlgorithm#TOKEN_BUCKET TOKEN_BUCKET}
+		 * or {@link LimitAlgorithm#GCRA GCRA} algorithm, and {@code tokensPerPeriod} is the initial rate.
+		 *
+		 * @param aimdPolicyBuilder builds the policy
+		 * @return this
+		 * @throws NullPointerException if {@code aimdPolicyBuilder} is null
+		 * @see AimdPolicy
+		 */
+		@CheckReturnValue
+		public Builder adaptive(Function<AimdPolicy.Builder, AimdPolicy> aimdPolicyBuilder)
+		{
+			requireThat(aimdPolicyBuilder, "aimdPolicyBuilder").isNotNull();
+			this.aimdPolicy = aimdPolicyBuilder.apply(new AimdPolicy.Builder());
+			return this;
+		}
+
+		/**
+		 * Returns the policy that adjusts {@code maximumTokens} based on latency. The default is {@code null}.
+		 *
+		 * @return {@code null} if {@code maximumTokens} only changes when it is updated explicitly
+		 */
+		@CheckReturnValue
+		public GradientPolicy gradient()
+		{
+			return gradientPolicy;
+		}
+
+		/**
+		 * Adjusts {@code maximumTokens} based on latencies that are reported using
+		 * {@link ConsumptionResult#release(Duration)}. The limit must use the
+		 * {@link LimitAlgorithm#CONCURRENCY CONCURRENCY} algorithm, and {@code maximumTokens} is the initial
+		 * concurrency.
+		 * <p>
+		 * A bucket with a gradient limit may be nested in a {@link ContainerList} alongside buckets with static
+		 * limits.
+		 *
+		 * @param gradientPolicyBuilder builds the policy
+		 * @return this
+		 * @throws NullPointerException if {@code gradientPolicyBuilder} is null
+		 * @see GradientPolicy
+		 */
+		@CheckReturnValue
+		public Builder gradient(Function<GradientPolicy.Builder, GradientPolicy> gradientPolicyBuilder)
+		{
+			requireThat(gradientPolicyBuilder, "gradientPolicyBuilder").isNotNull();
+			this.gradientPolicy = gradientPolicyBuilder.apply(new GradientPolicy.Builder());
+			return this;
+		}
+
 		/**
 		 * Returns user data associated with this limit. The default is {@code null}.
 		 *
@@ -697,10 +1182,23 @@ public final class Limit
 		 * Builds a new Limit.
 		 *
 		 * @return a new Limit
+		 * @throws IllegalArgumentException if {@code maximumTokens} is less than {@code tokensPerPeriod} or
+		 *                                  {@code initialTokens}. If the limit does not meet the requirements
+		 *                                  of its {@link LimitAlgorithm algorithm}. If the limit does not meet
+		 *                                  the requirements of its {@link #adaptive() AimdPolicy} or
+		 *                                  {@link #gradient() GradientPolicy}.
 		 */
 		public Limit build()
 		{
-			return new Limit(tokensPerPeriod, period, initialTokens, maximumTokens, refillSize, userData);
+			requireThat(maximumTokens, "maximumTokens").
+				isGreaterThanOrEqualTo(tokensPerPeriod, "tokensPerPeriod").
+				isGreaterThanOrEqualTo(initialTokens, "initialTokens");
+			LimitSpec spec = new LimitSpec(tokensPerPeriod, period, initialTokens, maximumTokens, refillSize,
+				stripes, algorithm, aimdPolicy, gradientPolicy);
+			requireAlgorithmSupports(spec);
+			requireAdaptiveSupports(spec);
+			requireGradientSupports(spec);
+			return new Limit(new SharedSpec(spec), userData);
 		}
 
 		@Override
@@ -711,6 +1209,10 @@ public final class Limit
 				add("period", period).
 				add("refillSize", refillSize).
 				add("maximumTokens", maximumTokens).
+				add("stripes", stripes).
+				add("algorithm", algorithm).
+				add("aimdPolicy", aimdPolicy).
+				add("gradientPolicy", gradientPolicy).
 				add("userData", userData).
 				toString();
 		}
@@ -726,10 +1228,15 @@ public final class Limit
 		private final CloseableLock writeLock = lock.writeLock();
 		private boolean closed;
 		private long tokensPerPeriod;
+		private boolean tokensPerPeriodChanged;
 		private Duration period;
+		private boolean periodChanged;
 		private long availableTokens;
+		private boolean availableTokensChanged;
 		private long refillSize;
+		private boolean refillSizeChanged;
 		private long maximumTokens;
+		private boolean maximumTokensChanged;
 		private Object userData;
 		private boolean changed;
 
@@ -738,11 +1245,12 @@ public final class Limit
 		 */
 		private ConfigurationUpdater()
 		{
-			this.tokensPerPeriod = Limit.this.tokensPerPeriod;
-			this.period = Limit.this.period;
-			this.availableTokens = Limit.this.availableTokens;
-			this.refillSize = Limit.this.refillSize;
-			this.maximumTokens = Limit.this.maximumTokens;
+			LimitSpec spec = sharedSpec.value;
+			this.tokensPerPeriod = spec.tokensPerPeriod;
+			this.period = spec.period;
+			this.availableTokens = state.getAvailableTokens();
+			this.refillSize = spec.refillSize;
+			this.maximumTokens = spec.maximumTokens;
 			this.userData = Limit.this.userData;
 		}
 
@@ -774,6 +1282,7 @@ public final class Limit
 			if (tokensPerPeriod == this.tokensPerPeriod)
 				return this;
 			this.changed = true;
+			this.tokensPerPeriodChanged = true;
 			this.tokensPerPeriod = tokensPerPeriod;
 			return this;
 		}
@@ -796,16 +1305,20 @@ public final class Limit
 		 *
 		 * @param period indicates how often {@code tokensPerPeriod} should be added to the bucket
 		 * @return this
-		 * @throws NullPointerException  if {@code period} is null
-		 * @throws IllegalStateException if the updater is closed
+		 * @throws NullPointerException     if {@code period} is null
+		 * @throws IllegalArgumentException if {@code period} is negative, zero or longer than
+		 *                                  {@code Long.MAX_VALUE} nanoseconds
+		 * @throws IllegalStateException    if the updater is closed
 		 */
 		public ConfigurationUpdater period(Duration period)
 		{
-			requireThat(period, "period").isGreaterThan(Duration.ZERO);
+			requireThat(period, "period").isGreaterThan(Duration.ZERO).
+				isLessThanOrEqualTo(MAXIMUM_PERIOD, "MAXIMUM_PERIOD");
 			ensureOpen();
 			if (period.equals(this.period))
 				return this;
 			changed = true;
+			periodChanged = true;
 			this.period = period;
 			return this;
 		}
@@ -838,6 +1351,7 @@ public final class Limit
 			if (availableTokens == this.availableTokens)
 				return this;
 			changed = true;
+			availableTokensChanged = true;
 			this.availableTokens = availableTokens;
 			return this;
 		}
@@ -882,6 +1396,7 @@ public final class Limit
 			if (refillSize == this.refillSize)
 				return this;
 			changed = true;
+			refillSizeChanged = true;
 			this.refillSize = refillSize;
 			return this;
 		}
@@ -916,6 +1431,7 @@ public final class Limit
 			if (maximumTokens == this.maximumTokens)
 				return this;
 			changed = true;
+			maximumTokensChanged = true;
 			this.maximumTokens = maximumTokens;
 			return this;
 		}
@@ -950,6 +1466,31 @@ public final class Limit
 			return this;
 		}
 
+		/**
+		 * Applies the properties that were changed through the updater to a specification.
+		 *
+		 * @param spec the current specification
+		 * @return a specification that contains the changed properties, and the values of {@code spec} for
+		 * all other properties
+		 */
+		private LimitSpec mergeInto(LimitSpec spec)
+		{
+			long newTokensPerPeriod = spec.tokensPerPeriod;
+			if (tokensPerPeriodChanged)
+				newTokensPerPeriod = tokensPerPeriod;
+			Duration newPeriod = spec.period;
+			if (periodChanged)
+				newPeriod = period;
+			long newMaximumTokens = spec.maximumTokens;
+			if (maximumTokensChanged)
+				newMaximumTokens = maximumTokens;
+			long newRefillSize = spec.refillSize;
+			if (refillSizeChanged)
+				newRefillSize = refillSize;
+			return new LimitSpec(newTokensPerPeriod, newPeriod, spec.initialTokens, newMaximumTokens,
+				newRefillSize, spec.stripes, spec.algorithm, spec.aimdPolicy, spec.gradientPolicy);
+		}
+
 		/**
 		 * @throws IllegalStateException if the updater is closed
 		 */
@@ -962,7 +1503,9 @@ public final class Limit
 		/**
 		 * Updates this Limit's configuration and releases its lock.
 		 * <p>
-		 * A new period is started immediately after the update takes place.
+		 * Only the properties that were changed through this updater are applied. Changes that other limits
+		 * sharing the configuration, or the limit's {@link AimdPolicy} or {@link GradientPolicy}, made in the
+		 * meantime are retained. A new period is started immediately after the update takes place.
 		 */
 		@Override
 		public void close()
@@ -971,26 +1514,41 @@ public final class Limit
 				return;
 			closed = true;
 			if (!changed)
+			{
+				writeLock.close();
 				return;
+			}
 			log.debug("Before updating limit: {}", Limit.this);
-
 			try
 			{
-				Limit.this.tokensPerPeriod = tokensPerPeriod;
-				Limit.this.period = period;
-				// availableTokens takes the place of initialTokens (which would be meaningless to update)
-				Limit.this.availableTokens = availableTokens;
-				Limit.this.maximumTokens = maximumTokens;
-				Limit.this.refillSize = refillSize;
 				Limit.this.userData = userData;
-				Limit.this.startOfCurrentPeriod = Instant.now();
-				Limit.this.tokensAddedInCurrentPeriod = 0;
-				Limit.this.refillsElapsed = 0;
-				Limit.this.timePerToken = period.dividedBy(tokensPerPeriod);
-				Limit.this.timePerRefill = timePerToken.multipliedBy(refillSize);
-				Limit.this.refillsPerPeriod = (long) Math.ceil((double) tokensPerPeriod / refillSize);
-				Limit.this.nextRefillAt = getRefillEndTime(1);
-				overflowBucket();
+				LimitSpec newSpec;
+				while (true)
+				{
+					// Limits that share the specification, AimdPolicy and GradientPolicy may have updated the
+					// specification since the updater was opened
+					LimitSpec spec = sharedSpec.value;
+					newSpec = mergeInto(spec);
+					requireThat(newSpec.maximumTokens, "maximumTokens").
+						isGreaterThanOrEqualTo(newSpec.tokensPerPeriod, "tokensPerPeriod");
+					requireAlgorithmSupports(newSpec);
+					requireAdaptiveSupports(newSpec);
+					requireGradientSupports(newSpec);
+					if (newSpec.equals(spec))
+					{
+						// Avoid restarting the period of other limits that share the specification
+						newSpec = spec;
+						break;
+					}
+					if (sharedSpec.compareAndSet(spec, newSpec))
+						break;
+				}
+				state.restart();
+				// availableTokens takes the place of initialTokens (which would be meaningless to update).
+				// Consumers that do not acquire the lock may have consumed tokens since the updater was created, so
+				// the value is only overwritten if it was explicitly updated.
+				if (availableTokensChanged)
+					state.setAvailableTokens(Math.min(availableTokens, newSpec.maximumTokens));
 			}
 			finally
 			{
@@ -0,0 +1,67 @@
+package com.github.cowwoc.tokenbucket;
+
+/**
+ * Determines how a {@link Limit} tracks its available tokens.
+ */
+public enum LimitAlgorithm
+{
+	/**
+	 * Adds {@code refillSize} tokens at a time, at evenly spaced intervals throughout each {@code period}.
+	 * <p>
+	 * This is the default algorithm.
+	 */
+	TOKEN_BUCKET,
+	/**
+	 * The Generic Cell Rate Algorithm (also known as virtual scheduling). Tokens are refilled continuously,
+	 * one every {@code period / tokensPerPeriod}, and {@code refillSize} is ignored.
+	 * <p>
+	 * The limit's entire state is a single timestamp, the theoretical arrival time of the next token, which
+	 * is updated using a single compare-and-set. This makes consumption cheaper than {@link #TOKEN_BUCKET},
+	 * which must track the progress of each period.
+	 * <p>
+	 * Tokens are emitted on a fixed schedule, so the limit admits exactly {@code tokensPerPeriod} tokens per
+	 * {@code period}, like a {@code TOKEN_BUCKET} whose {@code refillSize} is {@code 1}, even if the time
+	 * between tokens is not a whole number of nanoseconds.
+	 * <p>
+	 * {@code tokensPerPeriod} may not exceed the number of nanoseconds in {@code period}.
+	 * {@code maximumTokens * period / tokensPerPeriod} must be shorter than {@code Long.MAX_VALUE}
+	 * nanoseconds (roughly 292 years), and {@code stripes} must be {@code 1}.
+	 */
+	GCRA,
+	/**
+	 * Admits at most {@code tokensPerPeriod} tokens in any rolling {@code period}. Consumed tokens become
+	 * available again between one {@code period} and one {@code period} plus one sub-window after they were
+	 * consumed, so unlike {@link #TOKEN_BUCKET}, bursts that straddle the boundary between two periods cannot
+	 * exceed the limit.
+	 * <p>
+	 * The window is divided into {@code min(ceil(tokensPerPeriod / refillSize), 1024)} sub-windows, each of
+	 * which counts the tokens that were consumed during it. The tokens of a sub-window are released once a
+	 * full {@code period} has passed since the sub-window ended. Tokens are released a sub-window at a time, so
+	 * memory usage is constant regardless of the number of tokens. Use a larger {@code refillSize} to trade
+	 * precision for less memory.
+	 * <p>
+	 * {@code maximumTokens} must be equal to {@code tokensPerPeriod}, and {@code stripes} must be {@code 1}.
+	 * Consumers that only touch a single sliding-window limit acquire a lock, unlike the other algorithms.
+	 */
+	SLIDING_WINDOW,
+	/**
+	 * Limits the number of tokens that are in use at the same time, such as the number of in-flight
+	 * requests.
+	 * <p>
+	 * The limit starts with {@code maximumTokens} tokens, which are never refilled. Instead, consumers return
+	 * them by invoking {@link ConsumptionResult#release()} once they are done. {@code tokensPerPeriod},
+	 * {@code initialTokens} and {@code refillSize} are ignored. Because the time at which tokens will be
+	 * released cannot be predicted, blocked consumers re-check the limit once per {@code period} (and
+	 * whenever tokens are released), and {@link ConsumptionResult#getAvailableAt()} is set to one
+	 * {@code period} from the time of the request.
+	 * <p>
+	 * A concurrency limit may be combined with rate limits in the same {@link Bucket}, in which case tokens
+	 * are consumed from all of them atomically. Tokens that are consumed using
+	 * {@link Container#tryAcquire(long) tryAcquire()} cannot be released, and tokens that are reserved using
+	 * {@link Container#reserve(long) reserve()} are only returned if the reservation is cancelled.
+	 * <p>
+	 * {@code maximumTokens} may be adjusted based on latency using
+	 * {@link Limit.Builder#gradient(java.util.function.Function) Limit.Builder.gradient()}.
+	 */
+	CONCURRENCY
+}
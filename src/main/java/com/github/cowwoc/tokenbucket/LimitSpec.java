@@ -0,0 +1,384 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.time.Duration;
+import java.util.Objects;
+
+import static com.github.cowwoc.tokenbucket.Limit.saturatedAdd;
+import static com.github.cowwoc.tokenbucket.Limit.saturatedMultiply;
+
+/**
+ * The configuration of a {@link Limit}, along with values that are derived from it.
+ * <p>
+ * A specification may be shared by any number of limits, such as the limits of buckets that are created by
+ * a {@link KeyedBucketRegistry}. Each limit only holds the state that is specific to it, such as the number of
+ * available tokens and its refill progress.
+ * <p>
+ * Refills are numbered from the time that a schedule went into effect. Refill {@code n} takes place at
+ * {@code startOfFirstPeriod + (n / refillsPerPeriod) * period + (n % refillsPerPeriod) * timePerRefill},
+ * and the first {@code n} refills add
+ * {@code (n / refillsPerPeriod) * tokensPerPeriod + (n % refillsPerPeriod) * refillSize} tokens. The last
+ * refill of each period is smaller than {@code refillSize} if {@code tokensPerPeriod} is not a multiple
+ * of it.
+ * <p>
+ * <b>Thread safety</b>: This class is immutable.
+ *
+ * @see Limit#getSpec()
+ */
+public final class LimitSpec
+{
+	final long tokensPerPeriod;
+	final Duration period;
+	final long initialTokens;
+	final long maximumTokens;
+	final long refillSize;
+	final int stripes;
+	final LimitAlgorithm algorithm;
+	final AimdPolicy aimdPolicy;
+	final GradientPolicy gradientPolicy;
+	final long nanosPerPeriod;
+	final long nanosPerToken;
+	/**
+	 * The rate of a {@link LimitAlgorithm#GCRA} limit is {@code emissionsPerPeriod} tokens every
+	 * {@code emissionPeriod} nanoseconds: {@code tokensPerPeriod / period}, reduced to lowest terms so that
+	 * {@code emissionPeriod * emissionsPerPeriod} fits in a {@code long}.
+	 */
+	final long emissionPeriod;
+	/**
+	 * The number of tokens that a {@link LimitAlgorithm#GCRA} limit emits every {@code emissionPeriod}.
+	 */
+	final long emissionsPerPeriod;
+	final long nanosPerRefill;
+	final long refillsPerPeriod;
+
+	/**
+	 * Creates a new specification.
+	 *
+	 * @param tokensPerPeriod the number of tokens to add to the bucket every {@code period}
+	 * @param period          indicates how often {@code tokensPerPeriod} should be added to the bucket
+	 * @param initialTokens   the initial number of tokens in the bucket
+	 * @param maximumTokens   the maximum number of tokens that the bucket may hold before overflowing
+	 *                        (subsequent tokens are discarded)
+	 * @param refillSize      the number of tokens that are refilled at a time
+	 * @param stripes         the number of cells that tokens are split across
+	 * @param algorithm       the algorithm used to track available tokens
+	 * @param aimdPolicy      the policy that adjusts {@code tokensPerPeriod} ({@code null} if
+	 *                        {@code tokensPerPeriod} only changes when it is updated explicitly)
+	 * @param gradientPolicy  the policy that adjusts {@code maximumTokens} ({@code null} if
+	 *                        {@code maximumTokens} only changes when it is updated explicitly)
+	 */
+	LimitSpec(long tokensPerPeriod, Duration period, long initialTokens, long maximumTokens, long refillSize,
+	          int stripes, LimitAlgorithm algorithm, AimdPolicy aimdPolicy, GradientPolicy gradientPolicy)
+	{
+		this.tokensPerPeriod = tokensPerPeriod;
+		this.period = period;
+		this.initialTokens = initialTokens;
+		this.maximumTokens = maximumTokens;
+		this.refillSize = refillSize;
+		this.stripes = stripes;
+		this.algorithm = algorithm;
+		this.aimdPolicy = aimdPolicy;
+		this.gradientPolicy = gradientPolicy;
+		this.nanosPerPeriod = period.toNanos();
+		this.nanosPerToken = nanosPerPeriod / tokensPerPeriod;
+		long divisor = getGreatestCommonDivisor(nanosPerPeriod, tokensPerPeriod);
+		long emissionPeriod = nanosPerPeriod / divisor;
+		long emissionsPerPeriod = tokensPerPeriod / divisor;
+		if (saturatedMultiply(emissionPeriod, emissionsPerPeriod) == Long.MAX_VALUE)
+		{
+			// Approximate the rate using smaller terms, rounding it down by less than one part in 100,000
+			if (emissionPeriod / emissionsPerPeriod >= 1 << 21)
+			{
+				emissionPeriod = -Math.floorDiv(-emissionPeriod, emissionsPerPeriod);
+				emissionsPerPeriod = 1;
+			}
+			else
+			{
+				// emissionsPerPeriod remains above 2^20
+				while (saturatedMultiply(emissionPeriod, emissionsPerPeriod) == Long.MAX_VALUE)
+				{
+					emissionPeriod = (emissionPeriod >> 1) + (emissionPeriod & 1);
+					emissionsPerPeriod >>= 1;
+				}
+			}
+		}
+		this.emissionPeriod = emissionPeriod;
+		this.emissionsPerPeriod = emissionsPerPeriod;
+		this.nanosPerRefill = saturatedMultiply(nanosPerToken, refillSize);
+		this.refillsPerPeriod = (long) Math.ceil((double) tokensPerPeriod / refillSize);
+	}
+
+	/**
+	 * @param first  a positive number
+	 * @param second a positive number
+	 * @return the greatest common divisor of the numbers
+	 */
+	private static long getGreatestCommonDivisor(long first, long second)
+	{
+		while (second != 0)
+		{
+			long remainder = first % second;
+			first = second;
+			second = remainder;
+		}
+		return first;
+	}
+
+	/**
+	 * Returns the number of tokens to add every {@code period}.
+	 *
+	 * @return the number of tokens to add every {@code period}
+	 */
+	public long getTokensPerPeriod()
+	{
+		return tokensPerPeriod;
+	}
+
+	/**
+	 * indicates how often {@code tokensPerPeriod} should be added to the bucket.
+	 *
+	 * @return indicates how often {@code tokensPerPeriod} should be added to the bucket
+	 */
+	public Duration getPeriod()
+	{
+		return period;
+	}
+
+	/**
+	 * Returns the initial number of tokens that the bucket starts with.
+	 *
+	 * @return the initial number of tokens that the bucket starts with
+	 */
+	public long getInitialTokens()
+	{
+		return initialTokens;
+	}
+
+	/**
+	 * Returns the maximum number of tokens that the bucket may hold before overflowing (subsequent tokens
+	 * are discarded).
+	 *
+	 * @return the maximum number of tokens that the bucket may hold before overflowing (subsequent tokens
+	 * are discarded)
+	 */
+	public long getMaximumTokens()
+	{
+		return maximumTokens;
+	}
+
+	/**
+	 * Returns the number of tokens that are refilled at a time.
+	 *
+	 * @return the minimum number of tokens by which the limit may be refilled
+	 * @see Limit#getRefillSize()
+	 */
+	public long getRefillSize()
+	{
+		return refillSize;
+	}
+
+	/**
+	 * Returns the number of cells that the limit's tokens are split across.
+	 *
+	 * @return the number of cells that the limit's tokens are split across
+	 * @see Limit.Builder#stripes(int)
+	 */
+	public int getStripes()
+	{
+		return stripes;
+	}
+
+	/**
+	 * Returns the algorithm used to track available tokens.
+	 *
+	 * @return the algorithm used to track available tokens
+	 * @see Limit.Builder#algorithm(LimitAlgorithm)
+	 */
+	public LimitAlgorithm getAlgorithm()
+	{
+		return algorithm;
+	}
+
+	/**
+	 * Returns the policy that adjusts {@code tokensPerPeriod} based on feedback.
+	 *
+	 * @return {@code null} if {@code tokensPerPeriod} only changes when it is updated explicitly
+	 * @see Limit.Builder#adaptive(java.util.function.Function)
+	 */
+	public AimdPolicy getAimdPolicy()
+	{
+		return aimdPolicy;
+	}
+
+	/**
+	 * Returns the policy that adjusts {@code maximumTokens} based on latency.
+	 *
+	 * @return {@code null} if {@code maximumTokens} only changes when it is updated explicitly
+	 * @see Limit.Builder#gradient(java.util.function.Function)
+	 */
+	public GradientPolicy getGradientPolicy()
+	{
+		return gradientPolicy;
+	}
+
+	/**
+	 * @param tokensPerPeriod the number of tokens to add to the bucket every {@code period}
+	 * @return a copy of this specification with an updated {@code tokensPerPeriod}
+	 */
+	LimitSpec withTokensPerPeriod(long tokensPerPeriod)
+	{
+		return new LimitSpec(tokensPerPeriod, period, initialTokens, maximumTokens, refillSize, stripes,
+			algorithm, aimdPolicy, gradientPolicy);
+	}
+
+	/**
+	 * @param maximumTokens the maximum number of tokens that the bucket may hold before overflowing
+	 * @return a copy of this specification with an updated {@code maximumTokens}. {@code tokensPerPeriod} and
+	 * {@code initialTokens} are lowered to {@code maximumTokens} if they exceed it.
+	 */
+	LimitSpec withMaximumTokens(long maximumTokens)
+	{
+		return new LimitSpec(Math.min(tokensPerPeriod, maximumTokens), period,
+			Math.min(initialTokens, maximumTokens), maximumTokens, refillSize, stripes, algorithm, aimdPolicy,
+			gradientPolicy);
+	}
+
+	/**
+	 * @param other another specification
+	 * @return true if this specification was derived from {@code other} by an {@link AimdPolicy}, changing
+	 * nothing but {@code tokensPerPeriod}
+	 */
+	boolean isAdaptedFrom(LimitSpec other)
+	{
+		return aimdPolicy != null && aimdPolicy.equals(other.aimdPolicy) && period.equals(other.period) &&
+			initialTokens == other.initialTokens && maximumTokens == other.maximumTokens &&
+			refillSize == other.refillSize && stripes == other.stripes && algorithm == other.algorithm;
+	}
+
+	/**
+	 * @param startOfFirstPeriod the time at which the schedule went into effect, in nanoseconds
+	 * @param time               a time, in nanoseconds
+	 * @return the number of refills that take place from the beginning of the schedule up to {@code time}
+	 * (inclusive)
+	 */
+	long getRefillsElapsed(long startOfFirstPeriod, long time)
+	{
+		long timeElapsed = time - startOfFirstPeriod;
+		if (timeElapsed <= 0)
+			return 0;
+		long periodsElapsed = timeElapsed / nanosPerPeriod;
+		long timeElapsedInPeriod = timeElapsed - periodsElapsed * nanosPerPeriod;
+		// The refills of a period might not add up to the length of the period due to rounding errors.
+		// Any remaining time is spent waiting for the next period to begin.
+		long refillsInPeriod = Math.min(timeElapsedInPeriod / nanosPerRefill, refillsPerPeriod - 1);
+		return periodsElapsed * refillsPerPeriod + refillsInPeriod;
+	}
+
+	/**
+	 * @param startOfFirstPeriod the time at which the schedule went into effect, in nanoseconds
+	 * @param refills            a number of refills relative to the beginning of the schedule
+	 * @return the time at which the last refill will complete, in nanoseconds ({@code Long.MAX_VALUE} if
+	 * the time is too far in the future to be represented)
+	 */
+	long getRefillTime(long startOfFirstPeriod, long refills)
+	{
+		long periodsElapsed = refills / refillsPerPeriod;
+		long refillsInPeriod = refills - periodsElapsed * refillsPerPeriod;
+		return saturatedAdd(saturatedAdd(startOfFirstPeriod, saturatedMultiply(nanosPerPeriod, periodsElapsed)),
+			saturatedMultiply(nanosPerRefill, refillsInPeriod));
+	}
+
+	/**
+	 * @param startOfFirstPeriod the time at which the schedule went into effect, in nanoseconds
+	 * @param refills            a number of refills relative to the beginning of the schedule
+	 * @return the start time of the period containing the refill, in nanoseconds
+	 */
+	long getStartOfPeriod(long startOfFirstPeriod, long refills)
+	{
+		return saturatedAdd(startOfFirstPeriod, saturatedMultiply(nanosPerPeriod, refills / refillsPerPeriod));
+	}
+
+	/**
+	 * @param fromRefills a number of refills relative to the beginning of the schedule
+	 * @param toRefills   a number of refills relative to the beginning of the schedule
+	 * @return the number of tokens added by the refills in {@code (fromRefills, toRefills]}
+	 */
+	long getTokensAdded(long fromRefills, long toRefills)
+	{
+		assert (toRefills >= fromRefills) : "fromRefills: " + fromRefills + ", toRefills: " + toRefills;
+		long fromPeriods = fromRefills / refillsPerPeriod;
+		long toPeriods = toRefills / refillsPerPeriod;
+		long refillsInFromPeriod = fromRefills - fromPeriods * refillsPerPeriod;
+		long refillsInToPeriod = toRefills - toPeriods * refillsPerPeriod;
+		long tokensInFullPeriods;
+		try
+		{
+			tokensInFullPeriods = Math.multiplyExact(toPeriods - fromPeriods, tokensPerPeriod);
+		}
+		catch (ArithmeticException e)
+		{
+			return Long.MAX_VALUE;
+		}
+		return saturatedAdd(tokensInFullPeriods, (refillsInToPeriod - refillsInFromPeriod) * refillSize);
+	}
+
+	/**
+	 * @param refillsElapsed the number of refills that took place relative to the beginning of the schedule
+	 * @param tokens         a number of tokens
+	 * @return the number of refills, relative to the beginning of the schedule, after which at least
+	 * {@code tokens} more tokens will have been added
+	 */
+	long getRefillsNeeded(long refillsElapsed, long tokens)
+	{
+		assert (tokens > 0) : "tokens: " + tokens;
+		long periodsElapsed = refillsElapsed / refillsPerPeriod;
+		long refillsInPeriod = refillsElapsed - periodsElapsed * refillsPerPeriod;
+		// The number of tokens needed, relative to the start of the current period
+		long tokensNeeded = saturatedAdd(refillsInPeriod * refillSize, tokens);
+		long periodsNeeded = tokensNeeded / tokensPerPeriod;
+		long tokensNeededInPeriod = tokensNeeded - periodsNeeded * tokensPerPeriod;
+		long refillsNeededInPeriod = (tokensNeededInPeriod + refillSize - 1) / refillSize;
+		if (refillsNeededInPeriod >= refillsPerPeriod)
+		{
+			// The last refill of each period may be smaller than refillSize
+			++periodsNeeded;
+			refillsNeededInPeriod = 0;
+		}
+		return (periodsElapsed + periodsNeeded) * refillsPerPeriod + refillsNeededInPeriod;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Objects.hash(tokensPerPeriod, period, initialTokens, maximumTokens, refillSize, stripes, algorithm,
+			aimdPolicy, gradientPolicy);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof LimitSpec other))
+			return false;
+		return tokensPerPeriod == other.tokensPerPeriod && initialTokens == other.initialTokens &&
+			maximumTokens == other.maximumTokens && period.equals(other.period) &&
+			refillSize == other.refillSize && stripes == other.stripes && algorithm == other.algorithm &&
+			Objects.equals(aimdPolicy, other.aimdPolicy) && Objects.equals(gradientPolicy, other.gradientPolicy);
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(LimitSpec.class).
+			add("tokensPerPeriod", tokensPerPeriod).
+			add("period", period).
+			add("initialTokens", initialTokens).
+			add("maximumTokens", maximumTokens).
+			add("refillSize", refillSize).
+			add("stripes", stripes).
+			add("algorithm", algorithm).
+			add("aimdPolicy", aimdPolicy).
+			add("gradientPolicy", gradientPolicy).
+			toString();
+	}
+}
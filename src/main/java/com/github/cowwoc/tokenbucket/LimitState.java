@@ -0,0 +1,135 @@
+package com.github.cowwoc.tokenbucket;
+
+/**
+ * The mutable state of a {@link Limit}, which depends on its {@link LimitAlgorithm}.
+ * <p>
+ * All times are measured in nanoseconds, relative to {@link TimeSource#nanoTime()}.
+ * <p>
+ * <b>Thread safety</b>: Implementations must be thread-safe. Methods that are not documented otherwise may
+ * be invoked without holding the limit's lock.
+ */
+abstract class LimitState
+{
+	/**
+	 * Creates the state of a limit.
+	 *
+	 * @param sharedSpec the specification of the limit
+	 * @return the state of the limit
+	 */
+	static LimitState of(Limit.SharedSpec sharedSpec)
+	{
+		return switch (sharedSpec.value.algorithm)
+		{
+			case TOKEN_BUCKET -> new TokenBucketState(sharedSpec);
+			case GCRA -> new GcraState(sharedSpec);
+			case SLIDING_WINDOW -> new SlidingWindowState(sharedSpec);
+			case CONCURRENCY -> new ConcurrencyState(sharedSpec);
+		};
+	}
+
+	/**
+	 * Starts tracking time. Invoked when the limit is added to a bucket.
+	 *
+	 * @param timeSource the source of time used by the limit
+	 */
+	abstract void start(TimeSource timeSource);
+
+	/**
+	 * Returns the source of time used by the limit.
+	 *
+	 * @return the source of time used by the limit
+	 */
+	abstract TimeSource getTimeSource();
+
+	/**
+	 * Starts a new period after the limit's specification was updated, discarding any tokens that overflow
+	 * the new {@code maximumTokens}. The caller must hold the limit's write lock.
+	 */
+	abstract void restart();
+
+	/**
+	 * Adds any tokens that were refilled up to a time.
+	 *
+	 * @param now the current time
+	 */
+	abstract void refill(long now);
+
+	/**
+	 * Returns the number of available tokens, as of the last refill.
+	 *
+	 * @return the number of available tokens
+	 */
+	abstract long getAvailableTokens();
+
+	/**
+	 * Returns the number of available tokens at a time that is no earlier than the last refill.
+	 *
+	 * @param now the current time
+	 * @return the number of available tokens
+	 */
+	abstract long getAvailableTokens(long now);
+
+	/**
+	 * Returns an estimate of the number of available tokens that is cheaper to compute than
+	 * {@link #getAvailableTokens(long)}.
+	 *
+	 * @param now the current time
+	 * @return an estimate of the number of available tokens
+	 */
+	long estimateAvailableTokens(long now)
+	{
+		return getAvailableTokens(now);
+	}
+
+	/**
+	 * Sets the number of available tokens. The caller must hold the limit's write lock.
+	 *
+	 * @param tokens the number of available tokens
+	 */
+	abstract void setAvailableTokens(long tokens);
+
+	/**
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens, only if they are available at the time of
+	 * invocation.
+	 *
+	 * @param minimumTokens the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens the maximum number of tokens to consume (inclusive)
+	 * @param now           the current time
+	 * @return the number of tokens that were consumed, or {@code 0} if less than {@code minimumTokens} were
+	 * available
+	 */
+	abstract long tryConsume(long minimumTokens, long maximumTokens, long now);
+
+	/**
+	 * Consumes tokens, even if it causes the number of available tokens to become negative.
+	 *
+	 * @param tokens the number of tokens
+	 * @param now    the current time
+	 * @return the number of tokens left after consumption
+	 */
+	abstract long consume(long tokens, long now);
+
+	/**
+	 * Returns tokens to the limit, discarding any tokens that overflow it.
+	 *
+	 * @param tokens the number of tokens
+	 */
+	abstract void refund(long tokens);
+
+	/**
+	 * Returns the time at which additional tokens will become available, assuming that no tokens are
+	 * consumed in the meantime.
+	 *
+	 * @param tokensNeeded the number of tokens that must be added to the limit
+	 * @param requestedAt  the time at which the tokens were requested
+	 * @return the time at which the tokens will become available
+	 */
+	abstract long getAvailableAt(long tokensNeeded, long requestedAt);
+
+	/**
+	 * Returns the time at which the current period started.
+	 *
+	 * @return the time at which the current period started
+	 */
+	abstract long getStartOfCurrentPeriod();
+}
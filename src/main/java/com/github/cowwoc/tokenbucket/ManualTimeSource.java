@@ -0,0 +1,91 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+import static com.github.cowwoc.tokenbucket.Limit.saturatedToNanos;
+
+/**
+ * A time source that only moves when it is advanced explicitly. This is useful for testing.
+ * <p>
+ * <b>NOTE</b>: Methods that block until tokens become available still sleep using the system clock.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+public final class ManualTimeSource implements TimeSource
+{
+	private final Instant origin;
+	/**
+	 * The number of nanoseconds that have elapsed since {@code origin}.
+	 */
+	private final AtomicLong nanoTime = new AtomicLong();
+
+	/**
+	 * Creates a new time source that starts at the current time.
+	 */
+	public ManualTimeSource()
+	{
+		this(Instant.now());
+	}
+
+	/**
+	 * Creates a new time source.
+	 *
+	 * @param origin the time that the time source starts at
+	 * @throws NullPointerException if {@code origin} is null
+	 */
+	public ManualTimeSource(Instant origin)
+	{
+		requireThat(origin, "origin").isNotNull();
+		this.origin = origin;
+	}
+
+	/**
+	 * Moves the time forward.
+	 *
+	 * @param duration the amount of time to move forward by
+	 * @return this
+	 * @throws NullPointerException     if {@code duration} is null
+	 * @throws IllegalArgumentException if {@code duration} is negative
+	 * @throws ArithmeticException      if the time overflows
+	 */
+	public ManualTimeSource advance(Duration duration)
+	{
+		requireThat(duration, "duration").isGreaterThanOrEqualTo(Duration.ZERO);
+		long nanos = duration.toNanos();
+		nanoTime.getAndUpdate(value -> Math.addExact(value, nanos));
+		return this;
+	}
+
+	@Override
+	public long nanoTime()
+	{
+		return nanoTime.get();
+	}
+
+	@Override
+	public Instant toInstant(long nanoTime)
+	{
+		if (nanoTime == Long.MAX_VALUE)
+			return Instant.MAX;
+		return origin.plusNanos(nanoTime);
+	}
+
+	@Override
+	public long toNanoTime(Instant instant)
+	{
+		return saturatedToNanos(Duration.between(origin, instant));
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(ManualTimeSource.class).
+			add("now", toInstant(nanoTime.get())).
+			toString();
+	}
+}
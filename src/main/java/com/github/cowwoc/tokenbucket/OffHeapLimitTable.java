@@ -0,0 +1,496 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.annotation.CheckReturnValue;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * A limit per key, stored outside the Java heap.
+ * <p>
+ * Unlike {@link KeyedBucketRegistry}, no objects are allocated per key. The table is an open-addressing hash
+ * table in direct memory, in which each slot holds a key's hash, its number of available tokens and its
+ * refill progress. The table consumes {@code 32 * capacity} bytes of direct memory, regardless of the number
+ * of keys, so it is well suited to large numbers of short-lived keys such as client IP addresses.
+ * <p>
+ * Every key is subject to the same {@link LimitSpec specification}. Refills follow the same schedule as a
+ * {@link Limit}, except that the periods of all keys start when the table is built. {@code stripes} and
+ * {@code algorithm} are ignored.
+ * <p>
+ * Keys are identified by a 64-bit hash, so keys whose hashes collide share the same tokens. A key is stored
+ * in one of the {@code 16} slots that follow its home slot. If none of these slots are free, the key
+ * replaces the slot that holds the most tokens:
+ * <ul>
+ *   <li>Replacing an idle key, whose tokens have refilled to {@code maximumTokens}, loses no state because a
+ *   key that is reinserted starts with {@code initialTokens}, which never exceeds {@code maximumTokens}.</li>
+ *   <li>Otherwise, the replaced key starts over with {@code initialTokens} the next time that it is used, so
+ *   {@code capacity} should be large enough to hold all active keys.</li>
+ * </ul>
+ * Rarely, a key that is inserted concurrently by multiple threads may replace different slots. Each copy of
+ * the key holds its own tokens until it is replaced.
+ * <p>
+ * Each slot is guarded by a lock that is acquired using compare-and-set, so consumers of different keys do
+ * not contend with one another. Threads that fail to acquire the lock spin briefly, then yield, then park for
+ * increasing durations, so a lock holder that is preempted does not leave its waiters burning CPU.
+ * <p>
+ * The memory is released when the table is garbage-collected.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+public final class OffHeapLimitTable
+{
+	/**
+	 * The largest number of slots that the table may hold.
+	 */
+	private static final int MAXIMUM_CAPACITY = 1 << 30;
+	/**
+	 * The number of slots in each segment of memory.
+	 */
+	private static final int SLOTS_PER_SEGMENT = 1 << 20;
+	/**
+	 * The number of slots that are searched for a key.
+	 */
+	private static final int MAXIMUM_PROBES = 16;
+	private static final int SLOT_SIZE = 4 * Long.BYTES;
+	private static final int CONTROL_OFFSET = 0;
+	private static final int KEY_OFFSET = Long.BYTES;
+	private static final int TOKENS_OFFSET = 2 * Long.BYTES;
+	private static final int REFILLS_OFFSET = 3 * Long.BYTES;
+	/**
+	 * The control value of a slot that does not hold a key.
+	 */
+	private static final long EMPTY = 0;
+	/**
+	 * The control value of a slot that holds a key and is not locked.
+	 */
+	private static final long UNLOCKED = 1;
+	/**
+	 * The control value of a slot that is locked.
+	 */
+	private static final long LOCKED = 2;
+	/**
+	 * The number of times that a thread spins on a locked slot before yielding.
+	 */
+	private static final int MAXIMUM_SPINS = 64;
+	/**
+	 * The number of times that a thread yields on a locked slot before parking.
+	 */
+	private static final int MAXIMUM_YIELDS = 16;
+	/**
+	 * The longest time that a thread parks for before checking if a locked slot was released, in nanoseconds.
+	 */
+	private static final long MAXIMUM_PARK_NANOS = 1_000_000;
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+		ByteOrder.nativeOrder());
+
+	/**
+	 * Returns a new table builder.
+	 *
+	 * @return a new table builder
+	 */
+	public static Builder builder()
+	{
+		return new Builder();
+	}
+
+	private final LimitSpec spec;
+	private final TimeSource timeSource;
+	private final int capacity;
+	private final int mask;
+	private final int slotsPerSegment;
+	private final ByteBuffer[] segments;
+	/**
+	 * The time at which the first period of every key started, in nanoseconds.
+	 */
+	private final long startOfFirstPeriod;
+
+	/**
+	 * Creates a new table.
+	 *
+	 * @param spec       the limit that each key is subject to
+	 * @param timeSource the source of time used by the table
+	 * @param capacity   the number of slots in the table (a power of two)
+	 */
+	private OffHeapLimitTable(LimitSpec spec, TimeSource timeSource, int capacity)
+	{
+		assert (Integer.bitCount(capacity) == 1) : "capacity: " + capacity;
+		this.spec = spec;
+		this.timeSource = timeSource;
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.slotsPerSegment = Math.min(capacity, SLOTS_PER_SEGMENT);
+		this.segments = new ByteBuffer[capacity / slotsPerSegment];
+		for (int i = 0; i < segments.length; ++i)
+		{
+			// Direct buffers are zeroed, so all slots start out EMPTY
+			segments[i] = ByteBuffer.allocateDirect(slotsPerSegment * SLOT_SIZE).order(ByteOrder.nativeOrder());
+		}
+		this.startOfFirstPeriod = timeSource.nanoTime();
+	}
+
+	/**
+	 * Returns the limit that each key is subject to.
+	 *
+	 * @return the limit that each key is subject to
+	 */
+	public LimitSpec getSpec()
+	{
+		return spec;
+	}
+
+	/**
+	 * Returns the source of time used by the table.
+	 *
+	 * @return the source of time used by the table
+	 */
+	public TimeSource getTimeSource()
+	{
+		return timeSource;
+	}
+
+	/**
+	 * Returns the number of slots in the table.
+	 *
+	 * @return the number of slots in the table
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Consumes tokens on behalf of a key, only if they are available at the time of invocation. Consumption
+	 * order is not guaranteed to be fair.
+	 * <p>
+	 * This method does not allocate any objects.
+	 *
+	 * @param keyHash the hash of the key
+	 * @param tokens  the number of tokens to consume
+	 * @return {@code tokens} if the tokens were consumed; otherwise, the negated number of nanoseconds until
+	 * the tokens are expected to become available (a value less than or equal to {@code -1})
+	 * @throws IllegalArgumentException if {@code tokens} is negative or zero. If the request can never
+	 *                                  succeed because the limit cannot hold the requested number of tokens.
+	 * @see Container#tryAcquire(long)
+	 */
+	@CheckReturnValue
+	public long tryAcquire(long keyHash, long tokens)
+	{
+		requireThat(tokens, "tokens").isPositive().
+			isLessThanOrEqualTo(spec.maximumTokens, "spec.getMaximumTokens()");
+		long now = timeSource.nanoTime();
+		long refillsElapsed = spec.getRefillsElapsed(startOfFirstPeriod, now);
+		int home = (int) mix(keyHash) & mask;
+		int probes = Math.min(MAXIMUM_PROBES, capacity);
+		while (true)
+		{
+			// The slot that should be replaced if the key is not found
+			int victim = -1;
+			long victimTokens = Long.MIN_VALUE;
+			for (int probe = 0; probe < probes; ++probe)
+			{
+				int slot = (home + probe) & mask;
+				ByteBuffer segment = segments[slot / slotsPerSegment];
+				int offset = (slot % slotsPerSegment) * SLOT_SIZE;
+				long control = lock(segment, offset);
+				if (control == EMPTY)
+				{
+					// Keys are never removed, so the key cannot be stored past an empty slot
+					if (victimTokens >= spec.maximumTokens)
+					{
+						// Prefer reusing an idle slot over lengthening the probe sequence of other keys
+						LONGS.setRelease(segment, offset + CONTROL_OFFSET, EMPTY);
+						break;
+					}
+					insert(segment, offset, keyHash, refillsElapsed);
+					return consume(segment, offset, tokens, refillsElapsed, now);
+				}
+				long availableTokens = refill(segment, offset, refillsElapsed);
+				if ((long) LONGS.get(segment, offset + KEY_OFFSET) == keyHash)
+					return consume(segment, offset, tokens, refillsElapsed, now);
+				LONGS.setRelease(segment, offset + CONTROL_OFFSET, UNLOCKED);
+				if (availableTokens > victimTokens)
+				{
+					victim = slot;
+					victimTokens = availableTokens;
+				}
+			}
+
+			ByteBuffer segment = segments[victim / slotsPerSegment];
+			int offset = (victim % slotsPerSegment) * SLOT_SIZE;
+			lock(segment, offset);
+			long availableTokens = refill(segment, offset, refillsElapsed);
+			// Another thread may have inserted the key in the meantime
+			if ((long) LONGS.get(segment, offset + KEY_OFFSET) == keyHash)
+				return consume(segment, offset, tokens, refillsElapsed, now);
+			if (availableTokens >= victimTokens)
+			{
+				insert(segment, offset, keyHash, refillsElapsed);
+				return consume(segment, offset, tokens, refillsElapsed, now);
+			}
+			// The victim was used in the meantime
+			LONGS.setRelease(segment, offset + CONTROL_OFFSET, UNLOCKED);
+		}
+	}
+
+	/**
+	 * Spreads the bits of a key's hash, so that similar keys map to distant slots.
+	 *
+	 * @param keyHash the hash of a key
+	 * @return the mixed hash
+	 */
+	private static long mix(long keyHash)
+	{
+		// The finalizer of MurmurHash3
+		keyHash ^= keyHash >>> 33;
+		keyHash *= 0xff51afd7ed558ccdL;
+		keyHash ^= keyHash >>> 33;
+		keyHash *= 0xc4ceb9fe1a85ec53L;
+		keyHash ^= keyHash >>> 33;
+		return keyHash;
+	}
+
+	/**
+	 * Locks a slot.
+	 *
+	 * @param segment the segment containing the slot
+	 * @param offset  the offset of the slot within the segment
+	 * @return the control value of the slot before it was locked ({@code EMPTY} or {@code UNLOCKED})
+	 */
+	private static long lock(ByteBuffer segment, int offset)
+	{
+		int attempts = 0;
+		long parkNanos = 1000;
+		while (true)
+		{
+			long control = (long) LONGS.getAcquire(segment, offset + CONTROL_OFFSET);
+			if (control != LOCKED && LONGS.compareAndSet(segment, offset + CONTROL_OFFSET, control, LOCKED))
+				return control;
+			// Back off in case the holder was preempted or, if it is a virtual thread, unmounted
+			if (attempts < MAXIMUM_SPINS)
+			{
+				Thread.onSpinWait();
+				++attempts;
+			}
+			else if (attempts < MAXIMUM_SPINS + MAXIMUM_YIELDS)
+			{
+				Thread.yield();
+				++attempts;
+			}
+			else
+			{
+				LockSupport.parkNanos(parkNanos);
+				parkNanos = Math.min(parkNanos * 2, MAXIMUM_PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Stores a key in a locked slot, replacing its existing state.
+	 *
+	 * @param segment        the segment containing the slot
+	 * @param offset         the offset of the slot within the segment
+	 * @param keyHash        the hash of the key
+	 * @param refillsElapsed the number of refills that took place since the table was built
+	 */
+	private void insert(ByteBuffer segment, int offset, long keyHash, long refillsElapsed)
+	{
+		LONGS.set(segment, offset + KEY_OFFSET, keyHash);
+		// maximumTokens may be lower than initialTokens
+		LONGS.set(segment, offset + TOKENS_OFFSET, Math.min(spec.initialTokens, spec.maximumTokens));
+		LONGS.set(segment, offset + REFILLS_OFFSET, refillsElapsed);
+	}
+
+	/**
+	 * Refills a locked slot.
+	 *
+	 * @param segment        the segment containing the slot
+	 * @param offset         the offset of the slot within the segment
+	 * @param refillsElapsed the number of refills that took place since the table was built
+	 * @return the number of available tokens
+	 */
+	private long refill(ByteBuffer segment, int offset, long refillsElapsed)
+	{
+		long availableTokens = (long) LONGS.get(segment, offset + TOKENS_OFFSET);
+		long refillsBefore = (long) LONGS.get(segment, offset + REFILLS_OFFSET);
+		if (refillsElapsed <= refillsBefore)
+			return availableTokens;
+		availableTokens = Math.min(spec.maximumTokens, Limit.saturatedAdd(availableTokens,
+			spec.getTokensAdded(refillsBefore, refillsElapsed)));
+		LONGS.set(segment, offset + TOKENS_OFFSET, availableTokens);
+		LONGS.set(segment, offset + REFILLS_OFFSET, refillsElapsed);
+		return availableTokens;
+	}
+
+	/**
+	 * Consumes tokens from a locked slot that was refilled, then unlocks it.
+	 *
+	 * @param segment        the segment containing the slot
+	 * @param offset         the offset of the slot within the segment
+	 * @param tokens         the number of tokens to consume
+	 * @param refillsElapsed the number of refills that took place since the table was built
+	 * @param now            the current time, in nanoseconds
+	 * @return {@code tokens} if the tokens were consumed; otherwise, the negated number of nanoseconds until
+	 * the tokens are expected to become available
+	 */
+	private long consume(ByteBuffer segment, int offset, long tokens, long refillsElapsed, long now)
+	{
+		try
+		{
+			long availableTokens = (long) LONGS.get(segment, offset + TOKENS_OFFSET);
+			if (availableTokens >= tokens)
+			{
+				LONGS.set(segment, offset + TOKENS_OFFSET, availableTokens - tokens);
+				return tokens;
+			}
+			long availableAt = spec.getRefillTime(startOfFirstPeriod,
+				spec.getRefillsNeeded(refillsElapsed, tokens - availableTokens));
+			return -Math.max(1, availableAt - now);
+		}
+		finally
+		{
+			LONGS.setRelease(segment, offset + CONTROL_OFFSET, UNLOCKED);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(OffHeapLimitTable.class).
+			add("spec", spec).
+			add("capacity", capacity).
+			add("timeSource", timeSource).
+			toString();
+	}
+
+	/**
+	 * Builds an OffHeapLimitTable.
+	 */
+	public static final class Builder
+	{
+		private LimitSpec spec = new Limit.Builder().build().getSpec();
+		private TimeSource timeSource = TimeSource.system();
+		private int capacity = 1 << 20;
+
+		/**
+		 * Prevent construction.
+		 */
+		private Builder()
+		{
+		}
+
+		/**
+		 * Returns the limit that each key is subject to. The default is the limit that is produced by an
+		 * unmodified {@link Limit.Builder}.
+		 *
+		 * @return the limit that each key is subject to
+		 */
+		@CheckReturnValue
+		public LimitSpec limit()
+		{
+			return spec;
+		}
+
+		/**
+		 * Sets the limit that each key is subject to. Only the limit's {@link Limit#getSpec() specification}
+		 * is used.
+		 *
+		 * @param limitBuilder builds the Limit
+		 * @return this
+		 * @throws NullPointerException if {@code limitBuilder} is null
+		 */
+		@CheckReturnValue
+		public Builder limit(Function<Limit.Builder, Limit> limitBuilder)
+		{
+			requireThat(limitBuilder, "limitBuilder").isNotNull();
+			this.spec = limitBuilder.apply(new Limit.Builder()).getSpec();
+			return this;
+		}
+
+		/**
+		 * Returns the source of time used by the table. The default is {@link TimeSource#system()}.
+		 *
+		 * @return the source of time used by the table
+		 */
+		@CheckReturnValue
+		public TimeSource timeSource()
+		{
+			return timeSource;
+		}
+
+		/**
+		 * Sets the source of time used by the table.
+		 *
+		 * @param timeSource the source of time used by the table
+		 * @return this
+		 * @throws NullPointerException if {@code timeSource} is null
+		 */
+		@CheckReturnValue
+		public Builder timeSource(TimeSource timeSource)
+		{
+			requireThat(timeSource, "timeSource").isNotNull();
+			this.timeSource = timeSource;
+			return this;
+		}
+
+		/**
+		 * Returns the number of slots in the table. The default is {@code 1,048,576}.
+		 *
+		 * @return the number of slots in the table
+		 */
+		@CheckReturnValue
+		public int capacity()
+		{
+			return capacity;
+		}
+
+		/**
+		 * Sets the number of slots in the table. The value is rounded up to the next power of two. Lookups
+		 * slow down as the table fills up, so the capacity should exceed the number of active keys by at least
+		 * 25%.
+		 *
+		 * @param capacity the number of slots in the table
+		 * @return this
+		 * @throws IllegalArgumentException if {@code capacity} is negative, zero or greater than
+		 *                                  {@code 2^30}
+		 */
+		@CheckReturnValue
+		public Builder capacity(int capacity)
+		{
+			requireThat(capacity, "capacity").isPositive().
+				isLessThanOrEqualTo(MAXIMUM_CAPACITY, "MAXIMUM_CAPACITY");
+			this.capacity = capacity;
+			return this;
+		}
+
+		/**
+		 * Builds a new OffHeapLimitTable.
+		 *
+		 * @return a new OffHeapLimitTable
+		 * @throws OutOfMemoryError if there is not enough direct memory to hold the table
+		 */
+		public OffHeapLimitTable build()
+		{
+			int roundedCapacity = Integer.highestOneBit(capacity);
+			if (roundedCapacity < capacity)
+				roundedCapacity <<= 1;
+			return new OffHeapLimitTable(spec, timeSource, roundedCapacity);
+		}
+
+		@Override
+		public String toString()
+		{
+			return new ToStringBuilder(Builder.class).
+				add("spec", spec).
+				add("timeSource", timeSource).
+				add("capacity", capacity).
+				toString();
+		}
+	}
+}
@@ -0,0 +1,608 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.annotation.CheckReturnValue;
+import com.github.cowwoc.tokenbucket.internal.AbstractContainer;
+import com.github.cowwoc.tokenbucket.internal.CloseableLock;
+import com.github.cowwoc.tokenbucket.internal.ContainerSecrets;
+import com.github.cowwoc.tokenbucket.internal.ReentrantStampedLock;
+import com.github.cowwoc.tokenbucket.internal.SharedSecrets;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * An executor that runs tasks on another executor once tokens are available for them.
+ * <p>
+ * Submitted tasks are queued in order. A single dispatcher, which runs on the underlying executor,
+ * consumes tokens for the task at the head of the queue and hands it to the underlying executor. While no
+ * tokens are available, the dispatcher waits using {@link Container#consumeAsync(long, long)}, so no thread
+ * is blocked no matter how many tasks are queued.
+ * <p>
+ * {@link #execute(Runnable)} only queues the task and, if necessary, hands the dispatcher to the underlying
+ * executor. Once tokens become available, the shared timer thread that retries asynchronous requests hands
+ * the dispatcher back to the underlying executor. Because that thread is shared by every asynchronous
+ * request in the JVM, the underlying executor must not run tasks in the calling thread or block it.
+ * <p>
+ * The executor terminates once it is shut down and every queued task has been handed to the underlying
+ * executor. Tasks that are still running on the underlying executor are not tracked.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+public final class RateLimitedExecutor extends AbstractExecutorService
+{
+	private static final ContainerSecrets CONTAINER_SECRETS = SharedSecrets.INSTANCE.containerSecrets;
+
+	/**
+	 * Builds a new executor.
+	 *
+	 * @return a RateLimitedExecutor builder
+	 */
+	public static Builder builder()
+	{
+		return new Builder();
+	}
+
+	private final Container container;
+	private final Executor executor;
+	private final long tokensPerTask;
+	private final int maximumQueueSize;
+	private final RejectionPolicy rejectionPolicy;
+	private final ReentrantStampedLock lock = new ReentrantStampedLock();
+	/**
+	 * Tasks that are waiting for tokens.
+	 */
+	private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+	/**
+	 * True if a dispatcher is handing queued tasks to the underlying executor.
+	 */
+	private boolean dispatching;
+	/**
+	 * The request for the tokens of the task at the head of the queue ({@code null} if there is none).
+	 */
+	private CompletableFuture<ConsumptionResult> pendingRequest;
+	private boolean shutdown;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private final Logger log = LoggerFactory.getLogger(RateLimitedExecutor.class);
+
+	/**
+	 * Creates a new executor.
+	 *
+	 * @param container        the container to consume tokens from
+	 * @param executor         the executor that runs tasks
+	 * @param tokensPerTask    the number of tokens that each task consumes
+	 * @param maximumQueueSize the maximum number of tasks that may wait for tokens
+	 * @param rejectionPolicy  determines what happens to tasks that are submitted while the queue is full
+	 */
+	private RateLimitedExecutor(Container container, Executor executor, long tokensPerTask,
+	                            int maximumQueueSize, RejectionPolicy rejectionPolicy)
+	{
+		this.container = container;
+		this.executor = executor;
+		this.tokensPerTask = tokensPerTask;
+		this.maximumQueueSize = maximumQueueSize;
+		this.rejectionPolicy = rejectionPolicy;
+	}
+
+	/**
+	 * Returns the container that tokens are consumed from.
+	 *
+	 * @return the container that tokens are consumed from
+	 */
+	public Container getContainer()
+	{
+		return container;
+	}
+
+	/**
+	 * Returns the number of tasks that are waiting for tokens.
+	 *
+	 * @return the number of tasks that are waiting for tokens
+	 */
+	public int getQueueSize()
+	{
+		try (CloseableLock ignored = lock.readLock())
+		{
+			return queue.size();
+		}
+	}
+
+	/**
+	 * Queues a task until tokens are available for it.
+	 *
+	 * @param task the task to run
+	 * @throws NullPointerException       if {@code task} is null
+	 * @throws RejectedExecutionException if the executor was shut down. If the queue is full and the
+	 *                                    rejection policy is {@link RejectionPolicy#ABORT ABORT}. If the
+	 *                                    underlying executor rejected the dispatcher.
+	 */
+	@Override
+	public void execute(Runnable task)
+	{
+		requireThat(task, "task").isNotNull();
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			if (shutdown)
+				throw new RejectedExecutionException("Executor was shut down");
+			if (queue.size() >= maximumQueueSize)
+			{
+				switch (rejectionPolicy)
+				{
+					case ABORT -> throw new RejectedExecutionException("Queue is full.\n" +
+						"maximumQueueSize: " + maximumQueueSize);
+					case DISCARD ->
+					{
+						return;
+					}
+					// The dispatcher is waiting for tokens on behalf of whichever task is at the head of the queue,
+					// so the oldest task may be discarded at any time
+					case DISCARD_OLDEST -> queue.poll();
+				}
+			}
+			queue.add(task);
+			if (dispatching)
+				return;
+			dispatching = true;
+		}
+		try
+		{
+			executor.execute(this::dispatch);
+		}
+		catch (RejectedExecutionException e)
+		{
+			boolean tasksRemain;
+			try (CloseableLock ignored = lock.writeLock())
+			{
+				// Other threads may have queued tasks after the lock was released. Those tasks were accepted, so
+				// only this task is rejected.
+				queue.removeLastOccurrence(task);
+				tasksRemain = !queue.isEmpty();
+				if (!tasksRemain)
+				{
+					dispatching = false;
+					if (shutdown)
+						terminated.countDown();
+				}
+			}
+			if (tasksRemain)
+				startDispatcher();
+			throw e;
+		}
+	}
+
+	/**
+	 * Hands the dispatcher to the underlying executor on behalf of tasks that are already queued. The caller
+	 * must have set {@code dispatching} to {@code true}. If the underlying executor rejects the dispatcher,
+	 * the queued tasks are discarded.
+	 */
+	private void startDispatcher()
+	{
+		try
+		{
+			executor.execute(this::dispatch);
+		}
+		catch (RejectedExecutionException e)
+		{
+			discardQueuedTasks(e);
+		}
+	}
+
+	/**
+	 * Discards all queued tasks after the underlying executor rejected the dispatcher.
+	 *
+	 * @param cause the reason that the dispatcher was rejected
+	 */
+	private void discardQueuedTasks(RejectedExecutionException cause)
+	{
+		List<Runnable> tasks;
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			pendingRequest = null;
+			tasks = new ArrayList<>(queue);
+			queue.clear();
+			dispatching = false;
+			if (shutdown)
+				terminated.countDown();
+		}
+		log.warn("The underlying executor rejected the dispatcher. Discarding queued tasks: {}", tasks, cause);
+	}
+
+	/**
+	 * Hands queued tasks to the underlying executor until the queue is empty or tokens run out. Only one
+	 * thread may dispatch tasks at a time. Runs on the underlying executor.
+	 */
+	private void dispatch()
+	{
+		while (true)
+		{
+			try (CloseableLock ignored = lock.writeLock())
+			{
+				if (queue.isEmpty())
+				{
+					dispatching = false;
+					if (shutdown)
+						terminated.countDown();
+					return;
+				}
+			}
+			ConsumptionResult result;
+			try
+			{
+				result = container.tryConsume(tokensPerTask);
+			}
+			catch (IllegalArgumentException e)
+			{
+				discardHead(e);
+				continue;
+			}
+			if (!result.isSuccessful())
+			{
+				CompletableFuture<ConsumptionResult> request = container.consumeAsync(tokensPerTask, tokensPerTask);
+				try (CloseableLock ignored = lock.writeLock())
+				{
+					pendingRequest = request;
+				}
+				request.whenComplete(this::resumeDispatcher);
+				return;
+			}
+			runHead();
+		}
+	}
+
+	/**
+	 * Invoked by the thread that completes a request for the tokens of the task at the head of the queue.
+	 * Hands the rest of the work to the underlying executor, because this is usually the shared timer thread.
+	 *
+	 * @param result the result of the request
+	 * @param t      the reason the request failed ({@code null} if it succeeded)
+	 */
+	private void resumeDispatcher(ConsumptionResult result, Throwable t)
+	{
+		try
+		{
+			executor.execute(() -> onTokensAvailable(result, t));
+		}
+		catch (RejectedExecutionException e)
+		{
+			discardQueuedTasks(e);
+		}
+	}
+
+	/**
+	 * Invoked when a request for the tokens of the task at the head of the queue completes. Runs on the
+	 * underlying executor.
+	 *
+	 * @param result the result of the request
+	 * @param t      the reason the request failed ({@code null} if it succeeded)
+	 */
+	private void onTokensAvailable(ConsumptionResult result, Throwable t)
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			pendingRequest = null;
+		}
+		if (t instanceof CompletionException)
+			t = t.getCause();
+		if (t instanceof CancellationException)
+		{
+			// shutdownNow() emptied the queue
+		}
+		else if (t != null)
+			discardHead(t);
+		else
+			runHead();
+		dispatch();
+	}
+
+	/**
+	 * Hands the task at the head of the queue to the underlying executor.
+	 */
+	private void runHead()
+	{
+		Runnable task;
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			task = queue.poll();
+		}
+		if (task == null)
+		{
+			// shutdownNow() emptied the queue after the tokens were consumed
+			return;
+		}
+		try
+		{
+			executor.execute(task);
+		}
+		catch (RejectedExecutionException e)
+		{
+			log.warn("The underlying executor rejected a task: {}", task, e);
+		}
+	}
+
+	/**
+	 * Discards the task at the head of the queue because its tokens can never be consumed. This happens if
+	 * the container's configuration was updated after the executor was built.
+	 *
+	 * @param cause the reason that the tokens cannot be consumed
+	 */
+	private void discardHead(Throwable cause)
+	{
+		Runnable task;
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			task = queue.poll();
+		}
+		log.warn("Discarding task because its tokens cannot be consumed: {}", task, cause);
+	}
+
+	@Override
+	public void shutdown()
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			shutdown = true;
+			if (!dispatching)
+				terminated.countDown();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Tasks that were already handed to the underlying executor are not interrupted.
+	 */
+	@Override
+	public List<Runnable> shutdownNow()
+	{
+		List<Runnable> tasks;
+		CompletableFuture<ConsumptionResult> pendingRequest;
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			shutdown = true;
+			tasks = new ArrayList<>(queue);
+			queue.clear();
+			pendingRequest = this.pendingRequest;
+			if (!dispatching)
+				terminated.countDown();
+		}
+		// Withdraw the request so that it does not consume any tokens
+		if (pendingRequest != null)
+			pendingRequest.cancel(false);
+		return tasks;
+	}
+
+	@Override
+	public boolean isShutdown()
+	{
+		try (CloseableLock ignored = lock.readLock())
+		{
+			return shutdown;
+		}
+	}
+
+	@Override
+	public boolean isTerminated()
+	{
+		return terminated.getCount() == 0;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		return terminated.await(timeout, unit);
+	}
+
+	@Override
+	public String toString()
+	{
+		try (CloseableLock ignored = lock.readLock())
+		{
+			return new ToStringBuilder(RateLimitedExecutor.class).
+				add("queueSize", queue.size()).
+				add("maximumQueueSize", maximumQueueSize).
+				add("tokensPerTask", tokensPerTask).
+				add("rejectionPolicy", rejectionPolicy).
+				add("shutdown", shutdown).
+				add("container", container).
+				toString();
+		}
+	}
+
+	/**
+	 * Builds a RateLimitedExecutor.
+	 */
+	public static final class Builder
+	{
+		private Container container;
+		private Executor executor;
+		private long tokensPerTask = 1;
+		private int maximumQueueSize = Integer.MAX_VALUE;
+		private RejectionPolicy rejectionPolicy = RejectionPolicy.ABORT;
+
+		/**
+		 * Prevent construction.
+		 */
+		private Builder()
+		{
+		}
+
+		/**
+		 * Returns the container that tokens are consumed from.
+		 *
+		 * @return the container that tokens are consumed from
+		 */
+		@CheckReturnValue
+		public Container container()
+		{
+			return container;
+		}
+
+		/**
+		 * Sets the container that tokens are consumed from.
+		 *
+		 * @param container the container that tokens are consumed from
+		 * @return this
+		 * @throws NullPointerException if {@code container} is null
+		 */
+		@CheckReturnValue
+		public Builder container(Container container)
+		{
+			requireThat(container, "container").isNotNull();
+			this.container = container;
+			return this;
+		}
+
+		/**
+		 * Returns the executor that runs tasks.
+		 *
+		 * @return the executor that runs tasks
+		 */
+		@CheckReturnValue
+		public Executor executor()
+		{
+			return executor;
+		}
+
+		/**
+		 * Sets the executor that runs tasks. The executor must not run tasks in the calling thread.
+		 *
+		 * @param executor the executor that runs tasks
+		 * @return this
+		 * @throws NullPointerException if {@code executor} is null
+		 */
+		@CheckReturnValue
+		public Builder executor(Executor executor)
+		{
+			requireThat(executor, "executor").isNotNull();
+			this.executor = executor;
+			return this;
+		}
+
+		/**
+		 * Returns the number of tokens that each task consumes. The default is {@code 1}.
+		 *
+		 * @return the number of tokens that each task consumes
+		 */
+		@CheckReturnValue
+		public long tokensPerTask()
+		{
+			return tokensPerTask;
+		}
+
+		/**
+		 * Sets the number of tokens that each task consumes.
+		 *
+		 * @param tokensPerTask the number of tokens that each task consumes
+		 * @return this
+		 * @throws IllegalArgumentException if {@code tokensPerTask} is negative or zero
+		 */
+		@CheckReturnValue
+		public Builder tokensPerTask(long tokensPerTask)
+		{
+			requireThat(tokensPerTask, "tokensPerTask").isPositive();
+			this.tokensPerTask = tokensPerTask;
+			return this;
+		}
+
+		/**
+		 * Returns the maximum number of tasks that may wait for tokens. The default is
+		 * {@code Integer.MAX_VALUE}.
+		 *
+		 * @return the maximum number of tasks that may wait for tokens
+		 */
+		@CheckReturnValue
+		public int maximumQueueSize()
+		{
+			return maximumQueueSize;
+		}
+
+		/**
+		 * Sets the maximum number of tasks that may wait for tokens.
+		 *
+		 * @param maximumQueueSize the maximum number of tasks that may wait for tokens
+		 * @return this
+		 * @throws IllegalArgumentException if {@code maximumQueueSize} is negative or zero
+		 */
+		@CheckReturnValue
+		public Builder maximumQueueSize(int maximumQueueSize)
+		{
+			requireThat(maximumQueueSize, "maximumQueueSize").isPositive();
+			this.maximumQueueSize = maximumQueueSize;
+			return this;
+		}
+
+		/**
+		 * Returns what happens to tasks that are submitted while the queue is full. The default is
+		 * {@link RejectionPolicy#ABORT ABORT}.
+		 *
+		 * @return what happens to tasks that are submitted while the queue is full
+		 */
+		@CheckReturnValue
+		public RejectionPolicy rejectionPolicy()
+		{
+			return rejectionPolicy;
+		}
+
+		/**
+		 * Sets what happens to tasks that are submitted while the queue is full.
+		 *
+		 * @param rejectionPolicy what happens to tasks that are submitted while the queue is full
+		 * @return this
+		 * @throws NullPointerException if {@code rejectionPolicy} is null
+		 */
+		@CheckReturnValue
+		public Builder rejectionPolicy(RejectionPolicy rejectionPolicy)
+		{
+			requireThat(rejectionPolicy, "rejectionPolicy").isNotNull();
+			this.rejectionPolicy = rejectionPolicy;
+			return this;
+		}
+
+		/**
+		 * Builds a new RateLimitedExecutor.
+		 *
+		 * @return a new RateLimitedExecutor
+		 * @throws NullPointerException     if {@code container} or {@code executor} are not set
+		 * @throws IllegalArgumentException if {@code tokensPerTask} exceeds the maximum number of tokens that
+		 *                                  the container could ever contain
+		 */
+		public RateLimitedExecutor build()
+		{
+			requireThat(container, "container").isNotNull();
+			requireThat(executor, "executor").isNotNull();
+			if (container instanceof AbstractContainer abstractContainer)
+			{
+				requireThat(tokensPerTask, "tokensPerTask").
+					isLessThanOrEqualTo(CONTAINER_SECRETS.getMaximumTokens(abstractContainer),
+						"container.getMaximumTokens()");
+			}
+			return new RateLimitedExecutor(container, executor, tokensPerTask, maximumQueueSize,
+				rejectionPolicy);
+		}
+
+		@Override
+		public String toString()
+		{
+			return new ToStringBuilder(Builder.class).
+				add("container", container).
+				add("executor", executor).
+				add("tokensPerTask", tokensPerTask).
+				add("maximumQueueSize", maximumQueueSize).
+				add("rejectionPolicy", rejectionPolicy).
+				toString();
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package com.github.cowwoc.tokenbucket;
+
+/**
+ * Determines what a {@link RateLimitedExecutor} does with a task that is submitted while its queue is full.
+ */
+public enum RejectionPolicy
+{
+	/**
+	 * Throws a {@link java.util.concurrent.RejectedExecutionException}.
+	 */
+	ABORT,
+	/**
+	 * Discards the task that was submitted.
+	 */
+	DISCARD,
+	/**
+	 * Discards the oldest task in the queue, and queues the task that was submitted.
+	 */
+	DISCARD_OLDEST
+}
@@ -0,0 +1,306 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.internal.AbstractContainer;
+import com.github.cowwoc.tokenbucket.internal.CloseableLock;
+import com.github.cowwoc.tokenbucket.internal.ContainerSecrets;
+import com.github.cowwoc.tokenbucket.internal.SharedSecrets;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * Tokens that were booked ahead of time.
+ * <p>
+ * Reserving tokens deducts them from the container immediately, even if they are not available yet. The
+ * number of available tokens may become negative, in which case subsequent consumers must wait for the debt
+ * to be repaid by refills. In return, the reservation indicates the exact time at which its holder may
+ * proceed.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ *
+ * @see Container#reserve(long)
+ */
+public final class Reservation
+{
+	private static final ContainerSecrets CONTAINER_SECRETS = SharedSecrets.INSTANCE.containerSecrets;
+	private final Container container;
+	private final long tokens;
+	private final List<Limit> limits;
+	private final Instant requestedAt;
+	private final Instant availableAt;
+	private final AtomicBoolean cancelled = new AtomicBoolean();
+
+	/**
+	 * Creates a new reservation.
+	 *
+	 * @param container   the container that the tokens were reserved from
+	 * @param tokens      the number of tokens that were reserved
+	 * @param limits      the limits that the tokens were deducted from
+	 * @param requestedAt the time at which the tokens were requested
+	 * @param availableAt the time at which the holder of the reservation may proceed
+	 */
+	private Reservation(Container container, long tokens, List<Limit> limits, Instant requestedAt,
+	                    Instant availableAt)
+	{
+		this.container = container;
+		this.tokens = tokens;
+		this.limits = limits;
+		this.requestedAt = requestedAt;
+		this.availableAt = availableAt;
+	}
+
+	/**
+	 * Reserves tokens.
+	 *
+	 * @param container the container to reserve tokens from
+	 * @param tokens    the number of tokens to reserve
+	 * @return the reservation
+	 * @throws IllegalArgumentException if {@code tokens} is negative or zero. If the request can never
+	 *                                  succeed because the container cannot hold the requested number of
+	 *                                  tokens.
+	 * @implNote This method acquires its own locks
+	 */
+	static Reservation reserve(AbstractContainer container, long tokens)
+	{
+		requireThat(tokens, "tokens").isPositive();
+		TimeSource timeSource = container.getTimeSource();
+		List<CloseableLock> locks = new ArrayList<>();
+		try
+		{
+			// Prevent the list of descendants from changing
+			List<AbstractContainer> containers = new ArrayList<>();
+			containers.add(container);
+			containers.addAll(CONTAINER_SECRETS.getDescendants(container));
+			for (AbstractContainer descendant : containers)
+				locks.add(CONTAINER_SECRETS.getLock(descendant).readLock());
+
+			// Prevent the number of tokens from changing
+			List<Limit> allLimits = new ArrayList<>();
+			for (AbstractContainer descendant : containers)
+			{
+				if (descendant instanceof Bucket bucket)
+					allLimits.addAll(bucket.getLimits());
+			}
+			for (Limit limit : allLimits)
+				locks.add(limit.lock.writeLock());
+
+			requireThat(tokens, "tokens").
+				isLessThanOrEqualTo(CONTAINER_SECRETS.getMaximumTokens(container), "container.getMaximumTokens()");
+			long requestedAt = timeSource.nanoTime();
+			for (Limit limit : allLimits)
+				limit.refill(requestedAt);
+			Plan plan = plan(container, tokens, requestedAt);
+			if (plan == null)
+			{
+				throw new IllegalArgumentException("None of the buckets can hold the number of tokens that were " +
+					"requested.\n" +
+					"tokens: " + tokens);
+			}
+			// Lock-free consumers may deduct tokens between planning and reserving, so the start time is derived
+			// from the balance that each deduction left behind.
+			long availableAt = requestedAt;
+			for (Limit limit : plan.limits)
+			{
+				long tokensLeft = limit.reserve(tokens, requestedAt);
+				long tokensNeeded = -Math.max(tokensLeft, -Long.MAX_VALUE);
+				availableAt = Math.max(availableAt, limit.getAvailableAt(tokensNeeded, requestedAt));
+			}
+			return new Reservation(container, tokens, List.copyOf(plan.limits), timeSource.toInstant(requestedAt),
+				timeSource.toInstant(availableAt));
+		}
+		finally
+		{
+			Collections.reverse(locks);
+			for (CloseableLock lock : locks)
+				lock.close();
+		}
+	}
+
+	/**
+	 * Determines which limits a reservation should deduct tokens from.
+	 *
+	 * @param container   a container
+	 * @param tokens      the number of tokens to reserve
+	 * @param requestedAt the time at which the tokens were requested, in nanoseconds
+	 * @return {@code null} if the container cannot hold the requested number of tokens
+	 */
+	private static Plan plan(AbstractContainer container, long tokens, long requestedAt)
+	{
+		if (container instanceof Bucket bucket)
+		{
+			List<Limit> limits = bucket.getLimits();
+			long availableAt = requestedAt;
+			for (Limit limit : limits)
+			{
+				if (limit.getMaximumTokens() < tokens)
+					return null;
+				availableAt = Math.max(availableAt,
+					limit.getAvailableAt(tokens - limit.getAvailableTokens(requestedAt), requestedAt));
+			}
+			return new Plan(limits, availableAt);
+		}
+		ContainerList containerList = (ContainerList) container;
+		@SuppressWarnings("unchecked")
+		List<AbstractContainer> children = (List<AbstractContainer>) (List<?>) containerList.getChildren();
+		switch (containerList.getConsumptionPolicy())
+		{
+			case CONSUME_FROM_ONE ->
+			{
+				// Pick the child that can satisfy the reservation the soonest
+				Plan result = null;
+				for (AbstractContainer child : children)
+				{
+					Plan candidate = plan(child, tokens, requestedAt);
+					if (candidate != null && (result == null || candidate.availableAt < result.availableAt))
+						result = candidate;
+				}
+				return result;
+			}
+			case CONSUME_FROM_ALL ->
+			{
+				List<Limit> limits = new ArrayList<>();
+				long availableAt = requestedAt;
+				for (AbstractContainer child : children)
+				{
+					Plan candidate = plan(child, tokens, requestedAt);
+					if (candidate == null)
+						return null;
+					limits.addAll(candidate.limits);
+					availableAt = Math.max(availableAt, candidate.availableAt);
+				}
+				return new Plan(limits, availableAt);
+			}
+			default -> throw new AssertionError(containerList.getConsumptionPolicy().name());
+		}
+	}
+
+	/**
+	 * Returns the container that the tokens were reserved from.
+	 *
+	 * @return the container that the tokens were reserved from
+	 */
+	public Container getContainer()
+	{
+		return container;
+	}
+
+	/**
+	 * Returns the number of tokens that were reserved.
+	 *
+	 * @return the number of tokens that were reserved
+	 */
+	public long getTokens()
+	{
+		return tokens;
+	}
+
+	/**
+	 * Returns the time at which the tokens were requested.
+	 *
+	 * @return the time at which the tokens were requested
+	 */
+	public Instant getRequestedAt()
+	{
+		return requestedAt;
+	}
+
+	/**
+	 * Returns the time at which the holder of the reservation may proceed.
+	 *
+	 * @return the time at which the holder of the reservation may proceed
+	 */
+	public Instant getAvailableAt()
+	{
+		return availableAt;
+	}
+
+	/**
+	 * Returns the amount of time that the holder of the reservation must wait, relative to the time that the
+	 * tokens were requested.
+	 *
+	 * @return the amount of time that the holder of the reservation must wait
+	 */
+	public Duration getAvailableIn()
+	{
+		return Duration.between(requestedAt, availableAt);
+	}
+
+	/**
+	 * Indicates if the reservation was cancelled.
+	 *
+	 * @return true if the reservation was cancelled
+	 */
+	public boolean isCancelled()
+	{
+		return cancelled.get();
+	}
+
+	/**
+	 * Cancels the reservation, returning its tokens to the container. Tokens that overflow the container are
+	 * discarded.
+	 * <p>
+	 * The holder of the reservation should not proceed after cancelling it.
+	 *
+	 * @return false if the reservation was already cancelled
+	 * @implNote This method acquires its own locks
+	 */
+	public boolean cancel()
+	{
+		if (!cancelled.compareAndSet(false, true))
+			return false;
+		for (Limit limit : limits)
+		{
+			try (CloseableLock ignored = limit.lock.writeLock())
+			{
+				limit.refund(tokens);
+			}
+			Bucket bucket = limit.getBucket();
+			if (bucket != null)
+				CONTAINER_SECRETS.wakeConsumers(bucket);
+		}
+		CONTAINER_SECRETS.wakeConsumers((AbstractContainer) container);
+		return true;
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(Reservation.class).
+			add("tokens", tokens).
+			add("requestedAt", requestedAt).
+			add("availableAt", availableAt).
+			add("cancelled", cancelled.get()).
+			toString();
+	}
+
+	/**
+	 * The limits that a reservation should deduct tokens from.
+	 */
+	private static final class Plan
+	{
+		final List<Limit> limits;
+		/**
+		 * The estimated time at which the holder of the reservation may proceed, in nanoseconds. Only used to
+		 * choose between children.
+		 */
+		final long availableAt;
+
+		/**
+		 * @param limits      the limits that the reservation should deduct tokens from
+		 * @param availableAt the estimated time at which the holder of the reservation may proceed, in
+		 *                    nanoseconds
+		 */
+		Plan(List<Limit> limits, long availableAt)
+		{
+			this.limits = limits;
+			this.availableAt = availableAt;
+		}
+	}
+}
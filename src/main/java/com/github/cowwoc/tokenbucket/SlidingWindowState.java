@@ -0,0 +1,332 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.internal.CloseableLock;
+import com.github.cowwoc.tokenbucket.internal.ReentrantStampedLock;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+import static com.github.cowwoc.tokenbucket.Limit.saturatedAdd;
+import static com.github.cowwoc.tokenbucket.Limit.saturatedMultiply;
+
+/**
+ * The state of a limit that uses {@link LimitAlgorithm#SLIDING_WINDOW}.
+ * <p>
+ * The window is divided into {@code subWindows} sub-windows, each of which counts the tokens that were
+ * consumed during it. Sub-window {@code n} covers {@code [startOfFirstWindow + n * timePerSubWindow,
+ * startOfFirstWindow + (n + 1) * timePerSubWindow)} and its tokens become available again once
+ * {@code subWindows} full sub-windows have passed since it ended, that is, once sub-window
+ * {@code n + subWindows + 1} begins. Tokens are therefore held for at least one {@code period}, and at most
+ * one {@code period} plus one sub-window. The counters are kept in a ring of {@code subWindows + 1}
+ * elements, so that the current sub-window and the {@code subWindows} sub-windows before it are tracked
+ * separately.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+final class SlidingWindowState extends LimitState
+{
+	/**
+	 * The maximum number of sub-windows that a window may be divided into.
+	 */
+	private static final int MAXIMUM_SUB_WINDOWS = 1024;
+	private final Limit.SharedSpec sharedSpec;
+	/**
+	 * A lock over the window. Unlike the other algorithms, the window cannot be updated using a single
+	 * compare-and-set.
+	 */
+	private final ReentrantStampedLock lock = new ReentrantStampedLock();
+	private volatile TimeSource timeSource;
+	/**
+	 * The specification that the window was last laid out for.
+	 */
+	private LimitSpec spec;
+	private long startOfFirstWindow;
+	private long nanosPerSubWindow;
+	/**
+	 * The number of tokens that were consumed during each sub-window, indexed by
+	 * {@code subWindow % tokensPerSubWindow.length}. The array holds one more element than the number of
+	 * sub-windows per period.
+	 */
+	private long[] tokensPerSubWindow;
+	/**
+	 * The most recent sub-window.
+	 */
+	private long currentSubWindow;
+	/**
+	 * The sum of {@code tokensPerSubWindow}.
+	 */
+	private long tokensInWindow;
+
+	/**
+	 * Creates a new state.
+	 *
+	 * @param sharedSpec the specification of the limit
+	 */
+	SlidingWindowState(Limit.SharedSpec sharedSpec)
+	{
+		this.sharedSpec = sharedSpec;
+		// The window starts over once the limit is added to a bucket
+		start(TimeSource.system());
+	}
+
+	@Override
+	void start(TimeSource timeSource)
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			LimitSpec spec = sharedSpec.value;
+			this.timeSource = timeSource;
+			layOut(spec, timeSource.nanoTime());
+			// Tokens that are missing from the initial window are treated as if they were consumed when the
+			// window began
+			long initialTokens = Math.min(spec.initialTokens, spec.maximumTokens);
+			tokensInWindow = spec.maximumTokens - initialTokens;
+			if (tokensInWindow < 0)
+			{
+				// initialTokens is so negative that the difference overflowed
+				tokensInWindow = Long.MAX_VALUE;
+			}
+			tokensPerSubWindow[0] = tokensInWindow;
+		}
+	}
+
+	/**
+	 * Divides the window into sub-windows, discarding the tokens that they hold. The caller must hold
+	 * {@code lock}.
+	 *
+	 * @param spec the specification of the limit
+	 * @param now  the time at which the first sub-window begins
+	 */
+	private void layOut(LimitSpec spec, long now)
+	{
+		int subWindows = getSubWindows(spec);
+		this.spec = spec;
+		this.startOfFirstWindow = now;
+		// Round up so that the window is never shorter than the period
+		this.nanosPerSubWindow = -Math.floorDiv(-spec.nanosPerPeriod, subWindows);
+		// The current sub-window is tracked in addition to the subWindows sub-windows that precede it
+		this.tokensPerSubWindow = new long[subWindows + 1];
+		this.currentSubWindow = 0;
+		this.tokensInWindow = 0;
+	}
+
+	/**
+	 * @param spec the specification of the limit
+	 * @return the number of sub-windows that the window is divided into
+	 */
+	private static int getSubWindows(LimitSpec spec)
+	{
+		return (int) Math.min(Math.min(spec.refillsPerPeriod, MAXIMUM_SUB_WINDOWS), spec.nanosPerPeriod);
+	}
+
+	@Override
+	TimeSource getTimeSource()
+	{
+		return timeSource;
+	}
+
+	@Override
+	void restart()
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			restart(sharedSpec.value);
+		}
+	}
+
+	/**
+	 * Lays out a new window for an updated specification. Tokens that were consumed during the old window are
+	 * carried over to the first sub-window of the new window. The caller must hold {@code lock}.
+	 *
+	 * @param spec the new specification
+	 */
+	private void restart(LimitSpec spec)
+	{
+		long tokensInWindow = this.tokensInWindow;
+		layOut(spec, timeSource.nanoTime());
+		this.tokensInWindow = tokensInWindow;
+		tokensPerSubWindow[0] = tokensInWindow;
+	}
+
+	/**
+	 * Releases the tokens of any sub-windows that ended, and lays out a new window if the specification was
+	 * updated through another limit that shares it. The caller must hold {@code lock}.
+	 *
+	 * @param now the current time
+	 * @return the specification of the limit
+	 */
+	private LimitSpec advance(long now)
+	{
+		LimitSpec spec = sharedSpec.value;
+		if (this.spec != spec)
+			restart(spec);
+		long timeElapsed = now - startOfFirstWindow;
+		if (timeElapsed <= 0)
+			return spec;
+		long subWindow = timeElapsed / nanosPerSubWindow;
+		if (subWindow <= currentSubWindow)
+			return spec;
+		int length = tokensPerSubWindow.length;
+		long subWindowsToRelease = Math.min(subWindow - currentSubWindow, length);
+		for (long i = 1; i <= subWindowsToRelease; ++i)
+		{
+			int index = (int) ((currentSubWindow + i) % length);
+			tokensInWindow -= tokensPerSubWindow[index];
+			tokensPerSubWindow[index] = 0;
+		}
+		currentSubWindow = subWindow;
+		return spec;
+	}
+
+	@Override
+	void refill(long now)
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			advance(now);
+		}
+	}
+
+	@Override
+	long getAvailableTokens()
+	{
+		return getAvailableTokens(timeSource.nanoTime());
+	}
+
+	@Override
+	long getAvailableTokens(long now)
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			return advance(now).maximumTokens - tokensInWindow;
+		}
+	}
+
+	@Override
+	void setAvailableTokens(long tokens)
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			LimitSpec spec = advance(timeSource.nanoTime());
+			long tokensInWindow = spec.maximumTokens - Math.min(tokens, spec.maximumTokens);
+			if (tokensInWindow < 0)
+			{
+				// tokens is so negative that the difference overflowed
+				tokensInWindow = Long.MAX_VALUE;
+			}
+			Arrays.fill(tokensPerSubWindow, 0);
+			tokensPerSubWindow[getIndex(currentSubWindow)] = tokensInWindow;
+			this.tokensInWindow = tokensInWindow;
+		}
+	}
+
+	/**
+	 * @param subWindow a sub-window
+	 * @return the index of the sub-window in {@code tokensPerSubWindow}
+	 */
+	private int getIndex(long subWindow)
+	{
+		return (int) (subWindow % tokensPerSubWindow.length);
+	}
+
+	@Override
+	long tryConsume(long minimumTokens, long maximumTokens, long now)
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			long availableTokens = advance(now).maximumTokens - tokensInWindow;
+			if (availableTokens < minimumTokens)
+				return 0;
+			long tokensConsumed = Math.min(maximumTokens, availableTokens);
+			tokensPerSubWindow[getIndex(currentSubWindow)] += tokensConsumed;
+			tokensInWindow += tokensConsumed;
+			return tokensConsumed;
+		}
+	}
+
+	@Override
+	long consume(long tokens, long now)
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			LimitSpec spec = advance(now);
+			int index = getIndex(currentSubWindow);
+			tokensPerSubWindow[index] = saturatedAdd(tokensPerSubWindow[index], tokens);
+			tokensInWindow = saturatedAdd(tokensInWindow, tokens);
+			return spec.maximumTokens - tokensInWindow;
+		}
+	}
+
+	@Override
+	void refund(long tokens)
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			// Return the tokens to the most recent sub-windows first, as that is where they were most likely
+			// consumed. Tokens that exceed the window's contents are discarded.
+			int length = tokensPerSubWindow.length;
+			for (int i = 0; i < length && tokens > 0; ++i)
+			{
+				int index = getIndex(currentSubWindow - i + length);
+				long tokensRefunded = Math.min(tokens, tokensPerSubWindow[index]);
+				tokensPerSubWindow[index] -= tokensRefunded;
+				tokensInWindow -= tokensRefunded;
+				tokens -= tokensRefunded;
+			}
+		}
+	}
+
+	@Override
+	long getAvailableAt(long tokensNeeded, long requestedAt)
+	{
+		if (tokensNeeded <= 0)
+			return requestedAt;
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			advance(requestedAt);
+			// Sub-window currentSubWindow + i releases the tokens that were consumed during sub-window
+			// currentSubWindow + i - length, that is, once subWindows full sub-windows have passed since it ended
+			int length = tokensPerSubWindow.length;
+			long tokensReleased = 0;
+			for (int i = 1; i <= length; ++i)
+			{
+				long subWindow = currentSubWindow + i;
+				tokensReleased = saturatedAdd(tokensReleased, tokensPerSubWindow[getIndex(subWindow)]);
+				if (tokensReleased >= tokensNeeded)
+				{
+					long availableAt = saturatedAdd(startOfFirstWindow,
+						saturatedMultiply(subWindow, nanosPerSubWindow));
+					return Math.max(requestedAt, availableAt);
+				}
+			}
+			// The limit holds less than tokensNeeded tokens even when the window is empty
+			return Long.MAX_VALUE;
+		}
+	}
+
+	@Override
+	long getStartOfCurrentPeriod()
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			long firstSubWindow = Math.max(0, currentSubWindow - tokensPerSubWindow.length + 1);
+			return startOfFirstWindow + firstSubWindow * nanosPerSubWindow;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		try (CloseableLock ignored = lock.writeLock())
+		{
+			return new ToStringBuilder(SlidingWindowState.class).
+				add("startOfCurrentSubWindow",
+					timeSource.toInstant(startOfFirstWindow + currentSubWindow * nanosPerSubWindow)).
+				add("tokensInWindow", tokensInWindow).
+				add("subWindows", tokensPerSubWindow.length - 1).
+				add("timePerSubWindow", Duration.ofNanos(nanosPerSubWindow)).
+				toString();
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package com.github.cowwoc.tokenbucket;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks the number of available tokens using multiple cells, in order to reduce contention between
+ * threads.
+ * <p>
+ * Each thread consumes tokens from its "home" cell. When the home cell runs dry, the thread borrows tokens
+ * from the other cells before reporting failure. Refills are divided evenly across the cells, and tokens that
+ * overflow one cell spill into the others.
+ * <p>
+ * Each cell may hold up to {@code ceil(maximumTokens / stripes)} tokens, so the counter may hold up to
+ * {@code stripes - 1} tokens more than {@code maximumTokens}.
+ * <p>
+ * Tokens that are consumed beyond the available tokens, such as those of a reservation, are tracked as a
+ * debt that is separate from the cells. Refills pay off the debt before they reach the cells, and no tokens
+ * are handed out while any debt is outstanding, so the cells never admit tokens while the total is
+ * negative. The only remaining error is the overflow above.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+final class StripedTokenCounter extends TokenCounter
+{
+	/**
+	 * The number of {@code long}s between consecutive cells. 16 longs span 128 bytes, which prevents false
+	 * sharing even on CPUs that prefetch pairs of cache lines.
+	 */
+	private static final int STRIDE = 16;
+	private final int stripes;
+	/**
+	 * The cells, followed by the debt. Cell {@code i} is stored at index {@code i * STRIDE}.
+	 */
+	private final AtomicLongArray cells;
+	/**
+	 * The index of the number of tokens that were consumed beyond the available tokens.
+	 */
+	private final int debtIndex;
+
+	/**
+	 * Creates a new counter.
+	 *
+	 * @param stripes       the number of cells that tokens are split across
+	 * @param initialTokens the initial number of tokens
+	 */
+	StripedTokenCounter(int stripes, long initialTokens)
+	{
+		this.stripes = stripes;
+		this.cells = new AtomicLongArray((stripes + 1) * STRIDE);
+		this.debtIndex = stripes * STRIDE;
+		set(initialTokens);
+	}
+
+	/**
+	 * @return the cell associated with the current thread
+	 */
+	private int getHomeStripe()
+	{
+		return getHomeIndex(stripes);
+	}
+
+	/**
+	 * Maps the current thread to an index.
+	 *
+	 * @param length the number of indexes
+	 * @return an index in {@code [0, length)} that is associated with the current thread
+	 */
+	static int getHomeIndex(int length)
+	{
+		// Thread IDs are sequential, so they are mixed using the MurmurHash3 finalizer before being mapped to an
+		// index.
+		long hash = Thread.currentThread().getId();
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return (int) Math.floorMod(hash, (long) length);
+	}
+
+	@Override
+	long get()
+	{
+		long sum = 0;
+		for (int stripe = 0; stripe < stripes; ++stripe)
+			sum = Limit.saturatedAdd(sum, cells.get(stripe * STRIDE));
+		return Limit.saturatedAdd(sum, -cells.get(debtIndex));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Refills are divided evenly across the cells, so the estimate extrapolates from the current thread's
+	 * cell instead of reading every cell.
+	 */
+	@Override
+	long estimate()
+	{
+		long homeTokens = cells.get(getHomeStripe() * STRIDE);
+		return Limit.saturatedAdd(Limit.saturatedMultiply(homeTokens, stripes), -cells.get(debtIndex));
+	}
+
+	@Override
+	void set(long tokens)
+	{
+		if (tokens < 0)
+		{
+			for (int stripe = 0; stripe < stripes; ++stripe)
+				cells.set(stripe * STRIDE, 0);
+			// -Long.MIN_VALUE overflows
+			long debt;
+			if (tokens == Long.MIN_VALUE)
+				debt = Long.MAX_VALUE;
+			else
+				debt = -tokens;
+			cells.set(debtIndex, debt);
+			return;
+		}
+		cells.set(debtIndex, 0);
+		long share = Math.floorDiv(tokens, stripes);
+		long remainder = Math.floorMod(tokens, stripes);
+		for (int stripe = 0; stripe < stripes; ++stripe)
+		{
+			long cellTokens = share;
+			if (stripe < remainder)
+				++cellTokens;
+			cells.set(stripe * STRIDE, cellTokens);
+		}
+	}
+
+	@Override
+	void add(long tokens, long maximumTokens)
+	{
+		tokens = payOffDebt(tokens);
+		if (tokens <= 0)
+			return;
+		long cellMaximum = maximumTokens / stripes;
+		if (maximumTokens % stripes != 0)
+			++cellMaximum;
+		long share = tokens / stripes;
+		long remainder = tokens % stripes;
+		int homeStripe = getHomeStripe();
+		long overflow = 0;
+		for (int i = 0; i < stripes; ++i)
+		{
+			long cellTokens = share;
+			if (i < remainder)
+				++cellTokens;
+			overflow = addToCell((homeStripe + i) % stripes, Limit.saturatedAdd(cellTokens, overflow),
+				cellMaximum);
+		}
+		// Spill tokens that did not fit into cells that have spare capacity
+		for (int i = 0; i < stripes && overflow > 0; ++i)
+			overflow = addToCell((homeStripe + i) % stripes, overflow, cellMaximum);
+	}
+
+	/**
+	 * Adds tokens to a cell, without exceeding its capacity.
+	 *
+	 * @param stripe      the index of the cell
+	 * @param tokens      the number of tokens to add
+	 * @param cellMaximum the maximum number of tokens that the cell may hold
+	 * @return the number of tokens that did not fit into the cell
+	 */
+	private long addToCell(int stripe, long tokens, long cellMaximum)
+	{
+		int index = stripe * STRIDE;
+		while (true)
+		{
+			long tokensBefore = cells.get(index);
+			long sum = Limit.saturatedAdd(tokensBefore, tokens);
+			long tokensAfter = Math.min(cellMaximum, sum);
+			if (cells.compareAndSet(index, tokensBefore, tokensAfter))
+				return sum - tokensAfter;
+		}
+	}
+
+	/**
+	 * Pays off the debt using refilled tokens.
+	 *
+	 * @param tokens the number of tokens that were refilled
+	 * @return the number of tokens that are left after paying off the debt
+	 */
+	private long payOffDebt(long tokens)
+	{
+		while (true)
+		{
+			long debt = cells.get(debtIndex);
+			if (debt <= 0)
+				return tokens;
+			long tokensPaid = Math.min(debt, tokens);
+			if (cells.compareAndSet(debtIndex, debt, debt - tokensPaid))
+				return tokens - tokensPaid;
+		}
+	}
+
+	/**
+	 * Takes tokens from a cell.
+	 *
+	 * @param stripe        the index of the cell
+	 * @param minimumTokens the minimum number of tokens to take
+	 * @param maximumTokens the maximum number of tokens to take
+	 * @return the number of tokens that were taken, or {@code 0} if the cell contained less than
+	 * {@code minimumTokens}
+	 */
+	private long takeFromCell(int stripe, long minimumTokens, long maximumTokens)
+	{
+		int index = stripe * STRIDE;
+		while (true)
+		{
+			long tokensBefore = cells.get(index);
+			if (tokensBefore < minimumTokens || tokensBefore <= 0)
+				return 0;
+			long tokensTaken = Math.min(maximumTokens, tokensBefore);
+			if (cells.compareAndSet(index, tokensBefore, tokensBefore - tokensTaken))
+				return tokensTaken;
+		}
+	}
+
+	@Override
+	long consume(long tokens)
+	{
+		int homeStripe = getHomeStripe();
+		long tokensLeft = tokens;
+		for (int i = 0; i < stripes && tokensLeft > 0; ++i)
+			tokensLeft -= takeFromCell((homeStripe + i) % stripes, 1, tokensLeft);
+		if (tokensLeft > 0)
+		{
+			// Record the shortfall as a debt, so that no cell hands out tokens until it is paid off
+			long shortfall = tokensLeft;
+			cells.getAndUpdate(debtIndex, debt -> Limit.saturatedAdd(debt, shortfall));
+		}
+		return get();
+	}
+
+	@Override
+	long tryConsume(long minimumTokens, long maximumTokens)
+	{
+		if (cells.get(debtIndex) > 0)
+			return 0;
+		int homeStripe = getHomeStripe();
+		long tokensConsumed = takeFromCell(homeStripe, minimumTokens, maximumTokens);
+		if (tokensConsumed > 0)
+			return tokensConsumed;
+
+		// Borrow tokens from the other cells
+		for (int i = 0; i < stripes && tokensConsumed < minimumTokens; ++i)
+		{
+			tokensConsumed += takeFromCell((homeStripe + i) % stripes, 1,
+				minimumTokens - tokensConsumed);
+		}
+		if (tokensConsumed >= minimumTokens)
+			return tokensConsumed;
+		// Not enough tokens. Return the borrowed tokens.
+		if (tokensConsumed > 0)
+			cells.getAndAdd(homeStripe * STRIDE, tokensConsumed);
+		return 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder("[");
+		for (int stripe = 0; stripe < stripes; ++stripe)
+		{
+			if (stripe > 0)
+				result.append(", ");
+			result.append(cells.get(stripe * STRIDE));
+		}
+		return result.append("], debt: ").append(cells.get(debtIndex)).toString();
+	}
+}
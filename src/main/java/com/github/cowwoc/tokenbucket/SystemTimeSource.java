@@ -0,0 +1,67 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static com.github.cowwoc.tokenbucket.Limit.saturatedAdd;
+import static com.github.cowwoc.tokenbucket.Limit.saturatedToNanos;
+
+/**
+ * A time source that is backed by {@link System#nanoTime()}.
+ * <p>
+ * Times are converted to an {@code Instant} relative to the wall-clock time at which this class was
+ * initialized.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+final class SystemTimeSource implements TimeSource
+{
+	static final SystemTimeSource INSTANCE = new SystemTimeSource();
+	private final Instant origin = Instant.now();
+	private final long originNanoTime = System.nanoTime();
+
+	/**
+	 * Prevent construction.
+	 */
+	private SystemTimeSource()
+	{
+	}
+
+	@Override
+	public long nanoTime()
+	{
+		return System.nanoTime();
+	}
+
+	@Override
+	public Instant toInstant(long nanoTime)
+	{
+		if (nanoTime == Long.MAX_VALUE)
+			return Instant.MAX;
+		long elapsed = saturatedAdd(nanoTime, -originNanoTime);
+		if (elapsed == Long.MAX_VALUE)
+			return Instant.MAX;
+		if (elapsed == Long.MIN_VALUE)
+			return Instant.MIN;
+		return origin.plusNanos(elapsed);
+	}
+
+	@Override
+	public long toNanoTime(Instant instant)
+	{
+		long elapsed = saturatedToNanos(Duration.between(origin, instant));
+		if (elapsed == Long.MAX_VALUE || elapsed == Long.MIN_VALUE)
+			return elapsed;
+		return saturatedAdd(originNanoTime, elapsed);
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(SystemTimeSource.class).
+			add("origin", origin).
+			toString();
+	}
+}
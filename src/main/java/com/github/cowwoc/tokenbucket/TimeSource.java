@@ -0,0 +1,62 @@
+package com.github.cowwoc.tokenbucket;
+
+import java.time.Instant;
+
+/**
+ * A source of time.
+ * <p>
+ * Times are measured in nanoseconds relative to an arbitrary origin, like {@link System#nanoTime()}, and may
+ * only be compared to other values returned by the same {@code TimeSource}. They must never decrease.
+ * <p>
+ * All containers in a hierarchy must use the same {@code TimeSource}.
+ * <p>
+ * <b>Thread safety</b>: Implementations must be thread-safe.
+ */
+public interface TimeSource
+{
+	/**
+	 * Returns a time source that is backed by {@link System#nanoTime()}.
+	 * <p>
+	 * Unlike {@link Instant#now()}, this time source is not affected by changes to the system time.
+	 *
+	 * @return a time source that is backed by {@code System.nanoTime()}
+	 */
+	static TimeSource system()
+	{
+		return SystemTimeSource.INSTANCE;
+	}
+
+	/**
+	 * Returns the current time.
+	 *
+	 * @return the current time, in nanoseconds
+	 */
+	long nanoTime();
+
+	/**
+	 * Converts a time returned by {@link #nanoTime()} to an {@code Instant}.
+	 * <p>
+	 * {@code Long.MAX_VALUE} denotes a time that never arrives, such as the time at which a limit holds more
+	 * tokens than it ever can, and is converted to {@code Instant.MAX}. Other times saturate at
+	 * {@code Instant.MIN} or {@code Instant.MAX} if they cannot be represented.
+	 *
+	 * @param nanoTime a time, in nanoseconds
+	 * @return the corresponding {@code Instant}
+	 */
+	Instant toInstant(long nanoTime);
+
+	/**
+	 * Converts an {@code Instant} to a time that is comparable with the values returned by
+	 * {@link #nanoTime()}.
+	 *
+	 * <p>
+	 * {@code Instant.MAX} is converted to {@code Long.MAX_VALUE}, a time that never arrives. Instants that are
+	 * too far away from the time source's origin to be represented in nanoseconds saturate at
+	 * {@code Long.MIN_VALUE} or {@code Long.MAX_VALUE}.
+	 *
+	 * @param instant an {@code Instant}
+	 * @return the corresponding time, in nanoseconds
+	 * @throws NullPointerException if {@code instant} is null
+	 */
+	long toNanoTime(Instant instant);
+}
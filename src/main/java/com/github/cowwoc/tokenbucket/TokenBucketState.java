@@ -0,0 +1,383 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+
+/**
+ * The state of a limit that uses {@link LimitAlgorithm#TOKEN_BUCKET}.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+final class TokenBucketState extends LimitState
+{
+	private static final VarHandle SCHEDULE;
+
+	static
+	{
+		try
+		{
+			SCHEDULE = MethodHandles.lookup().findVarHandle(TokenBucketState.class, "schedule",
+				RefillSchedule.class);
+		}
+		catch (NoSuchFieldException | IllegalAccessException e)
+		{
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final Limit.SharedSpec sharedSpec;
+	/**
+	 * The refill progress of the limit. The schedule is replaced (never modified) when the specification
+	 * changes.
+	 */
+	private volatile RefillSchedule schedule;
+	/**
+	 * The number of available tokens. The counter is updated using compare-and-set, so it may be modified
+	 * without holding a lock.
+	 */
+	private final TokenCounter tokenCounter;
+
+	/**
+	 * Creates a new state.
+	 *
+	 * @param sharedSpec the specification of the limit
+	 */
+	TokenBucketState(Limit.SharedSpec sharedSpec)
+	{
+		LimitSpec spec = sharedSpec.value;
+		this.sharedSpec = sharedSpec;
+		// maximumTokens may have been lowered below initialTokens by a configuration update
+		this.tokenCounter = TokenCounter.of(spec.stripes, Math.min(spec.initialTokens, spec.maximumTokens));
+		// The first period starts over once the limit is added to a bucket
+		this.schedule = new RefillSchedule(spec, TimeSource.system());
+	}
+
+	@Override
+	void start(TimeSource timeSource)
+	{
+		this.schedule = new RefillSchedule(sharedSpec.value, timeSource);
+	}
+
+	@Override
+	TimeSource getTimeSource()
+	{
+		return schedule.timeSource;
+	}
+
+	@Override
+	void restart()
+	{
+		LimitSpec spec = sharedSpec.value;
+		this.schedule = new RefillSchedule(spec, schedule.timeSource);
+		tokenCounter.add(0, spec.maximumTokens);
+	}
+
+	/**
+	 * Returns the refill schedule, starting a new one if the specification was updated through another limit
+	 * that shares it. If an {@link AimdPolicy} changed the rate, the new schedule picks up where the old one
+	 * left off, so the progress towards the next refill carries over and the available tokens are retained.
+	 *
+	 * @return the refill schedule
+	 * @implNote This method does not acquire any locks
+	 */
+	private RefillSchedule getSchedule()
+	{
+		RefillSchedule schedule = this.schedule;
+		LimitSpec spec = sharedSpec.value;
+		if (schedule.spec == spec)
+			return schedule;
+		// Credit the refills of the old specification
+		refill(schedule, schedule.timeSource.nanoTime());
+		RefillSchedule newSchedule;
+		if (spec.isAdaptedFrom(schedule.spec))
+		{
+			newSchedule = new RefillSchedule(spec, schedule.timeSource,
+				schedule.getRefillTime(schedule.refillsElapsed));
+		}
+		else
+		{
+			// Start a new period as if this limit had been updated directly
+			newSchedule = new RefillSchedule(spec, schedule.timeSource, schedule.timeSource.nanoTime());
+		}
+		if (SCHEDULE.compareAndSet(this, schedule, newSchedule))
+		{
+			tokenCounter.add(0, spec.maximumTokens);
+			return newSchedule;
+		}
+		return this.schedule;
+	}
+
+	/**
+	 * Refills the limit.
+	 * <p>
+	 * Refills are claimed by advancing the schedule's refill counter using compare-and-set. The thread that
+	 * advances the counter adds the corresponding tokens, so concurrent refills never add the same tokens
+	 * twice.
+	 *
+	 * @param now the current time
+	 * @implNote This method does not acquire any locks
+	 */
+	@Override
+	void refill(long now)
+	{
+		refill(getSchedule(), now);
+	}
+
+	/**
+	 * Refills the limit using a schedule.
+	 *
+	 * @param schedule the refill schedule
+	 * @param now      the current time
+	 * @implNote This method does not acquire any locks
+	 */
+	private void refill(RefillSchedule schedule, long now)
+	{
+		// Most calls take place between refills. Checking the time of the next refill first spares them from
+		// computing the refills that elapsed and from competing for refillsElapsed.
+		if (now < schedule.nextRefillAt)
+			return;
+		long refillsBefore = schedule.refillsElapsed;
+		long refillsAfter = schedule.getRefillsElapsed(now);
+		while (refillsAfter > refillsBefore)
+		{
+			if (schedule.compareAndSetRefillsElapsed(refillsBefore, refillsAfter))
+			{
+				// A concurrent refill may overwrite this value with an earlier time, which only disables the
+				// shortcut until the next refill
+				schedule.nextRefillAt = schedule.getRefillTime(refillsAfter + 1);
+				// If the configuration was updated in the meantime, the tokens belong to the old schedule
+				if (this.schedule == schedule)
+				{
+					tokenCounter.add(schedule.getTokensAdded(refillsBefore, refillsAfter),
+						schedule.spec.maximumTokens);
+				}
+				return;
+			}
+			refillsBefore = schedule.refillsElapsed;
+		}
+	}
+
+	@Override
+	long getAvailableTokens()
+	{
+		return tokenCounter.get();
+	}
+
+	@Override
+	long getAvailableTokens(long now)
+	{
+		return tokenCounter.get();
+	}
+
+	@Override
+	long estimateAvailableTokens(long now)
+	{
+		return tokenCounter.estimate();
+	}
+
+	@Override
+	void setAvailableTokens(long tokens)
+	{
+		tokenCounter.set(tokens);
+	}
+
+	@Override
+	long tryConsume(long minimumTokens, long maximumTokens, long now)
+	{
+		return tokenCounter.tryConsume(minimumTokens, maximumTokens);
+	}
+
+	@Override
+	long consume(long tokens, long now)
+	{
+		return tokenCounter.consume(tokens);
+	}
+
+	@Override
+	void refund(long tokens)
+	{
+		tokenCounter.add(tokens, sharedSpec.value.maximumTokens);
+	}
+
+	@Override
+	long getAvailableAt(long tokensNeeded, long requestedAt)
+	{
+		if (tokensNeeded <= 0)
+			return requestedAt;
+		RefillSchedule schedule = getSchedule();
+		long refillsElapsed = schedule.refillsElapsed;
+		long availableAt = schedule.getRefillTime(schedule.getRefillsNeeded(refillsElapsed, tokensNeeded));
+		if (availableAt < requestedAt)
+		{
+			// The refill that would provide these tokens is in the middle of being applied by another thread
+			return requestedAt;
+		}
+		return availableAt;
+	}
+
+	@Override
+	long getStartOfCurrentPeriod()
+	{
+		RefillSchedule schedule = getSchedule();
+		return schedule.getStartOfPeriod(schedule.refillsElapsed);
+	}
+
+	@Override
+	public String toString()
+	{
+		RefillSchedule schedule = this.schedule;
+		long refillsElapsed = schedule.refillsElapsed;
+		TimeSource timeSource = schedule.timeSource;
+		LimitSpec spec = schedule.spec;
+		return new ToStringBuilder(TokenBucketState.class).
+			add("startOfCurrentPeriod", timeSource.toInstant(schedule.getStartOfPeriod(refillsElapsed))).
+			add("nextRefillAt", timeSource.toInstant(schedule.getRefillTime(refillsElapsed + 1))).
+			add("availableTokens", tokenCounter).
+			add("refillsElapsed", refillsElapsed).
+			add("timePerToken", Duration.ofNanos(spec.nanosPerToken)).
+			add("timePerRefill", Duration.ofNanos(spec.nanosPerRefill)).
+			add("refillsPerPeriod", spec.refillsPerPeriod).
+			toString();
+	}
+
+	/**
+	 * The number of refills that have taken place since a limit's specification went into effect.
+	 * <p>
+	 * Refills are numbered from the time that the schedule went into effect (see {@link LimitSpec}).
+	 * <p>
+	 * All times are measured in nanoseconds, relative to {@link TimeSource#nanoTime()}, so refills do not
+	 * allocate any objects.
+	 * <p>
+	 * <b>Thread safety</b>: This class is thread-safe.
+	 */
+	private static final class RefillSchedule
+	{
+		private static final VarHandle REFILLS_ELAPSED;
+
+		static
+		{
+			try
+			{
+				REFILLS_ELAPSED = MethodHandles.lookup().findVarHandle(RefillSchedule.class, "refillsElapsed",
+					long.class);
+			}
+			catch (NoSuchFieldException | IllegalAccessException e)
+			{
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+
+		final LimitSpec spec;
+		final TimeSource timeSource;
+		private final long startOfFirstPeriod;
+		/**
+		 * The number of refills that were added to the limit since {@code startOfFirstPeriod}.
+		 */
+		volatile long refillsElapsed;
+		/**
+		 * The time at which the refill after {@code refillsElapsed} takes place, in nanoseconds. The value may
+		 * be earlier than the actual time, but never later.
+		 */
+		volatile long nextRefillAt;
+
+		/**
+		 * Creates a new schedule.
+		 *
+		 * @param spec       the specification of the limit
+		 * @param timeSource the source of time used by the schedule. The schedule goes into effect at the
+		 *                   current time.
+		 */
+		RefillSchedule(LimitSpec spec, TimeSource timeSource)
+		{
+			this(spec, timeSource, timeSource.nanoTime());
+		}
+
+		/**
+		 * Creates a new schedule.
+		 *
+		 * @param spec               the specification of the limit
+		 * @param timeSource         the source of time used by the schedule
+		 * @param startOfFirstPeriod the time at which the schedule goes into effect, in nanoseconds
+		 */
+		RefillSchedule(LimitSpec spec, TimeSource timeSource, long startOfFirstPeriod)
+		{
+			this.spec = spec;
+			this.timeSource = timeSource;
+			this.startOfFirstPeriod = startOfFirstPeriod;
+			this.nextRefillAt = getRefillTime(1);
+		}
+
+		/**
+		 * @param expected the expected value of {@code refillsElapsed}
+		 * @param value    the new value of {@code refillsElapsed}
+		 * @return true on success; false if {@code refillsElapsed} was not equal to {@code expected}
+		 */
+		boolean compareAndSetRefillsElapsed(long expected, long value)
+		{
+			return REFILLS_ELAPSED.compareAndSet(this, expected, value);
+		}
+
+		/**
+		 * @param time a time, in nanoseconds
+		 * @return the number of refills that take place from the beginning of the schedule up to {@code time}
+		 * (inclusive)
+		 */
+		long getRefillsElapsed(long time)
+		{
+			return spec.getRefillsElapsed(startOfFirstPeriod, time);
+		}
+
+		/**
+		 * @param refills a number of refills relative to the beginning of the schedule
+		 * @return the time at which the last refill will complete, in nanoseconds ({@code Long.MAX_VALUE} if
+		 * the time is too far in the future to be represented)
+		 */
+		long getRefillTime(long refills)
+		{
+			return spec.getRefillTime(startOfFirstPeriod, refills);
+		}
+
+		/**
+		 * @param refills a number of refills relative to the beginning of the schedule
+		 * @return the start time of the period containing the refill, in nanoseconds
+		 */
+		long getStartOfPeriod(long refills)
+		{
+			return spec.getStartOfPeriod(startOfFirstPeriod, refills);
+		}
+
+		/**
+		 * @param fromRefills a number of refills relative to the beginning of the schedule
+		 * @param toRefills   a number of refills relative to the beginning of the schedule
+		 * @return the number of tokens added by the refills in {@code (fromRefills, toRefills]}
+		 */
+		long getTokensAdded(long fromRefills, long toRefills)
+		{
+			return spec.getTokensAdded(fromRefills, toRefills);
+		}
+
+		/**
+		 * @param refillsElapsed the number of refills that took place relative to the beginning of the schedule
+		 * @param tokens         a number of tokens
+		 * @return the number of refills, relative to the beginning of the schedule, after which at least
+		 * {@code tokens} more tokens will have been added
+		 */
+		long getRefillsNeeded(long refillsElapsed, long tokens)
+		{
+			return spec.getRefillsNeeded(refillsElapsed, tokens);
+		}
+
+		@Override
+		public String toString()
+		{
+			return new ToStringBuilder(RefillSchedule.class).
+				add("spec", spec).
+				add("startOfFirstPeriod", timeSource.toInstant(startOfFirstPeriod)).
+				add("refillsElapsed", refillsElapsed).
+				toString();
+		}
+	}
+}
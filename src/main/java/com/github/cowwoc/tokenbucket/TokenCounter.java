@@ -0,0 +1,76 @@
+package com.github.cowwoc.tokenbucket;
+
+/**
+ * Tracks the number of tokens that are available to a {@link Limit}.
+ * <p>
+ * Implementations update their state using compare-and-set, so consumers do not need to acquire any locks.
+ * <p>
+ * <b>Thread safety</b>: Implementations must be thread-safe.
+ */
+abstract class TokenCounter
+{
+	/**
+	 * Creates a new counter.
+	 *
+	 * @param stripes       the number of cells that tokens are split across
+	 * @param initialTokens the initial number of tokens
+	 * @return a new counter
+	 */
+	static TokenCounter of(int stripes, long initialTokens)
+	{
+		if (stripes == 1)
+			return new AtomicTokenCounter(initialTokens);
+		return new StripedTokenCounter(stripes, initialTokens);
+	}
+
+	/**
+	 * Returns the number of available tokens.
+	 *
+	 * @return the number of available tokens
+	 */
+	abstract long get();
+
+	/**
+	 * Returns an estimate of the number of available tokens that is cheaper to compute than {@link #get()}.
+	 *
+	 * @return an estimate of the number of available tokens
+	 */
+	long estimate()
+	{
+		return get();
+	}
+
+	/**
+	 * Sets the number of available tokens.
+	 *
+	 * @param tokens the number of available tokens
+	 */
+	abstract void set(long tokens);
+
+	/**
+	 * Adds tokens, discarding any tokens that overflow the bucket.
+	 *
+	 * @param tokens        the number of tokens to add
+	 * @param maximumTokens the maximum number of tokens that the bucket may hold
+	 */
+	abstract void add(long tokens, long maximumTokens);
+
+	/**
+	 * Consumes tokens, even if it causes the number of available tokens to become negative.
+	 *
+	 * @param tokens the number of tokens
+	 * @return the number of tokens left after consumption
+	 */
+	abstract long consume(long tokens);
+
+	/**
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens, only if they are available at the time of
+	 * invocation.
+	 *
+	 * @param minimumTokens the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens the maximum number of tokens to consume (inclusive)
+	 * @return the number of tokens that were consumed, or {@code 0} if less than {@code minimumTokens} were
+	 * available
+	 */
+	abstract long tryConsume(long minimumTokens, long maximumTokens);
+}
@@ -0,0 +1,262 @@
+package com.github.cowwoc.tokenbucket;
+
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out tokens that were consumed from a bucket ahead of time, so that most requests complete without
+ * touching the bucket's limits.
+ * <p>
+ * Threads are mapped to slots. When a thread's slot runs dry, the thread renews the slot's lease by
+ * consuming its own request plus a chunk of extra tokens from the bucket. Subsequent requests are served from
+ * the lease using a single compare-and-set. The chunk size doubles whenever a lease is spent before it
+ * expires, and halves whenever a lease expires before it is spent, up to {@code maximumLeaseSize}. Tokens
+ * that are still leased when their lease expires are never handed out; they are returned to the bucket by
+ * the next request against the same slot, or by the next request that bypasses the leases.
+ * <p>
+ * Leased tokens have already been consumed from the bucket's limits, so leasing never admits more tokens
+ * than the limits allow in total. Instead, it shifts when tokens are admitted: up to
+ * {@link #getMaximumLeasedTokens()} tokens may be held by slots that other threads cannot draw from, and
+ * those tokens may be handed out up to {@code leaseTimeout} after the limits accounted for them.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ *
+ * @see Bucket.Builder#leaseSize(long)
+ */
+final class TokenLeases
+{
+	/**
+	 * The number of {@code long}s between consecutive slots. 16 longs span 128 bytes, which prevents false
+	 * sharing even on CPUs that prefetch pairs of cache lines.
+	 */
+	private static final int STRIDE = 16;
+	/**
+	 * The maximum number of slots.
+	 */
+	private static final int MAXIMUM_SLOTS = 64;
+	/**
+	 * The offset of the number of tokens that remain in a slot's lease.
+	 */
+	private static final int TOKENS = 0;
+	/**
+	 * The offset of the number of extra tokens that a slot requests when it renews its lease.
+	 */
+	private static final int CHUNK = 1;
+	/**
+	 * The offset of the time at which a slot's lease expires, in nanoseconds.
+	 */
+	private static final int EXPIRES_AT = 2;
+	/**
+	 * The value of {@code TOKENS} while a thread renews or returns the slot's lease.
+	 */
+	private static final long BUSY = -1;
+	private final Bucket bucket;
+	private final TimeSource timeSource;
+	private final long maximumLeaseSize;
+	private final long leaseTimeout;
+	private final int slots;
+	/**
+	 * The state of the slots. The state of slot {@code i} starts at index {@code i * STRIDE}.
+	 */
+	private final AtomicLongArray cells;
+
+	/**
+	 * Creates a new set of leases.
+	 *
+	 * @param bucket           the bucket that tokens are leased from
+	 * @param timeSource       the source of time used by the bucket
+	 * @param maximumLeaseSize the maximum number of tokens that a single lease may hold
+	 * @param leaseTimeout     the amount of time after which unused tokens are returned to the bucket
+	 */
+	TokenLeases(Bucket bucket, TimeSource timeSource, long maximumLeaseSize, Duration leaseTimeout)
+	{
+		this.bucket = bucket;
+		this.timeSource = timeSource;
+		this.maximumLeaseSize = maximumLeaseSize;
+		this.leaseTimeout = leaseTimeout.toNanos();
+		this.slots = Math.min(MAXIMUM_SLOTS, 2 * Runtime.getRuntime().availableProcessors());
+		this.cells = new AtomicLongArray(slots * STRIDE);
+		long now = timeSource.nanoTime();
+		for (int slot = 0; slot < slots; ++slot)
+		{
+			cells.set(slot * STRIDE + CHUNK, 1);
+			cells.set(slot * STRIDE + EXPIRES_AT, now);
+		}
+	}
+
+	/**
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens, only if they are available at the time of
+	 * invocation.
+	 *
+	 * @param minimumTokens the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens the maximum number of tokens to consume (inclusive)
+	 * @return the number of tokens that were consumed; otherwise, the negated number of nanoseconds until
+	 * {@code minimumTokens} are expected to become available
+	 * @throws IllegalArgumentException if {@code minimumTokens} exceeds the maximum number of tokens that the
+	 *                                  bucket could ever contain
+	 */
+	long tryAcquire(long minimumTokens, long maximumTokens)
+	{
+		int index = StripedTokenCounter.getHomeIndex(slots) * STRIDE;
+		long now = timeSource.nanoTime();
+		while (true)
+		{
+			long tokens = cells.get(index + TOKENS);
+			if (tokens == BUSY)
+			{
+				// Another thread is renewing the lease
+				return bucket.tryAcquireWithoutLease(minimumTokens, maximumTokens);
+			}
+			boolean expired = now - cells.get(index + EXPIRES_AT) >= 0;
+			if (tokens >= minimumTokens && !expired)
+			{
+				long tokensConsumed = Math.min(tokens, maximumTokens);
+				if (cells.compareAndSet(index + TOKENS, tokens, tokens - tokensConsumed))
+					return tokensConsumed;
+			}
+			else if (cells.compareAndSet(index + TOKENS, tokens, BUSY))
+				return renew(index, tokens, expired, minimumTokens, maximumTokens, now);
+		}
+	}
+
+	/**
+	 * Renews a slot's lease. The caller must have set the slot's {@code TOKENS} to {@code BUSY}.
+	 *
+	 * @param index         the index of the slot's state
+	 * @param leftover      the number of tokens that remain in the slot's lease
+	 * @param expired       true if the slot's lease expired
+	 * @param minimumTokens the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens the maximum number of tokens to consume (inclusive)
+	 * @param now           the current time, in nanoseconds
+	 * @return the number of tokens that were consumed; otherwise, the negated number of nanoseconds until
+	 * {@code minimumTokens} are expected to become available
+	 * @throws IllegalArgumentException if {@code minimumTokens} exceeds the maximum number of tokens that the
+	 *                                  bucket could ever contain
+	 */
+	private long renew(int index, long leftover, boolean expired, long minimumTokens, long maximumTokens,
+	                   long now)
+	{
+		long tokensLeft = leftover;
+		try
+		{
+			returnExpired(now);
+			if (expired && leftover > 0)
+			{
+				// The lease expired before it was spent. Its tokens were accounted for too long ago to hand out.
+				cells.set(index + CHUNK, Math.max(1, cells.get(index + CHUNK) / 2));
+				tokensLeft = 0;
+				bucket.refund(leftover);
+				leftover = 0;
+			}
+			long bucketMaximum = getMaximumLeaseSize();
+			if (bucketMaximum == 0 || minimumTokens > bucketMaximum)
+			{
+				// The slow path reports the error, if any
+				return bucket.tryAcquireWithoutLease(minimumTokens, maximumTokens);
+			}
+			long chunk = cells.get(index + CHUNK);
+			if (now - cells.get(index + EXPIRES_AT) < 0)
+			{
+				// The previous lease was spent before it expired
+				chunk = Math.min(Limit.saturatedMultiply(chunk, 2), maximumLeaseSize);
+			}
+			chunk = Math.min(chunk, bucketMaximum);
+			long result = bucket.tryAcquireWithoutLease(minimumTokens - leftover,
+				Limit.saturatedAdd(maximumTokens - leftover, chunk));
+			if (result < 0)
+				return result;
+			long tokens = leftover + result;
+			long tokensConsumed = Math.min(tokens, maximumTokens);
+			tokensLeft = tokens - tokensConsumed;
+			cells.set(index + CHUNK, chunk);
+			cells.set(index + EXPIRES_AT, now + leaseTimeout);
+			return tokensConsumed;
+		}
+		finally
+		{
+			cells.set(index + TOKENS, tokensLeft);
+		}
+	}
+
+	/**
+	 * Returns the maximum number of tokens that a lease may hold, based on the bucket's current limits.
+	 *
+	 * @return {@code 0} if tokens may not be leased
+	 */
+	private long getMaximumLeaseSize()
+	{
+		for (Limit limit : bucket.getLimits())
+		{
+			// Tokens that are consumed from a concurrency limit must be released by the holder
+			if (limit.getAlgorithm() == LimitAlgorithm.CONCURRENCY)
+				return 0;
+		}
+		return Math.min(maximumLeaseSize, bucket.getMaximumTokens());
+	}
+
+	/**
+	 * Returns unused tokens from expired leases to the bucket.
+	 *
+	 * @param now the current time, in nanoseconds
+	 */
+	void returnExpired(long now)
+	{
+		long tokensReturned = 0;
+		for (int index = 0; index < cells.length(); index += STRIDE)
+		{
+			if (now - cells.get(index + EXPIRES_AT) < 0)
+				continue;
+			long tokens = cells.get(index + TOKENS);
+			if (tokens <= 0 || !cells.compareAndSet(index + TOKENS, tokens, BUSY))
+				continue;
+			if (now - cells.get(index + EXPIRES_AT) < 0)
+			{
+				// The lease was renewed in the meantime
+				cells.set(index + TOKENS, tokens);
+				continue;
+			}
+			// The lease expired before it was spent
+			cells.set(index + CHUNK, Math.max(1, cells.get(index + CHUNK) / 2));
+			cells.set(index + TOKENS, 0);
+			tokensReturned += tokens;
+		}
+		if (tokensReturned > 0)
+			bucket.refund(tokensReturned);
+	}
+
+	/**
+	 * Returns the number of tokens that have been consumed from the bucket but not handed out yet.
+	 *
+	 * @return the number of tokens that are leased
+	 */
+	long getLeasedTokens()
+	{
+		long sum = 0;
+		for (int index = 0; index < cells.length(); index += STRIDE)
+			sum = Limit.saturatedAdd(sum, Math.max(0, cells.get(index + TOKENS)));
+		return sum;
+	}
+
+	/**
+	 * Returns the maximum number of tokens that may be leased at any given time.
+	 *
+	 * @return the maximum number of tokens that may be leased
+	 */
+	long getMaximumLeasedTokens()
+	{
+		return Limit.saturatedMultiply(slots, maximumLeaseSize);
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(TokenLeases.class).
+			add("slots", slots).
+			add("maximumLeaseSize", maximumLeaseSize).
+			add("leaseTimeout", leaseTimeout).
+			add("leasedTokens", getLeasedTokens()).
+			toString();
+	}
+}
@@ -4,16 +4,17 @@ import com.github.cowwoc.tokenbucket.ConsumptionResult;
 import com.github.cowwoc.tokenbucket.Container;
 import com.github.cowwoc.tokenbucket.ContainerListener;
 import com.github.cowwoc.tokenbucket.Limit;
+import com.github.cowwoc.tokenbucket.TimeSource;
 import com.github.cowwoc.tokenbucket.annotation.CheckReturnValue;
 import org.slf4j.Logger;
 
-import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.function.Function;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.github.cowwoc.requirements.DefaultRequirements.assertThat;
 import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
@@ -23,6 +24,11 @@ import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
  */
 public abstract class AbstractContainer implements Container
 {
+	/**
+	 * Indicates that a consumer should wait indefinitely.
+	 */
+	private static final long NO_TIME_LIMIT = Long.MAX_VALUE;
+
 	static
 	{
 		SharedSecrets.INSTANCE.containerSecrets = new ContainerSecrets()
@@ -47,7 +53,7 @@ public abstract class AbstractContainer implements Container
 
 			@Override
 			public ConsumptionResult tryConsume(AbstractContainer container, long minimumTokens, long maximumTokens,
-			                                    String nameOfMinimumTokens, Instant requestedAt, Instant consumedAt)
+			                                    String nameOfMinimumTokens, long requestedAt, long consumedAt)
 			{
 				return container.consumptionFunction.tryConsume(minimumTokens, maximumTokens, nameOfMinimumTokens,
 					requestedAt, consumedAt, container);
@@ -95,6 +101,12 @@ public abstract class AbstractContainer implements Container
 			{
 				return container.lock;
 			}
+
+			@Override
+			public void wakeConsumers(AbstractContainer container)
+			{
+				container.wakeConsumers();
+			}
 		};
 	}
 
@@ -128,25 +140,24 @@ public abstract class AbstractContainer implements Container
 	/**
 	 * The parent container. {@code null} if there is no parent.
 	 */
-	protected AbstractContainer parent;
+	protected volatile AbstractContainer parent;
 	protected List<AbstractContainer> children;
 	protected List<ContainerListener> listeners;
 	protected ConsumptionFunction consumptionFunction;
 	protected Object userData;
+	/**
+	 * The source of time used by this container.
+	 */
+	protected final TimeSource timeSource;
 	/**
 	 * A lock over this object's state. See the {@link com.github.cowwoc.tokenbucket.internal locking policy}
 	 * for more details.
 	 */
 	protected final ReentrantStampedLock lock = new ReentrantStampedLock();
 	/**
-	 * A lock used to signal/await {@code Condition} variables.
-	 */
-	protected final ReadWriteLockAsResource conditionLock = new ReadWriteLockAsResource();
-	/**
-	 * Notifies consumers that the number of tokens may have been changed as the result of a configuration
-	 * update.
+	 * The consumers that are waiting for tokens to become available.
 	 */
-	protected final Condition tokensUpdated = conditionLock.newCondition();
+	private final WaitQueue waitQueue = new WaitQueue();
 
 	/**
 	 * Creates a new AbstractContainer.
@@ -154,23 +165,32 @@ public abstract class AbstractContainer implements Container
 	 * @param children            the children containers
 	 * @param listeners           the event listeners associated with this container
 	 * @param userData            the data associated with this container ({@code null} if absent)
+	 * @param timeSource          the source of time used by this container
 	 * @param consumptionFunction indicates how tokens are consumed
 	 * @throws NullPointerException if any mandatory argument is null
 	 */
 	protected AbstractContainer(List<AbstractContainer> children, List<ContainerListener> listeners,
-	                            Object userData, ConsumptionFunction consumptionFunction)
+	                            Object userData, TimeSource timeSource, ConsumptionFunction consumptionFunction)
 	{
 		assertThat(r ->
 		{
 			r.requireThat(listeners, "listeners").isNotNull();
+			r.requireThat(timeSource, "timeSource").isNotNull();
 			r.requireThat(consumptionFunction, "consumptionFunction").isNotNull();
 		});
 		this.children = List.copyOf(children);
 		this.listeners = List.copyOf(listeners);
 		this.userData = userData;
+		this.timeSource = timeSource;
 		this.consumptionFunction = consumptionFunction;
 	}
 
+	@Override
+	public TimeSource getTimeSource()
+	{
+		return timeSource;
+	}
+
 	@Override
 	public Object getUserData()
 	{
@@ -202,7 +222,7 @@ public abstract class AbstractContainer implements Container
 	@CheckReturnValue
 	public ConsumptionResult tryConsume()
 	{
-		Instant requestedAt = Instant.now();
+		long requestedAt = timeSource.nanoTime();
 		return consumptionFunction.tryConsume(1, 1, "tokensToConsume", requestedAt, requestedAt, this);
 	}
 
@@ -217,7 +237,8 @@ public abstract class AbstractContainer implements Container
 	@CheckReturnValue
 	protected ConsumptionResult tryConsume(Instant requestedAt)
 	{
-		return consumptionFunction.tryConsume(1, 1, "tokensToConsume", requestedAt, requestedAt, this);
+		long requestedAtNanos = timeSource.toNanoTime(requestedAt);
+		return consumptionFunction.tryConsume(1, 1, "tokensToConsume", requestedAtNanos, requestedAtNanos, this);
 	}
 
 	@Override
@@ -225,7 +246,7 @@ public abstract class AbstractContainer implements Container
 	public ConsumptionResult tryConsume(long tokens)
 	{
 		requireThat(tokens, "tokens").isPositive();
-		Instant requestedAt = Instant.now();
+		long requestedAt = timeSource.nanoTime();
 		return consumptionFunction.tryConsume(tokens, tokens, "tokens", requestedAt, requestedAt, this);
 	}
 
@@ -243,7 +264,9 @@ public abstract class AbstractContainer implements Container
 	protected ConsumptionResult tryConsume(long tokens, Instant requestedAt)
 	{
 		requireThat(tokens, "tokens").isPositive();
-		return consumptionFunction.tryConsume(tokens, tokens, "tokensToConsume", requestedAt, requestedAt, this);
+		long requestedAtNanos = timeSource.toNanoTime(requestedAt);
+		return consumptionFunction.tryConsume(tokens, tokens, "tokensToConsume", requestedAtNanos,
+			requestedAtNanos, this);
 	}
 
 	@Override
@@ -253,10 +276,8 @@ public abstract class AbstractContainer implements Container
 		requireThat(tokens, "tokens").isPositive();
 		requireThat(timeout, "timeout").isNotNegative();
 		requireThat(unit, "unit").isNotNull();
-		Instant requestedAt = Instant.now();
-		Instant timeLimit = requestedAt.plus(timeout, unit.toChronoUnit());
-		return consume(tokens, tokens, "tokens", requestedAt,
-			consumptionResult -> !consumptionResult.getAvailableAt().isBefore(timeLimit));
+		long requestedAt = timeSource.nanoTime();
+		return consume(tokens, tokens, "tokens", requestedAt, getTimeLimit(requestedAt, timeout, unit));
 	}
 
 	@Override
@@ -266,11 +287,28 @@ public abstract class AbstractContainer implements Container
 		requireThat(minimumTokens, "minimumTokens").isPositive();
 		requireThat(maximumTokens, "maximumTokens").isPositive().
 			isGreaterThanOrEqualTo(minimumTokens, "minimumTokens");
-		Instant requestedAt = Instant.now();
+		long requestedAt = timeSource.nanoTime();
 		return consumptionFunction.tryConsume(minimumTokens, maximumTokens, "minimumTokens", requestedAt,
 			requestedAt, this);
 	}
 
+	@Override
+	@CheckReturnValue
+	public long tryAcquire(long tokens)
+	{
+		return tryAcquire(tokens, tokens);
+	}
+
+	@Override
+	@CheckReturnValue
+	public long tryAcquire(long minimumTokens, long maximumTokens)
+	{
+		ConsumptionResult consumptionResult = tryConsume(minimumTokens, maximumTokens);
+		if (consumptionResult.isSuccessful())
+			return consumptionResult.getTokensConsumed();
+		return -Math.max(1, consumptionResult.getAvailableIn().toNanos());
+	}
+
 	@Override
 	@CheckReturnValue
 	public ConsumptionResult tryConsume(long minimumTokens, long maximumTokens, long timeout, TimeUnit unit)
@@ -281,10 +319,9 @@ public abstract class AbstractContainer implements Container
 			isGreaterThanOrEqualTo(minimumTokens, "minimumTokens");
 		requireThat(timeout, "timeout").isNotNegative();
 		requireThat(unit, "unit").isNotNull();
-		Instant requestedAt = Instant.now();
-		Instant timeLimit = requestedAt.plus(timeout, unit.toChronoUnit());
+		long requestedAt = timeSource.nanoTime();
 		return consume(minimumTokens, maximumTokens, "minimumTokens", requestedAt,
-			consumptionResult -> !consumptionResult.getAvailableAt().isBefore(timeLimit));
+			getTimeLimit(requestedAt, timeout, unit));
 	}
 
 	@Override
@@ -297,8 +334,8 @@ public abstract class AbstractContainer implements Container
 	public ConsumptionResult consume(long tokens) throws InterruptedException
 	{
 		requireThat(tokens, "tokens").isPositive();
-		Instant requestedAt = Instant.now();
-		return consume(tokens, tokens, "tokens", requestedAt, consumptionResult -> false);
+		long requestedAt = timeSource.nanoTime();
+		return consume(tokens, tokens, "tokens", requestedAt, NO_TIME_LIMIT);
 	}
 
 	@Override
@@ -308,18 +345,62 @@ public abstract class AbstractContainer implements Container
 		requireThat(minimumTokens, "minimumTokens").isPositive();
 		requireThat(maximumTokens, "maximumTokens").isPositive().
 			isGreaterThanOrEqualTo(minimumTokens, "minimumTokens");
-		Instant requestedAt = Instant.now();
-		return consume(minimumTokens, maximumTokens, "minimumTokens", requestedAt, consumptionResult -> false);
+		long requestedAt = timeSource.nanoTime();
+		return consume(minimumTokens, maximumTokens, "minimumTokens", requestedAt, NO_TIME_LIMIT);
+	}
+
+	@Override
+	@CheckReturnValue
+	public CompletableFuture<ConsumptionResult> consumeAsync(long minimumTokens, long maximumTokens)
+	{
+		requireThat(minimumTokens, "minimumTokens").isPositive();
+		requireThat(maximumTokens, "maximumTokens").isPositive().
+			isGreaterThanOrEqualTo(minimumTokens, "minimumTokens");
+		long requestedAt = timeSource.nanoTime();
+		return consumeAsync(minimumTokens, maximumTokens, "minimumTokens", requestedAt, NO_TIME_LIMIT);
+	}
+
+	@Override
+	@CheckReturnValue
+	public CompletableFuture<ConsumptionResult> consumeAsync(long minimumTokens, long maximumTokens,
+	                                                         long timeout, TimeUnit unit)
+	{
+		requireThat(minimumTokens, "minimumTokens").isPositive();
+		requireThat(maximumTokens, "maximumTokens").isPositive().
+			isGreaterThanOrEqualTo(minimumTokens, "minimumTokens");
+		requireThat(timeout, "timeout").isNotNegative();
+		requireThat(unit, "unit").isNotNull();
+		long requestedAt = timeSource.nanoTime();
+		return consumeAsync(minimumTokens, maximumTokens, "minimumTokens", requestedAt,
+			getTimeLimit(requestedAt, timeout, unit));
+	}
+
+	/**
+	 * @param requestedAt the time at which the tokens were requested, in nanoseconds
+	 * @param timeout     the maximum amount of time to wait
+	 * @param unit        the unit of {@code timeout}
+	 * @return the time after which consumers should stop waiting, in nanoseconds ({@link #NO_TIME_LIMIT} if
+	 * the time is too far in the future to be represented)
+	 */
+	private static long getTimeLimit(long requestedAt, long timeout, TimeUnit unit)
+	{
+		long timeLimit = requestedAt + unit.toNanos(timeout);
+		if (timeLimit < requestedAt)
+			return NO_TIME_LIMIT;
+		return timeLimit;
 	}
 
 	/**
 	 * Consumes {@code [minimumTokens, maximumTokens]} tokens, blocking until they become available.
-	 * Consumption order is not guaranteed to be fair.
+	 * <p>
+	 * Blocked consumers are served in the order in which they started waiting. Only the consumer at the head
+	 * of the queue attempts to consume tokens, so non-blocking consumers may still barge ahead of it.
 	 *
 	 * @param minimumTokens the minimum number of tokens to consume (inclusive)
 	 * @param maximumTokens the maximum number of tokens to consume (inclusive)
-	 * @param requestedAt   the time at which the tokens were requested
-	 * @param timeout       returns true if a timeout occurs
+	 * @param requestedAt   the time at which the tokens were requested, in nanoseconds
+	 * @param timeLimit     the time after which the consumer should stop waiting, in nanoseconds
+	 *                      ({@link #NO_TIME_LIMIT} to wait indefinitely)
 	 * @return the result of the operation
 	 * @throws NullPointerException     if any of the arguments are null
 	 * @throws IllegalArgumentException if {@code minimumTokens > maximumTokens}. If one of the limits has a
@@ -331,36 +412,201 @@ public abstract class AbstractContainer implements Container
 	 */
 	@CheckReturnValue
 	private ConsumptionResult consume(long minimumTokens, long maximumTokens, String nameOfMinimumTokens,
-	                                  Instant requestedAt, Function<ConsumptionResult, Boolean> timeout)
+	                                  long requestedAt, long timeLimit)
 		throws InterruptedException
 	{
-		assertThat(r ->
-		{
-			r.requireThat(nameOfMinimumTokens, "nameOfMinimumTokens").isNotEmpty();
-			r.requireThat(requestedAt, "requestedAt").isNotNull();
-		});
+		assertThat(r -> r.requireThat(nameOfMinimumTokens, "nameOfMinimumTokens").isNotEmpty());
 		Logger log = getLogger();
-		while (true)
+		boolean queued = false;
+		try
 		{
-			Instant consumedAt = Instant.now();
-			ConsumptionResult consumptionResult = consumptionFunction.tryConsume(minimumTokens, maximumTokens,
-				nameOfMinimumTokens, requestedAt, consumedAt, this);
-			if (consumptionResult.isSuccessful() || timeout.apply(consumptionResult))
+			while (true)
 			{
+				long consumedAt = timeSource.nanoTime();
+				if (queued ? !waitQueue.isHead() : !waitQueue.isEmpty())
+				{
+					// Consumers that started waiting earlier get the first pick
+					if (consumedAt >= timeLimit)
+					{
+						// Make one last attempt before giving up
+						ConsumptionResult consumptionResult = consumptionFunction.tryConsume(minimumTokens,
+							maximumTokens, nameOfMinimumTokens, requestedAt, consumedAt, this);
+						log.debug("consumptionResult: {}", consumptionResult);
+						return consumptionResult;
+					}
+					if (queued)
+						waitQueue.await(getNanosUntil(consumedAt, timeLimit));
+					else
+					{
+						waitQueue.add();
+						queued = true;
+					}
+					continue;
+				}
+				ConsumptionResult consumptionResult = consumptionFunction.tryConsume(minimumTokens, maximumTokens,
+					nameOfMinimumTokens, requestedAt, consumedAt, this);
 				log.debug("consumptionResult: {}", consumptionResult);
-				return consumptionResult;
+				if (consumptionResult.isSuccessful())
+					return consumptionResult;
+				long availableAt = timeSource.toNanoTime(consumptionResult.getAvailableAt());
+				if (timeLimit != NO_TIME_LIMIT && availableAt >= timeLimit)
+					return consumptionResult;
+				log.debug("Sleeping {}. State before sleep: {}", consumptionResult.getAvailableIn(), this);
+				beforeSleep(this, minimumTokens, timeSource.toInstant(requestedAt),
+					consumptionResult.getAvailableAt(), consumptionResult.getBottlenecks());
+				if (!queued)
+				{
+					waitQueue.add();
+					queued = true;
+				}
+				waitQueue.await(getNanosUntil(consumedAt, availableAt));
+				log.debug("State after sleep: {}", this);
 			}
-			log.debug("consumptionResult: {}", consumptionResult);
-			Duration timeLeft = consumptionResult.getAvailableIn();
-			log.debug("Sleeping {}. State before sleep: {}", timeLeft, this);
-			beforeSleep(this, minimumTokens, requestedAt, consumptionResult.getAvailableAt(),
-				consumptionResult.getBottlenecks());
-			try (CloseableLock ignored = conditionLock.writeLock())
+		}
+		finally
+		{
+			if (queued)
+				waitQueue.remove();
+		}
+	}
+
+	/**
+	 * Consumes {@code [minimumTokens, maximumTokens]} tokens without blocking the caller.
+	 *
+	 * @param minimumTokens       the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens       the maximum number of tokens to consume (inclusive)
+	 * @param nameOfMinimumTokens the name of the {@code minimumTokens} parameter
+	 * @param requestedAt         the time at which the tokens were requested, in nanoseconds
+	 * @param timeLimit           the time after which the consumer should stop waiting, in nanoseconds
+	 *                            ({@link #NO_TIME_LIMIT} to wait indefinitely)
+	 * @return a future that completes with the result of the operation
+	 * @throws IllegalArgumentException if one of the limits has a
+	 *                                  {@link Limit#getMaximumTokens() maximumTokens} that is less than
+	 *                                  {@code minimumTokens}
+	 * @implNote This method acquires its own locks
+	 */
+	private CompletableFuture<ConsumptionResult> consumeAsync(long minimumTokens, long maximumTokens,
+	                                                          String nameOfMinimumTokens, long requestedAt,
+	                                                          long timeLimit)
+	{
+		CompletableFuture<ConsumptionResult> future = new CompletableFuture<>();
+		AtomicReference<TimerWheel.Timeout> retry = new AtomicReference<>();
+		consumeAsync(minimumTokens, maximumTokens, nameOfMinimumTokens, requestedAt, timeLimit, future, retry);
+		if (!future.isDone())
+		{
+			// Remove the pending retry from the timer wheel if the future is cancelled
+			future.whenComplete((result, throwable) -> retry.get().cancel());
+		}
+		return future;
+	}
+
+	/**
+	 * Attempts to consume {@code [minimumTokens, maximumTokens]} tokens. If the tokens are not available, the
+	 * shared {@link TimerWheel} hands a retry to the future's default executor once they are expected to
+	 * become available. Retries may block on locks or run user listeners, so they must not run on the timer
+	 * wheel's thread.
+	 *
+	 * @param minimumTokens       the minimum number of tokens to consume (inclusive)
+	 * @param maximumTokens       the maximum number of tokens to consume (inclusive)
+	 * @param nameOfMinimumTokens the name of the {@code minimumTokens} parameter
+	 * @param requestedAt         the time at which the tokens were requested, in nanoseconds
+	 * @param timeLimit           the time after which the consumer should stop waiting, in nanoseconds
+	 *                            ({@link #NO_TIME_LIMIT} to wait indefinitely)
+	 * @param future              the future to complete with the result of the operation
+	 * @param retry               the latest attempt that was scheduled on the timer wheel
+	 * @throws IllegalArgumentException if one of the limits has a
+	 *                                  {@link Limit#getMaximumTokens() maximumTokens} that is less than
+	 *                                  {@code minimumTokens}
+	 * @implNote This method acquires its own locks
+	 */
+	private void consumeAsync(long minimumTokens, long maximumTokens, String nameOfMinimumTokens,
+	                          long requestedAt, long timeLimit, CompletableFuture<ConsumptionResult> future,
+	                          AtomicReference<TimerWheel.Timeout> retry)
+	{
+		// Cancelled futures are not rescheduled
+		if (future.isDone())
+			return;
+		long consumedAt = timeSource.nanoTime();
+		ConsumptionResult consumptionResult = consumptionFunction.tryConsume(minimumTokens, maximumTokens,
+			nameOfMinimumTokens, requestedAt, consumedAt, this);
+		getLogger().debug("consumptionResult: {}", consumptionResult);
+		long availableAt = timeSource.toNanoTime(consumptionResult.getAvailableAt());
+		if (consumptionResult.isSuccessful() || (timeLimit != NO_TIME_LIMIT && availableAt >= timeLimit))
+		{
+			future.complete(consumptionResult);
+			return;
+		}
+		try
+		{
+			beforeSleep(this, minimumTokens, timeSource.toInstant(requestedAt),
+				consumptionResult.getAvailableAt(), consumptionResult.getBottlenecks());
+		}
+		catch (InterruptedException e)
+		{
+			future.completeExceptionally(e);
+			return;
+		}
+		Runnable retryTask = () ->
+		{
+			try
 			{
-				Conditions.await(tokensUpdated, timeLeft);
+				consumeAsync(minimumTokens, maximumTokens, nameOfMinimumTokens, requestedAt, timeLimit, future,
+					retry);
 			}
-			log.debug("State after sleep: {}", this);
-		}
+			catch (Throwable t)
+			{
+				// The configuration was updated in the meantime, or a listener failed
+				future.completeExceptionally(t);
+			}
+		};
+		TimerWheel.Timeout timeout = TimerWheel.INSTANCE.schedule(getNanosUntil(consumedAt, availableAt), () ->
+		{
+			try
+			{
+				future.defaultExecutor().execute(retryTask);
+			}
+			catch (RejectedExecutionException e)
+			{
+				future.completeExceptionally(e);
+			}
+		});
+		retry.set(timeout);
+		// The future may have been cancelled before the retry was recorded
+		if (future.isDone())
+			timeout.cancel();
+	}
+
+	/**
+	 * @param now  the current time, in nanoseconds
+	 * @param time a time that is not before {@code now}, in nanoseconds
+	 * @return the number of nanoseconds until {@code time} ({@code Long.MAX_VALUE} if the duration is too
+	 * long to be represented)
+	 */
+	private static long getNanosUntil(long now, long time)
+	{
+		long result = time - now;
+		if (result < 0)
+			return Long.MAX_VALUE;
+		return result;
+	}
+
+	/**
+	 * Indicates if any consumers are waiting for tokens to become available.
+	 *
+	 * @return true if any consumers are waiting for tokens to become available
+	 */
+	protected boolean hasSleepingConsumers()
+	{
+		return !waitQueue.isEmpty();
+	}
+
+	/**
+	 * Wakes up the consumer that has been waiting for tokens the longest. Once it is done, it wakes up the
+	 * next consumer in line.
+	 */
+	protected void wakeConsumers()
+	{
+		waitQueue.wakeHead();
 	}
 
 	/**
@@ -4,7 +4,6 @@ import com.github.cowwoc.tokenbucket.ConsumptionResult;
 import com.github.cowwoc.tokenbucket.Limit;
 import com.github.cowwoc.tokenbucket.annotation.CheckReturnValue;
 
-import java.time.Instant;
 
 /**
  * Consumes tokens from a container.
@@ -18,8 +17,9 @@ public interface ConsumptionFunction
 	 * @param minimumTokens       the minimum number of tokens to consume (inclusive)
 	 * @param maximumTokens       the maximum number of tokens to consume (inclusive)
 	 * @param nameOfMinimumTokens the name of the {@code minimumTokens} parameter
-	 * @param requestedAt         the time at which the tokens were requested
-	 * @param consumedAt          the time at which an attempt was made to consume tokens
+	 * @param requestedAt         the time at which the tokens were requested, in nanoseconds
+	 * @param consumedAt          the time at which an attempt was made to consume tokens, in
+	 *                            nanoseconds
 	 * @param container           the enclosing container
 	 * @return the result of the operation
 	 * @throws NullPointerException     if any of the arguments are null
@@ -30,5 +30,5 @@ public interface ConsumptionFunction
 	 */
 	@CheckReturnValue
 	ConsumptionResult tryConsume(long minimumTokens, long maximumTokens, String nameOfMinimumTokens,
-	                             Instant requestedAt, Instant consumedAt, AbstractContainer container);
+	                             long requestedAt, long consumedAt, AbstractContainer container);
 }
\ No newline at end of file
@@ -4,7 +4,6 @@ import com.github.cowwoc.tokenbucket.ConsumptionResult;
 import com.github.cowwoc.tokenbucket.Limit;
 import com.github.cowwoc.tokenbucket.annotation.CheckReturnValue;
 
-import java.time.Instant;
 import java.util.List;
 
 /**
@@ -48,8 +47,9 @@ public interface ContainerSecrets
 	 * @param minimumTokens       the minimum number of tokens to consume (inclusive)
 	 * @param maximumTokens       the maximum  number of tokens to consume (inclusive)
 	 * @param nameOfMinimumTokens the name of the {@code minimumTokens} parameter
-	 * @param requestedAt         the time at which the tokens were requested
-	 * @param consumedAt          the time at which an attempt was made to consume tokens
+	 * @param requestedAt         the time at which the tokens were requested, in nanoseconds
+	 * @param consumedAt          the time at which an attempt was made to consume tokens, in
+	 *                            nanoseconds
 	 * @return the result of the operation
 	 * @throws NullPointerException     if any of the arguments are null
 	 * @throws IllegalArgumentException if {@code nameOfMinimumTokens} is empty. If
@@ -60,7 +60,7 @@ public interface ContainerSecrets
 	 */
 	@CheckReturnValue
 	ConsumptionResult tryConsume(AbstractContainer container, long minimumTokens, long maximumTokens,
-	                             String nameOfMinimumTokens, Instant requestedAt, Instant consumedAt);
+	                             String nameOfMinimumTokens, long requestedAt, long consumedAt);
 
 	/**
 	 * Sets the parent of a container.
@@ -88,4 +88,11 @@ public interface ContainerSecrets
 	 * @return the container's lock
 	 */
 	ReentrantStampedLock getLock(AbstractContainer container);
+
+	/**
+	 * Wakes up any consumers that are waiting for a container's tokens to become available.
+	 *
+	 * @param container a container
+	 */
+	void wakeConsumers(AbstractContainer container);
 }
\ No newline at end of file
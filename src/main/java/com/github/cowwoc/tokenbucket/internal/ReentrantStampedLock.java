@@ -7,6 +7,13 @@ import java.util.concurrent.locks.StampedLock;
 
 /**
  * A reentrant implementation of a StampedLock that can be used with try-with-resources.
+ * <p>
+ * The lock does not keep any per-thread state, so it does not allocate thread-locals for each of the
+ * (possibly millions of virtual) threads that use it. The owner of the write lock is tracked in a field. A
+ * read lock is first requested using {@link StampedLock#tryReadLock()}, which only fails if another thread
+ * holds the write lock. This allows a thread that already holds a read lock to acquire it again without
+ * waiting behind a queued writer (which would deadlock), at the cost of letting readers barge ahead of queued
+ * writers.
  */
 public final class ReentrantStampedLock
 {
@@ -14,9 +21,13 @@ public final class ReentrantStampedLock
 	// https://www.javaspecialists.eu/talks/pdfs/2014%20JavaLand%20in%20Germany%20-%20%22Java%208%20From%20Smile%20To%20Tears%20-%20Emotional%20StampedLock%22%20by%20Heinz%20Kabutz.pdf
 	private final StampedLock lock = new StampedLock();
 	/**
-	 * The stamp associated with the current thread. {@code null} if none.
+	 * The thread that holds the write lock. {@code null} if none.
+	 * <p>
+	 * Only the thread that holds the write lock sets this field to a non-null value, and it clears the field
+	 * before releasing the lock, so a thread that reads itself is guaranteed to hold the write lock, even
+	 * without {@code volatile}.
 	 */
-	private final ThreadLocal<Long> stamp = new ThreadLocal<>();
+	private Thread writer;
 
 	/**
 	 * Creates a new lock.
@@ -39,25 +50,9 @@ public final class ReentrantStampedLock
 	 */
 	public <V> V optimisticReadLock(Callable<V> task)
 	{
-		Long existingStamp = this.stamp.get();
-		if (existingStamp != null)
-		{
-			if (StampedLock.isOptimisticReadStamp(existingStamp))
-				return runWithOptimisticReadLock(task, existingStamp);
-			if (StampedLock.isLockStamp(existingStamp))
-				return runTaskWithCorrectLockType(task);
-		}
-		long stamp = lock.tryOptimisticRead();
-		try
-		{
-			this.stamp.set(stamp);
-			return runWithOptimisticReadLock(task, stamp);
-		}
-		finally
-		{
-			this.stamp.set(existingStamp);
-			// There is nothing to unlock for optimistic reads
-		}
+		// If the current thread holds the write lock then tryOptimisticRead() returns 0 and the task runs under
+		// the existing lock. There is nothing to unlock for optimistic reads.
+		return runWithOptimisticReadLock(task, lock.tryOptimisticRead());
 	}
 
 	/**
@@ -118,16 +113,24 @@ public final class ReentrantStampedLock
 	 */
 	public CloseableLock readLock()
 	{
-		Long existingStamp = this.stamp.get();
-		if (existingStamp != null && StampedLock.isLockStamp(existingStamp))
+		if (writer == Thread.currentThread())
 			return ReentrantStampedLock::doNotUnlock;
-		long stamp = lock.readLock();
-		this.stamp.set(stamp);
-		return () ->
-		{
-			this.stamp.set(existingStamp);
-			lock.unlockRead(stamp);
-		};
+		long stamp = acquireReadLock();
+		return () -> lock.unlockRead(stamp);
+	}
+
+	/**
+	 * Acquires a read lock on behalf of a thread that does not hold the write lock.
+	 *
+	 * @return the stamp of the read lock
+	 */
+	private long acquireReadLock()
+	{
+		long stamp = lock.tryReadLock();
+		if (stamp != 0)
+			return stamp;
+		// Another thread holds the write lock, so the current thread cannot be holding a read lock
+		return lock.readLock();
 	}
 
 	/**
@@ -141,18 +144,15 @@ public final class ReentrantStampedLock
 	 */
 	public <V> V readLock(Callable<V> task)
 	{
-		Long existingStamp = this.stamp.get();
-		if (existingStamp != null && StampedLock.isLockStamp(existingStamp))
+		if (writer == Thread.currentThread())
 			return runTaskWithCorrectLockType(task);
-		long stamp = lock.readLock();
+		long stamp = acquireReadLock();
 		try
 		{
-			this.stamp.set(stamp);
 			return runTaskWithCorrectLockType(task);
 		}
 		finally
 		{
-			this.stamp.set(existingStamp);
 			lock.unlockRead(stamp);
 		}
 	}
@@ -180,14 +180,14 @@ public final class ReentrantStampedLock
 	 */
 	public CloseableLock writeLock()
 	{
-		Long existingStamp = this.stamp.get();
-		if (existingStamp != null && StampedLock.isWriteLockStamp(existingStamp))
+		Thread currentThread = Thread.currentThread();
+		if (writer == currentThread)
 			return ReentrantStampedLock::doNotUnlock;
 		long stamp = lock.writeLock();
-		this.stamp.set(stamp);
+		writer = currentThread;
 		return () ->
 		{
-			this.stamp.set(existingStamp);
+			writer = null;
 			lock.unlockWrite(stamp);
 		};
 	}
@@ -203,18 +203,18 @@ public final class ReentrantStampedLock
 	 */
 	public <V> V writeLock(Callable<V> task)
 	{
-		Long existingStamp = this.stamp.get();
-		if (existingStamp != null && StampedLock.isWriteLockStamp(existingStamp))
+		Thread currentThread = Thread.currentThread();
+		if (writer == currentThread)
 			return runTaskWithCorrectLockType(task);
 		long stamp = lock.writeLock();
+		writer = currentThread;
 		try
 		{
-			this.stamp.set(stamp);
 			return runTaskWithCorrectLockType(task);
 		}
 		finally
 		{
-			this.stamp.set(existingStamp);
+			writer = null;
 			lock.unlockWrite(stamp);
 		}
 	}
@@ -235,6 +235,16 @@ public final class ReentrantStampedLock
 		});
 	}
 
+	/**
+	 * Indicates if the current thread holds the write lock.
+	 *
+	 * @return true if the current thread holds the write lock
+	 */
+	public boolean isWriteLockedByCurrentThread()
+	{
+		return writer == Thread.currentThread();
+	}
+
 	/**
 	 * Runs a task while holding a lock that has been verified to be a read lock.
 	 *
@@ -0,0 +1,264 @@
+package com.github.cowwoc.tokenbucket.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel that runs tasks after a delay, using a single background thread.
+ * <p>
+ * Time is divided into ticks. Each task is placed in the wheel's bucket that corresponds to its deadline,
+ * along with the number of revolutions that the wheel must complete before the task is due. Scheduling a task
+ * and expiring a tick take constant time, regardless of the number of pending tasks.
+ * <p>
+ * Tasks never run before their deadline, but may run up to one tick late. Tasks run on the background
+ * thread, so they must not block. Exceptions and errors thrown by a task are logged, and do not prevent other
+ * tasks from running.
+ * <p>
+ * Cancelled tasks are removed from the wheel by the background thread, so they do not linger until their
+ * deadline.
+ * <p>
+ * The background thread is a daemon thread. It is started when the class is first used, and parks
+ * indefinitely while there are no pending tasks.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+final class TimerWheel
+{
+	/**
+	 * The timer wheel that is shared by all containers.
+	 */
+	static final TimerWheel INSTANCE = new TimerWheel(TimeUnit.MILLISECONDS.toNanos(1), 512);
+	private final Logger log = LoggerFactory.getLogger(TimerWheel.class);
+	private final long nanosPerTick;
+	private final int mask;
+	/**
+	 * Tasks that were scheduled since the last tick. Only the background thread may move them into
+	 * {@code buckets}.
+	 */
+	private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+	/**
+	 * Tasks that were cancelled since the last tick. Only the background thread may remove them from
+	 * {@code buckets}.
+	 */
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+	/**
+	 * The tasks that expire in each tick. Only accessed by the background thread.
+	 */
+	private final ArrayDeque<Timeout>[] buckets;
+	private final Thread worker;
+	private final long startTime;
+	/**
+	 * The number of ticks that have elapsed since {@code startTime}. Only accessed by the background thread.
+	 */
+	private long tick;
+	/**
+	 * The number of tasks in {@code buckets}. Only accessed by the background thread.
+	 */
+	private int pendingTimeouts;
+
+	/**
+	 * Creates a new timer wheel.
+	 *
+	 * @param nanosPerTick  the duration of a tick, in nanoseconds
+	 * @param ticksPerWheel the number of buckets in the wheel (must be a power of two)
+	 */
+	@SuppressWarnings("unchecked")
+	private TimerWheel(long nanosPerTick, int ticksPerWheel)
+	{
+		assert (Integer.bitCount(ticksPerWheel) == 1) : "ticksPerWheel: " + ticksPerWheel;
+		this.nanosPerTick = nanosPerTick;
+		this.mask = ticksPerWheel - 1;
+		this.buckets = new ArrayDeque[ticksPerWheel];
+		for (int i = 0; i < ticksPerWheel; ++i)
+			buckets[i] = new ArrayDeque<>();
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(this::run, "TimerWheel");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Runs a task after a delay.
+	 *
+	 * @param delay the number of nanoseconds to wait before running the task
+	 * @param task  the task to run
+	 * @return a handle that may be used to cancel the task
+	 */
+	Timeout schedule(long delay, Runnable task)
+	{
+		long deadline = System.nanoTime() - startTime + Math.max(0, delay);
+		if (deadline < 0)
+		{
+			// Overflow
+			deadline = Long.MAX_VALUE;
+		}
+		Timeout timeout = new Timeout(this, deadline, task);
+		newTimeouts.add(timeout);
+		LockSupport.unpark(worker);
+		return timeout;
+	}
+
+	/**
+	 * The body of the background thread.
+	 */
+	private void run()
+	{
+		while (true)
+		{
+			removeCancelledTimeouts();
+			if (pendingTimeouts == 0 && newTimeouts.isEmpty())
+			{
+				LockSupport.park(this);
+				// No tasks were pending, so it is safe to skip the ticks that elapsed in the meantime
+				tick = (System.nanoTime() - startTime) / nanosPerTick;
+				continue;
+			}
+			long endOfTick = (tick + 1) * nanosPerTick;
+			long nanosLeft = endOfTick - (System.nanoTime() - startTime);
+			if (nanosLeft > 0)
+			{
+				LockSupport.parkNanos(this, nanosLeft);
+				// Transfer tasks that were scheduled while parked, before their bucket goes by
+				transferNewTimeouts();
+				continue;
+			}
+			transferNewTimeouts();
+			expire(buckets[(int) (tick & mask)]);
+			++tick;
+		}
+	}
+
+	/**
+	 * Moves newly scheduled tasks into the wheel.
+	 */
+	private void transferNewTimeouts()
+	{
+		while (true)
+		{
+			Timeout timeout = newTimeouts.poll();
+			if (timeout == null)
+				return;
+			if (timeout.cancelled)
+				continue;
+			long expiresAtTick = Math.max(timeout.deadline / nanosPerTick, tick);
+			timeout.remainingRounds = (expiresAtTick - tick) / buckets.length;
+			timeout.bucket = buckets[(int) (expiresAtTick & mask)];
+			timeout.bucket.add(timeout);
+			++pendingTimeouts;
+		}
+	}
+
+	/**
+	 * Removes cancelled tasks from the wheel.
+	 */
+	private void removeCancelledTimeouts()
+	{
+		while (true)
+		{
+			Timeout timeout = cancelledTimeouts.poll();
+			if (timeout == null)
+				return;
+			// Tasks that have not been transferred yet are skipped by transferNewTimeouts()
+			if (timeout.bucket != null && timeout.bucket.remove(timeout))
+				--pendingTimeouts;
+			timeout.bucket = null;
+		}
+	}
+
+	/**
+	 * Runs the tasks of a bucket that are due in the current revolution of the wheel.
+	 *
+	 * @param bucket a bucket
+	 */
+	private void expire(ArrayDeque<Timeout> bucket)
+	{
+		for (Iterator<Timeout> i = bucket.iterator(); i.hasNext(); )
+		{
+			Timeout timeout = i.next();
+			if (timeout.remainingRounds > 0)
+			{
+				--timeout.remainingRounds;
+				continue;
+			}
+			i.remove();
+			--pendingTimeouts;
+			timeout.bucket = null;
+			if (timeout.cancelled)
+				continue;
+			try
+			{
+				timeout.task.run();
+			}
+			catch (Throwable t)
+			{
+				// Errors thrown by user code, such as a StackOverflowError, must not kill the background thread
+				log.error("Task threw an exception", t);
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(TimerWheel.class).
+			add("nanosPerTick", nanosPerTick).
+			add("ticksPerWheel", buckets.length).
+			toString();
+	}
+
+	/**
+	 * A task that is waiting to run.
+	 */
+	static final class Timeout
+	{
+		private final TimerWheel wheel;
+		/**
+		 * The time at which the task should run, relative to {@code startTime}.
+		 */
+		private final long deadline;
+		private final Runnable task;
+		/**
+		 * The number of revolutions that the wheel must complete before the task is due. Only accessed by the
+		 * background thread.
+		 */
+		private long remainingRounds;
+		/**
+		 * The bucket that contains the task; {@code null} if the task is not in the wheel. Only accessed by the
+		 * background thread.
+		 */
+		private ArrayDeque<Timeout> bucket;
+		private volatile boolean cancelled;
+
+		/**
+		 * @param wheel    the wheel that the task belongs to
+		 * @param deadline the time at which the task should run, relative to {@code startTime}
+		 * @param task     the task to run
+		 */
+		private Timeout(TimerWheel wheel, long deadline, Runnable task)
+		{
+			this.wheel = wheel;
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		/**
+		 * Prevents the task from running, if it has not started running yet. Has no effect if the task was
+		 * already cancelled.
+		 */
+		void cancel()
+		{
+			if (cancelled)
+				return;
+			cancelled = true;
+			wheel.cancelledTimeouts.add(this);
+			LockSupport.unpark(wheel.worker);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.github.cowwoc.tokenbucket.internal;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The threads that are waiting for a container's tokens to become available, in the order in which they
+ * started waiting.
+ * <p>
+ * Only the thread at the head of the queue attempts to consume tokens. When the number of available tokens
+ * changes, only the head is woken up. When the head leaves the queue, it wakes up its successor. This
+ * serves waiting consumers in arrival order and prevents a single token update from waking up every
+ * waiting thread.
+ * <p>
+ * The queue is not guarded by the container's lock, and each thread is parked individually using
+ * {@link LockSupport}, so waiting virtual threads unmount from their carrier thread.
+ * <p>
+ * <b>Thread safety</b>: This class is thread-safe.
+ */
+final class WaitQueue
+{
+	private final ConcurrentLinkedQueue<Thread> threads = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Creates a new queue.
+	 */
+	WaitQueue()
+	{
+	}
+
+	/**
+	 * Indicates if any threads are waiting.
+	 *
+	 * @return true if no threads are waiting
+	 */
+	boolean isEmpty()
+	{
+		return threads.isEmpty();
+	}
+
+	/**
+	 * Adds the current thread to the end of the queue.
+	 */
+	void add()
+	{
+		threads.add(Thread.currentThread());
+	}
+
+	/**
+	 * Indicates if the current thread is at the head of the queue.
+	 *
+	 * @return true if the current thread is at the head of the queue
+	 */
+	boolean isHead()
+	{
+		return threads.peek() == Thread.currentThread();
+	}
+
+	/**
+	 * Removes the current thread from the queue. If the thread was at the head of the queue, its successor is
+	 * woken up.
+	 */
+	void remove()
+	{
+		boolean wasHead = isHead();
+		threads.remove(Thread.currentThread());
+		if (wasHead)
+			wakeHead();
+	}
+
+	/**
+	 * Wakes up the thread at the head of the queue.
+	 */
+	void wakeHead()
+	{
+		Thread head = threads.peek();
+		if (head != null)
+			LockSupport.unpark(head);
+	}
+
+	/**
+	 * Blocks the current thread until it is woken up, interrupted or the timeout elapses. The method may also
+	 * return spuriously.
+	 *
+	 * @param nanos the maximum number of nanoseconds to wait
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	void await(long nanos) throws InterruptedException
+	{
+		if (nanos > 0)
+			LockSupport.parkNanos(this, nanos);
+		if (Thread.interrupted())
+			throw new InterruptedException();
+	}
+
+	@Override
+	public String toString()
+	{
+		return threads.toString();
+	}
+}
@@ -9,7 +9,8 @@
  * <a href="https://vimeo.com/74553130">video</a> and
  * <a href="https://www.javaspecialists.eu/talks/jfokus13/PhaserAndStampedLock.pdf">article</a>.
  * <p>
- * We use {@code StampedLock} for thread-safety and {@code ReadWriteLock} to signal/await {@code Condition}
- * variables.
+ * We use {@code StampedLock} for thread-safety. Consumers that wait for tokens to become available are
+ * queued in a {@code WaitQueue} and parked using {@link java.util.concurrent.locks.LockSupport}, so no
+ * {@code Condition} variables are needed.
  */
 package com.github.cowwoc.tokenbucket.internal;
\ No newline at end of file
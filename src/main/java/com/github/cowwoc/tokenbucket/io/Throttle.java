@@ -0,0 +1,84 @@
+package com.github.cowwoc.tokenbucket.io;
+
+import com.github.cowwoc.tokenbucket.Container;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.io.InterruptedIOException;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.assertThat;
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * Paces the transfer of bytes using a container, one token per byte.
+ */
+final class Throttle
+{
+	private final Container container;
+	/**
+	 * The number of bytes that were paid for but not transferred yet.
+	 */
+	private long bytesPaidFor;
+
+	/**
+	 * Creates a new throttle.
+	 *
+	 * @param container the container to consume tokens from
+	 * @throws NullPointerException if {@code container} is null
+	 */
+	Throttle(Container container)
+	{
+		requireThat(container, "container").isNotNull();
+		this.container = container;
+	}
+
+	/**
+	 * Blocks until at least one byte may be transferred.
+	 *
+	 * @param bytes the number of bytes that the caller wishes to transfer
+	 * @return the number of bytes that may be transferred, between {@code 1} and {@code bytes} (inclusive)
+	 * @throws IllegalArgumentException if {@code bytes} is negative or zero. If the container can never hold
+	 *                                  a single token.
+	 * @throws InterruptedIOException   if the thread is interrupted while waiting for tokens to become
+	 *                                  available. The thread's interrupted status is preserved.
+	 */
+	long acquire(long bytes) throws InterruptedIOException
+	{
+		assertThat(r -> r.requireThat(bytes, "bytes").isPositive());
+		if (bytesPaidFor == 0)
+		{
+			try
+			{
+				bytesPaidFor = container.consume(1, bytes).getTokensConsumed();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				InterruptedIOException exception = new InterruptedIOException();
+				exception.initCause(e);
+				throw exception;
+			}
+		}
+		return Math.min(bytesPaidFor, bytes);
+	}
+
+	/**
+	 * Records bytes that were transferred after invoking {@link #acquire(long)}.
+	 *
+	 * @param bytes the number of bytes that were transferred ({@code -1} on end-of-stream)
+	 */
+	void transferred(long bytes)
+	{
+		assertThat(r -> r.requireThat(bytes, "bytes").isLessThanOrEqualTo(bytesPaidFor, "bytesPaidFor"));
+		if (bytes > 0)
+			bytesPaidFor -= bytes;
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(Throttle.class).
+			add("bytesPaidFor", bytesPaidFor).
+			add("container", container).
+			toString();
+	}
+}
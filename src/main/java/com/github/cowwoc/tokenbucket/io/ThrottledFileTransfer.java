@@ -0,0 +1,105 @@
+package com.github.cowwoc.tokenbucket.io;
+
+import com.github.cowwoc.tokenbucket.Container;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * Rate-limited equivalents of {@link FileChannel#transferTo(long, long, WritableByteChannel)} and
+ * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}, consuming one token per byte.
+ * <p>
+ * The transfer is split into chunks that are sized to the number of tokens that are available. Each chunk is
+ * transferred by the file channel itself, so the operating system's zero-copy path is retained.
+ */
+public final class ThrottledFileTransfer
+{
+	/**
+	 * Prevent construction.
+	 */
+	private ThrottledFileTransfer()
+	{
+	}
+
+	/**
+	 * Transfers bytes from a file to a channel.
+	 *
+	 * @param source    the file to read from
+	 * @param position  the position in the file at which the transfer is to begin
+	 * @param count     the maximum number of bytes to transfer
+	 * @param target    the channel to write to
+	 * @param container the container to consume tokens from
+	 * @return the number of bytes transferred. Fewer than {@code count} bytes are transferred if the end of
+	 * the file is reached, or if {@code target} is in non-blocking mode and stops accepting bytes.
+	 * @throws NullPointerException           if any of the arguments are null
+	 * @throws IllegalArgumentException       if {@code position} or {@code count} are negative
+	 * @throws java.io.InterruptedIOException if the thread is interrupted while waiting for tokens to become
+	 *                                        available
+	 * @throws IOException                    if an I/O error occurs
+	 * @see FileChannel#transferTo(long, long, WritableByteChannel)
+	 */
+	public static long transferTo(FileChannel source, long position, long count, WritableByteChannel target,
+	                              Container container) throws IOException
+	{
+		requireThat(source, "source").isNotNull();
+		requireThat(position, "position").isNotNegative();
+		requireThat(count, "count").isNotNegative();
+		requireThat(target, "target").isNotNull();
+		// Avoid consuming tokens for bytes beyond the end of the file
+		count = Math.min(count, Math.max(0, source.size() - position));
+		Throttle throttle = new Throttle(container);
+		long bytesTransferred = 0;
+		while (bytesTransferred < count)
+		{
+			long bytesPermitted = throttle.acquire(count - bytesTransferred);
+			long bytesTransferredNow = source.transferTo(position + bytesTransferred, bytesPermitted, target);
+			throttle.transferred(bytesTransferredNow);
+			if (bytesTransferredNow == 0)
+				break;
+			bytesTransferred += bytesTransferredNow;
+		}
+		return bytesTransferred;
+	}
+
+	/**
+	 * Transfers bytes from a channel to a file.
+	 *
+	 * @param source    the channel to read from
+	 * @param target    the file to write to
+	 * @param position  the position in the file at which the transfer is to begin
+	 * @param count     the maximum number of bytes to transfer
+	 * @param container the container to consume tokens from
+	 * @return the number of bytes transferred. Fewer than {@code count} bytes are transferred if
+	 * {@code source} reaches end-of-stream, or if it is in non-blocking mode and runs out of bytes.
+	 * @throws NullPointerException           if any of the arguments are null
+	 * @throws IllegalArgumentException       if {@code position} or {@code count} are negative
+	 * @throws java.io.InterruptedIOException if the thread is interrupted while waiting for tokens to become
+	 *                                        available
+	 * @throws IOException                    if an I/O error occurs
+	 * @see FileChannel#transferFrom(ReadableByteChannel, long, long)
+	 */
+	public static long transferFrom(ReadableByteChannel source, FileChannel target, long position, long count,
+	                                Container container) throws IOException
+	{
+		requireThat(source, "source").isNotNull();
+		requireThat(target, "target").isNotNull();
+		requireThat(position, "position").isNotNegative();
+		requireThat(count, "count").isNotNegative();
+		Throttle throttle = new Throttle(container);
+		long bytesTransferred = 0;
+		while (bytesTransferred < count)
+		{
+			long bytesPermitted = throttle.acquire(count - bytesTransferred);
+			long bytesTransferredNow = target.transferFrom(source, position + bytesTransferred, bytesPermitted);
+			throttle.transferred(bytesTransferredNow);
+			if (bytesTransferredNow == 0)
+				break;
+			bytesTransferred += bytesTransferredNow;
+		}
+		return bytesTransferred;
+	}
+}
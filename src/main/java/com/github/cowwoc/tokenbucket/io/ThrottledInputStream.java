@@ -0,0 +1,108 @@
+package com.github.cowwoc.tokenbucket.io;
+
+import com.github.cowwoc.tokenbucket.Container;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * An input stream that limits the rate at which bytes are read, consuming one token per byte.
+ * <p>
+ * Each read is limited to the number of tokens that are available, so callers may use large buffers without
+ * causing bursts. A read that returns fewer bytes than were paid for carries the remaining tokens over to the
+ * next read.
+ */
+public final class ThrottledInputStream extends FilterInputStream
+{
+	private final Throttle throttle;
+
+	/**
+	 * Creates a new stream.
+	 *
+	 * @param in        the stream to read from
+	 * @param container the container to consume tokens from
+	 * @throws NullPointerException if any of the arguments are null
+	 */
+	public ThrottledInputStream(InputStream in, Container container)
+	{
+		super(in);
+		requireThat(in, "in").isNotNull();
+		this.throttle = new Throttle(container);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws java.io.InterruptedIOException if the thread is interrupted while waiting for tokens to become
+	 *                                        available
+	 */
+	@Override
+	public int read() throws IOException
+	{
+		throttle.acquire(1);
+		int result = in.read();
+		if (result != -1)
+			throttle.transferred(1);
+		return result;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws java.io.InterruptedIOException if the thread is interrupted while waiting for tokens to become
+	 *                                        available
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		Objects.checkFromIndexSize(off, len, b.length);
+		if (len == 0)
+			return 0;
+		int bytesPermitted = (int) throttle.acquire(len);
+		int bytesRead = in.read(b, off, bytesPermitted);
+		throttle.transferred(bytesRead);
+		return bytesRead;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws java.io.InterruptedIOException if the thread is interrupted while waiting for tokens to become
+	 *                                        available
+	 */
+	@Override
+	public long skip(long n) throws IOException
+	{
+		if (n <= 0)
+			return 0;
+		long bytesSkipped = in.skip(throttle.acquire(n));
+		throttle.transferred(bytesSkipped);
+		return bytesSkipped;
+	}
+
+	/**
+	 * Marks are not supported, because bytes that are read again would have to be paid for twice.
+	 *
+	 * @return {@code false}
+	 */
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+	@Override
+	public void mark(int readlimit)
+	{
+	}
+
+	@Override
+	public void reset() throws IOException
+	{
+		throw new IOException("mark/reset not supported");
+	}
+}
@@ -0,0 +1,69 @@
+package com.github.cowwoc.tokenbucket.io;
+
+import com.github.cowwoc.tokenbucket.Container;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * An output stream that limits the rate at which bytes are written, consuming one token per byte.
+ * <p>
+ * Large writes are split into chunks that are sized to the number of tokens that are available, so the
+ * underlying stream receives as few writes as the limit allows.
+ */
+public final class ThrottledOutputStream extends FilterOutputStream
+{
+	private final Throttle throttle;
+
+	/**
+	 * Creates a new stream.
+	 *
+	 * @param out       the stream to write to
+	 * @param container the container to consume tokens from
+	 * @throws NullPointerException if any of the arguments are null
+	 */
+	public ThrottledOutputStream(OutputStream out, Container container)
+	{
+		super(out);
+		requireThat(out, "out").isNotNull();
+		this.throttle = new Throttle(container);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws java.io.InterruptedIOException if the thread is interrupted while waiting for tokens to become
+	 *                                        available
+	 */
+	@Override
+	public void write(int b) throws IOException
+	{
+		throttle.acquire(1);
+		out.write(b);
+		throttle.transferred(1);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws java.io.InterruptedIOException if the thread is interrupted while waiting for tokens to become
+	 *                                        available
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		Objects.checkFromIndexSize(off, len, b.length);
+		while (len > 0)
+		{
+			int bytesPermitted = (int) throttle.acquire(len);
+			out.write(b, off, bytesPermitted);
+			throttle.transferred(bytesPermitted);
+			off += bytesPermitted;
+			len -= bytesPermitted;
+		}
+	}
+}
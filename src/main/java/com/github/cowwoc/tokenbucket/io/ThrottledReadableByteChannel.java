@@ -0,0 +1,85 @@
+package com.github.cowwoc.tokenbucket.io;
+
+import com.github.cowwoc.tokenbucket.Container;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * A channel that limits the rate at which bytes are read, consuming one token per byte.
+ * <p>
+ * Each read is limited to the number of tokens that are available by temporarily lowering the destination
+ * buffer's limit, so direct buffers are passed to the underlying channel without being copied.
+ */
+public final class ThrottledReadableByteChannel implements ReadableByteChannel
+{
+	private final ReadableByteChannel channel;
+	private final Throttle throttle;
+
+	/**
+	 * Creates a new channel.
+	 *
+	 * @param channel   the channel to read from
+	 * @param container the container to consume tokens from
+	 * @throws NullPointerException if any of the arguments are null
+	 */
+	public ThrottledReadableByteChannel(ReadableByteChannel channel, Container container)
+	{
+		requireThat(channel, "channel").isNotNull();
+		this.channel = channel;
+		this.throttle = new Throttle(container);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws java.io.InterruptedIOException if the thread is interrupted while waiting for tokens to become
+	 *                                        available
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException
+	{
+		int remaining = dst.remaining();
+		if (remaining == 0)
+			return channel.read(dst);
+		int bytesPermitted = (int) throttle.acquire(remaining);
+		int limit = dst.limit();
+		dst.limit(dst.position() + bytesPermitted);
+		int bytesRead;
+		try
+		{
+			bytesRead = channel.read(dst);
+		}
+		finally
+		{
+			dst.limit(limit);
+		}
+		throttle.transferred(bytesRead);
+		return bytesRead;
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(ThrottledReadableByteChannel.class).
+			add("channel", channel).
+			add("throttle", throttle).
+			toString();
+	}
+}
@@ -0,0 +1,94 @@
+package com.github.cowwoc.tokenbucket.io;
+
+import com.github.cowwoc.tokenbucket.Container;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * A channel that limits the rate at which bytes are written, consuming one token per byte.
+ * <p>
+ * Large writes are split into chunks that are sized to the number of tokens that are available, by
+ * temporarily lowering the source buffer's limit, so direct buffers are passed to the underlying channel
+ * without being copied.
+ */
+public final class ThrottledWritableByteChannel implements WritableByteChannel
+{
+	private final WritableByteChannel channel;
+	private final Throttle throttle;
+
+	/**
+	 * Creates a new channel.
+	 *
+	 * @param channel   the channel to write to
+	 * @param container the container to consume tokens from
+	 * @throws NullPointerException if any of the arguments are null
+	 */
+	public ThrottledWritableByteChannel(WritableByteChannel channel, Container container)
+	{
+		requireThat(channel, "channel").isNotNull();
+		this.channel = channel;
+		this.throttle = new Throttle(container);
+	}
+
+	/**
+	 * Writes bytes from a buffer, blocking until tokens are available for all of them. If the underlying
+	 * channel is in non-blocking mode and stops accepting bytes, this method returns early.
+	 *
+	 * @param src the buffer to write from
+	 * @return the number of bytes written
+	 * @throws java.io.InterruptedIOException if the thread is interrupted while waiting for tokens to become
+	 *                                        available
+	 * @throws IOException                    if an I/O error occurs
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException
+	{
+		int bytesWritten = 0;
+		int limit = src.limit();
+		while (src.hasRemaining())
+		{
+			int bytesPermitted = (int) throttle.acquire(src.remaining());
+			src.limit(src.position() + bytesPermitted);
+			int bytesWrittenNow;
+			try
+			{
+				bytesWrittenNow = channel.write(src);
+			}
+			finally
+			{
+				src.limit(limit);
+			}
+			throttle.transferred(bytesWrittenNow);
+			if (bytesWrittenNow == 0)
+				break;
+			bytesWritten += bytesWrittenNow;
+		}
+		return bytesWritten;
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(ThrottledWritableByteChannel.class).
+			add("channel", channel).
+			add("throttle", throttle).
+			toString();
+	}
+}
@@ -0,0 +1,10 @@
+/**
+ * Streams and channels that limit the rate at which bytes are transferred, using one token per byte.
+ * <p>
+ * Each transfer is sized to the number of tokens that are available, instead of consuming tokens for a fixed
+ * buffer size up front. Tokens that are consumed but not used by a short read or write are carried over to
+ * the next transfer, so over time the number of tokens consumed matches the number of bytes transferred.
+ * <p>
+ * <b>Thread safety</b>: Classes are not thread-safe unless indicated otherwise.
+ */
+package com.github.cowwoc.tokenbucket.io;
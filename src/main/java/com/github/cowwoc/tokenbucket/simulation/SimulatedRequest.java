@@ -0,0 +1,77 @@
+package com.github.cowwoc.tokenbucket.simulation;
+
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.time.Duration;
+import java.util.Objects;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * A request in a trace.
+ * <p>
+ * <b>Thread safety</b>: This class is immutable.
+ */
+public final class SimulatedRequest
+{
+	private final Duration arrival;
+	private final long tokens;
+
+	/**
+	 * Creates a new request.
+	 *
+	 * @param arrival the time at which the request arrives, relative to the start of the simulation
+	 * @param tokens  the number of tokens that the request consumes
+	 * @throws NullPointerException     if {@code arrival} is null
+	 * @throws IllegalArgumentException if {@code arrival} or {@code tokens} are negative, or if {@code tokens}
+	 *                                  is zero
+	 */
+	public SimulatedRequest(Duration arrival, long tokens)
+	{
+		requireThat(arrival, "arrival").isGreaterThanOrEqualTo(Duration.ZERO);
+		requireThat(tokens, "tokens").isPositive();
+		this.arrival = arrival;
+		this.tokens = tokens;
+	}
+
+	/**
+	 * Returns the time at which the request arrives, relative to the start of the simulation.
+	 *
+	 * @return the time at which the request arrives
+	 */
+	public Duration getArrival()
+	{
+		return arrival;
+	}
+
+	/**
+	 * Returns the number of tokens that the request consumes.
+	 *
+	 * @return the number of tokens that the request consumes
+	 */
+	public long getTokens()
+	{
+		return tokens;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Objects.hash(arrival, tokens);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		return o instanceof SimulatedRequest other && arrival.equals(other.arrival) && tokens == other.tokens;
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(SimulatedRequest.class).
+			add("arrival", arrival).
+			add("tokens", tokens).
+			toString();
+	}
+}
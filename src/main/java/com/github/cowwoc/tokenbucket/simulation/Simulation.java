@@ -0,0 +1,253 @@
+package com.github.cowwoc.tokenbucket.simulation;
+
+import com.github.cowwoc.tokenbucket.ConsumptionResult;
+import com.github.cowwoc.tokenbucket.Container;
+import com.github.cowwoc.tokenbucket.Limit;
+import com.github.cowwoc.tokenbucket.ManualTimeSource;
+import com.github.cowwoc.tokenbucket.Reservation;
+import com.github.cowwoc.tokenbucket.annotation.CheckReturnValue;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * Replays a trace of requests through a container on a virtual clock.
+ * <p>
+ * The container, and any containers nested inside it, must use the simulation's {@link ManualTimeSource}.
+ * The clock is advanced to the arrival time of each request. A request that cannot be satisfied
+ * immediately waits in line behind the requests that arrived before it: its tokens are
+ * {@link Container#reserve(long) reserved} and its wait time is the time until the reservation becomes
+ * available. Requests that would wait longer than {@code maximumWait} are rejected, and their tokens are
+ * returned.
+ * <p>
+ * No thread sleeps, so hours of traffic are simulated in milliseconds.
+ */
+public final class Simulation
+{
+	/**
+	 * Builds a new simulation.
+	 *
+	 * @return a Simulation builder
+	 */
+	public static Builder builder()
+	{
+		return new Builder();
+	}
+
+	private final ManualTimeSource timeSource;
+	private final Container container;
+	private final Duration maximumWait;
+
+	/**
+	 * Creates a new simulation.
+	 *
+	 * @param timeSource  the virtual clock
+	 * @param container   the container to consume tokens from
+	 * @param maximumWait the maximum amount of time that a request may wait before it is rejected
+	 */
+	private Simulation(ManualTimeSource timeSource, Container container, Duration maximumWait)
+	{
+		this.timeSource = timeSource;
+		this.container = container;
+		this.maximumWait = maximumWait;
+	}
+
+	/**
+	 * Replays a trace. The simulation starts at the current time of the time source, and leaves the time
+	 * source at the arrival time of the last request.
+	 *
+	 * @param trace the requests, sorted by their arrival time
+	 * @return the outcome of the simulation
+	 * @throws NullPointerException     if {@code trace} is null
+	 * @throws IllegalArgumentException if {@code trace} is not sorted by arrival time. If a request can never
+	 *                                  succeed because the container cannot hold the requested number of
+	 *                                  tokens.
+	 */
+	public SimulationReport run(List<SimulatedRequest> trace)
+	{
+		requireThat(trace, "trace").isNotNull();
+		long start = timeSource.nanoTime();
+		long[] waitTimes = new long[trace.size()];
+		int requestsAdmitted = 0;
+		long requestsRejected = 0;
+		long tokensAdmitted = 0;
+		long end = start;
+		Duration now = Duration.ZERO;
+		// Limits are compared by their configuration, so distinct limits that are configured alike must be
+		// counted separately. The configuration of an adaptive limit may also change during the simulation.
+		Map<Limit, Long> bottlenecks = new IdentityHashMap<>();
+		for (SimulatedRequest request : trace)
+		{
+			Duration arrival = request.getArrival();
+			requireThat(arrival, "arrival").isGreaterThanOrEqualTo(now, "previousArrival");
+			timeSource.advance(arrival.minus(now));
+			now = arrival;
+
+			long tokens = request.getTokens();
+			ConsumptionResult result = container.tryConsume(tokens);
+			long waitTime;
+			if (result.isSuccessful())
+				waitTime = 0;
+			else
+			{
+				for (Limit limit : result.getBottlenecks())
+					bottlenecks.merge(limit, 1L, Long::sum);
+				Reservation reservation = container.reserve(tokens);
+				waitTime = reservation.getAvailableIn().toNanos();
+				if (reservation.getAvailableIn().compareTo(maximumWait) > 0)
+				{
+					reservation.cancel();
+					++requestsRejected;
+					end = Math.max(end, timeSource.nanoTime());
+					continue;
+				}
+			}
+			waitTimes[requestsAdmitted] = waitTime;
+			++requestsAdmitted;
+			tokensAdmitted += tokens;
+			end = Math.max(end, timeSource.nanoTime() + waitTime);
+		}
+		waitTimes = Arrays.copyOf(waitTimes, requestsAdmitted);
+		Arrays.sort(waitTimes);
+		return new SimulationReport(requestsRejected, tokensAdmitted, Duration.ofNanos(end - start), waitTimes,
+			bottlenecks);
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(Simulation.class).
+			add("maximumWait", maximumWait).
+			add("container", container).
+			toString();
+	}
+
+	/**
+	 * Builds a Simulation.
+	 */
+	public static final class Builder
+	{
+		private ManualTimeSource timeSource;
+		private Container container;
+		private Duration maximumWait = Duration.ofNanos(Long.MAX_VALUE);
+
+		/**
+		 * Prevent construction.
+		 */
+		private Builder()
+		{
+		}
+
+		/**
+		 * Returns the virtual clock.
+		 *
+		 * @return the virtual clock
+		 */
+		@CheckReturnValue
+		public ManualTimeSource timeSource()
+		{
+			return timeSource;
+		}
+
+		/**
+		 * Sets the virtual clock. The container must use the same time source.
+		 *
+		 * @param timeSource the virtual clock
+		 * @return this
+		 * @throws NullPointerException if {@code timeSource} is null
+		 */
+		@CheckReturnValue
+		public Builder timeSource(ManualTimeSource timeSource)
+		{
+			requireThat(timeSource, "timeSource").isNotNull();
+			this.timeSource = timeSource;
+			return this;
+		}
+
+		/**
+		 * Returns the container to consume tokens from.
+		 *
+		 * @return the container to consume tokens from
+		 */
+		@CheckReturnValue
+		public Container container()
+		{
+			return container;
+		}
+
+		/**
+		 * Sets the container to consume tokens from.
+		 *
+		 * @param container the container to consume tokens from
+		 * @return this
+		 * @throws NullPointerException if {@code container} is null
+		 */
+		@CheckReturnValue
+		public Builder container(Container container)
+		{
+			requireThat(container, "container").isNotNull();
+			this.container = container;
+			return this;
+		}
+
+		/**
+		 * Returns the maximum amount of time that a request may wait before it is rejected. By default, requests
+		 * are never rejected.
+		 *
+		 * @return the maximum amount of time that a request may wait
+		 */
+		@CheckReturnValue
+		public Duration maximumWait()
+		{
+			return maximumWait;
+		}
+
+		/**
+		 * Sets the maximum amount of time that a request may wait before it is rejected.
+		 *
+		 * @param maximumWait the maximum amount of time that a request may wait
+		 * @return this
+		 * @throws NullPointerException     if {@code maximumWait} is null
+		 * @throws IllegalArgumentException if {@code maximumWait} is negative
+		 */
+		@CheckReturnValue
+		public Builder maximumWait(Duration maximumWait)
+		{
+			requireThat(maximumWait, "maximumWait").isGreaterThanOrEqualTo(Duration.ZERO);
+			this.maximumWait = maximumWait;
+			return this;
+		}
+
+		/**
+		 * Builds a new Simulation.
+		 *
+		 * @return a new Simulation
+		 * @throws NullPointerException     if {@code timeSource} or {@code container} are not set
+		 * @throws IllegalArgumentException if {@code container} does not use {@code timeSource}
+		 */
+		public Simulation build()
+		{
+			requireThat(timeSource, "timeSource").isNotNull();
+			requireThat(container, "container").isNotNull();
+			requireThat(container.getTimeSource(), "container.getTimeSource()").isSameObjectAs(timeSource,
+				"timeSource");
+			return new Simulation(timeSource, container, maximumWait);
+		}
+
+		@Override
+		public String toString()
+		{
+			return new ToStringBuilder(Builder.class).
+				add("timeSource", timeSource).
+				add("container", container).
+				add("maximumWait", maximumWait).
+				toString();
+		}
+	}
+}
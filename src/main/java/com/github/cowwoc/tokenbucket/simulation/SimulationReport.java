@@ -0,0 +1,156 @@
+package com.github.cowwoc.tokenbucket.simulation;
+
+import com.github.cowwoc.tokenbucket.Limit;
+import com.github.cowwoc.tokenbucket.internal.ToStringBuilder;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+/**
+ * The outcome of a {@link Simulation}.
+ * <p>
+ * <b>Thread safety</b>: This class is immutable.
+ */
+public final class SimulationReport
+{
+	private final long requestsAdmitted;
+	private final long requestsRejected;
+	private final long tokensAdmitted;
+	private final Duration duration;
+	/**
+	 * The amount of time that each admitted request waited, in nanoseconds, sorted in ascending order.
+	 */
+	private final long[] waitTimes;
+	/**
+	 * The number of requests that each limit delayed or rejected, keyed by identity.
+	 */
+	private final Map<Limit, Long> bottlenecks;
+
+	/**
+	 * Creates a new report.
+	 *
+	 * @param requestsRejected the number of requests that were rejected
+	 * @param tokensAdmitted   the number of tokens that were consumed by admitted requests
+	 * @param duration         the amount of time from the start of the simulation until the last request was
+	 *                         admitted or rejected
+	 * @param waitTimes        the amount of time that each admitted request waited, in nanoseconds, sorted in
+	 *                         ascending order
+	 * @param bottlenecks      the number of requests that each limit delayed or rejected, keyed by identity
+	 */
+	SimulationReport(long requestsRejected, long tokensAdmitted, Duration duration, long[] waitTimes,
+	                 Map<Limit, Long> bottlenecks)
+	{
+		this.requestsAdmitted = waitTimes.length;
+		this.requestsRejected = requestsRejected;
+		this.tokensAdmitted = tokensAdmitted;
+		this.duration = duration;
+		this.waitTimes = waitTimes;
+		this.bottlenecks = Collections.unmodifiableMap(new IdentityHashMap<>(bottlenecks));
+	}
+
+	/**
+	 * Returns the number of requests that were admitted.
+	 *
+	 * @return the number of requests that were admitted
+	 */
+	public long getRequestsAdmitted()
+	{
+		return requestsAdmitted;
+	}
+
+	/**
+	 * Returns the number of requests that were rejected because they would have waited longer than the
+	 * simulation's {@code maximumWait}.
+	 *
+	 * @return the number of requests that were rejected
+	 */
+	public long getRequestsRejected()
+	{
+		return requestsRejected;
+	}
+
+	/**
+	 * Returns the number of tokens that were consumed by admitted requests.
+	 *
+	 * @return the number of tokens that were consumed by admitted requests
+	 */
+	public long getTokensAdmitted()
+	{
+		return tokensAdmitted;
+	}
+
+	/**
+	 * Returns the amount of simulated time from the start of the simulation until the last request was
+	 * admitted or rejected.
+	 *
+	 * @return the amount of simulated time
+	 */
+	public Duration getDuration()
+	{
+		return duration;
+	}
+
+	/**
+	 * Returns the number of tokens that were admitted per second of simulated time.
+	 *
+	 * @return {@code 0} if no time elapsed
+	 */
+	public double getTokensPerSecond()
+	{
+		long nanos = duration.toNanos();
+		if (nanos == 0)
+			return 0;
+		return tokensAdmitted * 1_000_000_000.0 / nanos;
+	}
+
+	/**
+	 * Returns the amount of time that admitted requests waited, at a percentile.
+	 *
+	 * @param percentile a percentile, such as {@code 99.9}
+	 * @return the smallest wait time that is longer than or equal to the wait time of {@code percentile}
+	 * percent of the admitted requests ({@code Duration.ZERO} if no requests were admitted)
+	 * @throws IllegalArgumentException if {@code percentile} is not between {@code 0} and {@code 100}
+	 *                                  (inclusive)
+	 */
+	public Duration getWaitTime(double percentile)
+	{
+		requireThat(percentile, "percentile").isBetweenClosed(0.0, 100.0);
+		if (waitTimes.length == 0)
+			return Duration.ZERO;
+		// Nearest-rank method
+		int rank = (int) Math.ceil(percentile / 100 * waitTimes.length);
+		return Duration.ofNanos(waitTimes[Math.max(0, rank - 1)]);
+	}
+
+	/**
+	 * Returns the number of requests that each limit delayed or rejected. A request that was held up by
+	 * multiple limits is attributed to each of them.
+	 *
+	 * @return an unmodifiable map from each limit to the number of requests that it held up. Limits are
+	 * compared by identity, so distinct limits that are configured alike are counted separately. Limits that
+	 * did not hold up any requests are omitted.
+	 */
+	public Map<Limit, Long> getBottlenecks()
+	{
+		return bottlenecks;
+	}
+
+	@Override
+	public String toString()
+	{
+		return new ToStringBuilder(SimulationReport.class).
+			add("requestsAdmitted", requestsAdmitted).
+			add("requestsRejected", requestsRejected).
+			add("tokensAdmitted", tokensAdmitted).
+			add("duration", duration).
+			add("tokensPerSecond", getTokensPerSecond()).
+			add("p50", getWaitTime(50)).
+			add("p99", getWaitTime(99)).
+			add("max", getWaitTime(100)).
+			toString();
+	}
+}
@@ -0,0 +1,7 @@
+/**
+ * Replays request traces through containers on a virtual clock, in order to evaluate a configuration
+ * before it is deployed.
+ * <p>
+ * <b>Thread safety</b>: Classes are not thread-safe unless indicated otherwise.
+ */
+package com.github.cowwoc.tokenbucket.simulation;
@@ -7,4 +7,6 @@ module com.github.cowwoc.tokenbucket
 	requires org.slf4j;
 
 	exports com.github.cowwoc.tokenbucket;
+	exports com.github.cowwoc.tokenbucket.io;
+	exports com.github.cowwoc.tokenbucket.simulation;
 }
\ No newline at end of file
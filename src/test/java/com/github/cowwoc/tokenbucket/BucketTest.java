@@ -7,6 +7,13 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
 
@@ -55,7 +62,7 @@ public final class BucketTest
 			build();
 
 		Limit limit = bucket.getLimits().iterator().next();
-		requireThat(limit.availableTokens, "limit.getAvailableTokens()").isNegative();
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isNegative();
 
 		ConsumptionResult consumptionResult = bucket.tryConsume();
 		requireThat(consumptionResult.getAvailableIn(), "consumptionResult.getAvailableIn()").
@@ -72,7 +79,7 @@ public final class BucketTest
 			build();
 
 		Limit limit = bucket.getLimits().iterator().next();
-		requireThat(limit.availableTokens, "limit.getAvailableTokens()").isPositive();
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isPositive();
 		ConsumptionResult consumptionResult = bucket.tryConsume();
 		requireThat(consumptionResult.getAvailableIn(), "consumptionResult.getAvailableIn()").
 			isEqualTo(Duration.ZERO);
@@ -81,7 +88,7 @@ public final class BucketTest
 		{
 			update.availableTokens(-100);
 		}
-		requireThat(limit.availableTokens, "limit.getAvailableTokens()").isNegative();
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isNegative();
 		consumptionResult = bucket.tryConsume();
 		requireThat(consumptionResult.getAvailableIn(), "consumptionResult.getAvailableIn()").
 			isGreaterThanOrEqualTo(Duration.ofSeconds(90));
@@ -118,7 +125,7 @@ public final class BucketTest
 			build();
 
 		Limit limit = bucket.getLimits().iterator().next();
-		requireThat(limit.availableTokens, "limit.getAvailableTokens()").isZero();
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isZero();
 
 		ConsumptionResult consumptionResult = bucket.tryConsume();
 		requireThat(consumptionResult.getTokensConsumed(), "consumptionResult.getTokensConsumed()").
@@ -141,9 +148,9 @@ public final class BucketTest
 			build();
 
 		Limit limit = bucket.getLimits().iterator().next();
-		long tokensBefore = limit.availableTokens;
-		limit.refill(limit.startOfCurrentPeriod.plusSeconds(5));
-		long tokensAfter = limit.availableTokens;
+		long tokensBefore = limit.getAvailableTokens();
+		limit.refill(limit.getStartOfCurrentPeriod().plusSeconds(5));
+		long tokensAfter = limit.getAvailableTokens();
 		long tokensAdded = tokensAfter - tokensBefore;
 		requireThat(tokensAdded, "tokensAdded").isEqualTo(4L);
 	}
@@ -181,14 +188,14 @@ public final class BucketTest
 		long expectedTokens = 0;
 		for (int i = 1; i <= 10; ++i)
 		{
-			Instant requestedAt = limit.startOfCurrentPeriod.plus(ONE_SECOND);
+			Instant requestedAt = limit.getStartOfCurrentPeriod().plus(ONE_SECOND);
 			limit.refill(requestedAt);
 			expectedTokens += i;
 			try (Limit.ConfigurationUpdater update = limit.updateConfiguration())
 			{
 				update.tokensPerPeriod(i + 1);
 			}
-			requireThat(limit.availableTokens, "limit.availableTokens").isEqualTo(expectedTokens);
+			requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(expectedTokens);
 		}
 	}
 
@@ -277,4 +284,579 @@ public final class BucketTest
 		// Cannot select index 1 since the child was removed. A selection index of 0 should be used.
 		ignored = containerList.consume();
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void concurrentConsumptionFromSingleLimit() throws InterruptedException
+	{
+		// Consumers of a single-limit bucket update the limit using compare-and-set instead of locks. Make sure
+		// that no tokens are lost or consumed twice.
+		int threads = 8;
+		int tokensPerThread = 10_000;
+		Bucket bucket = Bucket.builder().
+			addLimit(limit ->
+				limit.initialTokens(threads * tokensPerThread).
+					period(Duration.ofDays(1)).
+					build()).
+			build();
+
+		AtomicLong tokensConsumed = new AtomicLong();
+		List<Thread> consumers = new ArrayList<>();
+		for (int i = 0; i < threads; ++i)
+		{
+			Thread consumer = new Thread(() ->
+			{
+				while (true)
+				{
+					ConsumptionResult consumptionResult = bucket.tryConsume(1, 3);
+					if (!consumptionResult.isSuccessful())
+						break;
+					tokensConsumed.addAndGet(consumptionResult.getTokensConsumed());
+				}
+			});
+			consumer.start();
+			consumers.add(consumer);
+		}
+		for (Thread consumer : consumers)
+			consumer.join();
+
+		Limit limit = bucket.getLimits().iterator().next();
+		requireThat(tokensConsumed.get(), "tokensConsumed").isEqualTo((long) threads * tokensPerThread);
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isZero();
+	}
+
+	@Test
+	public void concurrentConsumptionFromStripedLimit() throws InterruptedException
+	{
+		// Threads consume from their own stripe and borrow from the other stripes once it runs dry. Make sure
+		// that no tokens are lost or consumed twice.
+		int threads = 8;
+		int tokensPerThread = 10_000;
+		Bucket bucket = Bucket.builder().
+			addLimit(limit ->
+				limit.initialTokens(threads * tokensPerThread).
+					period(Duration.ofDays(1)).
+					stripes(4).
+					build()).
+			build();
+
+		AtomicLong tokensConsumed = new AtomicLong();
+		List<Thread> consumers = new ArrayList<>();
+		for (int i = 0; i < threads; ++i)
+		{
+			Thread consumer = new Thread(() ->
+			{
+				while (true)
+				{
+					long tokens = bucket.tryAcquire(1, 3);
+					if (tokens < 0)
+						break;
+					tokensConsumed.addAndGet(tokens);
+				}
+			});
+			consumer.start();
+			consumers.add(consumer);
+		}
+		for (Thread consumer : consumers)
+			consumer.join();
+
+		Limit limit = bucket.getLimits().iterator().next();
+		requireThat(tokensConsumed.get(), "tokensConsumed").isEqualTo((long) threads * tokensPerThread);
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isZero();
+	}
+
+	@Test
+	public void concurrentConsumptionWithCombining() throws InterruptedException
+	{
+		// Requests are applied by whichever thread holds the locks. Make sure that no tokens are lost or
+		// consumed twice.
+		int threads = 8;
+		int tokensPerThread = 10_000;
+		Bucket bucket = Bucket.builder().
+			addLimit(limit ->
+				limit.initialTokens(threads * tokensPerThread).
+					period(Duration.ofDays(1)).
+					build()).
+			addLimit(limit ->
+				limit.initialTokens(threads * tokensPerThread + 1).
+					period(Duration.ofDays(1)).
+					build()).
+			combining(true).
+			build();
+
+		AtomicLong tokensConsumed = new AtomicLong();
+		List<Thread> consumers = new ArrayList<>();
+		for (int i = 0; i < threads; ++i)
+		{
+			Thread consumer = new Thread(() ->
+			{
+				while (true)
+				{
+					ConsumptionResult consumptionResult = bucket.tryConsume(1, 3);
+					if (!consumptionResult.isSuccessful())
+						break;
+					tokensConsumed.addAndGet(consumptionResult.getTokensConsumed());
+				}
+			});
+			consumer.start();
+			consumers.add(consumer);
+		}
+		for (Thread consumer : consumers)
+			consumer.join();
+
+		requireThat(tokensConsumed.get(), "tokensConsumed").isEqualTo((long) threads * tokensPerThread);
+		List<Limit> limits = bucket.getLimits();
+		requireThat(limits.get(0).getAvailableTokens(), "limits.get(0).getAvailableTokens()").isZero();
+		requireThat(limits.get(1).getAvailableTokens(), "limits.get(1).getAvailableTokens()").isEqualTo(1L);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void consumeMoreThanLimitMaximumWithCombining()
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit ->
+				limit.maximumTokens(1).
+					build()).
+			addLimit(Builder::build).
+			combining(true).
+			build();
+		//noinspection ResultOfMethodCallIgnored
+		bucket.tryConsume(2);
+	}
+
+	@Test
+	public void blockedConsumersAreServedInArrivalOrder() throws InterruptedException
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit ->
+				limit.tokensPerPeriod(1).
+					period(Duration.ofMillis(20)).
+					build()).
+			build();
+
+		Queue<Integer> servedOrder = new ConcurrentLinkedQueue<>();
+		List<Thread> consumers = new ArrayList<>();
+		for (int i = 0; i < 5; ++i)
+		{
+			int id = i;
+			Thread consumer = new Thread(() ->
+			{
+				try
+				{
+					ConsumptionResult ignored = bucket.consume();
+					servedOrder.add(id);
+				}
+				catch (InterruptedException e)
+				{
+					throw new AssertionError(e);
+				}
+			});
+			consumer.start();
+			consumers.add(consumer);
+			// Wait for the consumer to join the queue before starting the next one
+			while (consumer.getState() != Thread.State.TIMED_WAITING && consumer.isAlive())
+				Thread.onSpinWait();
+		}
+		for (Thread consumer : consumers)
+			consumer.join();
+		requireThat(List.copyOf(servedOrder), "servedOrder").isEqualTo(List.of(0, 1, 2, 3, 4));
+	}
+
+	@Test
+	public void consumeAsync()
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit ->
+				limit.tokensPerPeriod(1).
+					period(Duration.ofMillis(20)).
+					build()).
+			build();
+
+		List<CompletableFuture<ConsumptionResult>> futures = new ArrayList<>();
+		for (int i = 0; i < 3; ++i)
+			futures.add(bucket.consumeAsync(1, 1));
+		for (CompletableFuture<ConsumptionResult> future : futures)
+		{
+			ConsumptionResult consumptionResult = future.join();
+			requireThat(consumptionResult.isSuccessful(), "consumptionResult.isSuccessful()").isTrue();
+		}
+	}
+
+	@Test
+	public void consumeAsyncFailsOnErrors() throws Exception
+	{
+		Thread testThread = Thread.currentThread();
+		AtomicReference<Thread> retryThread = new AtomicReference<>();
+		TimeSource system = TimeSource.system();
+		TimeSource failingTimeSource = new TimeSource()
+		{
+			@Override
+			public long nanoTime()
+			{
+				// Fail the first retry
+				if (Thread.currentThread() != testThread && retryThread.compareAndSet(null, Thread.currentThread()))
+					throw new StackOverflowError();
+				return system.nanoTime();
+			}
+
+			@Override
+			public Instant toInstant(long nanoTime)
+			{
+				return system.toInstant(nanoTime);
+			}
+
+			@Override
+			public long toNanoTime(Instant instant)
+			{
+				return system.toNanoTime(instant);
+			}
+		};
+		Bucket failingBucket = Bucket.builder().
+			timeSource(failingTimeSource).
+			addLimit(limit ->
+				limit.tokensPerPeriod(1).
+					period(Duration.ofMillis(20)).
+					build()).
+			build();
+		CompletableFuture<ConsumptionResult> failingFuture = failingBucket.consumeAsync(1, 1);
+		try
+		{
+			failingFuture.get(5, TimeUnit.SECONDS);
+			throw new AssertionError("Expected the future to complete exceptionally");
+		}
+		catch (ExecutionException e)
+		{
+			requireThat(e.getCause(), "e.getCause()").isInstanceOf(StackOverflowError.class);
+		}
+		// Retries may block, so they must not run on the timer wheel's thread
+		requireThat(retryThread.get().getName(), "retryThread.getName()").isNotEqualTo("TimerWheel");
+
+		// Other requests must still be retried
+		Bucket bucket = Bucket.builder().
+			addLimit(limit ->
+				limit.tokensPerPeriod(1).
+					period(Duration.ofMillis(20)).
+					build()).
+			build();
+		ConsumptionResult consumptionResult = bucket.consumeAsync(1, 1).get(5, TimeUnit.SECONDS);
+		requireThat(consumptionResult.isSuccessful(), "consumptionResult.isSuccessful()").isTrue();
+	}
+
+	@Test
+	public void consumeAsyncTimeout()
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit ->
+				limit.tokensPerPeriod(1).
+					period(Duration.ofMinutes(1)).
+					build()).
+			build();
+
+		CompletableFuture<ConsumptionResult> future = bucket.consumeAsync(1, 1, 10, TimeUnit.MILLISECONDS);
+		requireThat(future.isDone(), "future.isDone()").isTrue();
+		ConsumptionResult consumptionResult = future.join();
+		requireThat(consumptionResult.isSuccessful(), "consumptionResult.isSuccessful()").isFalse();
+	}
+
+	@Test
+	public void tryAcquire()
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit ->
+				limit.tokensPerPeriod(1).
+					period(Duration.ofMinutes(1)).
+					initialTokens(3).
+					build()).
+			build();
+		requireThat(bucket.tryAcquire(2), "bucket.tryAcquire(2)").isEqualTo(2L);
+		requireThat(bucket.tryAcquire(1, 5), "bucket.tryAcquire(1, 5)").isEqualTo(1L);
+
+		long result = bucket.tryAcquire(1);
+		requireThat(result, "result").isNegative();
+		requireThat(-result, "nanosUntilAvailable").isGreaterThan(Duration.ofSeconds(50).toNanos()).
+			isLessThanOrEqualTo(Duration.ofMinutes(1).toNanos());
+	}
+
+	@Test
+	public void tryAcquireFromMultipleLimits()
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit ->
+				limit.tokensPerPeriod(1).
+					period(Duration.ofMinutes(1)).
+					initialTokens(1).
+					build()).
+			addLimit(limit ->
+				limit.tokensPerPeriod(1).
+					period(Duration.ofHours(1)).
+					initialTokens(2).
+					build()).
+			build();
+		requireThat(bucket.tryAcquire(1, 2), "bucket.tryAcquire(1, 2)").isEqualTo(1L);
+		long result = bucket.tryAcquire(1);
+		requireThat(result, "result").isNegative();
+		requireThat(-result, "nanosUntilAvailable").isGreaterThan(Duration.ofSeconds(50).toNanos()).
+			isLessThanOrEqualTo(Duration.ofMinutes(1).toNanos());
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void tryAcquireMoreThanLimitMaximum()
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit -> limit.maximumTokens(10).build()).
+			build();
+		//noinspection ResultOfMethodCallIgnored
+		bucket.tryAcquire(11);
+	}
+
+	@Test
+	public void tryAcquireWithLeases()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit ->
+				limit.tokensPerPeriod(1).
+					period(Duration.ofMinutes(1)).
+					initialTokens(100).
+					maximumTokens(100).
+					build()).
+			leaseSize(10).
+			build();
+		Limit limit = bucket.getLimits().get(0);
+		long maximumLeasedTokens = 0;
+		for (int i = 1; i <= 50; ++i)
+		{
+			requireThat(bucket.tryAcquire(1), "bucket.tryAcquire(1)").isEqualTo(1L);
+			long leasedTokens = bucket.getLeasedTokens();
+			requireThat(leasedTokens, "leasedTokens").
+				isLessThanOrEqualTo(bucket.getMaximumLeasedTokens(), "bucket.getMaximumLeasedTokens()");
+			// Leased tokens are consumed from the limit ahead of time, but never admitted twice
+			requireThat(limit.getAvailableTokens() + leasedTokens, "availableTokens + leasedTokens").
+				isEqualTo(100L - i);
+			maximumLeasedTokens = Math.max(maximumLeasedTokens, leasedTokens);
+		}
+		// Leases grow while they are spent before they expire
+		requireThat(maximumLeasedTokens, "maximumLeasedTokens").isEqualTo(10L);
+
+		// Expired leases are returned to the bucket
+		timeSource.advance(Duration.ofSeconds(1));
+		requireThat(bucket.tryConsume().isSuccessful(), "bucket.tryConsume().isSuccessful()").isTrue();
+		requireThat(bucket.getLeasedTokens(), "bucket.getLeasedTokens()").isZero();
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(100L - 51);
+	}
+
+	@Test
+	public void tryAcquireDoesNotSpendExpiredLeases()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit ->
+				limit.tokensPerPeriod(100).
+					period(Duration.ofMinutes(1)).
+					initialTokens(100).
+					maximumTokens(100).
+					build()).
+			leaseSize(10).
+			build();
+		Limit limit = bucket.getLimits().get(0);
+		for (int i = 0; i < 6; ++i)
+			requireThat(bucket.tryAcquire(1), "bucket.tryAcquire(1)").isEqualTo(1L);
+		requireThat(bucket.getLeasedTokens(), "bucket.getLeasedTokens()").isPositive();
+
+		// The limit refills while the bucket is idle. The stale lease must be returned to the limit, which is
+		// already full, instead of being handed out on top of it.
+		timeSource.advance(Duration.ofHours(1));
+		requireThat(bucket.tryAcquire(1), "bucket.tryAcquire(1)").isEqualTo(1L);
+		requireThat(limit.getAvailableTokens() + bucket.getLeasedTokens(), "availableTokens + leasedTokens").
+			isEqualTo(99L);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void tryAcquireMoreThanLimitMaximumWithLeases()
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit -> limit.maximumTokens(10).build()).
+			leaseSize(5).
+			build();
+		//noinspection ResultOfMethodCallIgnored
+		bucket.tryAcquire(11);
+	}
+
+	@Test
+	public void tryAcquireBatch()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket first = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit ->
+				limit.tokensPerPeriod(1).
+					period(Duration.ofMinutes(1)).
+					initialTokens(3).
+					build()).
+			build();
+		Bucket second = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit ->
+				limit.tokensPerPeriod(1).
+					period(Duration.ofMinutes(1)).
+					initialTokens(1).
+					build()).
+			addLimit(limit ->
+				limit.tokensPerPeriod(1).
+					period(Duration.ofHours(1)).
+					initialTokens(2).
+					build()).
+			build();
+		// Requests against the same bucket are applied in the order in which they appear in the batch
+		Bucket[] buckets = {first, second, first, second, first};
+		long[] tokens = {2, 1, 1, 1, 1};
+		long[] results = new long[buckets.length];
+		Bucket.tryAcquire(buckets, tokens, results);
+
+		requireThat(results[0], "results[0]").isEqualTo(2L);
+		requireThat(results[1], "results[1]").isEqualTo(1L);
+		requireThat(results[2], "results[2]").isEqualTo(1L);
+		requireThat(results[3], "results[3]").isEqualTo(-Duration.ofMinutes(1).toNanos());
+		requireThat(results[4], "results[4]").isEqualTo(-Duration.ofMinutes(1).toNanos());
+	}
+
+	@Test
+	public void tryAcquireBatchValidatesBeforeConsuming()
+	{
+		Bucket first = Bucket.builder().
+			addLimit(limit -> limit.initialTokens(10).maximumTokens(10).build()).
+			build();
+		Bucket second = Bucket.builder().
+			addLimit(limit -> limit.initialTokens(10).maximumTokens(10).build()).
+			build();
+		try
+		{
+			Bucket.tryAcquire(new Bucket[]{first, second}, new long[]{1, 11}, new long[2]);
+			throw new AssertionError("Expected an IllegalArgumentException");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Expected
+		}
+		requireThat(first.getAvailableTokens(), "first.getAvailableTokens()").isEqualTo(10L);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void tryAcquireBatchWithDifferentTimeSources()
+	{
+		Bucket first = Bucket.builder().
+			timeSource(new ManualTimeSource()).
+			addLimit(limit -> limit.build()).
+			build();
+		Bucket second = Bucket.builder().
+			addLimit(limit -> limit.build()).
+			build();
+		Bucket.tryAcquire(new Bucket[]{first, second}, new long[]{1, 1}, new long[2]);
+	}
+
+	@Test
+	public void concurrencyLimit() throws InterruptedException
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit ->
+				limit.tokensPerPeriod(100).
+					period(Duration.ofMinutes(1)).
+					initialTokens(100).
+					maximumTokens(100).
+					build()).
+			addLimit(limit ->
+				limit.algorithm(LimitAlgorithm.CONCURRENCY).
+					maximumTokens(2).
+					period(Duration.ofMinutes(1)).
+					build()).
+			build();
+		Limit concurrencyLimit = bucket.getLimits().get(1);
+
+		ConsumptionResult first = bucket.tryConsume();
+		ConsumptionResult second = bucket.tryConsume();
+		requireThat(second.isSuccessful(), "second.isSuccessful()").isTrue();
+		ConsumptionResult third = bucket.tryConsume();
+		requireThat(third.isSuccessful(), "third.isSuccessful()").isFalse();
+		requireThat(third.getBottlenecks(), "third.getBottlenecks()").containsExactly(List.of(concurrencyLimit));
+
+		// Releasing tokens wakes up blocked consumers long before the limit's period elapses
+		CompletableFuture<ConsumptionResult> blocked = CompletableFuture.supplyAsync(() ->
+		{
+			try
+			{
+				return bucket.consume();
+			}
+			catch (InterruptedException e)
+			{
+				throw new AssertionError(e);
+			}
+		});
+		Thread.sleep(100);
+		requireThat(blocked.isDone(), "blocked.isDone()").isFalse();
+		requireThat(first.release(), "first.release()").isTrue();
+		requireThat(first.release(), "first.release()").isFalse();
+		ConsumptionResult fourth = blocked.join();
+		requireThat(fourth.isSuccessful(), "fourth.isSuccessful()").isTrue();
+		requireThat(concurrencyLimit.getAvailableTokens(), "concurrencyLimit.getAvailableTokens()").isZero();
+
+		// Releasing tokens does not refill the rate limit
+		requireThat(second.release(), "second.release()").isTrue();
+		requireThat(fourth.release(), "fourth.release()").isTrue();
+		requireThat(concurrencyLimit.getAvailableTokens(), "concurrencyLimit.getAvailableTokens()").
+			isEqualTo(2L);
+		requireThat(bucket.getLimits().get(0).getAvailableTokens(), "rateLimit.getAvailableTokens()").
+			isLessThan(100L);
+	}
+
+	@Test
+	public void gradientConcurrencyLimit()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		ContainerList containerList = ContainerList.builder().
+			timeSource(timeSource).
+			consumeFromAll().
+			addBucket(bucket ->
+				bucket.addLimit(limit ->
+						limit.tokensPerPeriod(1000).
+							period(Duration.ofMinutes(1)).
+							initialTokens(1000).
+							maximumTokens(1000).
+							build()).
+					build()).
+			addBucket(bucket ->
+				bucket.addLimit(limit ->
+						limit.algorithm(LimitAlgorithm.CONCURRENCY).
+							maximumTokens(10).
+							gradient(gradient -> gradient.
+								shortWindow(Duration.ofSeconds(1)).
+								longWindow(Duration.ofSeconds(10)).
+								queueSize(2).
+								smoothing(1.0).
+								build()).
+							build()).
+					build()).
+			build();
+		Limit concurrencyLimit = ((Bucket) containerList.getChildren().get(1)).getLimits().get(0);
+
+		ConsumptionResult result = containerList.tryConsume();
+		requireThat(result.release(Duration.ofMillis(10)), "result.release(10ms)").isTrue();
+		requireThat(result.release(Duration.ofMillis(10)), "result.release(10ms)").isFalse();
+
+		// Stable latency grows the limit by queueSize
+		timeSource.advance(Duration.ofSeconds(1));
+		result = containerList.tryConsume();
+		requireThat(result.release(Duration.ofMillis(40)), "result.release(40ms)").isTrue();
+		requireThat(concurrencyLimit.getMaximumTokens(), "concurrencyLimit.getMaximumTokens()").isEqualTo(12L);
+
+		// Latency that is 4 times the baseline halves the limit (the gradient is clamped to 0.5)
+		timeSource.advance(Duration.ofSeconds(1));
+		result = containerList.tryConsume();
+		requireThat(result.release(Duration.ofMillis(40)), "result.release(40ms)").isTrue();
+		requireThat(concurrencyLimit.getMaximumTokens(), "concurrencyLimit.getMaximumTokens()").isEqualTo(8L);
+
+		result = containerList.tryConsume(1, 100);
+		requireThat(result.getTokensConsumed(), "result.getTokensConsumed()").isEqualTo(8L);
+		requireThat(result.release(), "result.release()").isTrue();
+	}
+}
@@ -164,6 +164,42 @@ public final class ContainerListTest
 		requirements.requireThat(consumptionResult.isSuccessful(), "consumptionResult.isSuccessful()").isFalse();
 	}
 
+	@Test
+	public void consumeFromAllRefillsChildren()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		ContainerList containerList = ContainerList.builder().
+			timeSource(timeSource).
+			consumeFromAll().
+			addBucket(bucket ->
+				bucket.addLimit(limit ->
+						limit.tokensPerPeriod(10).
+							build()).
+					build()).
+			addContainerList(list ->
+				list.addBucket(bucket ->
+						bucket.addLimit(limit ->
+								limit.tokensPerPeriod(1).
+									build()).
+							build()).
+					addBucket(bucket ->
+						bucket.addLimit(limit ->
+								limit.tokensPerPeriod(5).
+									build()).
+							build()).
+					build()).
+			build();
+
+		ConsumptionResult consumptionResult = containerList.tryConsume(5);
+		requireThat(consumptionResult.isSuccessful(), "consumptionResult.isSuccessful()").isFalse();
+		requireThat(consumptionResult.getAvailableIn(), "consumptionResult.getAvailableIn()").
+			isEqualTo(Duration.ofSeconds(1));
+
+		timeSource.advance(Duration.ofSeconds(1));
+		consumptionResult = containerList.tryConsume(5);
+		requireThat(consumptionResult.isSuccessful(), "consumptionResult.isSuccessful()").isTrue();
+	}
+
 	@Test
 	public void containerOfContainersConsumeFromOne()
 	{
@@ -498,4 +534,35 @@ public final class ContainerListTest
 		// index = 2
 		ignored = containerList.consume();
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void childrenInheritTimeSource()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		ContainerList containerList = ContainerList.builder().
+			timeSource(timeSource).
+			addBucket(bucket ->
+				bucket.addLimit(Builder::build).
+					build()).
+			addContainerList(list ->
+				list.addBucket(bucket ->
+						bucket.addLimit(Builder::build).
+							build()).
+					build()).
+			build();
+		for (Container child : containerList.getChildren())
+			requireThat(child.getTimeSource(), "child.getTimeSource()").isEqualTo(timeSource, "timeSource");
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void childWithDifferentTimeSource()
+	{
+		ContainerList.builder().
+			timeSource(new ManualTimeSource()).
+			addBucket(bucket ->
+				bucket.addLimit(Builder::build).
+					timeSource(TimeSource.system()).
+					build()).
+			build();
+	}
+}
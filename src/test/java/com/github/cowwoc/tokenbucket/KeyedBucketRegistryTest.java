@@ -0,0 +1,249 @@
+package com.github.cowwoc.tokenbucket;
+
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+public final class KeyedBucketRegistryTest
+{
+	@Test
+	public void bucketsAreCreatedOnDemand()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		KeyedBucketRegistry<String> registry = KeyedBucketRegistry.<String>builder().
+			timeSource(timeSource).
+			addLimit(limit ->
+				limit.initialTokens(1).
+					maximumTokens(1).
+					build()).
+			build();
+
+		Bucket bucket = registry.get("alice");
+		requireThat(bucket.getUserData(), "bucket.getUserData()").isEqualTo("alice");
+		requireThat(registry.get("alice"), "registry.get(\"alice\")").isSameObjectAs(bucket, "bucket");
+		requireThat(registry.size(), "registry.size()").isEqualTo(1);
+
+		// Each key is limited independently
+		requireThat(registry.tryAcquire("alice", 1), "registry.tryAcquire(\"alice\", 1)").isEqualTo(1L);
+		requireThat(registry.tryAcquire("alice", 1), "registry.tryAcquire(\"alice\", 1)").isNegative();
+		requireThat(registry.tryAcquire("bob", 1), "registry.tryAcquire(\"bob\", 1)").isEqualTo(1L);
+		requireThat(registry.size(), "registry.size()").isEqualTo(2);
+	}
+
+	@Test
+	public void tryAcquireBatch()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		KeyedBucketRegistry<String> registry = KeyedBucketRegistry.<String>builder().
+			timeSource(timeSource).
+			addLimit(limit ->
+				limit.initialTokens(1).
+					maximumTokens(1).
+					build()).
+			build();
+
+		long[] results = new long[3];
+		registry.tryAcquire(new String[]{"alice", "bob", "alice"}, new long[]{1, 1, 1}, results);
+		requireThat(results[0], "results[0]").isEqualTo(1L);
+		requireThat(results[1], "results[1]").isEqualTo(1L);
+		requireThat(results[2], "results[2]").isNegative();
+		requireThat(registry.size(), "registry.size()").isEqualTo(2);
+	}
+
+	@Test
+	public void evictIdleBuckets()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		KeyedBucketRegistry<String> registry = KeyedBucketRegistry.<String>builder().
+			timeSource(timeSource).
+			addLimit(limit ->
+				limit.initialTokens(2).
+					maximumTokens(2).
+					build()).
+			build();
+
+		requireThat(registry.tryAcquire("alice", 2), "registry.tryAcquire(\"alice\", 2)").isEqualTo(2L);
+		Bucket bob = registry.get("bob");
+
+		// Bob's bucket is full, but Alice's bucket is still refilling
+		requireThat(registry.evictIdleBuckets(), "registry.evictIdleBuckets()").isEqualTo(1);
+		requireThat(registry.get("bob"), "registry.get(\"bob\")").isNotSameObjectAs(bob, "bob");
+		requireThat(registry.tryAcquire("alice", 1), "registry.tryAcquire(\"alice\", 1)").isNegative();
+
+		timeSource.advance(Duration.ofSeconds(2));
+		requireThat(registry.evictIdleBuckets(), "registry.evictIdleBuckets()").isEqualTo(2);
+		requireThat(registry.size(), "registry.size()").isEqualTo(0);
+	}
+
+	@Test
+	public void maximumSize()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		KeyedBucketRegistry<Integer> registry = KeyedBucketRegistry.<Integer>builder().
+			timeSource(timeSource).
+			maximumSize(100).
+			addLimit(limit ->
+				limit.initialTokens(1).
+					maximumTokens(1).
+					build()).
+			build();
+
+		// None of the buckets are idle
+		for (int i = 0; i < 1000; ++i)
+			requireThat(registry.tryAcquire(i, 1), "registry.tryAcquire(" + i + ", 1)").isEqualTo(1L);
+		requireThat(registry.size(), "registry.size()").isLessThanOrEqualTo(100);
+	}
+
+	@Test
+	public void evictLeastRecentlyUsed()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		KeyedBucketRegistry<Integer> registry = KeyedBucketRegistry.<Integer>builder().
+			timeSource(timeSource).
+			maximumSize(10).
+			addLimit(limit ->
+				limit.period(Duration.ofHours(1)).
+					initialTokens(1).
+					maximumTokens(1).
+					build()).
+			build();
+
+		// None of the buckets are idle
+		Bucket[] buckets = new Bucket[10];
+		for (int i = 0; i < buckets.length; ++i)
+		{
+			requireThat(registry.tryAcquire(i, 1), "registry.tryAcquire(" + i + ", 1)").isEqualTo(1L);
+			buckets[i] = registry.get(i);
+			timeSource.advance(Duration.ofSeconds(1));
+		}
+		for (int i = 0; i < 5; ++i)
+			registry.get(i);
+		timeSource.advance(Duration.ofSeconds(1));
+
+		// Keys 5 to 9 are the least recently used, so they are evicted first
+		for (int i = 10; i < 15; ++i)
+		{
+			requireThat(registry.tryAcquire(i, 1), "registry.tryAcquire(" + i + ", 1)").isEqualTo(1L);
+			timeSource.advance(Duration.ofSeconds(1));
+		}
+		requireThat(registry.size(), "registry.size()").isEqualTo(10);
+		for (int i = 0; i < 5; ++i)
+		{
+			requireThat(registry.get(i), "registry.get(" + i + ")").
+				isSameObjectAs(buckets[i], "buckets[" + i + "]");
+		}
+	}
+
+	@Test
+	public void updateSharedSpec()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		KeyedBucketRegistry<String> registry = KeyedBucketRegistry.<String>builder().
+			timeSource(timeSource).
+			addLimit(limit ->
+				limit.maximumTokens(10).
+					build()).
+			build();
+		Limit alice = registry.get("alice").getLimits().get(0);
+		Limit bob = registry.get("bob").getLimits().get(0);
+		requireThat(alice.getSpec(), "alice.getSpec()").isSameObjectAs(bob.getSpec(), "bob.getSpec()");
+
+		try (Limit.ConfigurationUpdater update = registry.getLimits().get(0).updateConfiguration())
+		{
+			update.tokensPerPeriod(5);
+		}
+		requireThat(alice.getTokensPerPeriod(), "alice.getTokensPerPeriod()").isEqualTo(5L);
+		requireThat(bob.getSpec(), "bob.getSpec()").isSameObjectAs(alice.getSpec(), "alice.getSpec()");
+
+		// Tokens that were refilled before the limit noticed the update are credited at the old rate
+		timeSource.advance(Duration.ofSeconds(1));
+		requireThat(registry.tryAcquire("alice", 1), "registry.tryAcquire(\"alice\", 1)").isEqualTo(1L);
+		timeSource.advance(Duration.ofSeconds(1));
+		requireThat(registry.tryAcquire("alice", 5), "registry.tryAcquire(\"alice\", 5)").isEqualTo(5L);
+	}
+
+	@Test
+	public void millionVirtualThreadWaiters() throws Exception
+	{
+		Method ofVirtual;
+		try
+		{
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+		}
+		catch (NoSuchMethodException e)
+		{
+			throw new SkipException("Virtual threads require Java 21", e);
+		}
+		Object builder = ofVirtual.invoke(null);
+		Method unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+
+		int keys = 1000;
+		int waiters = 1_000_000;
+		KeyedBucketRegistry<Integer> registry = KeyedBucketRegistry.<Integer>builder().
+			addLimit(limit ->
+				limit.tokensPerPeriod(waiters / keys).
+					refillSize(waiters / keys / 10).
+					build()).
+			build();
+
+		// The first round grows the JDK's scheduler queues, which never shrink. Subsequent rounds must not
+		// leave anything behind.
+		long memoryAfterFirstRound = awaitWaiters(registry, keys, waiters, builder, unstarted);
+		long memoryAfterSecondRound = awaitWaiters(registry, keys, waiters, builder, unstarted);
+		requireThat(memoryAfterSecondRound - memoryAfterFirstRound, "memoryAfterSecondRound - memoryAfterFirstRound").
+			isLessThan(16L * waiters, "16 bytes per waiter");
+	}
+
+	/**
+	 * Blocks virtual threads on a registry's buckets until they all consume a token.
+	 *
+	 * @param registry  a registry
+	 * @param keys      the number of keys to spread the threads across
+	 * @param waiters   the number of threads
+	 * @param builder   a {@code Thread.Builder.OfVirtual}
+	 * @param unstarted {@code Thread.Builder.unstarted(Runnable)}
+	 * @return the amount of memory that is used once all the threads terminate
+	 * @throws Exception if the threads do not finish
+	 */
+	private static long awaitWaiters(KeyedBucketRegistry<Integer> registry, int keys, int waiters,
+	                                 Object builder, Method unstarted)
+		throws Exception
+	{
+		CountDownLatch done = new CountDownLatch(waiters);
+		Thread[] threads = new Thread[waiters];
+		for (int i = 0; i < waiters; ++i)
+		{
+			Integer key = i % keys;
+			Thread thread = (Thread) unstarted.invoke(builder, (Runnable) () ->
+			{
+				try
+				{
+					ConsumptionResult consumptionResult = registry.get(key).consume();
+					if (consumptionResult.isSuccessful())
+						done.countDown();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			});
+			threads[i] = thread;
+			thread.start();
+		}
+		requireThat(done.await(2, TimeUnit.MINUTES), "done.await()").isTrue();
+		for (Thread thread : threads)
+			thread.join();
+		//noinspection UnusedAssignment
+		threads = null;
+
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -44,7 +44,7 @@ public final class LimitTest
 			build();
 
 		Limit limit = bucket.getLimits().iterator().next();
-		Instant requestedAt = limit.startOfCurrentPeriod;
+		Instant requestedAt = limit.getStartOfCurrentPeriod();
 		Duration timeIncrement = limit.getPeriod().dividedBy(seconds);
 		Requirements requirements = new Requirements();
 		for (int i = 1; i <= seconds; ++i)
@@ -52,21 +52,21 @@ public final class LimitTest
 			requirements.withContext("i", i);
 			requestedAt = requestedAt.plus(timeIncrement);
 			limit.refill(requestedAt);
-			requirements.requireThat(limit.availableTokens, "limit.availableTokens").
+			requirements.requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").
 				isEqualTo((long) ((double) tokens * i / seconds));
 		}
 		requirements.withoutContext("i").
-			requireThat(limit.availableTokens, "limit.availableTokens").
+			requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").
 			isEqualTo(limit.getTokensPerPeriod());
 
 		for (int i = 1; i <= seconds; ++i)
 		{
 			requestedAt = requestedAt.plus(timeIncrement);
 			limit.refill(requestedAt);
-			requirements.requireThat(limit.availableTokens, "limit.availableTokens").
+			requirements.requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").
 				isEqualTo(tokens + (long) ((double) tokens * i / seconds));
 		}
-		requirements.requireThat(limit.availableTokens, "limit.availableTokens").
+		requirements.requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").
 			isEqualTo(2 * limit.getTokensPerPeriod());
 	}
 
@@ -84,18 +84,19 @@ public final class LimitTest
 		List<Limit> limits = bucket.getLimits();
 		requireThat(limits, "limits").size().isEqualTo(1);
 		Limit limit = limits.iterator().next();
-		limit.refill(limit.startOfCurrentPeriod.plusSeconds(50));
-		requireThat(limit.availableTokens, "limit.availableTokens").isEqualTo(50L);
-		limit.consume(50);
-		requireThat(limit.availableTokens, "limit.availableTokens").isEqualTo(0L);
+		Instant consumedAt = limit.getStartOfCurrentPeriod().plusSeconds(50);
+		limit.refill(consumedAt);
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(50L);
+		limit.consume(50, bucket.getTimeSource().toNanoTime(consumedAt));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(0L);
 
 		try (ConfigurationUpdater update = limit.updateConfiguration())
 		{
 			update.tokensPerPeriod(30).
 				period(Duration.ofSeconds(30));
 		}
-		limit.refill(limit.startOfCurrentPeriod.plusSeconds(50));
-		requireThat(limit.availableTokens, "limit.availableTokens").isEqualTo(30L);
+		limit.refill(limit.getStartOfCurrentPeriod().plusSeconds(50));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(30L);
 	}
 
 	@Test
@@ -112,7 +113,7 @@ public final class LimitTest
 		List<Limit> limits = bucket.getLimits();
 		requireThat(limits, "limits").size().isEqualTo(1);
 		Limit limit = limits.iterator().next();
-		Instant consumedAt = limit.startOfCurrentPeriod.plusSeconds(30);
+		Instant consumedAt = limit.getStartOfCurrentPeriod().plusSeconds(30);
 		ConsumptionResult consumptionResult = bucket.tryConsume(30, consumedAt);
 		requireThat(consumptionResult.getTokensLeft(), "consumptionResult.getTokensLeft()").isEqualTo(0L);
 
@@ -120,9 +121,9 @@ public final class LimitTest
 		{
 			update.refillSize(20);
 		}
-		requireThat(limit.availableTokens, "limit.availableTokens").isEqualTo(0L);
-		limit.refill(limit.startOfCurrentPeriod.plusSeconds(30));
-		requireThat(limit.availableTokens, "limit.availableTokens").isEqualTo(20L);
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(0L);
+		limit.refill(limit.getStartOfCurrentPeriod().plusSeconds(30));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(20L);
 	}
 
 	/**
@@ -142,7 +143,7 @@ public final class LimitTest
 		List<Limit> limits = bucket.getLimits();
 		requireThat(limits, "limits").size().isEqualTo(1);
 		Limit limit = limits.iterator().next();
-		ConsumptionResult result = bucket.tryConsume(1, limit.startOfCurrentPeriod);
+		ConsumptionResult result = bucket.tryConsume(1, limit.getStartOfCurrentPeriod());
 		requireThat(result.isSuccessful(), "result.isSuccessful()").isFalse();
 		requireThat(result.getTokensLeft(), "result.getTokensLeft()").isEqualTo(0L);
 
@@ -161,4 +162,357 @@ public final class LimitTest
 
 		requireThat(result.getTokensLeft(), "result.getTokensLeft()").isEqualTo(0L);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void stripedLimitOverflow()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit -> limit.
+				tokensPerPeriod(10).
+				maximumTokens(10).
+				stripes(4).
+				build()).
+			build();
+		Limit limit = bucket.getLimits().iterator().next();
+		requireThat(limit.getStripes(), "limit.getStripes()").isEqualTo(4);
+
+		// Each stripe holds up to ceil(10 / 4) = 3 tokens
+		timeSource.advance(Duration.ofMinutes(1));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isZero();
+		requireThat(bucket.tryAcquire(1), "bucket.tryAcquire(1)").isEqualTo(1L);
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").
+			isBetween(10L - 1, 10L + limit.getStripes() - 1);
+
+		// A single thread may borrow from all the stripes
+		long tokensLeft = limit.getAvailableTokens();
+		long tokensConsumed = 0;
+		while (true)
+		{
+			long tokens = bucket.tryAcquire(1, tokensLeft);
+			if (tokens < 0)
+				break;
+			tokensConsumed += tokens;
+		}
+		requireThat(tokensConsumed, "tokensConsumed").isEqualTo(tokensLeft);
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isZero();
+	}
+
+	@Test
+	public void stripesAreCappedByProcessors()
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit -> limit.
+				tokensPerPeriod(10).
+				stripes(1 << 20).
+				build()).
+			build();
+		Limit limit = bucket.getLimits().iterator().next();
+		requireThat(limit.getStripes(), "limit.getStripes()").
+			isEqualTo(4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	@Test
+	public void stripedLimitDebt()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit -> limit.
+				tokensPerPeriod(4).
+				maximumTokens(40).
+				stripes(4).
+				build()).
+			build();
+		Limit limit = bucket.getLimits().iterator().next();
+
+		Reservation reservation = bucket.reserve(20);
+		requireThat(reservation.getAvailableIn(), "reservation.getAvailableIn()").
+			isEqualTo(Duration.ofSeconds(5));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(-20L);
+
+		// Refills pay off the debt before any stripe may hand out tokens
+		timeSource.advance(Duration.ofSeconds(2));
+		requireThat(bucket.tryAcquire(1), "bucket.tryAcquire(1)").isNegative();
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(-12L);
+		timeSource.advance(Duration.ofSeconds(3));
+		requireThat(bucket.tryAcquire(1), "bucket.tryAcquire(1)").isNegative();
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isZero();
+		timeSource.advance(Duration.ofSeconds(1));
+		requireThat(bucket.tryAcquire(4), "bucket.tryAcquire(4)").isEqualTo(4L);
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isZero();
+	}
+
+	@Test
+	public void gcra()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit -> limit.
+				algorithm(LimitAlgorithm.GCRA).
+				tokensPerPeriod(10).
+				period(Duration.ofSeconds(10)).
+				initialTokens(5).
+				maximumTokens(10).
+				build()).
+			build();
+		Limit limit = bucket.getLimits().iterator().next();
+		requireThat(limit.getAlgorithm(), "limit.getAlgorithm()").isEqualTo(LimitAlgorithm.GCRA);
+		requireThat(bucket.tryAcquire(5), "bucket.tryAcquire(5)").isEqualTo(5L);
+
+		ConsumptionResult result = bucket.tryConsume(2);
+		requireThat(result.isSuccessful(), "result.isSuccessful()").isFalse();
+		requireThat(result.getBottlenecks(), "result.getBottlenecks()").containsExactly(List.of(limit));
+		requireThat(Duration.between(result.getConsumeAt(), result.getAvailableAt()),
+			"result.getAvailableAt() - result.getConsumeAt()").isEqualTo(Duration.ofSeconds(2));
+
+		// Tokens are refilled continuously, one per second
+		timeSource.advance(Duration.ofSeconds(2));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(2L);
+		requireThat(bucket.tryAcquire(1, 10), "bucket.tryAcquire(1, 10)").isEqualTo(2L);
+
+		// The limit overflows at maximumTokens
+		timeSource.advance(Duration.ofMinutes(1));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(10L);
+	}
+
+	@Test
+	public void gcraBottleneck()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit -> limit.
+				algorithm(LimitAlgorithm.GCRA).
+				tokensPerPeriod(1).
+				initialTokens(10).
+				maximumTokens(10).
+				build()).
+			addLimit(limit -> limit.
+				tokensPerPeriod(100).
+				period(Duration.ofMinutes(1)).
+				initialTokens(100).
+				maximumTokens(100).
+				build()).
+			build();
+		Limit gcra = bucket.getLimits().get(0);
+		requireThat(bucket.tryAcquire(10), "bucket.tryAcquire(10)").isEqualTo(10L);
+
+		ConsumptionResult result = bucket.tryConsume(3);
+		requireThat(result.isSuccessful(), "result.isSuccessful()").isFalse();
+		requireThat(result.getBottlenecks(), "result.getBottlenecks()").containsExactly(List.of(gcra));
+		requireThat(Duration.between(result.getConsumeAt(), result.getAvailableAt()),
+			"result.getAvailableAt() - result.getConsumeAt()").isEqualTo(Duration.ofSeconds(3));
+
+		timeSource.advance(Duration.ofSeconds(3));
+		result = bucket.tryConsume(3);
+		requireThat(result.isSuccessful(), "result.isSuccessful()").isTrue();
+		requireThat(result.getTokensLeft(), "result.getTokensLeft()").isZero();
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void gcraRequiresSingleStripe()
+	{
+		Limit ignored = new Limit.Builder().
+			algorithm(LimitAlgorithm.GCRA).
+			maximumTokens(10).
+			stripes(2).
+			build();
+	}
+
+	@Test
+	public void gcraMatchesRate()
+	{
+		// 1 second / 600 million tokens is 1.67 nanoseconds per token
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit -> limit.
+				algorithm(LimitAlgorithm.GCRA).
+				tokensPerPeriod(600_000_000).
+				period(Duration.ofSeconds(1)).
+				initialTokens(0).
+				maximumTokens(1_200_000_000).
+				build()).
+			build();
+		Limit limit = bucket.getLimits().iterator().next();
+		timeSource.advance(Duration.ofSeconds(1));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(600_000_000L);
+		requireThat(bucket.tryAcquire(1, Long.MAX_VALUE), "bucket.tryAcquire(1, Long.MAX_VALUE)").
+			isEqualTo(600_000_000L);
+
+		// Rounding errors do not accumulate across requests
+		for (int i = 0; i < 1000; ++i)
+		{
+			timeSource.advance(Duration.ofNanos(5));
+			requireThat(bucket.tryAcquire(1, Long.MAX_VALUE), "bucket.tryAcquire(1, Long.MAX_VALUE)").
+				isEqualTo(3L);
+		}
+		// Every 5 nanoseconds, tokens are emitted 0, 2 and 4 nanoseconds in
+		timeSource.advance(Duration.ofNanos(2));
+		requireThat(bucket.tryAcquire(1), "bucket.tryAcquire(1)").isEqualTo(1L);
+		requireThat(bucket.tryAcquire(1), "bucket.tryAcquire(1)").isEqualTo(-2L);
+	}
+
+	@Test
+	public void slidingWindow()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit -> limit.
+				algorithm(LimitAlgorithm.SLIDING_WINDOW).
+				tokensPerPeriod(10).
+				period(Duration.ofSeconds(10)).
+				initialTokens(10).
+				maximumTokens(10).
+				build()).
+			build();
+		Limit limit = bucket.getLimits().iterator().next();
+		requireThat(bucket.tryAcquire(4), "bucket.tryAcquire(4)").isEqualTo(4L);
+		timeSource.advance(Duration.ofSeconds(5));
+		requireThat(bucket.tryAcquire(6), "bucket.tryAcquire(6)").isEqualTo(6L);
+
+		// Tokens become available again once a full period has passed since their sub-window ended
+		ConsumptionResult result = bucket.tryConsume(1);
+		requireThat(result.isSuccessful(), "result.isSuccessful()").isFalse();
+		requireThat(result.getBottlenecks(), "result.getBottlenecks()").containsExactly(List.of(limit));
+		requireThat(Duration.between(result.getConsumeAt(), result.getAvailableAt()),
+			"result.getAvailableAt() - result.getConsumeAt()").isEqualTo(Duration.ofSeconds(6));
+
+		timeSource.advance(Duration.ofSeconds(5));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(0L);
+		timeSource.advance(Duration.ofSeconds(1));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(4L);
+		requireThat(bucket.tryAcquire(1, 10), "bucket.tryAcquire(1, 10)").isEqualTo(4L);
+
+		// The remaining tokens are released as the sub-windows that consumed them leave the window
+		timeSource.advance(Duration.ofSeconds(5));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(6L);
+		timeSource.advance(Duration.ofSeconds(6));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(10L);
+	}
+
+	@Test
+	public void slidingWindowPreventsBurstsAcrossSubWindows()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit -> limit.
+				algorithm(LimitAlgorithm.SLIDING_WINDOW).
+				tokensPerPeriod(100).
+				period(Duration.ofSeconds(60)).
+				refillSize(10).
+				initialTokens(100).
+				maximumTokens(100).
+				build()).
+			build();
+		// Consume at the end of the first sub-window
+		timeSource.advance(Duration.ofMillis(5999));
+		requireThat(bucket.tryConsume(100).isSuccessful(), "bucket.tryConsume(100).isSuccessful()").isTrue();
+
+		// One period minus one sub-window later, the tokens have only been held for 54 seconds
+		timeSource.advance(Duration.ofMillis(54_002));
+		ConsumptionResult result = bucket.tryConsume(100);
+		requireThat(result.isSuccessful(), "result.isSuccessful()").isFalse();
+		requireThat(timeSource.toNanoTime(result.getAvailableAt()), "result.getAvailableAt()").
+			isEqualTo(timeSource.toNanoTime(result.getConsumeAt()) + Duration.ofMillis(5999).toNanos());
+
+		// A full period after the first sub-window ended
+		timeSource.advance(Duration.ofMillis(5999));
+		requireThat(bucket.tryConsume(100).isSuccessful(), "bucket.tryConsume(100).isSuccessful()").isTrue();
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void slidingWindowRequiresMaximumTokensEqualToTokensPerPeriod()
+	{
+		Limit ignored = new Limit.Builder().
+			algorithm(LimitAlgorithm.SLIDING_WINDOW).
+			tokensPerPeriod(10).
+			build();
+	}
+
+	@Test
+	public void configurationUpdaterKeepsConcurrentAdaptations()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit -> limit.
+				tokensPerPeriod(10).
+				maximumTokens(100).
+				adaptive(aimd -> aimd.
+					minimumTokensPerPeriod(2).
+					build()).
+				build()).
+			build();
+		Limit limit = bucket.getLimits().iterator().next();
+
+		try (Limit.ConfigurationUpdater updater = limit.updateConfiguration())
+		{
+			requireThat(limit.onOverload(), "limit.onOverload()").isTrue();
+			updater.userData("updated").
+				refillSize(2);
+		}
+		// The decrease that took place while the updater was open is retained
+		requireThat(limit.getTokensPerPeriod(), "limit.getTokensPerPeriod()").isEqualTo(5L);
+		requireThat(limit.getRefillSize(), "limit.getRefillSize()").isEqualTo(2L);
+		requireThat(limit.getUserData(), "limit.getUserData()").isEqualTo("updated");
+	}
+
+	@Test
+	public void adaptive()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit -> limit.
+				tokensPerPeriod(4).
+				period(Duration.ofSeconds(10)).
+				initialTokens(3).
+				maximumTokens(100).
+				adaptive(aimd -> aimd.
+					minimumTokensPerPeriod(2).
+					maximumTokensPerPeriod(20).
+					increment(2).
+					build()).
+				build()).
+			build();
+		Limit limit = bucket.getLimits().iterator().next();
+
+		// The rate increases once every tokensPerPeriod successes
+		timeSource.advance(Duration.ofSeconds(1));
+		for (int i = 0; i < 3; ++i)
+			bucket.onSuccess();
+		requireThat(limit.getTokensPerPeriod(), "limit.getTokensPerPeriod()").isEqualTo(4L);
+		bucket.onSuccess();
+		requireThat(limit.getTokensPerPeriod(), "limit.getTokensPerPeriod()").isEqualTo(6L);
+
+		// The available tokens and the progress towards the next refill carry over to the new rate
+		timeSource.advance(Duration.ofMillis(700));
+		requireThat(bucket.tryAcquire(1, 100), "bucket.tryAcquire(1, 100)").isEqualTo(4L);
+
+		// Overloads that follow a decrease within one period are ignored
+		bucket.onOverload();
+		requireThat(limit.getTokensPerPeriod(), "limit.getTokensPerPeriod()").isEqualTo(3L);
+		bucket.onOverload();
+		requireThat(limit.getTokensPerPeriod(), "limit.getTokensPerPeriod()").isEqualTo(3L);
+
+		// The rate never drops below minimumTokensPerPeriod
+		timeSource.advance(Duration.ofSeconds(10));
+		bucket.onOverload();
+		requireThat(limit.getTokensPerPeriod(), "limit.getTokensPerPeriod()").isEqualTo(2L);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void adaptiveRequiresVariableRateAlgorithm()
+	{
+		Limit ignored = new Limit.Builder().
+			algorithm(LimitAlgorithm.SLIDING_WINDOW).
+			adaptive(AimdPolicy.Builder::build).
+			build();
+	}
+}
@@ -0,0 +1,111 @@
+package com.github.cowwoc.tokenbucket;
+
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+public final class OffHeapLimitTableTest
+{
+	@Test
+	public void consumeAndRefill()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		OffHeapLimitTable table = OffHeapLimitTable.builder().
+			timeSource(timeSource).
+			limit(limit ->
+				limit.tokensPerPeriod(2).
+					initialTokens(2).
+					maximumTokens(4).
+					build()).
+			build();
+
+		requireThat(table.tryAcquire(42, 2), "table.tryAcquire(42, 2)").isEqualTo(2L);
+		requireThat(table.tryAcquire(42, 1), "table.tryAcquire(42, 1)").
+			isEqualTo(-Duration.ofMillis(500).toNanos());
+		// Each key is limited independently
+		requireThat(table.tryAcquire(43, 2), "table.tryAcquire(43, 2)").isEqualTo(2L);
+
+		timeSource.advance(Duration.ofSeconds(10));
+		requireThat(table.tryAcquire(42, 4), "table.tryAcquire(42, 4)").isEqualTo(4L);
+		requireThat(table.tryAcquire(42, 3), "table.tryAcquire(42, 3)").
+			isEqualTo(-Duration.ofMillis(1500).toNanos());
+	}
+
+	@Test
+	public void contendedKey() throws InterruptedException
+	{
+		// Threads outnumber processors, so lock holders are preempted while others wait for the lock
+		int threadCount = 4 * Runtime.getRuntime().availableProcessors();
+		int attemptsPerThread = 10_000;
+		ManualTimeSource timeSource = new ManualTimeSource();
+		OffHeapLimitTable table = OffHeapLimitTable.builder().
+			timeSource(timeSource).
+			limit(limit ->
+				limit.initialTokens(threadCount * attemptsPerThread / 2).
+					maximumTokens(threadCount * attemptsPerThread).
+					build()).
+			build();
+
+		AtomicLong consumed = new AtomicLong();
+		List<Thread> threads = new ArrayList<>(threadCount);
+		for (int i = 0; i < threadCount; ++i)
+		{
+			Thread thread = new Thread(() ->
+			{
+				for (int j = 0; j < attemptsPerThread; ++j)
+				{
+					if (table.tryAcquire(42, 1) == 1)
+						consumed.incrementAndGet();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads)
+			thread.join();
+		requireThat(consumed.get(), "consumed").isEqualTo((long) threadCount * attemptsPerThread / 2);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void consumeMoreThanMaximumTokens()
+	{
+		OffHeapLimitTable table = OffHeapLimitTable.builder().
+			limit(limit ->
+				limit.maximumTokens(10).
+					build()).
+			build();
+		long ignored = table.tryAcquire(42, 11);
+	}
+
+	@Test
+	public void replaceIdleKeys()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		OffHeapLimitTable table = OffHeapLimitTable.builder().
+			timeSource(timeSource).
+			capacity(16).
+			limit(limit ->
+				limit.initialTokens(1).
+					maximumTokens(1).
+					build()).
+			build();
+		requireThat(table.getCapacity(), "table.getCapacity()").isEqualTo(16);
+
+		// The number of keys exceeds the capacity of the table
+		for (long key = 0; key < 1000; ++key)
+			requireThat(table.tryAcquire(key, 1), "table.tryAcquire(" + key + ", 1)").isEqualTo(1L);
+
+		// Keys that are replaced once they become idle start over with the same number of tokens
+		timeSource.advance(Duration.ofSeconds(1));
+		for (long key = 0; key < 1000; ++key)
+		{
+			requireThat(table.tryAcquire(key, 1), "table.tryAcquire(" + key + ", 1)").isEqualTo(1L);
+			requireThat(table.tryAcquire(key, 1), "table.tryAcquire(" + key + ", 1)").isNegative();
+		}
+	}
+}
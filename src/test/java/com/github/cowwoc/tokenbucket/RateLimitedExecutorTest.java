@@ -0,0 +1,170 @@
+package com.github.cowwoc.tokenbucket;
+
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+public final class RateLimitedExecutorTest
+{
+	@Test
+	public void dispatchWhenTokensBecomeAvailable() throws InterruptedException
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit -> limit.
+				tokensPerPeriod(5).
+				period(Duration.ofSeconds(1)).
+				refillSize(5).
+				initialTokens(5).
+				maximumTokens(5).
+				build()).
+			build();
+		RateLimitedExecutor executor = RateLimitedExecutor.builder().
+			container(bucket).
+			executor(Runnable::run).
+			build();
+		AtomicInteger tasksRun = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(10);
+		for (int i = 0; i < 10; ++i)
+		{
+			executor.execute(() ->
+			{
+				tasksRun.incrementAndGet();
+				done.countDown();
+			});
+		}
+		// Tasks run as soon as tokens are available, and the rest wait without blocking the caller
+		requireThat(tasksRun.get(), "tasksRun").isEqualTo(5);
+		requireThat(executor.getQueueSize(), "executor.getQueueSize()").isEqualTo(5);
+
+		requireThat(done.await(5, TimeUnit.SECONDS), "done.await()").isTrue();
+		executor.shutdown();
+		requireThat(executor.awaitTermination(5, TimeUnit.SECONDS), "executor.awaitTermination()").isTrue();
+	}
+
+	@Test
+	public void rejectionPolicy() throws InterruptedException
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit -> limit.
+				period(Duration.ofHours(1)).
+				initialTokens(0).
+				build()).
+			build();
+		RateLimitedExecutor executor = RateLimitedExecutor.builder().
+			container(bucket).
+			executor(Runnable::run).
+			maximumQueueSize(2).
+			rejectionPolicy(RejectionPolicy.DISCARD_OLDEST).
+			build();
+		Runnable first = () -> {};
+		Runnable second = () -> {};
+		Runnable third = () -> {};
+		executor.execute(first);
+		executor.execute(second);
+		executor.execute(third);
+
+		List<Runnable> tasks = executor.shutdownNow();
+		requireThat(tasks, "tasks").containsExactly(List.of(second, third));
+		requireThat(executor.awaitTermination(5, TimeUnit.SECONDS), "executor.awaitTermination()").isTrue();
+		try
+		{
+			executor.execute(first);
+			throw new AssertionError("Expected executor to reject task");
+		}
+		catch (RejectedExecutionException e)
+		{
+			// success
+		}
+	}
+
+	@Test
+	public void dispatcherRunsOnUnderlyingExecutor()
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit -> limit.
+				initialTokens(5).
+				maximumTokens(5).
+				build()).
+			build();
+		List<Runnable> handedOff = new ArrayList<>();
+		RateLimitedExecutor executor = RateLimitedExecutor.builder().
+			container(bucket).
+			executor(handedOff::add).
+			build();
+		Runnable first = () -> {};
+		Runnable second = () -> {};
+		executor.execute(first);
+		executor.execute(second);
+
+		// The submitting thread only hands the dispatcher to the underlying executor
+		requireThat(handedOff.size(), "handedOff.size()").isEqualTo(1);
+		requireThat(executor.getQueueSize(), "executor.getQueueSize()").isEqualTo(2);
+		handedOff.remove(0).run();
+		requireThat(handedOff, "handedOff").containsExactly(List.of(first, second));
+		requireThat(executor.getQueueSize(), "executor.getQueueSize()").isZero();
+	}
+
+	@Test
+	public void rejectedDispatcherKeepsTasksOfOtherThreads()
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit -> limit.
+				initialTokens(5).
+				maximumTokens(5).
+				build()).
+			build();
+		List<Runnable> handedOff = new ArrayList<>();
+		Runnable first = () -> {};
+		Runnable second = () -> {};
+		AtomicInteger attempts = new AtomicInteger();
+		RateLimitedExecutor[] executor = new RateLimitedExecutor[1];
+		executor[0] = RateLimitedExecutor.builder().
+			container(bucket).
+			executor(command ->
+			{
+				if (attempts.incrementAndGet() == 1)
+				{
+					// Simulates another thread that queues a task before the dispatcher of the first task is rejected
+					executor[0].execute(second);
+					throw new RejectedExecutionException();
+				}
+				handedOff.add(command);
+			}).
+			build();
+
+		try
+		{
+			executor[0].execute(first);
+			throw new AssertionError("Expected the first task to be rejected");
+		}
+		catch (RejectedExecutionException e)
+		{
+			// expected
+		}
+		requireThat(executor[0].getQueueSize(), "executor.getQueueSize()").isEqualTo(1);
+		requireThat(handedOff.size(), "handedOff.size()").isEqualTo(1);
+		handedOff.remove(0).run();
+		requireThat(handedOff, "handedOff").containsExactly(List.of(second));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void tokensPerTaskExceedsMaximumTokens()
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit -> limit.maximumTokens(10).build()).
+			build();
+		RateLimitedExecutor ignored = RateLimitedExecutor.builder().
+			container(bucket).
+			executor(Runnable::run).
+			tokensPerTask(11).
+			build();
+	}
+}
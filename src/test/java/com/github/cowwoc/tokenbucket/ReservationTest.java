@@ -0,0 +1,127 @@
+package com.github.cowwoc.tokenbucket;
+
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+public final class ReservationTest
+{
+	@Test
+	public void reserveFutureTokens()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit ->
+				limit.maximumTokens(10).
+					build()).
+			build();
+		Limit limit = bucket.getLimits().iterator().next();
+
+		Reservation first = bucket.reserve(3);
+		requireThat(first.getAvailableIn(), "first.getAvailableIn()").isEqualTo(Duration.ofSeconds(3));
+		Reservation second = bucket.reserve(2);
+		requireThat(second.getAvailableIn(), "second.getAvailableIn()").isEqualTo(Duration.ofSeconds(5));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(-5L);
+
+		// Consumers must wait for the debt to be repaid
+		timeSource.advance(Duration.ofSeconds(5));
+		requireThat(bucket.tryAcquire(1), "bucket.tryAcquire(1)").isEqualTo(-Duration.ofSeconds(1).toNanos());
+		timeSource.advance(Duration.ofSeconds(1));
+		requireThat(bucket.tryAcquire(1), "bucket.tryAcquire(1)").isEqualTo(1L);
+	}
+
+	@Test
+	public void cancelRefundsTokens()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit ->
+				limit.initialTokens(1).
+					maximumTokens(10).
+					build()).
+			build();
+		Limit limit = bucket.getLimits().iterator().next();
+
+		Reservation reservation = bucket.reserve(4);
+		requireThat(reservation.getAvailableIn(), "reservation.getAvailableIn()").
+			isEqualTo(Duration.ofSeconds(3));
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(-3L);
+
+		requireThat(reservation.cancel(), "reservation.cancel()").isTrue();
+		requireThat(reservation.isCancelled(), "reservation.isCancelled()").isTrue();
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(1L);
+		requireThat(reservation.cancel(), "reservation.cancel()").isFalse();
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(1L);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void reserveMoreThanMaximumTokens()
+	{
+		Bucket bucket = Bucket.builder().
+			addLimit(limit ->
+				limit.maximumTokens(10).
+					build()).
+			build();
+		Reservation ignored = bucket.reserve(11);
+	}
+
+	@Test
+	public void reserveFromAll()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		ContainerList containerList = ContainerList.builder().
+			timeSource(timeSource).
+			consumeFromAll().
+			addBucket(bucket ->
+				bucket.addLimit(limit ->
+						limit.period(Duration.ofSeconds(1)).
+							build()).
+					build()).
+			addBucket(bucket ->
+				bucket.addLimit(limit ->
+						limit.period(Duration.ofSeconds(2)).
+							build()).
+					build()).
+			build();
+
+		Reservation reservation = containerList.reserve(2);
+		requireThat(reservation.getAvailableIn(), "reservation.getAvailableIn()").
+			isEqualTo(Duration.ofSeconds(4));
+		for (Container child : containerList.getChildren())
+		{
+			Limit limit = ((Bucket) child).getLimits().iterator().next();
+			requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(-2L);
+		}
+	}
+
+	@Test
+	public void reserveFromOne()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		ContainerList containerList = ContainerList.builder().
+			timeSource(timeSource).
+			addBucket(bucket ->
+				bucket.addLimit(limit ->
+						limit.period(Duration.ofSeconds(2)).
+							build()).
+					build()).
+			addBucket(bucket ->
+				bucket.addLimit(limit ->
+						limit.period(Duration.ofSeconds(1)).
+							build()).
+					build()).
+			build();
+
+		// The second bucket refills faster
+		Reservation reservation = containerList.reserve(2);
+		requireThat(reservation.getAvailableIn(), "reservation.getAvailableIn()").
+			isEqualTo(Duration.ofSeconds(2));
+		Bucket second = (Bucket) containerList.getChildren().get(1);
+		Limit limit = second.getLimits().iterator().next();
+		requireThat(limit.getAvailableTokens(), "limit.getAvailableTokens()").isEqualTo(-2L);
+	}
+}
@@ -0,0 +1,85 @@
+package com.github.cowwoc.tokenbucket;
+
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+public final class TimeSourceTest
+{
+	@Test
+	public void manualTimeSource()
+	{
+		Instant origin = Instant.parse("2022-01-01T00:00:00Z");
+		ManualTimeSource timeSource = new ManualTimeSource(origin);
+		requireThat(timeSource.nanoTime(), "timeSource.nanoTime()").isZero();
+
+		timeSource.advance(Duration.ofSeconds(5));
+		long nanoTime = timeSource.nanoTime();
+		requireThat(nanoTime, "nanoTime").isEqualTo(Duration.ofSeconds(5).toNanos());
+		requireThat(timeSource.toInstant(nanoTime), "timeSource.toInstant(nanoTime)").
+			isEqualTo(origin.plusSeconds(5));
+		requireThat(timeSource.toNanoTime(origin.plusSeconds(5)), "timeSource.toNanoTime()").
+			isEqualTo(nanoTime, "nanoTime");
+	}
+
+	@Test
+	public void conversionsSaturate()
+	{
+		for (TimeSource timeSource : new TimeSource[]{TimeSource.system(), new ManualTimeSource()})
+		{
+			// Long.MAX_VALUE denotes a time that never arrives
+			requireThat(timeSource.toInstant(Long.MAX_VALUE), "timeSource.toInstant(Long.MAX_VALUE)").
+				isEqualTo(Instant.MAX);
+			requireThat(timeSource.toNanoTime(Instant.MAX), "timeSource.toNanoTime(Instant.MAX)").
+				isEqualTo(Long.MAX_VALUE);
+			requireThat(timeSource.toNanoTime(Instant.MIN), "timeSource.toNanoTime(Instant.MIN)").
+				isEqualTo(Long.MIN_VALUE);
+		}
+	}
+
+	@Test
+	public void bucketWithManualTimeSource()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit ->
+				limit.tokensPerPeriod(1).
+					period(Duration.ofSeconds(10)).
+					build()).
+			build();
+		requireThat(bucket.tryAcquire(1), "bucket.tryAcquire(1)").
+			isEqualTo(-Duration.ofSeconds(10).toNanos());
+
+		timeSource.advance(Duration.ofSeconds(9));
+		requireThat(bucket.tryAcquire(1), "bucket.tryAcquire(1)").
+			isEqualTo(-Duration.ofSeconds(1).toNanos());
+
+		timeSource.advance(Duration.ofSeconds(1));
+		requireThat(bucket.tryAcquire(1), "bucket.tryAcquire(1)").isEqualTo(1L);
+	}
+
+	@Test
+	public void coarseTimeSource() throws InterruptedException
+	{
+		try (CoarseTimeSource timeSource = new CoarseTimeSource(Duration.ofMillis(1)))
+		{
+			long before = timeSource.nanoTime();
+			Thread.sleep(50);
+			long after = timeSource.nanoTime();
+			requireThat(after, "after").isGreaterThan(before, "before");
+		}
+	}
+
+	@Test
+	public void systemTimeSourceRoundTrip()
+	{
+		TimeSource timeSource = TimeSource.system();
+		long nanoTime = timeSource.nanoTime();
+		requireThat(timeSource.toNanoTime(timeSource.toInstant(nanoTime)), "roundTrip").
+			isEqualTo(nanoTime, "nanoTime");
+	}
+}
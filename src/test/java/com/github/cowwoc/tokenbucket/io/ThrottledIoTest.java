@@ -0,0 +1,138 @@
+package com.github.cowwoc.tokenbucket.io;
+
+import com.github.cowwoc.tokenbucket.Bucket;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+public final class ThrottledIoTest
+{
+	/**
+	 * @param tokens the number of tokens that the bucket starts with
+	 * @return a bucket that does not refill in the course of a test
+	 */
+	private static Bucket newBucket(long tokens)
+	{
+		return Bucket.builder().
+			addLimit(limit -> limit.
+				tokensPerPeriod(1).
+				period(Duration.ofHours(1)).
+				initialTokens(tokens).
+				maximumTokens(tokens).
+				build()).
+			build();
+	}
+
+	/**
+	 * @param length the number of bytes
+	 * @return an array of sequential bytes
+	 */
+	private static byte[] newData(int length)
+	{
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; ++i)
+			result[i] = (byte) i;
+		return result;
+	}
+
+	@Test
+	public void inputStream() throws IOException
+	{
+		Bucket bucket = newBucket(150);
+		byte[] data = newData(100);
+		// Return at most 10 bytes per read, forcing tokens to be carried over between reads
+		InputStream shortReads = new ByteArrayInputStream(data)
+		{
+			@Override
+			public synchronized int read(byte[] b, int off, int len)
+			{
+				return super.read(b, off, Math.min(len, 10));
+			}
+		};
+		try (InputStream in = new ThrottledInputStream(shortReads, bucket))
+		{
+			requireThat(Arrays.equals(in.readNBytes(100), data), "Arrays.equals(in.readNBytes(100), data)").isTrue();
+		}
+		requireThat(bucket.tryAcquire(1, 1000), "bucket.tryAcquire(1, 1000)").isEqualTo(50L);
+	}
+
+	@Test
+	public void outputStream() throws IOException
+	{
+		Bucket bucket = newBucket(150);
+		byte[] data = newData(100);
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+		try (OutputStream out = new ThrottledOutputStream(target, bucket))
+		{
+			out.write(data);
+		}
+		requireThat(Arrays.equals(target.toByteArray(), data), "Arrays.equals(target.toByteArray(), data)").
+			isTrue();
+		requireThat(bucket.tryAcquire(1, 1000), "bucket.tryAcquire(1, 1000)").isEqualTo(50L);
+	}
+
+	@Test
+	public void channels() throws IOException
+	{
+		Bucket bucket = newBucket(150);
+		byte[] data = newData(100);
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+		try (WritableByteChannel out = new ThrottledWritableByteChannel(Channels.newChannel(target), bucket))
+		{
+			requireThat(out.write(ByteBuffer.wrap(data, 0, 60)), "out.write()").isEqualTo(60);
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(100);
+		try (ThrottledReadableByteChannel in = new ThrottledReadableByteChannel(
+			Channels.newChannel(new ByteArrayInputStream(data)), bucket))
+		{
+			buffer.limit(40);
+			requireThat(in.read(buffer), "in.read()").isEqualTo(40);
+		}
+		requireThat(buffer.limit(), "buffer.limit()").isEqualTo(40);
+		requireThat(Arrays.equals(target.toByteArray(), Arrays.copyOf(data, 60)),
+			"Arrays.equals(target.toByteArray(), data[0..60])").isTrue();
+		buffer.flip();
+		requireThat(buffer, "buffer").isEqualTo(ByteBuffer.wrap(data, 0, 40));
+		requireThat(bucket.tryAcquire(1, 1000), "bucket.tryAcquire(1, 1000)").isEqualTo(50L);
+	}
+
+	@Test
+	public void fileTransfer() throws IOException
+	{
+		Bucket bucket = newBucket(150);
+		byte[] data = newData(100);
+		Path path = Files.createTempFile(ThrottledIoTest.class.getSimpleName(), ".tmp");
+		try
+		{
+			Files.write(path, data);
+			ByteArrayOutputStream target = new ByteArrayOutputStream();
+			try (FileChannel source = FileChannel.open(path))
+			{
+				long bytesTransferred = ThrottledFileTransfer.transferTo(source, 10, 1000,
+					Channels.newChannel(target), bucket);
+				requireThat(bytesTransferred, "bytesTransferred").isEqualTo(90L);
+			}
+			requireThat(Arrays.equals(target.toByteArray(), Arrays.copyOfRange(data, 10, 100)),
+				"Arrays.equals(target.toByteArray(), data[10..100])").isTrue();
+			requireThat(bucket.tryAcquire(1, 1000), "bucket.tryAcquire(1, 1000)").isEqualTo(60L);
+		}
+		finally
+		{
+			Files.delete(path);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.github.cowwoc.tokenbucket.simulation;
+
+import com.github.cowwoc.tokenbucket.Bucket;
+import com.github.cowwoc.tokenbucket.Container;
+import com.github.cowwoc.tokenbucket.ContainerList;
+import com.github.cowwoc.tokenbucket.Limit;
+import com.github.cowwoc.tokenbucket.ManualTimeSource;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.cowwoc.requirements.DefaultRequirements.requireThat;
+
+public final class SimulationTest
+{
+	@Test
+	public void waitTimes()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit -> limit.
+				tokensPerPeriod(1).
+				period(Duration.ofSeconds(1)).
+				initialTokens(1).
+				build()).
+			build();
+		Limit limit = bucket.getLimits().get(0);
+		Simulation simulation = Simulation.builder().
+			timeSource(timeSource).
+			container(bucket).
+			build();
+		List<SimulatedRequest> trace = List.of(
+			new SimulatedRequest(Duration.ZERO, 1),
+			new SimulatedRequest(Duration.ZERO, 1),
+			new SimulatedRequest(Duration.ZERO, 1));
+
+		SimulationReport report = simulation.run(trace);
+		requireThat(report.getRequestsAdmitted(), "report.getRequestsAdmitted()").isEqualTo(3L);
+		requireThat(report.getRequestsRejected(), "report.getRequestsRejected()").isZero();
+		requireThat(report.getWaitTime(0), "report.getWaitTime(0)").isEqualTo(Duration.ZERO);
+		requireThat(report.getWaitTime(50), "report.getWaitTime(50)").isEqualTo(Duration.ofSeconds(1));
+		requireThat(report.getWaitTime(100), "report.getWaitTime(100)").isEqualTo(Duration.ofSeconds(2));
+		requireThat(report.getDuration(), "report.getDuration()").isEqualTo(Duration.ofSeconds(2));
+		requireThat(report.getTokensPerSecond(), "report.getTokensPerSecond()").isEqualTo(1.5);
+		requireThat(report.getBottlenecks(), "report.getBottlenecks()").isEqualTo(Map.of(limit, 2L));
+	}
+
+	@Test
+	public void bottlenecksAreCountedPerLimit()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		ContainerList containerList = ContainerList.builder().
+			timeSource(timeSource).
+			consumeFromAll().
+			addBucket(bucket -> bucket.
+				addLimit(limit -> limit.
+					tokensPerPeriod(1).
+					period(Duration.ofSeconds(1)).
+					initialTokens(1).
+					build()).
+				build()).
+			addBucket(bucket -> bucket.
+				addLimit(limit -> limit.
+					tokensPerPeriod(1).
+					period(Duration.ofSeconds(1)).
+					initialTokens(1).
+					build()).
+				build()).
+			build();
+		List<Limit> limits = new ArrayList<>();
+		for (Container child : containerList.getChildren())
+			limits.addAll(((Bucket) child).getLimits());
+		Simulation simulation = Simulation.builder().
+			timeSource(timeSource).
+			container(containerList).
+			build();
+		List<SimulatedRequest> trace = List.of(
+			new SimulatedRequest(Duration.ZERO, 1),
+			new SimulatedRequest(Duration.ZERO, 1),
+			new SimulatedRequest(Duration.ZERO, 1));
+
+		// The limits are equal to each other, but each one held up the last two requests
+		SimulationReport report = simulation.run(trace);
+		Map<Limit, Long> bottlenecks = report.getBottlenecks();
+		requireThat(limits.get(0), "first").isEqualTo(limits.get(1), "second");
+		requireThat(bottlenecks.size(), "bottlenecks.size()").isEqualTo(2);
+		requireThat(bottlenecks.get(limits.get(0)), "bottlenecks.get(first)").isEqualTo(2L);
+		requireThat(bottlenecks.get(limits.get(1)), "bottlenecks.get(second)").isEqualTo(2L);
+	}
+
+	@Test
+	public void simulateHour()
+	{
+		ManualTimeSource timeSource = new ManualTimeSource();
+		Bucket bucket = Bucket.builder().
+			timeSource(timeSource).
+			addLimit(limit -> limit.
+				tokensPerPeriod(10).
+				period(Duration.ofSeconds(1)).
+				initialTokens(10).
+				maximumTokens(10).
+				build()).
+			build();
+		Simulation simulation = Simulation.builder().
+			timeSource(timeSource).
+			container(bucket).
+			maximumWait(Duration.ZERO).
+			build();
+		// Offer twice as many requests as the limit admits, for an hour
+		List<SimulatedRequest> trace = new ArrayList<>();
+		for (Duration arrival = Duration.ZERO; arrival.compareTo(Duration.ofHours(1)) < 0;
+		     arrival = arrival.plusMillis(50))
+		{
+			trace.add(new SimulatedRequest(arrival, 1));
+		}
+
+		SimulationReport report = simulation.run(trace);
+		requireThat(report.getRequestsAdmitted() + report.getRequestsRejected(), "requests").
+			isEqualTo((long) trace.size());
+		requireThat(report.getRequestsAdmitted(), "report.getRequestsAdmitted()").isBetween(35_990L, 36_011L);
+		requireThat(report.getTokensPerSecond(), "report.getTokensPerSecond()").isBetween(9.9, 10.1);
+		requireThat(report.getWaitTime(100), "report.getWaitTime(100)").isEqualTo(Duration.ZERO);
+	}
+}